@@ -0,0 +1,160 @@
+package com.example.btscanner;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+    Old vs new way of getting state and messages between the service and the activity, on a device:
+    latency from the sending thread to the main thread callback, and bytes allocated per message
+    (all threads, Debug alloc counting). Results go to logcat under BT_SC.
+
+    adb shell am instrument -w -e class com.example.btscanner.StateChannelBenchmark com.example.btscanner.test/androidx.test.runner.AndroidJUnitRunner
+ */
+@RunWith(AndroidJUnit4.class)
+public class StateChannelBenchmark {
+
+    private static final int MESSAGES = 2_000;
+    private static final String MESSAGE = "Hello from Watch-07";
+
+    private interface Path {
+        // Sends message i, onReceived() runs on the main thread when it arrives
+        void send(int i);
+    }
+
+    private final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private final long[] latencies = new long[MESSAGES];
+    private volatile long sentAt;
+    private CountDownLatch received;
+
+    private void onReceived() {
+        received.countDown();
+    }
+
+    // Messages one at a time from a background thread (the service's loop), so each latency is a clean hop
+    @SuppressWarnings("deprecation")
+    private String run(String name, Path path) throws InterruptedException {
+        HandlerThread sender = new HandlerThread("bench-sender");
+        sender.start();
+        Handler senderHandler = new Handler(sender.getLooper());
+        try {
+            for (int round = 0; round < 2; round++) {
+                boolean measured = round == 1;
+                if (measured) {
+                    Debug.resetGlobalAllocSize();
+                    Debug.startAllocCounting();
+                }
+                for (int i = 0; i < MESSAGES; i++) {
+                    received = new CountDownLatch(1);
+                    int index = i;
+                    senderHandler.post(() -> {
+                        sentAt = System.nanoTime();
+                        path.send(index);
+                    });
+                    assertTrue(received.await(5, TimeUnit.SECONDS));
+                    latencies[i] = System.nanoTime() - sentAt;
+                }
+                if (measured) {
+                    Debug.stopAllocCounting();
+                }
+            }
+        } finally {
+            sender.quitSafely();
+        }
+        long bytes = Debug.getGlobalAllocSize();
+        Arrays.sort(latencies);
+        String result = String.format(Locale.US, "%s: p50 %.1f us, p99 %.1f us, %.0f bytes per message",
+                name, latencies[MESSAGES / 2] / 1000.0, latencies[MESSAGES * 99 / 100] / 1000.0, (double) bytes / MESSAGES);
+        Log.i("BT_SC", result);
+        return result;
+    }
+
+    @Test
+    public void messages() throws InterruptedException {
+        // before: a LocalBroadcastManager intent with a parceled extra
+        LocalBroadcastManager broadcasts = LocalBroadcastManager.getInstance(context);
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getStringExtra("message") != null) {
+                    onReceived();
+                }
+            }
+        };
+        broadcasts.registerReceiver(receiver, new IntentFilter("com.example.btscanner.NEW_MESSAGE"));
+        try {
+            run("LocalBroadcastManager message", i -> {
+                Intent intent = new Intent("com.example.btscanner.NEW_MESSAGE");
+                intent.putExtra("message", MESSAGE);
+                broadcasts.sendBroadcast(intent);
+            });
+        } finally {
+            broadcasts.unregisterReceiver(receiver);
+        }
+
+        // after: the channel, the listener posts to the main thread like MainActivity does
+        Handler main = new Handler(Looper.getMainLooper());
+        StateChannel<InAppMessage> channel = new StateChannel<>(null);
+        StateChannel.Listener<InAppMessage> listener = message -> {
+            if (message != null) {
+                main.post(this::onReceived);
+            }
+        };
+        channel.observe(listener);
+        run("StateChannel message", i -> channel.publish(new InAppMessage(i + 1, MESSAGE, 0)));
+        channel.remove(listener);
+    }
+
+    @Test
+    public void foregroundState() throws InterruptedException {
+        // before: a system-wide broadcast through the system server, received on the main thread
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onReceived();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction("com.example.btscanner.APP_FOREGROUND");
+        filter.addAction("com.example.btscanner.APP_BACKGROUND");
+        context.registerReceiver(receiver, filter);
+        try {
+            run("sendBroadcast foreground state", i -> context.sendBroadcast(new Intent(
+                    (i & 1) == 0 ? "com.example.btscanner.APP_FOREGROUND" : "com.example.btscanner.APP_BACKGROUND")
+                    .setPackage(context.getPackageName())));
+        } finally {
+            context.unregisterReceiver(receiver);
+        }
+
+        // after: the service reads the flag directly, the listener only does the bookkeeping
+        StateChannel<Boolean> channel = new StateChannel<>(false);
+        Handler main = new Handler(Looper.getMainLooper());
+        StateChannel.Listener<Boolean> listener = foreground -> main.post(this::onReceived);
+        received = new CountDownLatch(1);
+        channel.observe(listener);
+        // let the sticky callback from observe() through before measuring
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        run("StateChannel foreground state", i -> channel.publish((i & 1) == 0));
+        channel.remove(listener);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.btscanner;
+
+/*
+    The state shared by MainActivity and BluetoothService, they live in the same process.
+
+    foreground is set by the activity in onResume/onPause and read by the service when it dispatches,
+    so the service sees the change the moment it happens instead of when a broadcast gets to it.
+    messages goes the other way, the activity only listens while it is resumed. The sticky message
+    is handed over on every resume, markShown() keeps track of what was shown across activity instances.
+ */
+public class AppChannels {
+
+    private static final AppChannels SHARED = new AppChannels();
+
+    public static AppChannels shared() {
+        return SHARED;
+    }
+
+    public final StateChannel<Boolean> foreground = new StateChannel<>(false);
+    public final StateChannel<InAppMessage> messages = new StateChannel<>(null);
+
+    // guarded by this
+    private InAppMessage lastShown;
+    private long lastShownSeq;
+
+    public boolean isForeground() {
+        return foreground.get();
+    }
+
+    // Called before showing a message, false if an activity (this one or one since recreated) showed it already.
+    // A message that could not be journaled (seq 0) has no place in the order, only that very one counts as shown
+    public synchronized boolean markShown(InAppMessage message) {
+        if (message == lastShown || (message.seq != 0 && message.seq <= lastShownSeq)) {
+            return false;
+        }
+        lastShown = message;
+        lastShownSeq = Math.max(lastShownSeq, message.seq);
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.btscanner;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+// DiscoveryRadio on the real adapter, classic results arrive as ACTION_FOUND broadcasts, BLE results through the listener
+public class BluetoothDiscoveryRadio implements DiscoveryRadio {
+
+    public interface Listener {
+        void onDeviceFound(String address, String name, int rssi);
+    }
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final List<ScanFilter> filters;
+    private final ScanSettings settings;
+    private final Listener listener;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @SuppressLint("MissingPermission")
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            listener.onDeviceFound(result.getDevice().getAddress(), result.getDevice().getName(), result.getRssi());
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w("BT_SC", "BLE scan failed " + errorCode);
+        }
+    };
+
+    public BluetoothDiscoveryRadio(BluetoothAdapter bluetoothAdapter, UUID serviceUuid, Listener listener) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.listener = listener;
+        // only devices advertising our service (BluetoothService does), the controller drops everything else without waking us
+        this.filters = Collections.singletonList(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(serviceUuid))
+                .build());
+        this.settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .build();
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean startDiscovery() {
+        if (bluetoothAdapter.isDiscovering()) {
+            bluetoothAdapter.cancelDiscovery();
+        }
+        return bluetoothAdapter.startDiscovery();
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void cancelDiscovery() {
+        bluetoothAdapter.cancelDiscovery();
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean startLowPowerScan() {
+        BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            // Bluetooth is off
+            return false;
+        }
+        scanner.startScan(filters, settings, scanCallback);
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void stopLowPowerScan() {
+        BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner != null) {
+            scanner.stopScan(scanCallback);
+        }
+    }
+}
@@ -1,38 +1,56 @@
 package com.example.btscanner;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import android.os.PowerManager;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
 import android.os.PowerManager.WakeLock;
 
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.ValueEventListener;
 import com.onesignal.Continue;
 import com.onesignal.OneSignal;
@@ -44,131 +62,565 @@ import com.google.firebase.FirebaseApp;
 
 public class BluetoothService extends Service {
 
-    private Context foregroundActivityContext;
-    String uuid = "8bf5fd6f-344e-4303-92dd-a7aee674ac86";
-    private BluetoothAdapter bluetoothAdapter;
-    private BluetoothServerSocket serverSocket;
-    private BluetoothSocket socket;
-    private boolean isAppForeground = true;
-    private static final int NOTIFICATION_ID = 1;
-    private static final String CHANNEL_ID = "BT_Scan";
+    // Owns the service's mutable state (replay cursor, dispatch, notification state).
+    // Transport threads and Firebase callbacks journal and decode on their own thread, then post here.
+    private EventLoop eventLoop;
 
-    private Handler handler = new Handler();
+    // Pool, queue and window sizes, smaller on Android Go devices. Everything sized by it is created
+    // in onCreate(), the low-RAM check needs the package manager
+    private MemoryProfile memoryProfile;
+    // last onTrimMemory level, 0 while there is no pressure
+    private volatile int trimLevel;
 
-    private InputStream inputStream;
+    String uuid = "8bf5fd6f-344e-4303-92dd-a7aee674ac86";
+    private BluetoothAdapter bluetoothAdapter;
 
-    private byte[] buffer;
+    // BLE advertisement of the service UUID, the activity's low-power scan (BluetoothDiscoveryRadio)
+    // filters on it. Classic discovery finds us without it
+    private BluetoothLeAdvertiser advertiser;
+    private final AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            Log.i("BT_SC", "Advertising service over BLE");
+        }
 
-    // Declare a WakeLock variable at the class level
-    private WakeLock wakeLock;
+        @Override
+        public void onStartFailure(int errorCode) {
+            Log.w("BT_SC", "BLE advertising failed " + errorCode);
+        }
+    };
+    // Every way messages come in (RFCOMM server, WebSocket client), all feeding the InboundPipeline
+    private final List<Transport> transports = new ArrayList<>();
+    // Foreground flag set by the activity, and the channel messages are handed to it on
+    private final AppChannels appChannels = AppChannels.shared();
+    private static final int NOTIFICATION_ID = 1;
+    private static final String CHANNEL_ID = "BT_Scan";
+    // urgent and bulk messages get their own channel and notification, normal ones update the service's
+    private static final int URGENT_NOTIFICATION_ID = 2;
+    private static final String URGENT_CHANNEL_ID = "BT_Scan_urgent";
+    private static final int BULK_NOTIFICATION_ID = 3;
+    private static final String BULK_CHANNEL_ID = "BT_Scan_bulk";
+
+    // Accepted connections that stay silent (no frames, no heartbeats) for 3 heartbeat intervals are
+    // closed as half-open, a failed RFCOMM listener is reopened with a jittered backoff
+    private static final long CONNECTION_DEADLINE_MS = 3 * FrameCodec.HEARTBEAT_INTERVAL_MS;
+    private static final long HEALTH_CHECK_INTERVAL_MS = 5_000;
+    private static final long LISTENER_MIN_BACKOFF_MS = 500;
+    private static final long LISTENER_MAX_BACKOFF_MS = 30_000;
+    private HealthMonitor health;
+
+    // TYPE_RELIABLE frames are acknowledged, copies of the last MemoryProfile.reliableWindow IDs are dropped, see OutboundQueue
+    private ReliableReceiver reliable;
+
+    // Receive buffers are shared between connections, a reconnecting sender reuses the last one's buffer
+    private static final int RECEIVE_BUFFER_SIZE = 1024;
+    private BufferPool receiveBuffers;
+
+    // Background messages arriving within this window end up in the same notification update,
+    // one dispatcher per priority: urgent ones right away, bulk ones folded over a couple of seconds
+    private static final long NOTIFICATION_WINDOW_MS = 250;
+    private static final int MAX_NOTIFICATIONS_PER_SECOND = 4;
+    private static final long URGENT_NOTIFICATION_WINDOW_MS = 0;
+    private static final int MAX_URGENT_NOTIFICATIONS_PER_SECOND = 10;
+    private static final long BULK_NOTIFICATION_WINDOW_MS = 2_000;
+    private static final int MAX_BULK_NOTIFICATIONS_PER_SECOND = 1;
+    private final NotificationDispatcher[] notificationDispatchers = new NotificationDispatcher[MessagePriority.values().length];
+
+    // Every inbound message goes through the router, urgent orders ahead of bulk pings, see setUpRoutes()
+    private static final int ROUTER_BATCH = 32;
+    private static final long URGENT_VIBRATION_MS = 200;
+    private MessageRouter router;
+    private Vibrator vibrator;
+    // framing, decode, dedup and journal in front of the router, built once the journal is open
+    private InboundPipeline pipeline;
+
+    // Relay mode: orders and frames received here are passed on to these paired peers, and relayed
+    // frames from them are shown once and passed on again, see MessageRelay
+    // TODO put the MACs of the watches to relay to here, empty leaves relaying off (relayed frames are still shown)
+    private static final String[] RELAY_PEERS = {};
+    private static final int RELAY_MAX_HOPS = 8;
+    private static final int RELAY_MAX_PENDING_PER_PEER = 64;
+    private static final long RELAY_IDLE_TIMEOUT_MS = 60_000;
+    private MessageRelay relay;
+    private MessageSender relaySender;
+
+    // On-disk message journal, fsync'ed in groups by its own thread
+    private MessageJournal journal;
+    private static final int JOURNAL_SEGMENT_BYTES = 256 * 1024;
+    private static final long JOURNAL_MAX_BYTES = 2 * 1024 * 1024;
+    private static final int JOURNAL_FLUSH_BATCH = 32;
+    private static final long JOURNAL_FLUSH_INTERVAL_MS = 1000;
+    private static final String JOURNAL_PREFS = "journal";
+
+    // Newest journal entry the activity has shown, everything after it is replayed when it binds
+    // event loop only
+    private long lastSeqShownInApp;
+
+    // Firebase 'orders' listener with a persisted push key cursor, set by the startup thread
+    private volatile OrderSync orderSync;
+    private static final String ORDER_PREFS = "orders";
+    private static final int ORDER_RESUBSCRIBE_AFTER = 500;
+
+    // Per path / per stage latency histograms, split by doze state, see getDeliveryMetrics()
+    private final DeliveryMetrics deliveryMetrics = DeliveryMetrics.shared();
+
+    // The CPU is only kept awake while a frame, a journal flush or a notification is in flight
+    private WakeLockManager wakeLocks;
+    private static final long JOURNAL_LEASE_MS = 5_000;
+    private static final long NOTIFICATION_LEASE_MS = 2_000;
+
+    // Flip between leases only and an always held lock every hour, and log hold time vs latency
+    private static final boolean WAKE_LOCK_EXPERIMENT = false;
+    private static final long WAKE_LOCK_EXPERIMENT_PERIOD_MS = 60 * 60 * 1000L;
+    private WakeLockExperiment wakeLockExperiment;
+
+    // TODO put your monitoring endpoint here (ws://host:port/path), empty leaves the WebSocket transport off
+    private static final String WEBSOCKET_URL = "";
+    private static final long WEBSOCKET_PING_INTERVAL_MS = 30_000;
+    private static final long WEBSOCKET_PONG_TIMEOUT_MS = 10_000;
+    private static final long WEBSOCKET_MIN_BACKOFF_MS = 1_000;
+    private static final long WEBSOCKET_MAX_BACKOFF_MS = 60_000;
+
+    // Foreground notification and Bluetooth listener on the main thread, the SDKs after them on this thread
+    private final Executor startupThreads = task -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        task.run();
+    }, "BT_SC-startup").start();
+    private final StartupOrchestrator startup = new StartupOrchestrator(startupThreads);
+    // reopens the RFCOMM listener off the event loop, opening blocks while Bluetooth comes up
+    private final Executor listenerOpener = task -> new Thread(task, "BT_SC-listen").start();
+    private volatile boolean oneSignalStarted;
+    // set by the app-state phase, onDestroy only unregisters what was registered
+    private boolean deviceIdleRegistered;
 
     // TODO put your own OneSignal App ID here
     private static final String ONESIGNAL_APP_ID = "";
 
-    @SuppressLint("InvalidWakeLockTag")
     @Override
     public void onCreate() {
         super.onCreate();
-        // Initialize Bluetooth here
+        createPipeline();
+        // Critical path first: the foreground notification and everything the Bluetooth listener needs.
+        // The SDKs come up afterwards on a background thread, see deferSdkStartup()
+        // Each phase needs the ones before it, once one fails the rest are skipped and the service stops.
+        // Only app-state and ble-advertising may fail, without them the activity just doesn't get messages
+        // handed over, or only finds this watch with classic discovery
+        boolean listening = startup.run("foreground", this::startForegroundNotification)
+                && startup.run("bluetooth", this::openBluetoothAdapter)
+                && startup.run("event-loop", eventLoop::start)
+                && startup.run("wake-locks", this::setUpWakeLocks)
+                && startup.run("routes", () -> {
+                    setUpRoutes();
+                    setUpRelay();
+                })
+                && startup.run("journal", this::openJournal);
+        if (listening) {
+            startup.run("app-state", this::followAppState);
+            listening = startup.run("bluetooth-listener", this::startListener);
+        }
+        if (!listening) {
+            Log.e("BT_SC", "Startup failed, stopping");
+            Log.i("BT_SC", startup.report());
+            // nothing is deferred, this only lets onDestroy's wait for the SDK phases return right away
+            startup.start();
+            stopSelf();
+            return;
+        }
+        Log.i("BT_SC", String.format(Locale.US, "Listening %d ms after process start, critical path %.1f ms",
+                SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime(), startup.getEndMillis("bluetooth-listener")));
+        startup.run("ble-advertising", this::startAdvertising);
+
+        deferSdkStartup();
+        startup.start();
+    }
+
+    // The relay and the listener both go through the adapter, without one there is nothing to listen on
+    private void openBluetoothAdapter() {
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (bluetoothAdapter == null) {
+            throw new IllegalStateException("No Bluetooth adapter on this device");
+        }
+    }
+
+    // The activity's foreground state and the device idle state
+    private void followAppState() {
+        // follow the activity's foreground state, the current state is handed over straight away
+        appChannels.foreground.observe(foregroundListener);
+
+        // latencies are kept apart for doze and non-doze, follow the device idle state
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        deliveryMetrics.setDozing(powerManager.isDeviceIdleMode());
+        registerReceiver(deviceIdleReceiver, new IntentFilter(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED));
+        deviceIdleRegistered = true;
+    }
+
+    // The pipeline and the transports feeding it, from here on messages come in
+    private void startListener() {
+        health.start();
+        pipeline = new InboundPipeline(router, deliveryMetrics, journal, relay, reliable, health, receiveBuffers, wakeLocks,
+                Clock.WALL);
+        transports.add(new ServerTransport("rfcomm", this::openRfcommAcceptor, pipeline::read, memoryProfile.maxBtConnections,
+                health, eventLoop, listenerOpener, LISTENER_MIN_BACKOFF_MS, LISTENER_MAX_BACKOFF_MS, new Random()));
+        if (!WEBSOCKET_URL.isEmpty()) {
+            transports.add(new WebSocketTransport("websocket", URI.create(WEBSOCKET_URL), pipeline.newReceiver("websocket"),
+                    WEBSOCKET_PING_INTERVAL_MS, WEBSOCKET_PONG_TIMEOUT_MS, WEBSOCKET_MIN_BACKOFF_MS, WEBSOCKET_MAX_BACKOFF_MS));
+        }
+        startTransports();
+    }
+
+    // Everything sized by the memory profile, nothing is started yet
+    private void createPipeline() {
+        ActivityManager activityManager = getSystemService(ActivityManager.class);
+        memoryProfile = MemoryProfile.forDevice(getPackageManager().hasSystemFeature("android.hardware.ram.low")
+                || activityManager.isLowRamDevice());
+        Log.i("BT_SC", "Memory profile " + memoryProfile);
+        eventLoop = new EventLoop("BT_SC-loop", memoryProfile.eventQueueCapacity);
+        health = new HealthMonitor(eventLoop, Clock.SYSTEM, CONNECTION_DEADLINE_MS, HEALTH_CHECK_INTERVAL_MS,
+                FrameCodec.HEARTBEAT_INTERVAL_MS);
+        reliable = new ReliableReceiver(memoryProfile.reliableWindow);
+        receiveBuffers = new BufferPool(RECEIVE_BUFFER_SIZE, memoryProfile.pooledReceiveBuffers);
+        router = new MessageRouter(InboundPipeline::classify, eventLoop, memoryProfile.routerCapacity, ROUTER_BATCH);
+    }
+
+    // Configure the service as a foreground service, before anything else so we are well within the deadline
+    private void startForegroundNotification() {
+        createNotificationChannel();
+        Notification notification = createNotification().build();
+        startForeground(NOTIFICATION_ID, notification);
+    }
+
+    private void setUpWakeLocks() {
+        // One platform wake lock, held by the manager while any lease is
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        WakeLock platformWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "btscanner:work");
+        platformWakeLock.setReferenceCounted(false);
+        wakeLocks = new WakeLockManager(new WakeLockManager.Lock() {
+            @Override
+            public void acquire(long timeoutMillis) {
+                platformWakeLock.acquire(timeoutMillis);
+            }
+
+            @Override
+            public void release() {
+                if (platformWakeLock.isHeld()) {
+                    platformWakeLock.release();
+                }
+            }
+        }, eventLoop, Clock.SYSTEM);
+        if (WAKE_LOCK_EXPERIMENT) {
+            // its rows are dated
+            wakeLockExperiment = new WakeLockExperiment(wakeLocks, eventLoop, Clock.WALL,
+                    WAKE_LOCK_EXPERIMENT_PERIOD_MS, true);
+            wakeLockExperiment.start();
+        }
+    }
 
-       // Register the broadcast receiver
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("com.example.btscanner.APP_FOREGROUND");
-        filter.addAction("com.example.btscanner.APP_BACKGROUND");
-        registerReceiver(appStateReceiver, filter);
+    // Every inbound message is written here first, so nothing is lost if the service gets killed
+    private void openJournal() {
+        try {
+            journal = new MessageJournal(new File(getFilesDir(), "journal"), JOURNAL_SEGMENT_BYTES, JOURNAL_MAX_BYTES,
+                    JOURNAL_FLUSH_BATCH, JOURNAL_FLUSH_INTERVAL_MS);
+            journal.setFlushLease(wakeLocks.newLease("journal", JOURNAL_LEASE_MS));
+        } catch (IOException e) {
+            Log.e("BT_SC", "Error opening journal " + e.getMessage());
+        }
+        long shownInApp = getSharedPreferences(JOURNAL_PREFS, MODE_PRIVATE).getLong("shown_in_app", 0);
+        eventLoop.execute(() -> lastSeqShownInApp = shownInApp);
+    }
 
-        // Inside your activity's or service's onCreate or onStartCommand method
-        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "BTS_SC_WakeLockTag");
+    // Firebase and OneSignal, in dependency order on the startup thread. Orders pushed meanwhile
+    // are not lost, OrderSync resumes from its cursor
+    private void deferSdkStartup() {
+        startup.defer("firebase", () -> FirebaseApp.initializeApp(this));
+        startup.defer("order-sync", () -> {
+            DatabaseReference databaseReference = FirebaseDatabase.getInstance().getReference("orders");
+
+            // listen to event changes in the service for the 'orders' reference in the firebase realtime database,
+            // resuming after the last order we processed so nothing pushed while we were away gets skipped
+            SharedPreferences orderPrefs = getSharedPreferences(ORDER_PREFS, MODE_PRIVATE);
+            OrderSync sync = new OrderSync(new FirebaseOrderSource(databaseReference, eventLoop), new OrderSync.CursorStore() {
+                @Override
+                public String load() {
+                    return orderPrefs.getString("cursor", null);
+                }
 
-        // Acquire the wake lock when you need to keep the CPU awake
-        if (!wakeLock.isHeld()) {
-            wakeLock.acquire();
+                @Override
+                public void save(String key) {
+                    orderPrefs.edit().putString("cursor", key).apply();
+                }
+            }, this::onOrder, ORDER_RESUBSCRIBE_AFTER, eventLoop);
+            sync.start();
+            orderSync = sync;
+        }, "firebase");
+        if (memoryProfile.oneSignalDelayMillis == 0) {
+            startup.defer("onesignal", this::startOneSignal);
+        } else {
+            // low-RAM: not while the listener and Firebase are still settling in
+            scheduleOneSignal(memoryProfile.oneSignalDelayMillis);
         }
+    }
 
+    // Runs on the event loop, the SDK is loaded on a startup thread. Put off again while memory is low.
+    // The loop drops its timers on shutdown, so nothing starts after onDestroy
+    private void scheduleOneSignal(long delayMillis) {
+        eventLoop.schedule(() -> {
+            if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                Log.i("BT_SC", "Memory is low, OneSignal waits another " + memoryProfile.oneSignalDelayMillis + " ms");
+                trimLevel = 0;
+                scheduleOneSignal(memoryProfile.oneSignalDelayMillis);
+                return;
+            }
+            startupThreads.execute(this::startOneSignal);
+        }, delayMillis);
+    }
+
+    private void startOneSignal() {
         // Verbose Logging set to help debug issues, remove before releasing your app.
         OneSignal.getDebug().setLogLevel(LogLevel.VERBOSE);
 
         // OneSignal Initialization
         OneSignal.initWithContext(this, ONESIGNAL_APP_ID);
+        oneSignalStarted = true;
+    }
 
-        // Initialize Firebase
-        FirebaseApp.initializeApp(this);
+    // The pooled receive buffers are only a warm start for the next connection, they go first.
+    // What the pipeline holds for correctness (dedup windows, queued messages, the journal) stays
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        trimLevel = level;
+        if (receiveBuffers == null) {
+            return;
+        }
+        int buffers = receiveBuffers.trim();
+        Log.i("BT_SC", "Trim memory level " + level + ", dropped " + buffers + " receive buffers"
+                + (oneSignalStarted ? "" : ", OneSignal not loaded"));
+    }
 
-        // Initialize Firebase
-        FirebaseDatabase firebaseDatabase = FirebaseDatabase.getInstance();
-        DatabaseReference databaseReference = firebaseDatabase.getReference("orders");
 
-        // listen to event changes in the service for the 'orders' reference in the firebase realtime database
-        ChildEventListener ordersListener = new ChildEventListener() {
 
-            private boolean firstLoad = true; // skip first load existing data
+    // Called by the OrderSync for every new order, in push key order, on the Firebase callback thread.
+    // The order is journaled here (before OrderSync moves its cursor past it), the dispatch runs on the loop
+    private void onOrder(String key, Map<String, Object> fields) {
+        String field1 = String.valueOf(fields.get("field1"));
 
-            @Override
-            public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
+        Log.d("BT_SC", "field1: " + field1);
 
-                if (firstLoad) {
+        // orders written by OrderWriter carry their creation time, writer and watch clocks need to be in sync
+        Object createdAt = fields.get(OrderWriter.CREATED_AT);
+        if (createdAt instanceof Number) {
+            long transitMs = System.currentTimeMillis() - ((Number) createdAt).longValue();
+            deliveryMetrics.record(MessageSource.FIREBASE, DeliveryStage.TRANSIT, transitMs * 1000);
+            if (wakeLockExperiment != null) {
+                wakeLockExperiment.recordDelivery(transitMs * 1000);
+            }
+        }
 
-                    firstLoad = false;
-                    return;
-                }
+        long startNanos = System.nanoTime();
+        String message = InboundPipeline.ORDER_PREFIX + field1;
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        // only synced once the listener is up, but shown unjournaled (seq 0) rather than lost
+        long seq = pipeline != null ? pipeline.journal(MessageSource.FIREBASE, bytes, 0, bytes.length) : 0;
+        long journaledNanos = System.nanoTime();
+        deliveryMetrics.recordNanos(MessageSource.FIREBASE, DeliveryStage.JOURNAL, startNanos, journaledNanos);
+
+        // watches without internet get it from us, with all of its fields. The id comes from the push key,
+        // so the same order from several watches with internet is only passed on once
+        if (relay != null) {
+            byte[] encoded = MessageCodec.encodeOrder(InboundPipeline.ORDER_PREFIX, field1, fields);
+            relay.originate(MessageRelay.orderId(key), encoded, 0, encoded.length);
+        }
+        router.submit(MessageSource.FIREBASE, seq, message, startNanos);
+    }
 
-                String field1 = (String) dataSnapshot.child("field1").getValue();
+    // Sinks are tried in order until one delivers: urgent messages buzz first,
+    // then every message goes to the activity if it is showing, or else its priority's notification
+    private void setUpRoutes() {
+        vibrator = getSystemService(Vibrator.class);
+        router.addSink(MessagePriority.URGENT, this::vibrate);
+        router.addSink(this::showInApp);
+
+        addNotificationRoute(MessagePriority.URGENT, createMessageNotification(URGENT_CHANNEL_ID), URGENT_NOTIFICATION_ID,
+                URGENT_NOTIFICATION_WINDOW_MS, MAX_URGENT_NOTIFICATIONS_PER_SECOND);
+        addNotificationRoute(MessagePriority.NORMAL, createNotification(), NOTIFICATION_ID,
+                NOTIFICATION_WINDOW_MS, MAX_NOTIFICATIONS_PER_SECOND);
+        addNotificationRoute(MessagePriority.BULK, createMessageNotification(BULK_CHANNEL_ID), BULK_NOTIFICATION_ID,
+                BULK_NOTIFICATION_WINDOW_MS, MAX_BULK_NOTIFICATIONS_PER_SECOND);
+
+        router.setDeliveryListener((message, delivered, doneNanos) -> {
+            deliveryMetrics.recordNanos(message.source, DeliveryStage.DISPATCH, message.submittedNanos, doneNanos);
+            deliveryMetrics.recordNanos(message.source, DeliveryStage.TOTAL, message.receivedNanos, doneNanos);
+            // orders are counted by their transit time in onOrder
+            if (wakeLockExperiment != null && message.source != MessageSource.FIREBASE) {
+                wakeLockExperiment.recordDelivery((doneNanos - message.receivedNanos) / 1000);
+            }
+        });
+    }
 
-                Log.d("BT_SC", "field1: " + field1);
+    // bursts are folded into one update by the dispatcher, see showMessageNotification
+    private void addNotificationRoute(MessagePriority priority, NotificationCompat.Builder builder, int notificationId,
+                                      long windowMillis, int maxPerSecond) {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(
+                (count, lines) -> showMessageNotification(builder, notificationId, count, lines),
+                eventLoop, Clock.SYSTEM, windowMillis, maxPerSecond, memoryProfile.notificationLines);
+        dispatcher.setWakeLease(wakeLocks.newLease("notification-" + priority.name().toLowerCase(Locale.US), NOTIFICATION_LEASE_MS));
+        notificationDispatchers[priority.ordinal()] = dispatcher;
+        router.addSink(priority, message -> {
+            dispatcher.post(message.getDisplayText());
+            return true;
+        });
+    }
 
-                showMessage("Firebase new: " + field1);
+    // Sink: a short buzz, the message still goes on to the next sink
+    private boolean vibrate(RoutedMessage message) {
+        if (vibrator != null && vibrator.hasVibrator()) {
+            vibrator.vibrate(VibrationEffect.createOneShot(URGENT_VIBRATION_MS, VibrationEffect.DEFAULT_AMPLITUDE));
+        }
+        return false;
+    }
 
-            }
+    // One sender thread per peer, so a slow peer never holds up the others
+    private void setUpRelay() {
+        if (RELAY_PEERS.length > 0) {
+            ConnectionPool relayPool = new ConnectionPool(new RfcommConnectionFactory(bluetoothAdapter, UUID.fromString(uuid)),
+                    RELAY_IDLE_TIMEOUT_MS, Clock.SYSTEM);
+            relaySender = new MessageSender(relayPool, RELAY_PEERS.length, FrameCodec.HEARTBEAT_INTERVAL_MS);
+        }
+        // without peers nothing is ever sent, the link only has to be there
+        MessageRelay.Link link = relaySender != null ? relaySender::send
+                : (address, frame) -> CompletableFuture.completedFuture(null);
+        relay = new MessageRelay(link, Arrays.asList(RELAY_PEERS),
+                memoryProfile.relaySeenIds, RELAY_MAX_HOPS, RELAY_MAX_PENDING_PER_PEER, Clock.WALL);
+    }
 
-            @Override
-            public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
-            }
+    // Sink: the activity's toast while it is in the foreground.
+    // No listener means the activity paused after the check, the message stays on the
+    // channel (sticky) for when it resumes and goes on to a notification as well
+    private boolean showInApp(RoutedMessage message) {
+        boolean foreground = appChannels.isForeground();
+        if (Log.isLoggable("BT_SC", Log.DEBUG)) {
+            Log.d("BT_SC", "Message in foreground? " + foreground);
+        }
+        if (!foreground || appChannels.messages.publish(new InAppMessage(message.getSeq(), message.getDisplayText(), 0)) == 0) {
+            return false;
+        }
+        markShownInApp(message.getSeq());
+        return true;
+    }
 
-            @Override
-            public void onChildRemoved(DataSnapshot dataSnapshot) {
-            }
+    public DeliveryMetrics getDeliveryMetrics() {
+        return deliveryMetrics;
+    }
 
-            @Override
-            public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
-            }
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
 
-            @Override
-            public void onCancelled(DatabaseError databaseError) {
-                // Handle errors
-            }
-        };
+    public MessageRouter getMessageRouter() {
+        return router;
+    }
 
-        // Add the ChildEventListener to the "orders" reference, load only last entry (skip existing data)
-        databaseReference.limitToLast(1).addChildEventListener(ordersListener);
+    public MessageRelay getMessageRelay() {
+        return relay;
+    }
 
+    public StartupOrchestrator getStartup() {
+        return startup;
+    }
 
+    public HealthMonitor getHealthMonitor() {
+        return health;
     }
 
+    public ReliableReceiver getReliableReceiver() {
+        return reliable;
+    }
 
+    // Writes the current p50/p99/max report (and the wake lock ledger) next to the app's other files (adb pull friendly), returns the file
+    public File dumpDeliveryMetrics() throws IOException {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File file = new File(dir, String.format(Locale.US, "delivery-latency-%d.txt", System.currentTimeMillis()));
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(deliveryMetrics.report());
+            writer.write("\n");
+            writer.write(wakeLocks.report());
+            writer.write("\n");
+            writer.write(eventLoop.report());
+            writer.write("\n");
+            writer.write(router.report());
+            writer.write("\n");
+            writer.write(relay.report());
+            writer.write("\n");
+            writer.write(startup.report());
+            writer.write("\nmemory " + memoryProfile + "\n");
+            writer.write("\n");
+            writer.write(health.report());
+            writer.write("\n");
+            writer.write(reliable.report());
+            if (wakeLockExperiment != null) {
+                writer.write("\n");
+                writer.write(wakeLockExperiment.report());
+            }
+        }
+        Log.i("BT_SC", "Delivery latency written to " + file);
+        return file;
+    }
 
-    // Method to set the foreground activity's context
-    public void setForegroundActivityContext(Context context) {
-        Log.i("BT_SC", "Setting Service Context ");
-        Log.i("BT_SC", context.toString());
+    // Called by the activity once it is bound
+    public void onActivityBound() {
+        Log.i("BT_SC", "Activity bound");
 
-        foregroundActivityContext = context;
+        // the activity just (re)bound, hand it what it missed while it was away
+        eventLoop.execute(this::replayMissedMessages);
     }
 
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
+    // Sends the activity the messages it did not show (received in the background or while unbound), event loop only
+    private void replayMissedMessages() {
+        if (journal == null) {
+            return;
+        }
+        int[] count = new int[1];
+        long[] lastSeq = {lastSeqShownInApp};
+        String[] lastText = new String[1];
+        journal.replay(lastSeq[0], (seq, timestamp, source, payload, offset, length) -> {
+            // the activity shows the count and the last message, the payload buffer is reused so it is copied out
+            lastText[0] = new String(payload, offset, length, StandardCharsets.UTF_8);
+            count[0]++;
+            lastSeq[0] = seq;
+        });
+        if (count[0] == 0) {
+            return;
+        }
+        Log.i("BT_SC", "Replaying " + count[0] + " missed messages");
 
-        // Configure the service as a foreground service here
-        createNotificationChannel();
-        NotificationCompat.Builder builder = createNotification();
-        Notification notification = builder.build();
+        // sticky, an activity that is not listening right now gets it when it resumes
+        if (appChannels.messages.publish(new InAppMessage(lastSeq[0], lastText[0], count[0])) > 0) {
+            markShownInApp(lastSeq[0]);
+            saveReplayCursor();
+        }
+    }
 
-        // Configure the service as a foreground service here
-        startForeground(NOTIFICATION_ID, notification);
+    private void markShownInApp(long seq) {
+        if (seq > lastSeqShownInApp) {
+            lastSeqShownInApp = seq;
+        }
+    }
 
-        // Set up Bluetooth socket and listening logic here
-        listenForBluetoothMessages();
+    private void saveReplayCursor() {
+        getSharedPreferences(JOURNAL_PREFS, MODE_PRIVATE).edit()
+                .putLong("shown_in_app", lastSeqShownInApp)
+                .apply();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+
+        // Already in the foreground since onCreate. Set up Bluetooth socket and listening logic here,
+        // and any other transport, in case one failed to start the first time
+        startTransports();
 
         return START_STICKY;
     }
@@ -184,83 +636,84 @@ public class BluetoothService extends Service {
 
             NotificationManager notificationManager = getSystemService(NotificationManager.class);
             notificationManager.createNotificationChannel(channel);
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    URGENT_CHANNEL_ID, "Urgent messages", NotificationManager.IMPORTANCE_HIGH));
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    BULK_CHANNEL_ID, "Pings and status", NotificationManager.IMPORTANCE_LOW));
 
     }
 
-    @SuppressLint("MissingPermission")
-    private void listenForBluetoothMessages() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Log.i("BT_SC", "Listening");
-                    serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord("BTSCAN", UUID.fromString(uuid));
-
-                    socket = serverSocket.accept();
-                    Log.i("BT_SC", "Got BT Request");
-
-                    // Get the input stream from the Bluetooth socket
-                    inputStream = socket.getInputStream();
-
-                    buffer = new byte[1024];
-                    int bytes;
-
-                    // The loop to continuously read messages
-                    while (true) {
-
-                        // Read bytes from the input stream
-                        bytes = inputStream.read(buffer);
-
-                        if (bytes != -1) {
-                            // Convert the received bytes to a string message
-                            String message = new String(buffer, 0, bytes);
-                            showMessage(message);
-                            Log.i("BT_SC", "Msg : " + message);
-
-                            // reset socket
-                            socket.close();
-                            //serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord("BTSCAN", UUID.fromString(uuid));
-                            socket = serverSocket.accept();
-                            inputStream = socket.getInputStream();
-                            buffer = new byte[1024];
-
-                        }
-
-                    }
-                } catch (Exception e) {
-                    Log.e("BT_SC", "Error " + e.getMessage());
-                    e.printStackTrace();
-                    try {
-                        socket.close();
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
+    // onStartCommand runs again on every startService, running transports are left alone
+    private synchronized void startTransports() {
+        for (Transport transport : transports) {
+            try {
+                transport.start();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error starting " + transport.getName() + " " + e.getMessage());
             }
-        }).start();
+        }
     }
 
+    // Low power and not connectable, senders still connect over RFCOMM
+    @SuppressLint("MissingPermission")
+    private void startAdvertising() {
+        BluetoothLeAdvertiser leAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+        if (leAdvertiser == null) {
+            throw new IllegalStateException("BLE advertising not supported, or Bluetooth is off");
+        }
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
+                .setConnectable(false)
+                .build();
+        // a 128 bit UUID and the flags fit the 31 bytes, the name would not
+        AdvertiseData data = new AdvertiseData.Builder()
+                .addServiceUuid(new ParcelUuid(UUID.fromString(uuid)))
+                .setIncludeDeviceName(false)
+                .build();
+        leAdvertiser.startAdvertising(settings, data, advertiseCallback);
+        advertiser = leAdvertiser;
+    }
 
     @SuppressLint("MissingPermission")
-    private void showMessage(String message) {
-        Log.i("BT_SC", "Message in foreground? " + isAppForeground);
-        if (isAppForeground) {
-            // Display a toast when the app is in the foreground
-
-            Intent intent = new Intent("com.example.btscanner.NEW_MESSAGE");
-            intent.putExtra("message", message);
-            // you could simply use 'this' here also without adding extra code to calculate the foreground context
-            LocalBroadcastManager.getInstance(foregroundActivityContext).sendBroadcast(intent);
-            Log.i("BT_SC", "Broadcast from background " + "com.example.btscanner.NEW_MESSAGE");
-        } else {
-            // Create a notification when the app is in the background
-            NotificationCompat.Builder builder = createNotification()
-                    .setContentText(message);
+    private void stopAdvertising() {
+        if (advertiser != null) {
+            advertiser.stopAdvertising(advertiseCallback);
+            advertiser = null;
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private ConnectionAcceptor openRfcommAcceptor() throws IOException {
+        BluetoothServerSocket serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord("BTSCAN", UUID.fromString(uuid));
+        return new RfcommAcceptor(serverSocket);
+    }
 
-            NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
 
-            notificationManager.notify(NOTIFICATION_ID, builder.build());
+    // Called by the NotificationDispatcher on the event loop with the coalesced state
+    @SuppressLint("MissingPermission")
+    private void showMessageNotification(NotificationCompat.Builder builder, int notificationId, int count, List<String> lines) {
+        NotificationContent content = NotificationContent.of(count, lines);
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        for (String line : content.lines) {
+            style.addLine(line);
+        }
+        if (content.summary != null) {
+            style.setSummaryText(content.summary);
         }
+
+        builder.setContentText(content.text)
+                .setNumber(content.number)
+                .setStyle(style);
+        NotificationManagerCompat.from(this).notify(notificationId, builder.build());
+    }
+
+    // Reused for every update of an urgent or bulk message notification
+    private NotificationCompat.Builder createMessageNotification(String channelId) {
+        return new NotificationCompat.Builder(this, channelId)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setContentTitle("Bluetooth Service")
+                .setAutoCancel(true);
     }
 
     private NotificationCompat.Builder createNotification() {
@@ -272,45 +725,133 @@ public class BluetoothService extends Service {
 
     }
 
-    private final BroadcastReceiver appStateReceiver = new BroadcastReceiver() {
+    // Called on the activity's main thread, the bookkeeping is done on the loop
+    private final StateChannel.Listener<Boolean> foregroundListener = foreground -> eventLoop.execute(() -> {
+        if (foreground) {
+            // the user is looking at the app again, start the next notification counts from scratch
+            for (NotificationDispatcher dispatcher : notificationDispatchers) {
+                dispatcher.reset();
+            }
+            Log.i("BT_SC", "App in Foreground");
+        } else {
+            saveReplayCursor();
+            Log.i("BT_SC", "App in Background");
+        }
+    });
+
+    private final BroadcastReceiver deviceIdleReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if ("com.example.btscanner.APP_FOREGROUND".equals(intent.getAction())) {
-                isAppForeground = true;
-                Log.i("BT_SC", "App in Foreground");
-            } else if ("com.example.btscanner.APP_BACKGROUND".equals(intent.getAction())) {
-                isAppForeground = false;
-                Log.i("BT_SC", "App in Background");
-            }
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            boolean dozing = powerManager.isDeviceIdleMode();
+            deliveryMetrics.setDozing(dozing);
+            Log.i("BT_SC", "Device idle mode " + dozing);
         }
     };
 
     @Override
     public void onDestroy() {
-        // Clean up resources, including closing the Bluetooth socket
+        // no more app state events once the loop is gone
+        appChannels.foreground.remove(foregroundListener);
+        if (deviceIdleRegistered) {
+            unregisterReceiver(deviceIdleReceiver);
+        }
+
+        // Clean up resources, including closing the Bluetooth server socket and open connections
+        stopAdvertising();
+        for (Transport transport : transports) {
+            transport.stop();
+        }
+        health.stop();
+
+        // an SDK phase that is running finishes first, so orderSync is either set or never will be
+        startup.cancel();
         try {
-            if (socket != null) {
-                socket.close();
+            if (!startup.awaitDeferred(1, TimeUnit.SECONDS)) {
+                Log.w("BT_SC", "Startup still busy after 1s");
             }
-            if (serverSocket != null) {
-                serverSocket.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (orderSync != null) {
+            orderSync.stop();
+        }
+
+        // nothing posts any more, let the loop dispatch what is queued before the state is saved
+        eventLoop.shutdown();
+        try {
+            if (!eventLoop.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.w("BT_SC", "Event loop still busy after 1s");
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i("BT_SC", eventLoop.report());
+        Log.i("BT_SC", router.report());
+        // not set up if startup failed before the routes
+        if (relay != null) {
+            Log.i("BT_SC", relay.report());
+        }
+        Log.i("BT_SC", health.report());
+        if (reliable != null) {
+            Log.i("BT_SC", reliable.report());
+        }
+        if (relaySender != null) {
+            relaySender.close();
         }
 
-        super.onDestroy();
-        unregisterReceiver(appStateReceiver);
+        // flushes whatever is still pending to disk
+        if (journal != null) {
+            saveReplayCursor();
+            journal.close();
+        }
 
-        // Release the wake lock when you're done with it (e.g., in onDestroy or when your task is complete)
-//        if (wakeLock.isHeld()) {
-//            wakeLock.release();
-//        }
+        if (wakeLockExperiment != null) {
+            wakeLockExperiment.stop();
+        }
+        if (wakeLocks != null) {
+            Log.i("BT_SC", wakeLocks.report());
+            wakeLocks.releaseAll();
+        }
+
+        super.onDestroy();
     }
     public class LocalBinder extends Binder {
         BluetoothService getService() {
             return BluetoothService.this;
         }
+
+        DeliveryMetrics getDeliveryMetrics() {
+            return deliveryMetrics;
+        }
+
+        WakeLockManager getWakeLockManager() {
+            return wakeLocks;
+        }
+
+        EventLoop getEventLoop() {
+            return eventLoop;
+        }
+
+        MessageRouter getMessageRouter() {
+            return router;
+        }
+
+        MessageRelay getMessageRelay() {
+            return relay;
+        }
+
+        StartupOrchestrator getStartup() {
+            return startup;
+        }
+
+        HealthMonitor getHealthMonitor() {
+            return health;
+        }
+
+        ReliableReceiver getReliableReceiver() {
+            return reliable;
+        }
     }
 
     private final IBinder localBinder = new LocalBinder();
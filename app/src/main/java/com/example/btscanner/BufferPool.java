@@ -0,0 +1,71 @@
+package com.example.btscanner;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Pool of same-sized byte arrays for the receive path, so a reconnecting sender reuses the
+    buffer the last connection left behind instead of allocating a new one.
+    At most maxPooled buffers are kept, extra ones are left to the GC, trim() empties the pool
+    when the system is short on memory.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    // Buffers of a different size (e.g. grown for a large frame) are not kept
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    // Lets the GC have the pooled buffers (onTrimMemory), returns how many were dropped
+    public int trim() {
+        int dropped = 0;
+        while (free.poll() != null) {
+            pooled.decrementAndGet();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    // Buffers currently sitting in the pool
+    public int getPooledCount() {
+        return pooled.get();
+    }
+
+    // Buffers created since the pool was made, stays flat once the pool is warm
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+}
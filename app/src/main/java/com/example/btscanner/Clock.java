@@ -0,0 +1,14 @@
+package com.example.btscanner;
+
+// Time in milliseconds, injected wherever timing decisions are made so tests can use a fake one
+public interface Clock {
+
+    // Monotonic, for timeouts, deadlines and durations, which a wall clock set by the user or the network
+    // would stretch or cut short. Like System.nanoTime() it stands still in deep sleep, as the event loop's timers do
+    Clock SYSTEM = () -> System.nanoTime() / 1_000_000;
+
+    // Wall time, only for timestamps that are stored, shown as dates or compared with another device's
+    Clock WALL = System::currentTimeMillis;
+
+    long nowMillis();
+}
@@ -0,0 +1,18 @@
+package com.example.btscanner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// A single accepted (or connected) byte stream to a remote peer.
+// Keeps the service code independent of BluetoothSocket so it can be driven by in-memory fakes in JVM tests.
+public interface Connection extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    // MAC address for RFCOMM, host:port for anything else
+    String getRemoteAddress();
+}
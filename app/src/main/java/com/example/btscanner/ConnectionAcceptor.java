@@ -0,0 +1,11 @@
+package com.example.btscanner;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Server side of a transport, the equivalent of a BluetoothServerSocket.
+// accept() blocks until a client connects, close() must unblock a pending accept().
+public interface ConnectionAcceptor extends Closeable {
+
+    Connection accept() throws IOException;
+}
@@ -0,0 +1,230 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Keeps one warm outbound connection per device MAC address.
+    Setting up an RFCOMM connection costs 1-4 seconds, so instead of connect-send-close per message
+    the connection is kept open and reused until it has been idle for idleTimeoutMillis.
+    A write that fails on a pooled connection is retried once on a fresh one, callers only see
+    an error when the device can't be reached at all.
+    Sends to different devices run in parallel, sends to the same device are serialized.
+    sendHeartbeats() keeps quiet connections alive on the receiver's side (see HealthMonitor), and
+    finds the ones that died while idle before a real message has to find out. The receiving service
+    heartbeats back, so a connection with a reader that heard nothing for MISSED_HEARTBEATS intervals
+    is taken for half-open (the receiver went away without closing it) and closed too.
+    With a FrameListener every connection also gets a reader thread for what the device sends back
+    (ACKs, see OutboundQueue); the connection is dropped once the device closes it.
+ */
+public class ConnectionPool implements Closeable {
+
+    public interface Factory {
+        Connection connect(String address) throws IOException;
+    }
+
+    // Frames read from a pooled connection, called on its reader thread
+    public interface FrameListener {
+        void onFrame(String address, int type, byte[] payload, int offset, int length);
+    }
+
+    private static final byte[] HEARTBEAT = FrameCodec.encode(FrameCodec.TYPE_HEARTBEAT, new byte[0], false);
+    private static final int MISSED_HEARTBEATS = 3;
+
+    private static class Entry {
+        Connection connection;
+        long lastUsed;
+        long lastWritten;
+        // set by the reader thread, the last time anything came back
+        volatile long lastRead;
+    }
+
+    private final Factory factory;
+    private final long idleTimeoutMillis;
+    private final Clock clock;
+    private final FrameListener frameListener;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ConnectionPool(Factory factory, long idleTimeoutMillis, Clock clock) {
+        this(factory, idleTimeoutMillis, clock, null);
+    }
+
+    public ConnectionPool(Factory factory, long idleTimeoutMillis, Clock clock, FrameListener frameListener) {
+        this.factory = factory;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.clock = clock;
+        this.frameListener = frameListener;
+    }
+
+    // Writes the bytes to the device, connecting first if there is no open connection (blocking)
+    public void send(String address, byte[] data) throws IOException {
+        send(address, data, 0, data.length);
+    }
+
+    public void send(String address, byte[] data, int offset, int length) throws IOException {
+        Entry entry = entries.computeIfAbsent(address, a -> new Entry());
+        synchronized (entry) {
+            boolean reused = entry.connection != null;
+            if (!reused) {
+                connect(address, entry);
+            }
+            try {
+                write(entry.connection, data, offset, length);
+            } catch (IOException e) {
+                closeQuietly(entry);
+                if (!reused) {
+                    throw e;
+                }
+                // the pooled connection went stale, try once more on a new one
+                Log.i("BT_SC", "Reconnecting to " + address + " after " + e.getMessage());
+                connect(address, entry);
+                try {
+                    write(entry.connection, data, offset, length);
+                } catch (IOException retryError) {
+                    closeQuietly(entry);
+                    throw retryError;
+                }
+            }
+            entry.lastUsed = clock.nowMillis();
+            entry.lastWritten = entry.lastUsed;
+        }
+    }
+
+    private void connect(String address, Entry entry) throws IOException {
+        Connection connection = factory.connect(address);
+        entry.connection = connection;
+        entry.lastRead = clock.nowMillis();
+        if (frameListener == null) {
+            return;
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                new FrameDecoder().readFrom(connection.getInputStream(), (type, payload, offset, length) -> {
+                    entry.lastRead = clock.nowMillis();
+                    frameListener.onFrame(address, type, payload, offset, length);
+                });
+            } catch (IOException e) {
+                // closed here, or the link went down
+            }
+            // the device hung up, the next send connects again
+            synchronized (entry) {
+                if (entry.connection == connection) {
+                    closeQuietly(entry);
+                }
+            }
+        }, "BT_SC-read-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static void write(Connection connection, byte[] data, int offset, int length) throws IOException {
+        OutputStream outputStream = connection.getOutputStream();
+        outputStream.write(data, offset, length);
+        outputStream.flush();
+    }
+
+    // Closes connections that have not been used for idleTimeoutMillis, returns how many were closed
+    public int evictIdle() {
+        long now = clock.nowMillis();
+        int evicted = 0;
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                if (entry.connection != null && now - entry.lastUsed >= idleTimeoutMillis) {
+                    closeQuietly(entry);
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    // Writes a heartbeat on open connections nothing was written to for intervalMillis, a connection
+    // the heartbeat can't be written to is closed, and so is one the receiver went silent on.
+    // Heartbeats don't count as use for evictIdle(). Returns how many connections were found dead
+    public int sendHeartbeats(long intervalMillis) {
+        long now = clock.nowMillis();
+        int dead = 0;
+        for (Map.Entry<String, Entry> device : entries.entrySet()) {
+            Entry entry = device.getValue();
+            synchronized (entry) {
+                if (entry.connection == null) {
+                    continue;
+                }
+                long silentFor = now - entry.lastRead;
+                if (frameListener != null && silentFor >= MISSED_HEARTBEATS * intervalMillis) {
+                    Log.i("BT_SC", "Nothing from " + device.getKey() + " for " + silentFor + " ms, closing");
+                    closeQuietly(entry);
+                    dead++;
+                    continue;
+                }
+                if (now - entry.lastWritten < intervalMillis) {
+                    continue;
+                }
+                try {
+                    write(entry.connection, HEARTBEAT, 0, HEARTBEAT.length);
+                    entry.lastWritten = now;
+                } catch (IOException e) {
+                    Log.i("BT_SC", "Heartbeat to " + device.getKey() + " failed " + e.getMessage());
+                    closeQuietly(entry);
+                    dead++;
+                }
+            }
+        }
+        return dead;
+    }
+
+    // Drops the connection to one device, e.g. after the peer reported an error
+    public void disconnect(String address) {
+        Entry entry = entries.get(address);
+        if (entry != null) {
+            synchronized (entry) {
+                closeQuietly(entry);
+            }
+        }
+    }
+
+    // Number of devices with an open connection
+    public int openConnections() {
+        int open = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.connection != null) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    @Override
+    public void close() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            synchronized (entry) {
+                closeQuietly(entry);
+            }
+            iterator.remove();
+        }
+    }
+
+    private static void closeQuietly(Entry entry) {
+        if (entry.connection == null) {
+            return;
+        }
+        try {
+            entry.connection.close();
+        } catch (IOException e) {
+            Log.e("BT_SC", "Error closing connection " + e.getMessage());
+        }
+        entry.connection = null;
+    }
+}
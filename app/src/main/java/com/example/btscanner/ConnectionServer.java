@@ -0,0 +1,165 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Accept loop that hands every accepted connection to a bounded worker pool.
+    The accept thread only accepts, so a slow client no longer holds up the ones queued behind it.
+    When all workers are busy the loop stops accepting (back-pressure) until a slot frees up,
+    pending clients wait in the transport's own backlog instead of piling up in memory.
+    If accept() fails the acceptor is closed and the failure listener told, connections already
+    accepted are still served to the end (ServerTransport opens a new server).
+ */
+public class ConnectionServer {
+
+    // Called on a worker thread for every accepted connection, the connection is closed once it returns.
+    // acceptedAtNanos is the System.nanoTime() of the accept, to time the hand-off to the worker
+    public interface Handler {
+        void handle(Connection connection, long acceptedAtNanos) throws IOException;
+    }
+
+    // Called on the accept thread when accept() failed while running, the server has stopped accepting
+    public interface FailureListener {
+        void onAcceptFailed(IOException error);
+    }
+
+    private final ConnectionAcceptor acceptor;
+    private final Handler handler;
+    private final int maxConnections;
+    private final Semaphore slots;
+    private final ExecutorService workers;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    private volatile boolean running;
+    private volatile FailureListener failureListener;
+    private Thread acceptThread;
+
+    public ConnectionServer(ConnectionAcceptor acceptor, Handler handler, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be >= 1");
+        }
+        this.acceptor = acceptor;
+        this.handler = handler;
+        this.maxConnections = maxConnections;
+        this.slots = new Semaphore(maxConnections);
+        this.workers = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BT_SC-conn-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    public void setFailureListener(FailureListener failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "BT_SC-accept");
+        acceptThread.start();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    private void acceptLoop() {
+        Log.i("BT_SC", "Listening");
+        IOException failure = null;
+        while (running) {
+            Connection connection;
+            try {
+                // wait for a free worker before accepting, this is the back-pressure point
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            try {
+                connection = acceptor.accept();
+            } catch (IOException e) {
+                slots.release();
+                if (running) {
+                    Log.e("BT_SC", "Error " + e.getMessage());
+                    failure = e;
+                }
+                break;
+            }
+            long acceptedAtNanos = System.nanoTime();
+            Log.i("BT_SC", "Got BT Request");
+            activeConnections.incrementAndGet();
+            workers.execute(() -> serve(connection, acceptedAtNanos));
+        }
+        running = false;
+        if (failure != null) {
+            // the listening socket is broken, let the connections in flight finish and leave the rest to the listener
+            try {
+                acceptor.close();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error " + e.getMessage());
+            }
+            workers.shutdown();
+            FailureListener listener = failureListener;
+            if (listener != null) {
+                listener.onAcceptFailed(failure);
+            }
+        }
+    }
+
+    private void serve(Connection connection, long acceptedAtNanos) {
+        try {
+            handler.handle(connection, acceptedAtNanos);
+        } catch (Exception e) {
+            Log.e("BT_SC", "Error " + e.getMessage());
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error closing connection " + e.getMessage());
+            }
+            activeConnections.decrementAndGet();
+            slots.release();
+        }
+    }
+
+    // Closes the acceptor (unblocking accept) and stops the workers, in flight connections are interrupted
+    public synchronized void stop() {
+        running = false;
+        try {
+            acceptor.close();
+        } catch (IOException e) {
+            Log.e("BT_SC", "Error " + e.getMessage());
+        }
+        if (acceptThread != null) {
+            acceptThread.interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    // Only used by tests, waits for the workers to finish after stop()
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.btscanner;
+
+import java.util.Locale;
+
+/*
+    Latency histograms for every delivery path (MessageSource) and stage, kept separately for
+    doze and non-doze so the two can be compared. Values are recorded in microseconds.
+    One instance is shared by the whole process, the OneSignal extension records into it too.
+ */
+public class DeliveryMetrics {
+
+    private static final MessageSource[] SOURCES = MessageSource.values();
+    private static final DeliveryStage[] STAGES = DeliveryStage.values();
+
+    // after SOURCES and STAGES, the constructor needs them
+    private static final DeliveryMetrics SHARED = new DeliveryMetrics();
+
+    // [dozing ? 1 : 0][source][stage]
+    private final LatencyHistogram[][][] histograms = new LatencyHistogram[2][SOURCES.length][STAGES.length];
+    private volatile boolean dozing;
+    private final long createdAt = System.currentTimeMillis();
+
+    public DeliveryMetrics() {
+        for (int mode = 0; mode < 2; mode++) {
+            for (int source = 0; source < SOURCES.length; source++) {
+                for (int stage = 0; stage < STAGES.length; stage++) {
+                    histograms[mode][source][stage] = new LatencyHistogram();
+                }
+            }
+        }
+    }
+
+    public static DeliveryMetrics shared() {
+        return SHARED;
+    }
+
+    // Following the device idle (doze) state, new values go to the matching set of histograms
+    public void setDozing(boolean dozing) {
+        this.dozing = dozing;
+    }
+
+    public boolean isDozing() {
+        return dozing;
+    }
+
+    public void record(MessageSource source, DeliveryStage stage, long micros) {
+        histograms[dozing ? 1 : 0][source.ordinal()][stage.ordinal()].record(micros);
+    }
+
+    // Convenience for stages timed with System.nanoTime()
+    public void recordNanos(MessageSource source, DeliveryStage stage, long startNanos, long endNanos) {
+        record(source, stage, (endNanos - startNanos) / 1000);
+    }
+
+    public LatencyHistogram get(MessageSource source, DeliveryStage stage, boolean dozing) {
+        return histograms[dozing ? 1 : 0][source.ordinal()][stage.ordinal()];
+    }
+
+    // p50/p99/max in milliseconds for every stage that saw any traffic
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "delivery latency since %tF %<tT (ms)%n", createdAt));
+        for (int mode = 0; mode < 2; mode++) {
+            for (MessageSource source : SOURCES) {
+                for (DeliveryStage stage : STAGES) {
+                    LatencyHistogram histogram = histograms[mode][source.ordinal()][stage.ordinal()];
+                    if (histogram.getCount() == 0) {
+                        continue;
+                    }
+                    out.append(String.format(Locale.US, "%-6s %-9s %-8s n=%-7d p50=%9.2f p99=%9.2f max=%9.2f%n",
+                            mode == 1 ? "doze" : "awake", source, stage, histogram.getCount(),
+                            histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                            histogram.getMax() / 1000.0));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    public void reset() {
+        for (LatencyHistogram[][] mode : histograms) {
+            for (LatencyHistogram[] source : mode) {
+                for (LatencyHistogram histogram : source) {
+                    histogram.reset();
+                }
+            }
+        }
+    }
+}
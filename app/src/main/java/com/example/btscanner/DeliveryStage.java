@@ -0,0 +1,19 @@
+package com.example.btscanner;
+
+// Stages of delivering an inbound message, each one is timed separately per MessageSource
+public enum DeliveryStage {
+    // origin stamp on the sending side to arrival here, wall clock so both clocks must be in sync
+    TRANSIT,
+    // Bluetooth: socket accept to a worker picking the connection up
+    ACCEPT,
+    // Bluetooth: waiting for and reading the bytes of a frame
+    READ,
+    // UTF-8 decoding of the payload
+    DECODE,
+    // append to the message journal
+    JOURNAL,
+    // handing the message to the UI broadcast or the notification dispatcher
+    DISPATCH,
+    // arrival here to dispatched
+    TOTAL
+}
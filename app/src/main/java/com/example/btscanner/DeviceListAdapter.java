@@ -0,0 +1,73 @@
+package com.example.btscanner;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+/*
+    RecyclerView adapter for the DeviceRegistry snapshots.
+    Every snapshot is diffed against the previous one on a background thread (ListAdapter),
+    so only the rows that changed are rebound instead of redrawing the whole list.
+ */
+public class DeviceListAdapter extends ListAdapter<ScannedDevice, DeviceListAdapter.ViewHolder> {
+
+    public interface OnDeviceClickListener {
+        void onDeviceClick(ScannedDevice device);
+    }
+
+    private static final DiffUtil.ItemCallback<ScannedDevice> DIFF = new DiffUtil.ItemCallback<ScannedDevice>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ScannedDevice oldItem, @NonNull ScannedDevice newItem) {
+            return oldItem.getAddress().equals(newItem.getAddress());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ScannedDevice oldItem, @NonNull ScannedDevice newItem) {
+            return oldItem.sameContent(newItem);
+        }
+    };
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+        ScannedDevice device;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            text = itemView.findViewById(android.R.id.text1);
+        }
+    }
+
+    private final OnDeviceClickListener clickListener;
+
+    public DeviceListAdapter(OnDeviceClickListener clickListener) {
+        super(DIFF);
+        this.clickListener = clickListener;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item_layout, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+        // one listener per row view, it reads the device bound to the holder at click time
+        view.setOnClickListener(v -> {
+            if (holder.device != null) {
+                clickListener.onDeviceClick(holder.device);
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        ScannedDevice device = getItem(position);
+        holder.device = device;
+        holder.text.setText(device.appendRowText(new StringBuilder()));
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.btscanner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    All known nearby devices, keyed by MAC address, in the order they were first seen.
+    Paired and discovered devices are merged into one entry, repeated discovery events update the
+    name and RSSI in place instead of adding a row. Updates are O(1).
+
+    The listener is not called per update: changes are collected and published at most once per
+    frame as a fresh snapshot, the list adapter diffs it against the previous one.
+    Once maxDevices is reached the unpaired device that was seen least recently is dropped.
+    Not thread safe, meant to be used from the main thread.
+ */
+public class DeviceRegistry {
+
+    public interface Listener {
+        void onDevicesChanged(List<ScannedDevice> devices);
+    }
+
+    private final Listener listener;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final int maxDevices;
+    private final long frameMillis;
+
+    // display order
+    private final Map<String, ScannedDevice> devices = new LinkedHashMap<>();
+    // same keys, least recently seen first
+    private final LinkedHashMap<String, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true);
+
+    private boolean publishScheduled;
+    private boolean dirty;
+    private long publishedCount;
+
+    public DeviceRegistry(Listener listener, Scheduler scheduler, Clock clock, int maxDevices, long frameMillis) {
+        if (maxDevices < 1) {
+            throw new IllegalArgumentException("maxDevices must be >= 1");
+        }
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.maxDevices = maxDevices;
+        this.frameMillis = frameMillis;
+    }
+
+    // Bonded device, kept until clear() even when it is never discovered
+    public ScannedDevice addPaired(String address, String name) {
+        return update(address, name, ScannedDevice.NO_RSSI, true);
+    }
+
+    // ACTION_FOUND, rssi is ScannedDevice.NO_RSSI if the intent had none
+    public ScannedDevice onDiscovered(String address, String name, int rssi) {
+        return update(address, name, rssi, false);
+    }
+
+    private ScannedDevice update(String address, String name, int rssi, boolean paired) {
+        long now = clock.nowMillis();
+        ScannedDevice previous = devices.get(address);
+        ScannedDevice device;
+        if (previous == null) {
+            evictIfFull();
+            device = new ScannedDevice(address, name, rssi, paired, now);
+        } else {
+            // discovery often reports no name or RSSI, keep what we already know
+            device = new ScannedDevice(address,
+                    name != null ? name : previous.getName(),
+                    rssi != ScannedDevice.NO_RSSI ? rssi : previous.getRssi(),
+                    paired || previous.isPaired(),
+                    now);
+        }
+        devices.put(address, device);
+        recency.put(address, Boolean.TRUE);
+
+        // a sighting that changed nothing on screen doesn't need a redraw
+        if (previous == null || !previous.sameContent(device)) {
+            markDirty();
+        }
+        return device;
+    }
+
+    private void evictIfFull() {
+        if (devices.size() < maxDevices) {
+            return;
+        }
+        Iterator<String> iterator = recency.keySet().iterator();
+        while (iterator.hasNext()) {
+            String address = iterator.next();
+            if (!devices.get(address).isPaired()) {
+                iterator.remove();
+                devices.remove(address);
+                return;
+            }
+        }
+        // everything is paired, still stay within the cap
+        String eldest = recency.keySet().iterator().next();
+        recency.remove(eldest);
+        devices.remove(eldest);
+    }
+
+    // Drops the unpaired devices seen least recently until at most maxDevices are left, paired ones are
+    // kept whatever the count (onTrimMemory; the next scan finds the others again). Returns how many went
+    public int trimTo(int maxDevices) {
+        int removed = 0;
+        Iterator<String> iterator = recency.keySet().iterator();
+        while (devices.size() > maxDevices && iterator.hasNext()) {
+            String address = iterator.next();
+            if (!devices.get(address).isPaired()) {
+                iterator.remove();
+                devices.remove(address);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            markDirty();
+        }
+        return removed;
+    }
+
+    public ScannedDevice get(String address) {
+        return devices.get(address);
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    // Current contents in display order
+    public List<ScannedDevice> getDevices() {
+        return Collections.unmodifiableList(new ArrayList<>(devices.values()));
+    }
+
+    public void clear() {
+        devices.clear();
+        recency.clear();
+        markDirty();
+    }
+
+    // Number of snapshots handed to the listener so far
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    private void markDirty() {
+        dirty = true;
+        if (!publishScheduled) {
+            publishScheduled = true;
+            scheduler.schedule(this::publish, frameMillis);
+        }
+    }
+
+    private void publish() {
+        publishScheduled = false;
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        publishedCount++;
+        listener.onDevicesChanged(getDevices());
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.btscanner;
+
+// The scanning side of the Bluetooth adapter, so the ScanScheduler can be tested without one
+public interface DiscoveryRadio {
+
+    // Classic inquiry, finds every discoverable device but keeps the radio busy (~12 s per run)
+    boolean startDiscovery();
+
+    void cancelDiscovery();
+
+    // Filtered BLE scan in the low power scan mode, only finds devices advertising our service
+    boolean startLowPowerScan();
+
+    void stopLowPowerScan();
+}
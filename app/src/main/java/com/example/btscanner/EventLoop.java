@@ -0,0 +1,294 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    One thread that owns the service's mutable state, everything else only posts events to it.
+    Like a HandlerThread, but with a bounded queue and with its queue depth and lag measured.
+
+    The queue is a bounded multi-producer / single-consumer ring (sequence numbered slots, one CAS
+    per post, no locks). post() fails when the ring is full, execute() waits for room instead, which
+    pushes back on the I/O thread that produces too fast. Tasks posted from the loop thread itself
+    go to a local queue so the loop can never block on itself.
+
+    Lag is the time from post() to the task starting (for timers, from the due time), recorded in
+    microseconds. Exceptions thrown by a task are logged and the loop carries on.
+ */
+public class EventLoop implements Executor, Scheduler {
+
+    private static final int LOCAL_BATCH = 64;
+
+    private static final class Timer implements Comparable<Timer> {
+        final long dueNanos;
+        final long order;
+        final Runnable task;
+
+        Timer(long dueNanos, long order, Runnable task) {
+            this.dueNanos = dueNanos;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (dueNanos != other.dueNanos) {
+                return dueNanos < other.dueNanos ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    private final String name;
+    private final int mask;
+    private final Runnable[] tasks;
+    private final long[] postedAt;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // only written by the loop thread
+    private volatile long head;
+
+    private final Thread thread;
+    private volatile boolean sleeping;
+    private volatile boolean shuttingDown;
+    private volatile boolean terminated;
+
+    // loop thread only
+    private final ArrayDeque<Runnable> local = new ArrayDeque<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerOrder;
+
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final AtomicLong maxDepth = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private volatile long processed;
+
+    // capacity is rounded up to a power of two
+    public EventLoop(String name, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.name = name;
+        this.mask = size - 1;
+        this.tasks = new Runnable[size];
+        this.postedAt = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.thread = new Thread(this::loop, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Queues the task, false if the queue is full or the loop is shutting down
+    public boolean post(Runnable task) {
+        if (tryPost(task)) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    // Queues the task, waiting for room if the queue is full
+    @Override
+    public void execute(Runnable task) {
+        if (tryPost(task)) {
+            return;
+        }
+        waits.incrementAndGet();
+        int spins = 0;
+        while (!tryPost(task)) {
+            if (shuttingDown) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            if (++spins < 100) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(100_000);
+            }
+        }
+    }
+
+    // Runs the task on the loop after delayMillis. Shutdown drops pending timers, so a timer
+    // scheduled after it is dropped as well instead of being rejected
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        if (inLoop()) {
+            timers.add(new Timer(due, timerOrder++, task));
+            return;
+        }
+        try {
+            execute(() -> timers.add(new Timer(due, timerOrder++, task)));
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    private boolean tryPost(Runnable task) {
+        // tasks queued by a task still run during shutdown, the loop only stops once both queues are empty
+        if (inLoop()) {
+            local.addLast(task);
+            return true;
+        }
+        return !shuttingDown && offer(task);
+    }
+
+    private boolean offer(Runnable task) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    tasks[index] = task;
+                    postedAt[index] = System.nanoTime();
+                    // volatile write, pairs with the sleeping check below
+                    sequences.set(index, position + 1);
+                    long depth = position + 1 - head;
+                    long max;
+                    while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth)) {
+                        // retry
+                    }
+                    if (sleeping) {
+                        LockSupport.unpark(thread);
+                    }
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    // Loop thread only, null when empty
+    private Runnable poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        Runnable task = tasks[index];
+        tasks[index] = null;
+        lag.record((System.nanoTime() - postedAt[index]) / 1000);
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+        return task;
+    }
+
+    private void loop() {
+        while (true) {
+            runDueTimers();
+            Runnable task = poll();
+            if (task != null) {
+                run(task);
+                continue;
+            }
+            if (!local.isEmpty()) {
+                for (int i = 0; i < LOCAL_BATCH && !local.isEmpty(); i++) {
+                    run(local.pollFirst());
+                }
+                continue;
+            }
+            if (shuttingDown) {
+                break;
+            }
+            sleeping = true;
+            if (sequences.get((int) head & mask) != head + 1 && !shuttingDown) {
+                Timer next = timers.peek();
+                if (next == null) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, next.dueNanos - System.nanoTime());
+                }
+            }
+            sleeping = false;
+        }
+        timers.clear();
+        terminated = true;
+    }
+
+    private void runDueTimers() {
+        Timer timer;
+        long now = System.nanoTime();
+        while ((timer = timers.peek()) != null && timer.dueNanos <= now) {
+            timers.poll();
+            lag.record((now - timer.dueNanos) / 1000);
+            run(timer.task);
+            now = System.nanoTime();
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e("BT_SC", name + " task failed " + e);
+        }
+        processed++;
+    }
+
+    // Runs what is already queued, drops pending timers and stops the thread
+    public void shutdown() {
+        shuttingDown = true;
+        LockSupport.unpark(thread);
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        thread.join(unit.toMillis(timeout));
+        return terminated;
+    }
+
+    // Events waiting in the queue right now
+    public int getQueueDepth() {
+        return (int) (tail.get() - head);
+    }
+
+    public long getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // post() calls that found the queue full
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    // execute() calls that had to wait for room
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    public long getProcessedCount() {
+        return processed;
+    }
+
+    // post() to start of the task, in microseconds
+    public LatencyHistogram getLag() {
+        return lag;
+    }
+
+    public String report() {
+        return String.format(Locale.US, "%s: processed=%d depth=%d max_depth=%d/%d waits=%d rejected=%d lag p50=%.2f p99=%.2f max=%.2f ms%n",
+                name, processed, getQueueDepth(), getMaxQueueDepth(), getCapacity(), getWaitCount(), getRejectedCount(),
+                lag.getPercentile(50) / 1000.0, lag.getPercentile(99) / 1000.0, lag.getMax() / 1000.0);
+    }
+}
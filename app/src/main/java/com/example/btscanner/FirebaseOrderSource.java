@@ -0,0 +1,123 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// OrderSource on a Firebase realtime database reference, children are ordered by push key
+public class FirebaseOrderSource implements OrderSource {
+
+    private final DatabaseReference reference;
+    private final Scheduler scheduler;
+    private Query query;
+    private ChildEventListener childListener;
+    // bumped by stop(), lookup retries scheduled before are dropped
+    private int generation;
+
+    public FirebaseOrderSource(DatabaseReference reference, Scheduler scheduler) {
+        this.reference = reference;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void fetchLatestKey(LatestKeyCallback callback) {
+        int fetchGeneration;
+        synchronized (this) {
+            fetchGeneration = generation;
+        }
+        fetchLatestKey(callback, fetchGeneration, RETRY_MIN_MS);
+    }
+
+    private void fetchLatestKey(LatestKeyCallback callback, int fetchGeneration, long retryMillis) {
+        reference.orderByKey().limitToLast(1).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                String latest = null;
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    latest = child.getKey();
+                }
+                callback.onLatestKey(latest);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                // null would mean no orders yet, and every existing one would be taken for new
+                Log.e("BT_SC", "Error reading latest order " + error.getMessage() + ", retrying in " + retryMillis + " ms");
+                scheduler.schedule(() -> {
+                    synchronized (FirebaseOrderSource.this) {
+                        if (fetchGeneration != generation) {
+                            return;
+                        }
+                    }
+                    fetchLatestKey(callback, fetchGeneration, Math.min(RETRY_MAX_MS, retryMillis * 2));
+                }, retryMillis);
+            }
+        });
+    }
+
+    @Override
+    public void start(String afterKey, Listener listener, CancelledCallback cancelled) {
+        stop();
+        query = afterKey == null ? reference.orderByKey() : reference.orderByKey().startAfter(afterKey);
+        childListener = new ChildEventListener() {
+
+            @Override
+            public void onChildAdded(@NonNull DataSnapshot dataSnapshot, String previousChildName) {
+                listener.onOrder(dataSnapshot.getKey(), fields(dataSnapshot));
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot dataSnapshot, String previousChildName) {
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot dataSnapshot) {
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot dataSnapshot, String previousChildName) {
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                // Firebase has removed the listener already, OrderSync subscribes again
+                Log.e("BT_SC", "Orders listener cancelled " + databaseError.getMessage());
+                cancelled.onCancelled(databaseError.getMessage());
+            }
+        };
+        query.addChildEventListener(childListener);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> fields(DataSnapshot dataSnapshot) {
+        Object value = dataSnapshot.getValue();
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
+        }
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("value", value);
+        return fields;
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            generation++;
+        }
+        if (query != null && childListener != null) {
+            query.removeEventListener(childListener);
+        }
+        query = null;
+        childListener = null;
+    }
+}
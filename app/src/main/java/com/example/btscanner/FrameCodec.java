@@ -0,0 +1,96 @@
+package com.example.btscanner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/*
+    Wire format of the Bluetooth message channel, one frame per message:
+
+    +-------+------+-------+------------------+---------+----------------------------+
+    | magic | type | flags | length (int, BE) | payload | crc32 of payload (int, BE) |
+    +-------+------+-------+------------------+---------+----------------------------+
+      1 byte 1 byte 1 byte      4 bytes         length    4 bytes, only if FLAG_CRC
+
+    Frames can be sent back to back on one connection, FrameDecoder reassembles them
+    no matter how the stream gets split into reads.
+ */
+public final class FrameCodec {
+
+    public static final int MAGIC = 0xB7;
+
+    // frame types
+    public static final int TYPE_TEXT = 1;
+    // a text message passed on between relaying peers, see MessageRelay for the payload layout
+    public static final int TYPE_RELAY = 2;
+    // a message in the compact MessageCodec encoding
+    public static final int TYPE_MESSAGE = 3;
+    // empty keepalive, see HEARTBEAT_INTERVAL_MS
+    public static final int TYPE_HEARTBEAT = 4;
+    // a frame that has to be acknowledged, see OutboundQueue for the payload layout
+    public static final int TYPE_RELIABLE = 5;
+    // receiver to sender: the TYPE_RELIABLE frame with this id (long, BE) arrived
+    public static final int TYPE_ACK = 6;
+
+    // Both ends write a heartbeat on a connection they have not written to for this long, so the other
+    // end can tell an idle connection from a half-open one (see HealthMonitor and ConnectionPool)
+    public static final long HEARTBEAT_INTERVAL_MS = 10_000;
+
+    // frame flags
+    public static final int FLAG_CRC = 0x01;
+
+    public static final int HEADER_SIZE = 7;
+    public static final int CRC_SIZE = 4;
+
+    // largest payload a receiver accepts by default, anything bigger is treated as a corrupt stream
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    private FrameCodec() {
+    }
+
+    public static int frameSize(int payloadLength, boolean withCrc) {
+        return HEADER_SIZE + payloadLength + (withCrc ? CRC_SIZE : 0);
+    }
+
+    public static byte[] encode(int type, byte[] payload, boolean withCrc) {
+        byte[] frame = new byte[frameSize(payload.length, withCrc)];
+        encode(type, payload, 0, payload.length, withCrc, frame, 0);
+        return frame;
+    }
+
+    // Encodes into the given array, returns the number of bytes written
+    public static int encode(int type, byte[] payload, int offset, int length, boolean withCrc, byte[] out, int outOffset) {
+        int pos = outOffset;
+        out[pos++] = (byte) MAGIC;
+        out[pos++] = (byte) type;
+        out[pos++] = (byte) (withCrc ? FLAG_CRC : 0);
+        pos = putInt(out, pos, length);
+        System.arraycopy(payload, offset, out, pos, length);
+        pos += length;
+        if (withCrc) {
+            CRC32 crc = new CRC32();
+            crc.update(payload, offset, length);
+            pos = putInt(out, pos, (int) crc.getValue());
+        }
+        return pos - outOffset;
+    }
+
+    public static void write(OutputStream out, int type, byte[] payload, boolean withCrc) throws IOException {
+        out.write(encode(type, payload, withCrc));
+    }
+
+    static int putInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 24);
+        out[pos + 1] = (byte) (value >>> 16);
+        out[pos + 2] = (byte) (value >>> 8);
+        out[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    static int getInt(byte[] in, int pos) {
+        return ((in[pos] & 0xFF) << 24)
+                | ((in[pos + 1] & 0xFF) << 16)
+                | ((in[pos + 2] & 0xFF) << 8)
+                | (in[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.btscanner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/*
+    Incremental decoder for the FrameCodec wire format.
+    Bytes are read straight into one internal buffer that is reused for every frame, partial frames
+    stay in the buffer until the rest arrives. The buffer only grows when a frame is bigger than
+    anything seen before on this connection, so steady-state decoding does not allocate.
+    One decoder per connection, it is not thread safe.
+ */
+public class FrameDecoder {
+
+    // payload points into the decoder's buffer and is only valid for the duration of the call
+    public interface Listener {
+        void onFrame(int type, byte[] payload, int offset, int length) throws IOException;
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int maxPayload;
+    private final BufferPool bufferPool;
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer;
+    private int start; // first unconsumed byte
+    private int end;   // one past the last buffered byte
+
+    public FrameDecoder() {
+        this(FrameCodec.MAX_PAYLOAD);
+    }
+
+    public FrameDecoder(int maxPayload) {
+        this.maxPayload = maxPayload;
+        this.bufferPool = null;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, FrameCodec.frameSize(maxPayload, true))];
+    }
+
+    // Takes its buffer from the pool, call release() when the connection is done
+    public FrameDecoder(BufferPool bufferPool, int maxPayload) {
+        this.maxPayload = maxPayload;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire();
+    }
+
+    // Reads frames until the stream ends, returns the number of frames delivered
+    public int readFrom(InputStream in, Listener listener) throws IOException {
+        int frames = 0;
+        while (true) {
+            if (end == buffer.length) {
+                makeRoom(end - start + 1);
+            }
+            int bytes = in.read(buffer, end, buffer.length - end);
+            if (bytes == -1) {
+                if (end > start) {
+                    throw new FrameFormatException("Stream ended inside a frame");
+                }
+                return frames;
+            }
+            end += bytes;
+            frames += drain(listener);
+        }
+    }
+
+    // Feeds bytes from somewhere else (e.g. a NIO buffer), returns the number of frames delivered
+    public int feed(byte[] data, int offset, int length, Listener listener) throws IOException {
+        int frames = 0;
+        while (length > 0) {
+            if (end == buffer.length) {
+                makeRoom(end - start + 1);
+            }
+            int chunk = Math.min(length, buffer.length - end);
+            System.arraycopy(data, offset, buffer, end, chunk);
+            end += chunk;
+            offset += chunk;
+            length -= chunk;
+            frames += drain(listener);
+        }
+        return frames;
+    }
+
+    // Bytes of a partial frame waiting for more input
+    public int buffered() {
+        return end - start;
+    }
+
+    // Drops any partial frame, e.g. after the connection was reset
+    public void reset() {
+        start = 0;
+        end = 0;
+    }
+
+    // Hands the buffer back to the pool, the decoder can't be used afterwards
+    public void release() {
+        if (bufferPool != null && buffer != null) {
+            bufferPool.release(buffer);
+        }
+        buffer = null;
+        reset();
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    private int drain(Listener listener) throws IOException {
+        int frames = 0;
+        while (end - start >= FrameCodec.HEADER_SIZE) {
+            if ((buffer[start] & 0xFF) != FrameCodec.MAGIC) {
+                throw new FrameFormatException("Bad frame magic " + (buffer[start] & 0xFF));
+            }
+            int type = buffer[start + 1] & 0xFF;
+            boolean withCrc = (buffer[start + 2] & FrameCodec.FLAG_CRC) != 0;
+            int length = FrameCodec.getInt(buffer, start + 3);
+            if (length < 0 || length > maxPayload) {
+                throw new FrameFormatException("Frame too large " + length);
+            }
+            int frameSize = FrameCodec.frameSize(length, withCrc);
+            if (end - start < frameSize) {
+                // wait for the rest, make sure it will fit
+                makeRoom(frameSize);
+                break;
+            }
+            int payload = start + FrameCodec.HEADER_SIZE;
+            if (withCrc) {
+                crc.reset();
+                crc.update(buffer, payload, length);
+                if ((int) crc.getValue() != FrameCodec.getInt(buffer, payload + length)) {
+                    throw new FrameFormatException("Frame checksum mismatch");
+                }
+            }
+            start += frameSize;
+            listener.onFrame(type, buffer, payload, length);
+            frames++;
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return frames;
+    }
+
+    // Makes sure a frame of the given size fits from 'start', compacting first and growing if needed
+    private void makeRoom(int frameSize) {
+        if (buffer.length - start >= frameSize) {
+            return;
+        }
+        int pending = end - start;
+        if (buffer.length < frameSize) {
+            int maxFrame = FrameCodec.frameSize(maxPayload, true);
+            byte[] grown = new byte[Math.min(Math.max(frameSize, buffer.length * 2), maxFrame)];
+            System.arraycopy(buffer, start, grown, 0, pending);
+            buffer = grown;
+        } else {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+        }
+        start = 0;
+        end = pending;
+    }
+}
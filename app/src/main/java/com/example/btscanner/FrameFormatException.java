@@ -0,0 +1,13 @@
+package com.example.btscanner;
+
+import java.io.IOException;
+
+// Thrown when the bytes on a connection are not a valid frame stream, the connection should be dropped
+public class FrameFormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FrameFormatException(String message) {
+        super(message);
+    }
+}
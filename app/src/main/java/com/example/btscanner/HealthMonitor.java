@@ -0,0 +1,345 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Health of the inbound side: dead peer detection on accepted connections, and uptime of the
+    listener that accepts them.
+
+    A watched connection counts every read that returns bytes as a sign of life, senders write a
+    heartbeat frame at least every FrameCodec.HEARTBEAT_INTERVAL_MS while they are idle. A connection
+    that stays silent for deadlineMillis is taken for half-open (the peer walked out of range or
+    crashed without closing the socket) and closed, which unblocks the worker's read and frees its
+    slot. Checks run every checkIntervalMillis, so a dead peer is found within deadline + interval.
+    The other way round, with a heartbeatIntervalMillis the checks also write a heartbeat on watched
+    connections nothing was written to for that long, so the sender can tell a half-open receiver from
+    an idle one (see ConnectionPool). Writes are serialized with the worker's, e.g. its ACKs.
+
+    The listener reports when it is up and when it failed (ServerTransport), from that we keep the
+    uptime, the number of reconnects and how long each recovery took.
+ */
+public class HealthMonitor {
+
+    // Connection whose reads are counted as activity, close() stops watching it
+    public final class WatchedConnection implements Connection {
+        private final Connection connection;
+        private volatile long lastActivity;
+        private volatile long lastWritten;
+        private volatile boolean expired;
+        // guarded by this
+        private OutputStream output;
+
+        WatchedConnection(Connection connection) {
+            this.connection = connection;
+            this.lastActivity = clock.nowMillis();
+            this.lastWritten = lastActivity;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(connection.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        lastActivity = clock.nowMillis();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        lastActivity = clock.nowMillis();
+                    }
+                    return read;
+                }
+            };
+        }
+
+        // Every write holds the connection, a heartbeat can't end up in the middle of a frame
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (output != null) {
+                return output;
+            }
+            OutputStream out = connection.getOutputStream();
+            output = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    synchronized (WatchedConnection.this) {
+                        out.write(b);
+                        lastWritten = clock.nowMillis();
+                    }
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    synchronized (WatchedConnection.this) {
+                        out.write(buffer, offset, length);
+                        lastWritten = clock.nowMillis();
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    synchronized (WatchedConnection.this) {
+                        out.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+            return output;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return connection.getRemoteAddress();
+        }
+
+        // True if the monitor closed it for being silent too long
+        public boolean isExpired() {
+            return expired;
+        }
+
+        @Override
+        public void close() throws IOException {
+            watched.remove(this);
+            connection.close();
+        }
+    }
+
+    private static final byte[] HEARTBEAT = FrameCodec.encode(FrameCodec.TYPE_HEARTBEAT, new byte[0], false);
+
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final long deadlineMillis;
+    private final long checkIntervalMillis;
+    private final long heartbeatIntervalMillis;
+
+    private final Set<WatchedConnection> watched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong watchedTotal = new AtomicLong();
+    private final AtomicLong expiredTotal = new AtomicLong();
+    private final AtomicLong heartbeats = new AtomicLong();
+    private final AtomicLong heartbeatsSent = new AtomicLong();
+    private int generation; // bumps on stop() so a pending check does nothing
+
+    // listener state, guarded by this
+    private boolean listening;
+    private long firstListeningAt = -1;
+    private long upSince;
+    private long downSince = -1;
+    private long upMillis;
+    private long failures;
+    private long reconnects;
+    // failure to listening again, microseconds
+    private final LatencyHistogram recovery = new LatencyHistogram();
+
+    public HealthMonitor(Scheduler scheduler, Clock clock, long deadlineMillis, long checkIntervalMillis) {
+        this(scheduler, clock, deadlineMillis, checkIntervalMillis, 0);
+    }
+
+    // heartbeatIntervalMillis 0 writes none
+    public HealthMonitor(Scheduler scheduler, Clock clock, long deadlineMillis, long checkIntervalMillis,
+                         long heartbeatIntervalMillis) {
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.deadlineMillis = deadlineMillis;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
+
+    // Starts the periodic dead peer check
+    public void start() {
+        int current;
+        synchronized (this) {
+            current = ++generation;
+        }
+        scheduler.schedule(() -> check(current), checkIntervalMillis);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            generation++;
+        }
+    }
+
+    private void check(int checkGeneration) {
+        synchronized (this) {
+            if (checkGeneration != generation) {
+                return;
+            }
+        }
+        expireSilent();
+        sendHeartbeats();
+        scheduler.schedule(() -> check(checkGeneration), checkIntervalMillis);
+    }
+
+    // Writes a heartbeat on the connections nothing was written to for the heartbeat interval, returns how many.
+    // One that can't be written to is closed. A heartbeat is a few bytes, it doesn't block the check
+    // unless the peer stopped reading for a whole socket buffer, long after the deadline closed it
+    public int sendHeartbeats() {
+        if (heartbeatIntervalMillis <= 0) {
+            return 0;
+        }
+        long now = clock.nowMillis();
+        int sent = 0;
+        for (WatchedConnection connection : watched) {
+            if (now - connection.lastWritten < heartbeatIntervalMillis) {
+                continue;
+            }
+            try {
+                OutputStream out = connection.getOutputStream();
+                out.write(HEARTBEAT);
+                out.flush();
+                sent++;
+            } catch (IOException e) {
+                Log.i("BT_SC", "Heartbeat to " + connection.getRemoteAddress() + " failed " + e.getMessage());
+                try {
+                    connection.close();
+                } catch (IOException closeError) {
+                    Log.e("BT_SC", "Error closing connection " + closeError.getMessage());
+                }
+            }
+        }
+        heartbeatsSent.addAndGet(sent);
+        return sent;
+    }
+
+    // Closes the connections silent for longer than the deadline, returns how many
+    public int expireSilent() {
+        long now = clock.nowMillis();
+        int closed = 0;
+        for (WatchedConnection connection : watched) {
+            long silentFor = now - connection.lastActivity;
+            if (silentFor < deadlineMillis) {
+                continue;
+            }
+            Log.w("BT_SC", "No heartbeat from " + connection.getRemoteAddress() + " for " + silentFor + " ms, closing");
+            connection.expired = true;
+            expiredTotal.incrementAndGet();
+            closed++;
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error closing connection " + e.getMessage());
+            }
+        }
+        return closed;
+    }
+
+    public WatchedConnection watch(Connection connection) {
+        WatchedConnection watchedConnection = new WatchedConnection(connection);
+        watched.add(watchedConnection);
+        watchedTotal.incrementAndGet();
+        return watchedConnection;
+    }
+
+    // A heartbeat frame came in (the read already counted as activity)
+    public void onHeartbeat() {
+        heartbeats.incrementAndGet();
+    }
+
+    // The listener is accepting (again)
+    public synchronized void onListening() {
+        if (listening) {
+            return;
+        }
+        long now = clock.nowMillis();
+        listening = true;
+        upSince = now;
+        if (firstListeningAt < 0) {
+            firstListeningAt = now;
+        }
+        if (downSince >= 0) {
+            reconnects++;
+            recovery.record((now - downSince) * 1000);
+            downSince = -1;
+        }
+    }
+
+    // The listener died (accept failed) or could not be opened
+    public synchronized void onListenerFailed() {
+        long now = clock.nowMillis();
+        if (listening) {
+            upMillis += now - upSince;
+            listening = false;
+        }
+        if (downSince < 0) {
+            downSince = now;
+        }
+        failures++;
+    }
+
+    public synchronized boolean isListening() {
+        return listening;
+    }
+
+    // Time the listener has been accepting since it first did
+    public synchronized long getUptimeMillis() {
+        return upMillis + (listening ? clock.nowMillis() - upSince : 0);
+    }
+
+    // Share of the time since the listener first came up that it was accepting, 1 before that
+    public synchronized double getAvailability() {
+        if (firstListeningAt < 0) {
+            return 1;
+        }
+        long total = clock.nowMillis() - firstListeningAt;
+        return total <= 0 ? 1 : (double) getUptimeMillis() / total;
+    }
+
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    // Times the listener came back after failing
+    public synchronized long getReconnectCount() {
+        return reconnects;
+    }
+
+    // Failure to listening again, microseconds
+    public LatencyHistogram getRecovery() {
+        return recovery;
+    }
+
+    public int getWatchedCount() {
+        return watched.size();
+    }
+
+    // Connections closed for being silent past the deadline
+    public long getExpiredCount() {
+        return expiredTotal.get();
+    }
+
+    public long getHeartbeatCount() {
+        return heartbeats.get();
+    }
+
+    // Heartbeats written back to the senders
+    public long getHeartbeatsSentCount() {
+        return heartbeatsSent.get();
+    }
+
+    public synchronized String report() {
+        return String.format(Locale.US, "health: listening=%b uptime=%.1f s availability=%.4f failures=%d reconnects=%d"
+                        + " recovery p50=%.1f max=%.1f ms connections=%d/%d expired=%d heartbeats=%d heartbeats_sent=%d%n",
+                listening, getUptimeMillis() / 1000.0, getAvailability(), failures, reconnects,
+                recovery.getPercentile(50) / 1000.0, recovery.getMax() / 1000.0, watched.size(), watchedTotal.get(),
+                expiredTotal.get(), heartbeats.get(), heartbeatsSent.get());
+    }
+}
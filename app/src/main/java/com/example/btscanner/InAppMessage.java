@@ -0,0 +1,23 @@
+package com.example.btscanner;
+
+/*
+    A message the service hands the activity through AppChannels.messages: either one live message,
+    or after a (re)bind the summary of what was missed (missedCount > 0, text is the last one).
+    seq is the journal sequence number, 0 if the message could not be journaled.
+ */
+public final class InAppMessage {
+
+    public final long seq;
+    public final String text;
+    public final int missedCount;
+
+    public InAppMessage(long seq, String text, int missedCount) {
+        this.seq = seq;
+        this.text = text;
+        this.missedCount = missedCount;
+    }
+
+    public boolean isReplay() {
+        return missedCount > 0;
+    }
+}
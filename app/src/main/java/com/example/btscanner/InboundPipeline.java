@@ -0,0 +1,269 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+    What every inbound message goes through, whichever transport it came in on: framing, decode,
+    dedup (relay and reliable), journal, then the router, which hands it to the sinks on the event loop.
+    Kept out of BluetoothService so PipelineBenchmark can drive the same code on the JVM, with fake sinks.
+
+    read() is a ConnectionServer handler (RFCOMM), newReceiver() a Transport.Receiver (WebSocket).
+    Both decode on the transport's thread, one TextDecoder/MessageDecoder per connection.
+ */
+public class InboundPipeline {
+
+    // Orders (also when relayed by a peer) are urgent, hello pings from other devices are bulk, everything else is in between
+    public static final String HELLO_PREFIX = "Hello from ";
+    public static final String ORDER_PREFIX = "Firebase new: ";
+
+    // held while a frame is handled
+    private static final long FRAME_LEASE_MS = 5_000;
+
+    private final MessageRouter router;
+    private final DeliveryMetrics deliveryMetrics;
+    // null: messages are dispatched without being journaled (seq 0)
+    private final MessageJournal journal;
+    private final MessageRelay relay;
+    private final ReliableReceiver reliable;
+    private final HealthMonitor health;
+    private final BufferPool receiveBuffers;
+    private final WakeLockManager wakeLocks;
+    // journal record times, wall time (Clock.WALL)
+    private final Clock clock;
+
+    public InboundPipeline(MessageRouter router, DeliveryMetrics deliveryMetrics, MessageJournal journal, MessageRelay relay,
+                           ReliableReceiver reliable, HealthMonitor health, BufferPool receiveBuffers, WakeLockManager wakeLocks,
+                           Clock clock) {
+        this.router = router;
+        this.deliveryMetrics = deliveryMetrics;
+        this.journal = journal;
+        this.relay = relay;
+        this.reliable = reliable;
+        this.health = health;
+        this.receiveBuffers = receiveBuffers;
+        this.wakeLocks = wakeLocks;
+        this.clock = clock;
+    }
+
+    // MessageRouter.Classifier
+    public static MessagePriority classify(MessageSource source, String text) {
+        if (source == MessageSource.FIREBASE || text.startsWith(ORDER_PREFIX)) {
+            return MessagePriority.URGENT;
+        }
+        if (text.startsWith(HELLO_PREFIX)) {
+            return MessagePriority.BULK;
+        }
+        return MessagePriority.NORMAL;
+    }
+
+    // Runs on the transport's selector thread, it has its own decoder and wake lock lease
+    public Transport.Receiver newReceiver(String leaseReason) {
+        TextDecoder textDecoder = new TextDecoder();
+        MessageDecoder messageDecoder = new MessageDecoder();
+        WakeLockManager.Lease lease = wakeLocks.newLease(leaseReason, FRAME_LEASE_MS);
+        return (source, type, payload, offset, length) -> {
+            if (type != FrameCodec.TYPE_TEXT && type != FrameCodec.TYPE_MESSAGE) {
+                Log.w("BT_SC", "Skipping unknown frame type " + type);
+                return;
+            }
+            lease.acquire();
+            try {
+                long readNanos = System.nanoTime();
+                if (type == FrameCodec.TYPE_MESSAGE) {
+                    int textLength = messageDecoder.decode(payload, offset, length);
+                    handleText(source, textDecoder, messageDecoder.getText(), 0, textLength, readNanos);
+                } else {
+                    handleText(source, textDecoder, payload, offset, length, readNanos);
+                }
+            } catch (FrameFormatException e) {
+                // the connection stays up, unlike RFCOMM the frame boundaries can't be off
+                Log.w("BT_SC", "Skipping malformed message " + e.getMessage());
+            } finally {
+                lease.release();
+            }
+        };
+    }
+
+    // Runs on a ConnectionServer worker thread, one per connected sender.
+    // Senders can push any number of frames over one connection, we read until they close it.
+    // Nothing on this path allocates per message except the String and its RoutedMessage.
+    public void read(Connection connection, long acceptedAtNanos) throws IOException {
+        long startNanos = System.nanoTime();
+        deliveryMetrics.recordNanos(MessageSource.BLUETOOTH, DeliveryStage.ACCEPT, acceptedAtNanos, startNanos);
+
+        // held while setting the connection up and while a frame is handled, not while waiting for the next one
+        WakeLockManager.Lease lease = wakeLocks.newLease("receive", FRAME_LEASE_MS);
+        lease.acquire();
+        InputStream inputStream;
+        FrameDecoder decoder;
+        try {
+            inputStream = connection.getInputStream();
+            decoder = new FrameDecoder(receiveBuffers, FrameCodec.MAX_PAYLOAD);
+        } finally {
+            lease.release();
+        }
+        TextDecoder textDecoder = new TextDecoder();
+        MessageDecoder messageDecoder = new MessageDecoder();
+        // end of the previous frame, a frame's READ time is the wait since then (or since the handler started)
+        long[] lastFrameEnd = {startNanos};
+        try {
+            decoder.readFrom(inputStream, (type, payload, offset, length) -> {
+                if (type == FrameCodec.TYPE_TEXT) {
+                    lease.acquire();
+                    try {
+                        long readNanos = System.nanoTime();
+                        deliveryMetrics.recordNanos(MessageSource.BLUETOOTH, DeliveryStage.READ, lastFrameEnd[0], readNanos);
+                        // peers get it in the compact encoding, only worth the copy when there are any
+                        if (!relay.getPeers().isEmpty()) {
+                            byte[] encoded = MessageCodec.encodeText(payload, offset, length);
+                            relay.originate(encoded, 0, encoded.length);
+                        }
+                        lastFrameEnd[0] = handleText(MessageSource.BLUETOOTH, textDecoder, payload, offset, length, readNanos);
+                    } finally {
+                        lease.release();
+                    }
+                } else if (type == FrameCodec.TYPE_MESSAGE) {
+                    lease.acquire();
+                    try {
+                        long readNanos = System.nanoTime();
+                        deliveryMetrics.recordNanos(MessageSource.BLUETOOTH, DeliveryStage.READ, lastFrameEnd[0], readNanos);
+                        // a malformed message drops the connection, like a malformed frame
+                        int textLength = messageDecoder.decode(payload, offset, length);
+                        relay.originate(payload, offset, length);
+                        lastFrameEnd[0] = handleText(MessageSource.BLUETOOTH, textDecoder, messageDecoder.getText(), 0, textLength, readNanos);
+                    } finally {
+                        lease.release();
+                    }
+                } else if (type == FrameCodec.TYPE_RELAY) {
+                    lease.acquire();
+                    try {
+                        long readNanos = System.nanoTime();
+                        deliveryMetrics.recordNanos(MessageSource.BLUETOOTH, DeliveryStage.READ, lastFrameEnd[0], readNanos);
+                        // copies that already came in over another peer are dropped here
+                        if (relay.accept(payload, offset, length, connection.getRemoteAddress())) {
+                            int textLength = messageDecoder.decode(payload, offset + MessageRelay.HEADER_SIZE, length - MessageRelay.HEADER_SIZE);
+                            lastFrameEnd[0] = handleText(MessageSource.BLUETOOTH, textDecoder, messageDecoder.getText(), 0, textLength, readNanos);
+                        } else {
+                            lastFrameEnd[0] = readNanos;
+                        }
+                    } finally {
+                        lease.release();
+                    }
+                } else if (type == FrameCodec.TYPE_RELIABLE) {
+                    lease.acquire();
+                    try {
+                        long readNanos = System.nanoTime();
+                        deliveryMetrics.recordNanos(MessageSource.BLUETOOTH, DeliveryStage.READ, lastFrameEnd[0], readNanos);
+                        lastFrameEnd[0] = readNanos;
+                        // a copy the sender resent because our ACK got lost is dropped, but acknowledged again
+                        if (!reliable.accept(payload, offset, length)) {
+                            reliable.acknowledgeCopy(payload, offset, length, connection.getOutputStream());
+                            return;
+                        }
+                        long end = 0;
+                        try {
+                            end = handleReliable(textDecoder, messageDecoder, payload, offset, length, readNanos);
+                        } finally {
+                            if (end == 0) {
+                                // not acknowledged, the sender tries again and its retry is let through
+                                reliable.release(payload, offset, length);
+                            }
+                        }
+                        if (end == 0) {
+                            return;
+                        }
+                        lastFrameEnd[0] = end;
+                        reliable.acknowledge(payload, offset, length, connection.getOutputStream());
+                    } finally {
+                        lease.release();
+                    }
+                } else if (type == FrameCodec.TYPE_HEARTBEAT) {
+                    // the read already told the health monitor the peer is alive
+                    health.onHeartbeat();
+                    lastFrameEnd[0] = System.nanoTime();
+                } else {
+                    Log.w("BT_SC", "Skipping unknown frame type " + type);
+                }
+            });
+        } finally {
+            lease.release();
+            decoder.release();
+        }
+    }
+
+    // A new TYPE_RELIABLE payload. Returns the System.nanoTime() it was handed on, or 0 if it could not
+    // be journaled and must not be acknowledged yet. Messages that can never be delivered (malformed,
+    // unknown type) are acknowledged anyway, resending them would not help
+    private long handleReliable(TextDecoder textDecoder, MessageDecoder messageDecoder,
+                                byte[] payload, int offset, int length, long readNanos) {
+        int innerType = payload[offset + 8] & 0xFF;
+        int innerOffset = offset + OutboundQueue.HEADER_SIZE;
+        int innerLength = length - OutboundQueue.HEADER_SIZE;
+        if (innerType == FrameCodec.TYPE_MESSAGE) {
+            int textLength;
+            try {
+                textLength = messageDecoder.decode(payload, innerOffset, innerLength);
+            } catch (FrameFormatException e) {
+                Log.w("BT_SC", "Skipping malformed reliable message " + e.getMessage());
+                return readNanos;
+            }
+            long seq = journal(MessageSource.BLUETOOTH, messageDecoder.getText(), 0, textLength);
+            if (seq == 0 && journal != null) {
+                return 0;
+            }
+            relay.originate(payload, innerOffset, innerLength);
+            return handleText(MessageSource.BLUETOOTH, textDecoder, seq, messageDecoder.getText(), 0, textLength, readNanos);
+        }
+        if (innerType == FrameCodec.TYPE_TEXT) {
+            long seq = journal(MessageSource.BLUETOOTH, payload, innerOffset, innerLength);
+            if (seq == 0 && journal != null) {
+                return 0;
+            }
+            return handleText(MessageSource.BLUETOOTH, textDecoder, seq, payload, innerOffset, innerLength, readNanos);
+        }
+        Log.w("BT_SC", "Skipping unknown reliable message type " + innerType);
+        return readNanos;
+    }
+
+    // Journal and decode on the transport's thread, routed on the loop.
+    // readNanos is when the frame was complete, returns the System.nanoTime() it was handed on.
+    // Under load the router sheds or folds bulk messages rather than holding the transport thread up.
+    long handleText(MessageSource source, TextDecoder textDecoder, byte[] payload, int offset, int length, long readNanos) {
+        return handleText(source, textDecoder, journal(source, payload, offset, length), payload, offset, length, readNanos);
+    }
+
+    // Same, for a message already journaled as seq
+    private long handleText(MessageSource source, TextDecoder textDecoder, long seq,
+                            byte[] payload, int offset, int length, long readNanos) {
+        long journaledNanos = System.nanoTime();
+        deliveryMetrics.recordNanos(source, DeliveryStage.JOURNAL, readNanos, journaledNanos);
+
+        // Convert the received bytes to a string message
+        CharSequence message = textDecoder.decode(payload, offset, length);
+        if (Log.isLoggable("BT_SC", Log.DEBUG)) {
+            Log.d("BT_SC", "Msg : " + message);
+        }
+        String text = message.toString();
+        long decodedNanos = System.nanoTime();
+        deliveryMetrics.recordNanos(source, DeliveryStage.DECODE, journaledNanos, decodedNanos);
+
+        router.submit(source, seq, text, readNanos);
+        return System.nanoTime();
+    }
+
+    // Writes the message to the journal before it is dispatched, returns its sequence number (0 if it could not be saved)
+    public long journal(MessageSource source, byte[] payload, int offset, int length) {
+        if (journal == null) {
+            return 0;
+        }
+        try {
+            return journal.append(source, clock.nowMillis(), payload, offset, length);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e("BT_SC", "Error journaling message " + e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -2,10 +2,11 @@ package com.example.btscanner;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -17,31 +18,35 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.provider.Settings;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.WindowManager;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ListView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.FirebaseApp;
 
 /*
     App Overview:
@@ -56,7 +61,7 @@ import com.google.firebase.FirebaseApp;
     App functionality:
     -Show you at the bottom if the android is normal or GO version
     -Start a foreground service in the background that runs code and listens to incoming Bluetooth 'hello' ping connections
-    -Set up partial wake lock
+    -Keeps the CPU awake with partial wake lock leases only while messages are being handled
     -Set up OneSignal push notifications from the foreground service
     -Scans for nearby bluetooth devices
     -Displays a list of paired + discovered bluetooth devices
@@ -70,26 +75,65 @@ import com.google.firebase.FirebaseApp;
 public class MainActivity extends AppCompatActivity {
 
     private BluetoothAdapter bluetoothAdapter;
-    private ArrayAdapter<String> deviceListAdapter;
-    private ListView deviceListView;
+    private DeviceListAdapter deviceListAdapter;
+    private RecyclerView deviceListView;
+
+    // Paired and discovered devices by MAC, published to the adapter at most once per frame
+    private DeviceRegistry deviceRegistry;
+    private static final long DEVICE_LIST_FRAME_MS = 16;
+
+    // Discovery duty cycle, backs off to one scan every few minutes when nothing new shows up
+    private ScanScheduler scanScheduler;
+    private static final long SCAN_MS = 12_000;
+    private static final long SCAN_MIN_INTERVAL_MS = 20_000;
+    private static final long SCAN_MAX_INTERVAL_MS = 5 * 60_000;
 
     private BluetoothService service;
 
+    // Foreground state for the service and the messages it sends back, see AppChannels
+    private final AppChannels appChannels = AppChannels.shared();
+
     // Unique UUID for the BT service that both server and client must match
     String uuid = "8bf5fd6f-344e-4303-92dd-a7aee674ac86";
 
     private Handler handler = new Handler();
 
-    // Declare socket as an instance variable
-    private BluetoothSocket socket;
-
-    private PowerManager.WakeLock wakeLock;
+    // Outbound connections are kept open for this long after the last message to a device
+    private static final long CONNECTION_IDLE_TIMEOUT_MS = 60_000;
+
+    // Outbound frames are queued here and written off the UI thread
+    private MessageSender messageSender;
+
+    // Device list cap, sender threads and outbox size; smaller on Android Go, see isAndroidGoDevice()
+    private MemoryProfile memoryProfile;
+
+    // Messages are kept on disk and resent until the receiving service acknowledges them, see OutboundQueue.
+    // Whatever is unacknowledged when the activity goes away is sent again the next time it starts
+    private OutboundQueue outbox;
+    private ScheduledExecutorService outboxExecutor;
+    // saves (each one fsync'ed) go here rather than onto the UI thread that queued them
+    private ExecutorService outboxStoreExecutor;
+    private static final long OUTBOX_ACK_TIMEOUT_MS = 2_000;
+    private static final long OUTBOX_MAX_BACKOFF_MS = 60_000;
+    private static final long OUTBOX_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    // how long onDestroy waits for a send or store write in progress
+    private static final long OUTBOX_SHUTDOWN_TIMEOUT_MS = 500;
+
+    // Orders are written in batches, see OrderWriter
+    private static final int ORDER_BATCH_SIZE = 50;
+    private static final long ORDER_MAX_LINGER_MS = 100;
+    private static final int LOAD_TEST_ORDERS_PER_SECOND = 50;
+    private static final int LOAD_TEST_ORDERS = 1000;
+    private ScheduledExecutorService orderExecutor;
+    private OrderWriter orderWriter;
+    private OrderLoadGenerator orderLoadGenerator;
+    private final Random random = new Random();
 
-    @SuppressLint("InvalidWakeLockTag")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        memoryProfile = MemoryProfile.forDevice(isAndroidGoDevice());
 
         // Keep the screen on, needs matching attribute in the layout xml
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -106,8 +150,14 @@ public class MainActivity extends AppCompatActivity {
 
         // Link View and Adapter
         deviceListView = findViewById(R.id.deviceListView);
-        deviceListAdapter = new ArrayAdapter<String>(this, R.layout.list_item_layout, android.R.id.text1);
+        deviceListView.setLayoutManager(new LinearLayoutManager(this));
+        deviceListAdapter = new DeviceListAdapter(this::sendBTMessage);
         deviceListView.setAdapter(deviceListAdapter);
+        // the registry runs on the main thread, snapshots go out on the next frame
+        Scheduler frameScheduler = (task, delayMillis) ->
+                Choreographer.getInstance().postFrameCallbackDelayed(frameTimeNanos -> task.run(), delayMillis);
+        deviceRegistry = new DeviceRegistry(deviceListAdapter::submitList, frameScheduler, Clock.SYSTEM,
+                memoryProfile.maxDevices, DEVICE_LIST_FRAME_MS);
 
         // Get BT
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -116,6 +166,59 @@ public class MainActivity extends AppCompatActivity {
             finish();
         }
 
+        // BLE results come in on a binder thread, the registry lives on the main thread
+        BluetoothDiscoveryRadio discoveryRadio = new BluetoothDiscoveryRadio(bluetoothAdapter, UUID.fromString(uuid),
+                (address, name, rssi) -> handler.post(() -> onDeviceFound(address, name, rssi)));
+        scanScheduler = new ScanScheduler(discoveryRadio, handler::postDelayed, Clock.SYSTEM,
+                SCAN_MS, SCAN_MIN_INTERVAL_MS, SCAN_MAX_INTERVAL_MS);
+
+        // Warm outbound connections, reused across taps on the same device.
+        // Discovery is paused while a connection is being set up, it slows the connect down
+        RfcommConnectionFactory rfcommFactory = new RfcommConnectionFactory(bluetoothAdapter, UUID.fromString(uuid));
+        ConnectionPool.Factory connectionFactory = address -> {
+            scanScheduler.connectionStarted();
+            try {
+                return rfcommFactory.connect(address);
+            } finally {
+                scanScheduler.connectionFinished();
+            }
+        };
+        // the receiving service answers on the same connection, ACKs go to the outbox (on the reader thread,
+        // the acknowledged message's file is deleted there)
+        ConnectionPool connectionPool = new ConnectionPool(connectionFactory, CONNECTION_IDLE_TIMEOUT_MS, Clock.SYSTEM,
+                (address, type, payload, offset, length) -> {
+                    if (type == FrameCodec.TYPE_ACK && length >= 8) {
+                        outbox.onAck(OutboundQueue.getId(payload, offset));
+                    }
+                });
+        // idle connections get heartbeats, so the receiving service doesn't take them for half-open
+        messageSender = new MessageSender(connectionPool, memoryProfile.senderThreads, FrameCodec.HEARTBEAT_INTERVAL_MS);
+        // retries still waiting when the activity goes away are dropped rather than run or rejected,
+        // the messages are on disk and go out again on the next start
+        ScheduledThreadPoolExecutor outboxThread = new ScheduledThreadPoolExecutor(1, new ThreadPoolExecutor.DiscardPolicy());
+        outboxThread.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        outboxExecutor = outboxThread;
+        outboxStoreExecutor = Executors.newSingleThreadExecutor();
+        outbox = new OutboundQueue(messageSender::send, new OutboundStore(new File(getFilesDir(), "outbox")),
+                outboxStoreExecutor, (task, delayMillis) -> outboxExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS), Clock.WALL,
+                memoryProfile.outboxCapacity, OUTBOX_ACK_TIMEOUT_MS, OUTBOX_MAX_BACKOFF_MS, OUTBOX_MAX_AGE_MS, random);
+        outbox.setListener(new OutboundQueue.Listener() {
+            @Override
+            public void onDelivered(OutboundQueue.Entry entry, long latencyMillis) {
+                Log.i("BT_SC", "Delivered to " + entry.address + " after " + entry.getAttempts() + " attempts, " + latencyMillis + " ms");
+            }
+
+            @Override
+            public void onExpired(OutboundQueue.Entry entry) {
+                runOnUiThread(() -> {
+                    if (!isDestroyed()) {
+                        Toast.makeText(MainActivity.this, "Could not deliver message to " + entry.address, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        });
+        outbox.start();
+
         // Enable BT if it's displayed
         if (!bluetoothAdapter.isEnabled()) {
             Intent enableBT = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
@@ -126,8 +229,11 @@ public class MainActivity extends AppCompatActivity {
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH) != PackageManager.PERMISSION_GRANTED ||
                 ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_ADMIN) != PackageManager.PERMISSION_GRANTED ||
                 ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED ||
-                ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.BLUETOOTH, Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH_SCAN, Manifest.permission.BLUETOOTH_CONNECT}, 0);
+                ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED ||
+                ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_ADVERTISE) != PackageManager.PERMISSION_GRANTED) {
+            // advertise: the service's BLE advertisement, what the low-power scan of other watches looks for
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.BLUETOOTH, Manifest.permission.BLUETOOTH_ADMIN, Manifest.permission.BLUETOOTH_SCAN,
+                    Manifest.permission.BLUETOOTH_CONNECT, Manifest.permission.BLUETOOTH_ADVERTISE}, 0);
         }
 
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
@@ -161,25 +267,22 @@ public class MainActivity extends AppCompatActivity {
 
         // Register for broadcasts when a device is discovered.
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-        // used for activity local broadcasts
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         registerReceiver(receiver, filter);
 
-        // used for receiving background broadcasts from service
-        LocalBroadcastManager.getInstance(this).registerReceiver(receiver, new IntentFilter("com.example.btscanner.NEW_MESSAGE"));
-
         // Add event to scan button click
         Button firebaseButton = findViewById(R.id.scanButton);
         firebaseButton.setOnClickListener(ButtonClickListener);
+        firebaseButton.setOnLongClickListener(LoadTestClickListener);
         // Check if the device is running Android Go
-        boolean isAndroidGo = isAndroidGoDevice();
-        if (isAndroidGo) {
+        if (memoryProfile.lowRam) {
             firebaseButton.setText("Android GO.");
         } else {
             firebaseButton.setText("Android.");
         }
 
-        // Add click event handler to the device list
-        deviceListView.setOnItemClickListener(this::sendBTMessage);
+        // Long press the title to write the service's delivery latency report to a file
+        findViewById(R.id.titleTextView).setOnLongClickListener(this::dumpDeliveryMetrics);
 
         // Start the background foreground BluetoothService when your app starts
         Intent bluetoothServiceIntent = new Intent(this, BluetoothService.class);
@@ -192,26 +295,28 @@ public class MainActivity extends AppCompatActivity {
         // List paired devices (add to discovered)
         @SuppressLint("MissingPermission") Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
         for (BluetoothDevice device : pairedDevices) {
-            deviceListAdapter.add(device.getName() + "\n" + device.getAddress());
-        }
-
-        // Auto start discovering BT unpaired devices
-        if (bluetoothAdapter.isDiscovering()) {
-            bluetoothAdapter.cancelDiscovery();
+            deviceRegistry.addPaired(device.getAddress(), device.getName());
         }
-        bluetoothAdapter.startDiscovery();
-
-        // Inside your activity's or service's onCreate or onStartCommand method
-        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "BTS_SC_WakeLockTag");
 
-        // Acquire the wake lock when you need to keep the CPU awake
-        if (!wakeLock.isHeld()) {
-            wakeLock.acquire();
-        }
+        // Auto start discovering BT unpaired devices, in duty cycles from here on
+        scanScheduler.start();
+
+        // Batched writer for the 'orders' reference, runs on its own thread so load tests don't touch the UI thread
+        DatabaseReference ordersReference = FirebaseDatabase.getInstance().getReference("orders");
+        orderExecutor = Executors.newSingleThreadScheduledExecutor();
+        Scheduler orderScheduler = (task, delayMillis) -> orderExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        orderWriter = new OrderWriter(new OrderWriter.Sink() {
+            @Override
+            public String newKey() {
+                return ordersReference.push().getKey();
+            }
 
-        // Initialize Firebase
-        FirebaseApp.initializeApp(this);
+            @Override
+            public void update(Map<String, Object> updates, OrderWriter.CompletionListener listener) {
+                ordersReference.updateChildren(updates, (error, ref) -> listener.onComplete(error == null ? null : error.getMessage()));
+            }
+        }, orderScheduler, Clock.WALL, ORDER_BATCH_SIZE, ORDER_MAX_LINGER_MS);
+        orderLoadGenerator = new OrderLoadGenerator(orderWriter, orderScheduler, Clock.SYSTEM);
 
     }
 
@@ -223,122 +328,81 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onClick(View view) {
 
-            Random random = new Random();
-
-            // Initialize Firebase
-            FirebaseDatabase firebaseDatabase = FirebaseDatabase.getInstance();
-            DatabaseReference databaseReference = firebaseDatabase.getReference("orders");
-
-            String randomField1 = String.valueOf(random.nextInt(100));
-
             // Create a Map to represent your data
             Map<String, Object> data = new HashMap<>();
-            data.put("field1", randomField1);
+            data.put("field1", String.valueOf(random.nextInt(100)));
 
-            // Push the data to the database reference
-            databaseReference.push().setValue(data);
+            // Goes out with the next batch (a multi-path update) within ORDER_MAX_LINGER_MS
+            orderWriter.submit(data);
         }
     };
 
-    @SuppressLint("MissingPermission")
-    private void sendBTMessage(AdapterView<?> adapterView, View view, int i, long l) {
-
-        Log.i("BT_SC", "Sending");
-        String deviceInfo = deviceListAdapter.getItem(i);
-        String[] parts = deviceInfo.split("\n");
-        String deviceName = parts[1]; // Extract the device name
-
-        // IF The device is already paired, establish a Bluetooth socket connection (we are assuming they are paired for now)
-        Toast.makeText(MainActivity.this, "Sending message to " + deviceName, Toast.LENGTH_SHORT).show();
-
-        // Cancel discovery because it otherwise slows down the connection.
-        bluetoothAdapter.cancelDiscovery();
-
-        BluetoothDevice selectedDevice = bluetoothAdapter.getRemoteDevice(deviceName);
-
-        if (selectedDevice != null) {
-            // Now you have the selected BluetoothDevice object representing the remote device.
-            // You can use this object to establish a connection and send messages to the device.
+    // Writes the service's delivery latency report and shows where it went
+    private boolean dumpDeliveryMetrics(View view) {
+        if (service == null) {
+            return false;
+        }
+        try {
+            File file = service.dumpDeliveryMetrics();
+            Toast.makeText(this, "Latency report: " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e("BT_SC", "Error writing latency report " + e.getMessage());
+            Toast.makeText(this, "Could not write latency report", Toast.LENGTH_SHORT).show();
+        }
+        return true;
+    }
 
-            // Create an RFCOMM Bluetooth socket
-            socket = null;
-            try {
-                socket = selectedDevice.createRfcommSocketToServiceRecord(UUID.fromString(uuid)); // prepare to connect to BT 'server'
-
-            } catch (IOException e) {
-                Toast.makeText(MainActivity.this, e.getMessage(), Toast.LENGTH_SHORT).show();
-                try {
-                    Log.e("BT_SC", "Error " + e.getMessage());
-                    socket.close();
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
-                throw new RuntimeException(e);
-            }
+    // Long press on the button runs the order load test, the service logs the end-to-end latency it sees
+    private View.OnLongClickListener LoadTestClickListener = new View.OnLongClickListener() {
 
-            // Connect to the Bluetooth socket
-            try {
-                socket.connect();   // Note this is blocking, if it cant connect it will hang up a few secs before failing
-
-                // Use the Bluetooth socket to send the message to the selected device
-                if (socket != null) {
-                    try {
-                        OutputStream outputStream = socket.getOutputStream();
-                        @SuppressLint("MissingPermission") String messageToSend = "Hello from " + bluetoothAdapter.getName() + "\n";
-                        byte[] bytesToSend = messageToSend.getBytes();
-                        outputStream.write(bytesToSend);
-                        outputStream.flush();
-                        Log.i("BT_SC", "Sent : "+ messageToSend);
-
-
-                        // Post a Runnable with a delay of 2000 milliseconds (1 second) to auto close (and give the stream time to flush)
-                        handler.postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                // Perform the action you want to delay here
-                                if (socket != null) {
-                                    try {
-                                        socket.close();
-                                        Log.i("BT_SC", "Closing Socket after 2 seconds");
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            }
-                        }, 2000);
-
-
-                    } catch (IOException e) {
-                        Toast.makeText(MainActivity.this, e.getMessage(), Toast.LENGTH_SHORT).show();
-                        Log.e("BT_SC", "Error " + e.getMessage());
-                        e.printStackTrace();
-                        try {
-                            socket.close();
-                        } catch (IOException ex) {
-                            throw new RuntimeException(ex);
-                        }
-                    }
-                }
-
-            } catch (IOException e) {
-                Toast.makeText(MainActivity.this, e.getMessage(), Toast.LENGTH_SHORT).show();
-                try {
-                    Log.e("BT_SC", "Error " + e.getMessage());
-                    socket.close();
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
-                throw new RuntimeException(e);
+        @Override
+        public boolean onLongClick(View view) {
+            if (orderLoadGenerator.isRunning()) {
+                orderLoadGenerator.stop();
+                Toast.makeText(MainActivity.this, "Load test stopped", Toast.LENGTH_SHORT).show();
+                return true;
             }
+            Toast.makeText(MainActivity.this, "Load test: " + LOAD_TEST_ORDERS_PER_SECOND + " orders/s", Toast.LENGTH_SHORT).show();
+            orderLoadGenerator.start(LOAD_TEST_ORDERS_PER_SECOND, LOAD_TEST_ORDERS, () ->
+                    // give the last batch time to be acknowledged before reporting
+                    handler.postDelayed(() -> {
+                        String report = String.format(Locale.US, "Wrote %d/%d orders in %d batches, %.1f orders/s",
+                                orderWriter.getWrittenCount(), orderWriter.getSubmittedCount(),
+                                orderWriter.getBatchCount(), orderWriter.getWriteRate());
+                        Log.i("BT_SC", report);
+                        Toast.makeText(MainActivity.this, report, Toast.LENGTH_LONG).show();
+                    }, 2000));
+            return true;
+        }
+    };
 
+    @SuppressLint("MissingPermission")
+    private void sendBTMessage(ScannedDevice device) {
 
+        Log.i("BT_SC", "Sending");
+        String address = device.getAddress();
+
+        // IF The device is already paired, send over a pooled Bluetooth connection (we are assuming they are paired for now)
+        Toast.makeText(MainActivity.this, "Sending message to " + device.getDisplayName(), Toast.LENGTH_SHORT).show();
+
+        String messageToSend = InboundPipeline.HELLO_PREFIX + bluetoothAdapter.getName();
+        // Compact encoding, the "Hello from " prefix goes out as a one byte dictionary reference.
+        // Saved and retried until the device acknowledges it, so an unreachable device or a dropped
+        // connection only delays the message
+        long id = outbox.enqueue(address, FrameCodec.TYPE_MESSAGE, MessageCodec.encodeText(messageToSend));
+        if (id < 0) {
+            Log.w("BT_SC", "Outbox full, not sending : " + messageToSend);
+            Toast.makeText(MainActivity.this, "Too many messages waiting, try again later", Toast.LENGTH_SHORT).show();
         } else {
-            // Handle the case where the device with the specified address was not found.
-            // You might want to display an error message or take appropriate action.
-
-            Toast.makeText(MainActivity.this, "Error Sending", Toast.LENGTH_SHORT).show();
+            Log.i("BT_SC", "Queued " + Long.toHexString(id) + " : " + messageToSend);
         }
+    }
 
+    // Add to the list, or update the row if we have seen this device before
+    private void onDeviceFound(String address, String name, int rssi) {
+        boolean newDevice = deviceRegistry.get(address) == null;
+        deviceRegistry.onDiscovered(address, name, rssi);
+        scanScheduler.onDeviceFound(newDevice);
     }
 
     // Create a BroadcastReceiver for BT ACTION_FOUND.
@@ -355,46 +419,86 @@ public class MainActivity extends AppCompatActivity {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 @SuppressLint("MissingPermission") String deviceName = device.getName();
                 String deviceHardwareAddress = device.getAddress(); // MAC address
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) ScannedDevice.NO_RSSI);
 
-                // Add to Listview
-                deviceListAdapter.add(deviceName + "\n" + deviceHardwareAddress);
+                onDeviceFound(deviceHardwareAddress, deviceName, rssi);
             }
 
-            // This intent shows any message receive from devices (will be sent by receiving background service)
-            if ("com.example.btscanner.NEW_MESSAGE".equals(action)) {
-                String message = intent.getStringExtra("message");
-                // Update the UI with the received message (e.g., show a Toast)
-                Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+            if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                scanScheduler.onDiscoveryFinished();
             }
         }
     };
 
+    // Messages from the service, called on its event loop (or here in onResume with the sticky one)
+    private final StateChannel.Listener<InAppMessage> messageListener = message -> {
+        if (message != null) {
+            handler.post(() -> showInAppMessage(message));
+        }
+    };
+
+    // Shows any message received from devices or Firebase, or the summary of the ones missed while the app was away
+    private void showInAppMessage(InAppMessage message) {
+        // a sticky message handed over again on resume, or to this activity after a rotation, is not shown twice
+        if (!appChannels.markShown(message)) {
+            return;
+        }
+        if (message.isReplay()) {
+            Toast.makeText(this, "Missed " + message.missedCount + " messages, last: " + message.text, Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, message.text, Toast.LENGTH_SHORT).show();
+        }
+    }
+
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         unregisterReceiver(receiver);
 
+        scanScheduler.stop();
+        Log.i("BT_SC", "Discovery: " + scanScheduler.getCycles() + " scans, " + scanScheduler.getScanTimeMillis()
+                + " ms radio time, ~" + String.format(Locale.US, "%.2f", scanScheduler.getEstimatedMilliampHours()) + " mAh");
+        // unacknowledged messages stay on disk for the next start, a send or delete that already started finishes.
+        // Queued saves all run, a message the user sent just before is still on disk for the next start
+        outboxExecutor.shutdown();
+        outboxStoreExecutor.shutdown();
+        try {
+            if (!outboxStoreExecutor.awaitTermination(OUTBOX_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    || !outboxExecutor.awaitTermination(OUTBOX_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w("BT_SC", "Outbox still busy after " + OUTBOX_SHUTDOWN_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i("BT_SC", outbox.report());
+        messageSender.close();
+        orderLoadGenerator.stop();
+        orderExecutor.execute(orderWriter::flush);
+        orderExecutor.shutdown();
+
         // Stop the BluetoothService when your app is destroyed
         Intent bluetoothServiceIntent = new Intent(this, BluetoothService.class);
         stopService(bluetoothServiceIntent);
-
-        // Release the wake lock when you're done with it (e.g., in onDestroy or when your task is complete)
-//        if (wakeLock.isHeld()) {
-//            wakeLock.release();
-//        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        sendBroadcast(new Intent("com.example.btscanner.APP_FOREGROUND")); // Sync app state with background service
+        // full classic inquiry while someone is looking at the list, filtered BLE otherwise
+        scanScheduler.setLowPower(false);
+        // Sync app state with background service, listening first so nothing published in between is missed
+        appChannels.messages.observe(messageListener);
+        appChannels.foreground.publish(true);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        sendBroadcast(new Intent("com.example.btscanner.APP_BACKGROUND"));
+        scanScheduler.setLowPower(true);
+        // the service stops handing us messages first, one it is dispatching right now stays on the channel
+        appChannels.foreground.publish(false);
+        appChannels.messages.remove(messageListener);
     }
 
     // Used for binding background service to this activity (service will know the 'this' context of the activity)
@@ -404,8 +508,8 @@ public class MainActivity extends AppCompatActivity {
             BluetoothService.LocalBinder localBinder = (BluetoothService.LocalBinder) binder;
             service = localBinder.getService();
 
-            // Set the foreground activity's context in the service
-            service.setForegroundActivityContext(MainActivity.this);
+            // the service replays what we missed while unbound
+            service.onActivityBound();
         }
 
         @Override
@@ -416,7 +520,28 @@ public class MainActivity extends AppCompatActivity {
 
     private boolean isAndroidGoDevice() {
         // Check if the device is running Android Go by using the feature check
-        return getPackageManager().hasSystemFeature("android.hardware.ram.low");
+        return getPackageManager().hasSystemFeature("android.hardware.ram.low")
+                || getSystemService(ActivityManager.class).isLowRamDevice();
+    }
+
+    // Sheds what can be rebuilt: discovered devices come back with the next scan, list rows get inflated again.
+    // Paired devices and queued messages stay
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (deviceRegistry == null) {
+            return;
+        }
+        int devices = 0;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            devices = deviceRegistry.trimTo(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            devices = deviceRegistry.trimTo(memoryProfile.maxDevices / 2);
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            deviceListView.getRecycledViewPool().clear();
+        }
+        Log.i("BT_SC", "Trim memory level " + level + ", dropped " + devices + " devices");
     }
 
     // important, send the app to the background when the user pressed 'back' instead of closing it by default
@@ -0,0 +1,70 @@
+package com.example.btscanner;
+
+import java.util.Locale;
+
+/*
+    Sizes of everything that holds memory in proportion to traffic: pools, queues, dedup windows,
+    the device list and the threads behind them. Android Go (low-RAM) devices get LOW_RAM, with a
+    budget of a few MB for the whole process, everyone else STANDARD.
+
+    Low-RAM also defers the OneSignal SDK by oneSignalDelayMillis, so it isn't loaded while the
+    listener and Firebase are coming up, and MemoryFootprintTest holds each profile to a heap budget.
+ */
+public final class MemoryProfile {
+
+    public static final MemoryProfile STANDARD = new MemoryProfile("standard", false,
+            200, 7, 7, 1024, 512, 4096, 4096, 5, 2, 256, 0);
+    public static final MemoryProfile LOW_RAM = new MemoryProfile("low-ram", true,
+            50, 3, 1, 256, 128, 1024, 1024, 3, 1, 64, 30_000);
+
+    public final String name;
+    public final boolean lowRam;
+    // DeviceRegistry cap
+    public final int maxDevices;
+    // inbound RFCOMM connections served at once, one worker thread each. Classic BT piconets top out
+    // at 7 active links, more senders wait in the accept backlog
+    public final int maxBtConnections;
+    // receive buffers kept in the BufferPool between connections
+    public final int pooledReceiveBuffers;
+    public final int eventQueueCapacity;
+    public final int routerCapacity;
+    // SeenSet sizes of the relay and of the ReliableReceiver
+    public final int relaySeenIds;
+    public final int reliableWindow;
+    public final int notificationLines;
+    public final int senderThreads;
+    public final int outboxCapacity;
+    // 0 loads OneSignal right after Firebase
+    public final long oneSignalDelayMillis;
+
+    MemoryProfile(String name, boolean lowRam, int maxDevices, int maxBtConnections, int pooledReceiveBuffers,
+                  int eventQueueCapacity, int routerCapacity, int relaySeenIds, int reliableWindow,
+                  int notificationLines, int senderThreads, int outboxCapacity, long oneSignalDelayMillis) {
+        this.name = name;
+        this.lowRam = lowRam;
+        this.maxDevices = maxDevices;
+        this.maxBtConnections = maxBtConnections;
+        this.pooledReceiveBuffers = pooledReceiveBuffers;
+        this.eventQueueCapacity = eventQueueCapacity;
+        this.routerCapacity = routerCapacity;
+        this.relaySeenIds = relaySeenIds;
+        this.reliableWindow = reliableWindow;
+        this.notificationLines = notificationLines;
+        this.senderThreads = senderThreads;
+        this.outboxCapacity = outboxCapacity;
+        this.oneSignalDelayMillis = oneSignalDelayMillis;
+    }
+
+    // lowRam: the android.hardware.ram.low feature, or ActivityManager.isLowRamDevice()
+    public static MemoryProfile forDevice(boolean lowRam) {
+        return lowRam ? LOW_RAM : STANDARD;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: devices=%d connections=%d buffers=%d event_queue=%d router=%d relay_ids=%d"
+                        + " reliable_ids=%d lines=%d senders=%d outbox=%d onesignal_delay=%d ms",
+                name, maxDevices, maxBtConnections, pooledReceiveBuffers, eventQueueCapacity, routerCapacity, relaySeenIds,
+                reliableWindow, notificationLines, senderThreads, outboxCapacity, oneSignalDelayMillis);
+    }
+}
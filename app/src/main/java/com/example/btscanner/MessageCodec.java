@@ -0,0 +1,360 @@
+package com.example.btscanner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Compact binary payload of TYPE_MESSAGE frames, in place of the plain UTF-8 text of TYPE_TEXT.
+
+    payload := version field*
+    field   := key value, key is a varint (number << 3 | wire type)
+
+    wire types:
+      0 NUMBER   zigzag varint
+      1 STRING   varint length, UTF-8 bytes
+      2 DICT     varint index into DICTIONARY
+      3 REPEAT   varint index of an earlier string of this message (0 = the first one)
+
+    field numbers:
+      1 PREFIX   start of the display text (string)
+      2 TEXT     rest of the display text (string)
+      3 NAME     name of an order field (string)
+      4 VALUE    value of the last NAME (string or number)
+
+    What a watch shows is PREFIX + TEXT. The prefixes we send ("Hello from ", "Firebase new: ")
+    and the order field names are in the shared dictionary, so they cost one byte, a value that
+    is repeated within a message (an order's field1 is also its display text) costs two.
+    Varints are little endian groups of 7 bits, the high bit set on every byte but the last.
+
+    Receivers skip field numbers they don't know, so fields can be added without a new version.
+    DICTIONARY is part of the format: only ever append to it, and bump VERSION if an entry changes.
+ */
+public final class MessageCodec {
+
+    public static final int VERSION = 1;
+
+    static final int WIRE_NUMBER = 0;
+    static final int WIRE_STRING = 1;
+    static final int WIRE_DICT = 2;
+    static final int WIRE_REPEAT = 3;
+
+    static final int FIELD_PREFIX = 1;
+    static final int FIELD_TEXT = 2;
+    static final int FIELD_NAME = 3;
+    static final int FIELD_VALUE = 4;
+
+    static final String[] DICTIONARY = {
+            "Hello from ",
+            "Firebase new: ",
+            "field1",
+            OrderWriter.CREATED_AT,
+            "null",
+    };
+
+    static final byte[][] DICTIONARY_BYTES = new byte[DICTIONARY.length][];
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_BYTES[i] = DICTIONARY[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // Strings written so far in one message, for REPEAT, a message never has many
+    private static final int MAX_STRINGS = 64;
+
+    private MessageCodec() {
+    }
+
+    public static byte[] encodeText(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return encodeText(bytes, 0, bytes.length);
+    }
+
+    // Text that is already UTF-8, e.g. the payload of a TYPE_TEXT frame
+    public static byte[] encodeText(byte[] text, int offset, int length) {
+        Writer writer = new Writer(length + 8);
+        writer.text(text, offset, length);
+        return writer.toByteArray();
+    }
+
+    // An order: shown as prefix + text, with its fields along (numbers as varints, anything else as a string)
+    public static byte[] encodeOrder(String prefix, String text, Map<String, Object> fields) {
+        Writer writer = new Writer(64);
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        writer.string(FIELD_PREFIX, prefixBytes, 0, prefixBytes.length);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        writer.string(FIELD_TEXT, textBytes, 0, textBytes.length);
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            byte[] name = field.getKey().getBytes(StandardCharsets.UTF_8);
+            writer.string(FIELD_NAME, name, 0, name.length);
+            Object value = field.getValue();
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writer.number(FIELD_VALUE, ((Number) value).longValue());
+            } else {
+                byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+                writer.string(FIELD_VALUE, bytes, 0, bytes.length);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    // The display text, allocates, use a MessageDecoder on the receive path
+    public static String decodeText(byte[] payload, int offset, int length) throws FrameFormatException {
+        MessageDecoder decoder = new MessageDecoder();
+        int size = decoder.decode(payload, offset, length);
+        return new String(decoder.getText(), 0, size, StandardCharsets.UTF_8);
+    }
+
+    // The order fields of a message, in the order they were written, empty for plain text
+    public static Map<String, Object> decodeFields(byte[] payload, int offset, int length) throws FrameFormatException {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        Reader reader = new Reader(payload, offset, length);
+        String name = null;
+        while (reader.next()) {
+            if (reader.number == FIELD_NAME && reader.wireType != WIRE_NUMBER) {
+                name = reader.stringValue();
+            } else if (reader.number == FIELD_VALUE && name != null) {
+                fields.put(name, reader.wireType == WIRE_NUMBER ? (Object) reader.numberValue : reader.stringValue());
+                name = null;
+            }
+        }
+        return fields;
+    }
+
+    // Longest dictionary entry the text starts with, -1 if none
+    static int dictionaryPrefix(byte[] text, int offset, int length) {
+        int best = -1;
+        for (int i = 0; i < DICTIONARY_BYTES.length; i++) {
+            byte[] entry = DICTIONARY_BYTES[i];
+            if (entry.length <= length && (best < 0 || entry.length > DICTIONARY_BYTES[best].length)
+                    && regionMatches(text, offset, entry, 0, entry.length)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Builds one message, strings are looked up in the dictionary and in the strings already written
+    static final class Writer {
+        private byte[] out;
+        private int size;
+        // where this message's strings are in out, for REPEAT
+        private final int[] stringOffsets = new int[MAX_STRINGS];
+        private final int[] stringLengths = new int[MAX_STRINGS];
+        private int strings;
+
+        Writer(int capacity) {
+            out = new byte[Math.max(16, capacity)];
+            out[size++] = VERSION;
+        }
+
+        void text(byte[] text, int offset, int length) {
+            int prefix = dictionaryPrefix(text, offset, length);
+            if (prefix >= 0) {
+                int prefixLength = DICTIONARY_BYTES[prefix].length;
+                key(FIELD_PREFIX, WIRE_DICT);
+                varint(prefix);
+                remember(-1 - prefix, prefixLength);
+                offset += prefixLength;
+                length -= prefixLength;
+            }
+            string(FIELD_TEXT, text, offset, length);
+        }
+
+        void string(int number, byte[] value, int offset, int length) {
+            for (int i = 0; i < DICTIONARY_BYTES.length; i++) {
+                byte[] entry = DICTIONARY_BYTES[i];
+                if (entry.length == length && regionMatches(value, offset, entry, 0, length)) {
+                    key(number, WIRE_DICT);
+                    varint(i);
+                    remember(-1 - i, length);
+                    return;
+                }
+            }
+            for (int i = 0; i < strings; i++) {
+                int at = stringOffsets[i];
+                if (stringLengths[i] == length && length > 1
+                        && regionMatches(value, offset, at < 0 ? DICTIONARY_BYTES[-1 - at] : out, Math.max(at, 0), length)) {
+                    key(number, WIRE_REPEAT);
+                    varint(i);
+                    remember(at, length);
+                    return;
+                }
+            }
+            key(number, WIRE_STRING);
+            varint(length);
+            ensure(length);
+            System.arraycopy(value, offset, out, size, length);
+            remember(size, length);
+            size += length;
+        }
+
+        void number(int number, long value) {
+            key(number, WIRE_NUMBER);
+            varint(zigzag(value));
+        }
+
+        // offset < 0 is dictionary entry -1 - offset
+        private void remember(int offset, int length) {
+            if (strings < MAX_STRINGS) {
+                stringOffsets[strings] = offset;
+                stringLengths[strings] = length;
+                strings++;
+            }
+        }
+
+        private void key(int number, int wireType) {
+            varint(((long) number << 3) | wireType);
+        }
+
+        private void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                out[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[size++] = (byte) value;
+        }
+
+        private void ensure(int more) {
+            if (size + more > out.length) {
+                out = Arrays.copyOf(out, Math.max(size + more, out.length * 2));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(out, size);
+        }
+    }
+
+    // Walks the fields of a message. After next() a string value is at (stringArray, stringOffset, stringLength)
+    static final class Reader {
+        private byte[] payload;
+        private int pos;
+        private int end;
+        private final int[] stringOffsets = new int[MAX_STRINGS];
+        private final int[] stringLengths = new int[MAX_STRINGS];
+        private int strings;
+
+        int number;
+        int wireType;
+        long numberValue;
+        byte[] stringArray;
+        int stringOffset;
+        int stringLength;
+
+        Reader() {
+        }
+
+        Reader(byte[] payload, int offset, int length) throws FrameFormatException {
+            reset(payload, offset, length);
+        }
+
+        void reset(byte[] payload, int offset, int length) throws FrameFormatException {
+            if (length < 1) {
+                throw new FrameFormatException("Empty message");
+            }
+            if (payload[offset] != VERSION) {
+                throw new FrameFormatException("Unknown message version " + payload[offset]);
+            }
+            this.payload = payload;
+            this.pos = offset + 1;
+            this.end = offset + length;
+            this.strings = 0;
+        }
+
+        // false at the end of the message
+        boolean next() throws FrameFormatException {
+            if (pos >= end) {
+                return false;
+            }
+            long key = varint();
+            number = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            switch (wireType) {
+                case WIRE_NUMBER:
+                    numberValue = unzigzag(varint());
+                    return true;
+                case WIRE_STRING: {
+                    long length = varint();
+                    if (length > end - pos) {
+                        throw new FrameFormatException("String runs past the message");
+                    }
+                    setString(payload, pos, (int) length, pos);
+                    pos += (int) length;
+                    return true;
+                }
+                case WIRE_DICT: {
+                    long index = varint();
+                    if (index >= DICTIONARY_BYTES.length) {
+                        throw new FrameFormatException("Unknown dictionary entry " + index);
+                    }
+                    byte[] entry = DICTIONARY_BYTES[(int) index];
+                    setString(entry, 0, entry.length, -1 - (int) index);
+                    return true;
+                }
+                case WIRE_REPEAT: {
+                    long index = varint();
+                    if (index >= strings) {
+                        throw new FrameFormatException("Repeat of unknown string " + index);
+                    }
+                    int at = stringOffsets[(int) index];
+                    setString(at < 0 ? DICTIONARY_BYTES[-1 - at] : payload, Math.max(at, 0), stringLengths[(int) index], at);
+                    return true;
+                }
+                default:
+                    // can't know how long it is, so it can't be skipped
+                    throw new FrameFormatException("Unknown wire type " + wireType);
+            }
+        }
+
+        private void setString(byte[] array, int offset, int length, int ref) {
+            stringArray = array;
+            stringOffset = offset;
+            stringLength = length;
+            if (strings < MAX_STRINGS) {
+                stringOffsets[strings] = ref;
+                stringLengths[strings] = length;
+                strings++;
+            }
+        }
+
+        String stringValue() {
+            return new String(stringArray, stringOffset, stringLength, StandardCharsets.UTF_8);
+        }
+
+        private long varint() throws FrameFormatException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) {
+                    throw new FrameFormatException("Varint runs past the message");
+                }
+                byte b = payload[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new FrameFormatException("Varint too long");
+        }
+    }
+}
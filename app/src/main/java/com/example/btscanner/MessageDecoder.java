@@ -0,0 +1,59 @@
+package com.example.btscanner;
+
+import java.util.Arrays;
+
+/*
+    Turns a MessageCodec payload back into its display text, as UTF-8 in a buffer that is reused
+    from one message to the next. The text is put together from bytes that are already UTF-8 (the
+    payload and the dictionary), so there is no charset work and nothing is allocated once the
+    buffer is big enough. The result can go down the same path as a TYPE_TEXT payload.
+    Not thread safe, use one per connection.
+ */
+public class MessageDecoder {
+
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private byte[] text;
+
+    public MessageDecoder() {
+        this(256);
+    }
+
+    public MessageDecoder(int initialCapacity) {
+        text = new byte[initialCapacity];
+    }
+
+    // Returns the length of the display text, which starts at 0 in getText()
+    public int decode(byte[] payload, int offset, int length) throws FrameFormatException {
+        reader.reset(payload, offset, length);
+        int prefixLength = 0;
+        int textLength = 0;
+        while (reader.next()) {
+            if (reader.wireType == MessageCodec.WIRE_NUMBER) {
+                continue;
+            }
+            if (reader.number == MessageCodec.FIELD_PREFIX) {
+                // the prefix goes in front of a text that may have come first
+                ensure(reader.stringLength + textLength);
+                System.arraycopy(text, prefixLength, text, reader.stringLength, textLength);
+                System.arraycopy(reader.stringArray, reader.stringOffset, text, 0, reader.stringLength);
+                prefixLength = reader.stringLength;
+            } else if (reader.number == MessageCodec.FIELD_TEXT) {
+                ensure(prefixLength + reader.stringLength);
+                System.arraycopy(reader.stringArray, reader.stringOffset, text, prefixLength, reader.stringLength);
+                textLength = reader.stringLength;
+            }
+        }
+        return prefixLength + textLength;
+    }
+
+    // Only valid until the next decode()
+    public byte[] getText() {
+        return text;
+    }
+
+    private void ensure(int capacity) {
+        if (capacity > text.length) {
+            text = Arrays.copyOf(text, Math.max(capacity, text.length * 2));
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+    Append-only on-disk journal of inbound messages, so they survive the service being killed.
+
+    The journal is a directory of fixed-size, memory-mapped segment files named after the sequence
+    number of their first record. Appending is a memory copy into the mapped segment, fsync happens
+    on a background thread in groups: once flushBatch records are pending or flushIntervalMillis has
+    passed, whichever comes first. The receive threads never wait for the disk.
+
+    Record layout (big endian):
+      int size | int crc32 of the rest | long seq | long timestamp | byte source | payload
+    A zero size marks the end of a segment. On open every segment is scanned and a torn or corrupt
+    tail (e.g. power loss mid-write) is dropped.
+
+    Segments are found by their base sequence number, inside a segment a sparse in-memory index
+    (every INDEX_INTERVAL records) lets replay start close to the requested record.
+    Once the journal grows past maxBytes the oldest segments are deleted.
+ */
+public class MessageJournal implements Closeable {
+
+    public interface Visitor {
+        // payload is a scratch buffer reused between records
+        void onRecord(long seq, long timestamp, MessageSource source, byte[] payload, int offset, int length);
+    }
+
+    static final int RECORD_HEADER = 25;
+    private static final int INDEX_INTERVAL = 64;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static class Segment {
+        final File file;
+        final long baseSeq;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        int writePos;
+        long lastSeq;
+        volatile boolean dirty;
+
+        // sparse index, seq and position of every INDEX_INTERVAL-th record
+        long[] indexSeqs = new long[16];
+        int[] indexPositions = new int[16];
+        int indexSize;
+
+        Segment(File file, long baseSeq, int size) throws IOException {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.lastSeq = baseSeq - 1;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void index(long seq, int position) {
+            if ((seq - baseSeq) % INDEX_INTERVAL != 0) {
+                return;
+            }
+            if (indexSize == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexSeqs[indexSize] = seq;
+            indexPositions[indexSize] = position;
+            indexSize++;
+        }
+
+        // Position of the last indexed record at or before seq
+        int seek(long seq) {
+            int position = 0;
+            for (int i = 0; i < indexSize && indexSeqs[i] <= seq; i++) {
+                position = indexPositions[i];
+            }
+            return position;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error closing journal segment " + e.getMessage());
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final int flushBatch;
+    private final long flushIntervalMillis;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[RECORD_HEADER];
+    private byte[] scratch = new byte[256];
+    private long nextSeq = 1;
+
+    // group commit state, guarded by flushLock
+    private final Object flushLock = new Object();
+    private int unflushed;
+    private volatile long durableSeq;
+    private long appendedSeq;
+    private volatile boolean closed;
+    private final Thread flusher;
+    // keeps the CPU up for a group fsync once it started, optional
+    private volatile WakeLockManager.Lease flushLease;
+
+    public MessageJournal(File directory, int segmentBytes, long maxBytes, int flushBatch, long flushIntervalMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.flushBatch = flushBatch;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        recover();
+        appendedSeq = nextSeq - 1;
+        durableSeq = appendedSeq;
+
+        flusher = new Thread(this::flushLoop, "BT_SC-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                long baseSeq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(file, baseSeq, segmentBytes);
+                scan(segment);
+                segments.add(segment);
+                nextSeq = Math.max(nextSeq, segment.lastSeq + 1);
+            }
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+    }
+
+    // Finds the end of the valid records in a segment and rebuilds its index
+    private void scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        long expectedSeq = segment.baseSeq;
+        while (position + RECORD_HEADER <= segmentBytes) {
+            int size = buffer.getInt(position);
+            if (size < RECORD_HEADER || position + size > segmentBytes) {
+                break;
+            }
+            long seq = buffer.getLong(position + 8);
+            if (seq != expectedSeq || !checksumMatches(buffer, position, size)) {
+                Log.w("BT_SC", "Dropping torn journal tail in " + segment.file.getName() + " at " + position);
+                break;
+            }
+            segment.index(seq, position);
+            segment.lastSeq = seq;
+            expectedSeq++;
+            position += size;
+        }
+        segment.writePos = position;
+        // clear whatever is left after a torn write so the next append starts on a clean end marker
+        if (position + 4 <= segmentBytes) {
+            buffer.putInt(position, 0);
+        }
+    }
+
+    private boolean checksumMatches(MappedByteBuffer buffer, int position, int size) {
+        int length = size - 8;
+        byte[] bytes = scratch(length);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + 8 + i);
+        }
+        crc.reset();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    public void setFlushLease(WakeLockManager.Lease flushLease) {
+        this.flushLease = flushLease;
+    }
+
+    // Largest payload that fits in one segment
+    public int getMaxPayload() {
+        return segmentBytes - RECORD_HEADER - 4;
+    }
+
+    // Copies the message into the journal and returns its sequence number, does not wait for the disk
+    public long append(MessageSource source, long timestamp, byte[] payload, int offset, int length) throws IOException {
+        if (length > getMaxPayload()) {
+            throw new IllegalArgumentException("Message too large for the journal " + length);
+        }
+        long seq;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Journal closed");
+            }
+            int size = RECORD_HEADER + length;
+            Segment segment = segments.get(segments.size() - 1);
+            // keep room for the zero end marker
+            if (segment.writePos + size + 4 > segmentBytes) {
+                segment = roll();
+            }
+
+            seq = nextSeq++;
+            FrameCodec.putInt(header, 0, size);
+            putLong(header, 8, seq);
+            putLong(header, 16, timestamp);
+            header[24] = (byte) source.id;
+            crc.reset();
+            crc.update(header, 8, RECORD_HEADER - 8);
+            crc.update(payload, offset, length);
+            FrameCodec.putInt(header, 4, (int) crc.getValue());
+
+            // write the end marker and the body first, the size last, so a torn write never looks valid
+            MappedByteBuffer buffer = segment.buffer;
+            int position = segment.writePos;
+            buffer.putInt(position + size, 0);
+            for (int i = 4; i < RECORD_HEADER; i++) {
+                buffer.put(position + i, header[i]);
+            }
+            for (int i = 0; i < length; i++) {
+                buffer.put(position + RECORD_HEADER + i, payload[offset + i]);
+            }
+            buffer.putInt(position, size);
+
+            segment.index(seq, position);
+            segment.writePos = position + size;
+            segment.lastSeq = seq;
+            segment.dirty = true;
+        }
+
+        synchronized (flushLock) {
+            appendedSeq = Math.max(appendedSeq, seq);
+            if (++unflushed >= flushBatch) {
+                flushLock.notifyAll();
+            }
+        }
+        return seq;
+    }
+
+    // Starts a new segment and drops the oldest ones beyond maxBytes, called with the lock held
+    private Segment roll() throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSeq, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, nextSeq, segmentBytes);
+        segments.add(segment);
+
+        while (segments.size() > 1 && (long) segments.size() * segmentBytes > maxBytes) {
+            Segment oldest = segments.remove(0);
+            oldest.close();
+            if (!oldest.file.delete()) {
+                Log.w("BT_SC", "Could not delete journal segment " + oldest.file.getName());
+            }
+        }
+        return segment;
+    }
+
+    private static void putLong(byte[] out, int pos, long value) {
+        FrameCodec.putInt(out, pos, (int) (value >>> 32));
+        FrameCodec.putInt(out, pos + 4, (int) value);
+    }
+
+    // Visits every record with a sequence number greater than afterSeq, oldest first
+    public synchronized int replay(long afterSeq, Visitor visitor) {
+        int visited = 0;
+        for (Segment segment : segments) {
+            if (segment.lastSeq <= afterSeq) {
+                continue;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int position = segment.seek(afterSeq + 1);
+            while (position < segment.writePos) {
+                int size = buffer.getInt(position);
+                long seq = buffer.getLong(position + 8);
+                if (seq > afterSeq) {
+                    long timestamp = buffer.getLong(position + 16);
+                    MessageSource source = MessageSource.fromId(buffer.get(position + 24));
+                    int length = size - RECORD_HEADER;
+                    byte[] payload = scratch(length);
+                    for (int i = 0; i < length; i++) {
+                        payload[i] = buffer.get(position + RECORD_HEADER + i);
+                    }
+                    visitor.onRecord(seq, timestamp, source, payload, 0, length);
+                    visited++;
+                }
+                position += size;
+            }
+        }
+        return visited;
+    }
+
+    // Sequence number of the newest record, 0 if the journal is empty
+    public synchronized long getLastSeq() {
+        return nextSeq - 1;
+    }
+
+    // Sequence number of the newest record known to be on disk
+    public long getDurableSeq() {
+        return durableSeq;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Forces everything appended so far to disk, blocks the caller
+    public void sync() {
+        long target;
+        synchronized (flushLock) {
+            target = appendedSeq;
+            unflushed = 0;
+        }
+        forceDirtySegments();
+        durableSeq = Math.max(durableSeq, target);
+    }
+
+    private void forceDirtySegments() {
+        Segment[] snapshot;
+        synchronized (this) {
+            snapshot = segments.toArray(new Segment[0]);
+        }
+        for (Segment segment : snapshot) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                segment.buffer.force();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            synchronized (flushLock) {
+                if (unflushed < flushBatch) {
+                    try {
+                        flushLock.wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (unflushed == 0) {
+                    continue;
+                }
+            }
+            WakeLockManager.Lease lease = flushLease;
+            try {
+                if (lease != null) {
+                    lease.acquire();
+                }
+                sync();
+            } catch (RuntimeException e) {
+                // segment deleted or closed underneath us, the next round will catch up
+                Log.e("BT_SC", "Error flushing journal " + e.getMessage());
+            } finally {
+                if (lease != null) {
+                    lease.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flusher.interrupt();
+        try {
+            flusher.join(flushIntervalMillis + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+}
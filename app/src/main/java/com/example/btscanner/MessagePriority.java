@@ -0,0 +1,10 @@
+package com.example.btscanner;
+
+// How urgently an inbound message has to reach the user, highest first (MessageRouter drains in this order)
+public enum MessagePriority {
+    // orders, never shed while there is lower priority traffic to drop instead
+    URGENT,
+    NORMAL,
+    // pings and status chatter, coalesced while queued and the first to be shed
+    BULK
+}
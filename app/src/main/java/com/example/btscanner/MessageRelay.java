@@ -0,0 +1,280 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Store-and-forward relay: passes every message it sees on to a fixed set of peers, so watches
+    without internet still get the orders one of them received.
+
+    Relayed messages travel as TYPE_RELAY frames with this payload:
+
+    +-----------------+---------------------------+-----------+------------------------+
+    | id (long, BE)   | origin time (long, BE, ms) | hops left | message (MessageCodec) |
+    +-----------------+---------------------------+-----------+------------------------+
+         8 bytes                 8 bytes              1 byte
+
+    The id is made up by the relay a message entered the mesh at. Orders are the exception: every
+    watch with internet gets the same Firebase order, so their id is a hash of the push key (orderId())
+    and the copies several watches originate are dropped like any other. Every relay remembers the IDs it has
+    seen (SeenSet) and drops copies, the hop count stops a message that outlives the seen-set.
+    A message is not sent back to the peer it came from.
+
+    Fan-out goes through the link (a MessageSender: one queue per peer, one thread per peer at most),
+    so a slow or unreachable peer only holds up its own queue. A frame the link could not write goes
+    into that peer's backlog and is sent again once the peer is reachable: after the next successful
+    write to it, or when a frame comes in from it. At most maxPendingPerPeer frames wait for a peer
+    (in flight plus backlog), further ones are dropped for that peer and counted.
+ */
+public class MessageRelay {
+
+    public static final int HEADER_SIZE = 17;
+
+    public interface Link {
+        // Sends an encoded frame, the future completes once it was written (or failed)
+        CompletableFuture<Void> send(String address, byte[] frame);
+    }
+
+    private final Link link;
+    private final List<String> peers;
+    private final SeenSet seen;
+    private final int maxHops;
+    private final int maxPendingPerPeer;
+    // origin times, wall time (Clock.WALL) as they are compared with the other devices'
+    private final Clock clock;
+
+    // top 32 bits are random per relay, so IDs made up by different watches don't collide
+    private final long idPrefix = (long) new SecureRandom().nextInt() << 32;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private final Map<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+    // frames the link failed to write, per peer, oldest first
+    private final Map<String, Queue<byte[]>> backlog = new ConcurrentHashMap<>();
+    private final AtomicLong originated = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    // origin to arrival here, microseconds (wall clocks, so only as good as the watches' clock sync)
+    private final LatencyHistogram propagation = new LatencyHistogram();
+
+    public MessageRelay(Link link, List<String> peers, int seenCapacity, int maxHops, int maxPendingPerPeer, Clock clock) {
+        this.link = link;
+        this.peers = new ArrayList<>(peers);
+        this.seen = new SeenSet(seenCapacity);
+        this.maxHops = maxHops;
+        this.maxPendingPerPeer = maxPendingPerPeer;
+        this.clock = clock;
+        for (String peer : peers) {
+            pending.put(peer, new AtomicInteger());
+            backlog.put(peer, new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    // A message that entered the mesh here (an order, a plain frame from a sender), encoded with
+    // MessageCodec, returns its id
+    public long originate(byte[] message, int offset, int length) {
+        long id = idPrefix | (nextId.getAndIncrement() & 0xFFFFFFFFL);
+        originate(id, message, offset, length);
+        return id;
+    }
+
+    // Same, under an id every relay derives the same way (see orderId()). Returns false and sends
+    // nothing if the id was seen already, another watch got the message first and relayed it here
+    public boolean originate(long id, byte[] message, int offset, int length) {
+        if (!seen.add(id)) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        originated.incrementAndGet();
+        if (!peers.isEmpty()) {
+            byte[] payload = new byte[HEADER_SIZE + length];
+            putLong(payload, 0, id);
+            putLong(payload, 8, clock.nowMillis());
+            payload[16] = (byte) maxHops;
+            System.arraycopy(message, offset, payload, HEADER_SIZE, length);
+            fanOut(FrameCodec.encode(FrameCodec.TYPE_RELAY, payload, true), null);
+        }
+        return true;
+    }
+
+    // Relay id of a Firebase order, the same on every watch: 64 bit FNV-1a of the push key
+    public static long orderId(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Handles a TYPE_RELAY payload from fromAddress. Returns true if the message is new, it starts
+    // HEADER_SIZE bytes into the payload; false for a copy or a malformed payload
+    public boolean accept(byte[] payload, int offset, int length, String fromAddress) {
+        if (length < HEADER_SIZE) {
+            Log.w("BT_SC", "Relay frame too short " + length);
+            return false;
+        }
+        received.incrementAndGet();
+        // the peer just reached us, so the link to it is likely back up
+        retry(fromAddress);
+        long id = getLong(payload, offset);
+        if (!seen.add(id)) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        long originMillis = getLong(payload, offset + 8);
+        propagation.record(Math.max(0, clock.nowMillis() - originMillis) * 1000);
+
+        int hopsLeft = (payload[offset + 16] & 0xFF) - 1;
+        if (hopsLeft <= 0) {
+            expired.incrementAndGet();
+        } else if (!peers.isEmpty()) {
+            byte[] copy = new byte[length];
+            System.arraycopy(payload, offset, copy, 0, length);
+            copy[16] = (byte) hopsLeft;
+            fanOut(FrameCodec.encode(FrameCodec.TYPE_RELAY, copy, true), fromAddress);
+        }
+        return true;
+    }
+
+    // The same frame (read only from here on) goes to every peer but the one it came from
+    private void fanOut(byte[] frame, String except) {
+        for (String peer : peers) {
+            if (peer.equals(except)) {
+                continue;
+            }
+            AtomicInteger queued = pending.get(peer);
+            if (queued.incrementAndGet() > maxPendingPerPeer) {
+                queued.decrementAndGet();
+                dropped.incrementAndGet();
+                continue;
+            }
+            forwarded.incrementAndGet();
+            send(peer, frame, queued);
+        }
+    }
+
+    // A failed frame stays counted as pending and waits in the backlog, a written one lets the
+    // backlog go again
+    private void send(String peer, byte[] frame, AtomicInteger queued) {
+        link.send(peer, frame).whenComplete((result, error) -> {
+            if (error != null) {
+                failed.incrementAndGet();
+                backlog.get(peer).add(frame);
+                return;
+            }
+            queued.decrementAndGet();
+            retry(peer);
+        });
+    }
+
+    // Sends the peer's backlog again. Only the frames waiting right now, the ones failing again are
+    // left for the next time
+    public void retry(String peer) {
+        Queue<byte[]> waiting = backlog.get(peer);
+        if (waiting == null) {
+            return;
+        }
+        AtomicInteger queued = pending.get(peer);
+        for (int n = waiting.size(); n > 0; n--) {
+            byte[] frame = waiting.poll();
+            if (frame == null) {
+                break;
+            }
+            retried.incrementAndGet();
+            send(peer, frame, queued);
+        }
+    }
+
+    private static void putLong(byte[] out, int pos, long value) {
+        for (int i = 7; i >= 0; i--) {
+            out[pos++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static long getLong(byte[] in, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (in[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    public static long getId(byte[] payload, int offset) {
+        return getLong(payload, offset);
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    // Frames waiting to be written to the peer
+    public int getPending(String peer) {
+        AtomicInteger queued = pending.get(peer);
+        return queued == null ? 0 : queued.get();
+    }
+
+    public long getOriginatedCount() {
+        return originated.get();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    // Sends skipped because the peer's queue was full
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    // Failed frames sent again
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    // Failed frames waiting for the peer to come back
+    public int getBacklog(String peer) {
+        Queue<byte[]> waiting = backlog.get(peer);
+        return waiting == null ? 0 : waiting.size();
+    }
+
+    public LatencyHistogram getPropagation() {
+        return propagation;
+    }
+
+    public String report() {
+        return String.format(Locale.US, "relay: peers=%d originated=%d received=%d duplicates=%d expired=%d forwarded=%d dropped=%d failed=%d retried=%d seen=%d"
+                        + " propagation p50=%.1f p99=%.1f max=%.1f ms%n",
+                peers.size(), originated.get(), received.get(), duplicates.get(), expired.get(), forwarded.get(),
+                dropped.get(), failed.get(), retried.get(), seen.size(), propagation.getPercentile(50) / 1000.0,
+                propagation.getPercentile(99) / 1000.0, propagation.getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/*
+    Routes inbound messages to pluggable sinks by priority (in-app channel, notifications per
+    priority, vibration, forwarding, ...), replacing the hard-wired toast-or-notification choice.
+
+    submit() classifies the message and queues it, the queue is drained on the executor (the
+    service's event loop) a batch at a time, always taking the highest priority message first, so an
+    urgent order never waits behind a burst of pings. Under load:
+    - a BULK message identical to one still queued (same source and text) is folded into it
+    - when capacity messages are queued the oldest message of the lowest queued priority is shed, or
+      the new one if everything queued outranks it. URGENT is only shed once nothing else is left.
+
+    Sinks for a priority are called in the order they were added until one returns true.
+    A sink that throws is logged and skipped.
+ */
+public class MessageRouter {
+
+    public interface Classifier {
+        MessagePriority classify(MessageSource source, String text);
+    }
+
+    public interface Sink {
+        // true if the message was delivered, the remaining sinks are skipped
+        boolean deliver(RoutedMessage message);
+    }
+
+    public interface DeliveryListener {
+        // after the sinks, doneNanos is System.nanoTime() at that point
+        void onDelivered(RoutedMessage message, boolean delivered, long doneNanos);
+    }
+
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private final Classifier classifier;
+    private final Executor executor;
+    private final int capacity;
+    private final int batch;
+    private final Runnable drainTask = this::drain;
+
+    private final List<List<Sink>> sinks = new ArrayList<>();
+    private volatile DeliveryListener deliveryListener;
+
+    // guarded by this
+    private final List<ArrayDeque<RoutedMessage>> queues = new ArrayList<>();
+    private final Map<String, RoutedMessage> queuedBulk = new HashMap<>();
+    private int queued;
+    private boolean drainScheduled;
+    private final long[] submitted = new long[PRIORITIES.length];
+    private final long[] delivered = new long[PRIORITIES.length];
+    private final long[] undelivered = new long[PRIORITIES.length];
+    private final long[] shed = new long[PRIORITIES.length];
+    private final long[] coalesced = new long[PRIORITIES.length];
+
+    // submit to the start of delivery, microseconds, per priority
+    private final LatencyHistogram[] queueLatency = new LatencyHistogram[PRIORITIES.length];
+
+    public MessageRouter(Classifier classifier, Executor executor, int capacity, int batch) {
+        this.classifier = classifier;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.batch = batch;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            queues.add(new ArrayDeque<>());
+            queueLatency[i] = new LatencyHistogram();
+            sinks.add(new CopyOnWriteArrayList<>());
+        }
+    }
+
+    public void addSink(MessagePriority priority, Sink sink) {
+        sinks.get(priority.ordinal()).add(sink);
+    }
+
+    // Adds the sink for every priority
+    public void addSink(Sink sink) {
+        for (MessagePriority priority : PRIORITIES) {
+            addSink(priority, sink);
+        }
+    }
+
+    public void setDeliveryListener(DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
+    // Can be called from any thread, returns the priority it was queued with
+    public MessagePriority submit(MessageSource source, long seq, String text, long receivedNanos) {
+        MessagePriority priority = classifier.classify(source, text);
+        int level = priority.ordinal();
+        synchronized (this) {
+            submitted[level]++;
+            String key = null;
+            if (priority == MessagePriority.BULK) {
+                key = source.ordinal() + ":" + text;
+                RoutedMessage same = queuedBulk.get(key);
+                if (same != null) {
+                    same.coalesce(seq);
+                    coalesced[level]++;
+                    return priority;
+                }
+            }
+            if (queued >= capacity && !shedFor(level)) {
+                shed[level]++;
+                return priority;
+            }
+            RoutedMessage message = new RoutedMessage(source, priority, seq, text, receivedNanos, System.nanoTime());
+            queues.get(level).addLast(message);
+            if (key != null) {
+                queuedBulk.put(key, message);
+            }
+            queued++;
+            if (drainScheduled) {
+                return priority;
+            }
+            drainScheduled = true;
+        }
+        executor.execute(drainTask);
+        return priority;
+    }
+
+    // Drops the oldest message of the lowest priority at or below level, false if there is none
+    private boolean shedFor(int level) {
+        for (int i = PRIORITIES.length - 1; i >= level; i--) {
+            RoutedMessage oldest = queues.get(i).pollFirst();
+            if (oldest != null) {
+                forget(oldest);
+                shed[i] += oldest.getCount();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void forget(RoutedMessage message) {
+        queued--;
+        if (message.priority == MessagePriority.BULK) {
+            queuedBulk.remove(message.source.ordinal() + ":" + message.text);
+        }
+    }
+
+    private synchronized RoutedMessage poll() {
+        for (ArrayDeque<RoutedMessage> queue : queues) {
+            RoutedMessage message = queue.pollFirst();
+            if (message != null) {
+                forget(message);
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private void drain() {
+        for (int i = 0; i < batch; i++) {
+            RoutedMessage message = poll();
+            if (message == null) {
+                break;
+            }
+            deliver(message);
+        }
+        synchronized (this) {
+            if (queued == 0) {
+                drainScheduled = false;
+                return;
+            }
+        }
+        // more left, give the loop's other events a turn first
+        executor.execute(drainTask);
+    }
+
+    private void deliver(RoutedMessage message) {
+        int level = message.priority.ordinal();
+        queueLatency[level].record((System.nanoTime() - message.submittedNanos) / 1000);
+        boolean done = false;
+        for (Sink sink : sinks.get(level)) {
+            try {
+                if (sink.deliver(message)) {
+                    done = true;
+                    break;
+                }
+            } catch (RuntimeException e) {
+                Log.e("BT_SC", "Sink failed for " + message.priority + " message " + e);
+            }
+        }
+        synchronized (this) {
+            if (done) {
+                delivered[level] += message.getCount();
+            } else {
+                undelivered[level] += message.getCount();
+            }
+        }
+        DeliveryListener listener = deliveryListener;
+        if (listener != null) {
+            listener.onDelivered(message, done, System.nanoTime());
+        }
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized long getSubmitted(MessagePriority priority) {
+        return submitted[priority.ordinal()];
+    }
+
+    // Messages a sink took, coalesced ones included
+    public synchronized long getDelivered(MessagePriority priority) {
+        return delivered[priority.ordinal()];
+    }
+
+    // Messages no sink took
+    public synchronized long getUndelivered(MessagePriority priority) {
+        return undelivered[priority.ordinal()];
+    }
+
+    // Messages dropped under load, coalesced ones included
+    public synchronized long getShed(MessagePriority priority) {
+        return shed[priority.ordinal()];
+    }
+
+    public synchronized long getCoalesced(MessagePriority priority) {
+        return coalesced[priority.ordinal()];
+    }
+
+    public LatencyHistogram getQueueLatency(MessagePriority priority) {
+        return queueLatency[priority.ordinal()];
+    }
+
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder("priority,submitted,delivered,undelivered,coalesced,shed,queue_p50_ms,queue_p99_ms,queue_max_ms\n");
+        for (MessagePriority priority : PRIORITIES) {
+            int i = priority.ordinal();
+            LatencyHistogram latency = queueLatency[i];
+            report.append(String.format(Locale.US, "%s,%d,%d,%d,%d,%d,%.2f,%.2f,%.2f%n", priority, submitted[i],
+                    delivered[i], undelivered[i], coalesced[i], shed[i], latency.getPercentile(50) / 1000.0,
+                    latency.getPercentile(99) / 1000.0, latency.getMax() / 1000.0));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Asynchronous front end for ConnectionPool, keeps all socket I/O off the caller's (UI) thread.
+    Every device gets its own outbound queue drained by at most one sender thread at a time, so frames
+    to one device stay in order while a slow connect to one device doesn't hold up the others.
+    Frames queued while a connection is being set up go out together in a single write.
+    Idle pooled connections get a heartbeat every heartbeatIntervalMillis (0 for none). Heartbeats and
+    eviction run on a maintenance thread of their own: they lock every pooled connection in turn,
+    and one still connecting must not hold up a sender thread that another device is waiting for.
+ */
+public class MessageSender implements Closeable {
+
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+
+    private static class Pending {
+        final byte[] frame;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Pending(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+
+    private static class DeviceQueue {
+        final String address;
+        final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        DeviceQueue(String address) {
+            this.address = address;
+        }
+    }
+
+    private final ConnectionPool connectionPool;
+    private final ScheduledExecutorService executor;
+    private final ScheduledExecutorService maintenance;
+    private final Map<String, DeviceQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public MessageSender(ConnectionPool connectionPool, int threads) {
+        this(connectionPool, threads, 0);
+    }
+
+    public MessageSender(ConnectionPool connectionPool, int threads, long heartbeatIntervalMillis) {
+        this.connectionPool = connectionPool;
+        this.executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BT_SC-send-" + count.incrementAndGet());
+            }
+        });
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "BT_SC-send-maintenance"));
+        // eviction may have to wait for a send to finish
+        long period = Math.max(1, connectionPool.getIdleTimeoutMillis() / 2);
+        maintenance.scheduleWithFixedDelay(connectionPool::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        if (heartbeatIntervalMillis > 0) {
+            // checked twice per interval, so an idle connection never goes much more than an interval without one
+            long heartbeatPeriod = Math.max(1, heartbeatIntervalMillis / 2);
+            maintenance.scheduleWithFixedDelay(() -> connectionPool.sendHeartbeats(heartbeatIntervalMillis),
+                    heartbeatPeriod, heartbeatPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Queues an encoded frame for the device, the future completes once it was written (or failed)
+    public CompletableFuture<Void> send(String address, byte[] frame) {
+        Pending message = new Pending(frame);
+        DeviceQueue deviceQueue = queues.computeIfAbsent(address, DeviceQueue::new);
+        deviceQueue.queue.add(message);
+        pending.incrementAndGet();
+        schedule(deviceQueue);
+        return message.result;
+    }
+
+    // Messages accepted by send() that were not written yet
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    private void schedule(DeviceQueue deviceQueue) {
+        if (deviceQueue.draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(deviceQueue));
+            } catch (RuntimeException e) {
+                // executor shut down
+                deviceQueue.draining.set(false);
+                fail(deviceQueue, new IOException("Sender closed"));
+            }
+        }
+    }
+
+    private void drain(DeviceQueue deviceQueue) {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            int size = 0;
+            Pending next;
+            while ((next = deviceQueue.queue.peek()) != null
+                    && (batch.isEmpty() || size + next.frame.length <= MAX_BATCH_BYTES)) {
+                deviceQueue.queue.poll();
+                batch.add(next);
+                size += next.frame.length;
+            }
+
+            if (batch.isEmpty()) {
+                deviceQueue.draining.set(false);
+                // a send() may have slipped in between the last poll and clearing the flag
+                if (deviceQueue.queue.isEmpty() || !deviceQueue.draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+
+            write(deviceQueue.address, batch, size);
+            batch.clear();
+        }
+    }
+
+    private void write(String address, List<Pending> batch, int size) {
+        byte[] data;
+        if (batch.size() == 1) {
+            data = batch.get(0).frame;
+        } else {
+            data = new byte[size];
+            int offset = 0;
+            for (Pending message : batch) {
+                System.arraycopy(message.frame, 0, data, offset, message.frame.length);
+                offset += message.frame.length;
+            }
+        }
+
+        try {
+            connectionPool.send(address, data, 0, size);
+        } catch (IOException | RuntimeException e) {
+            Log.e("BT_SC", "Error sending to " + address + " " + e.getMessage());
+            pending.addAndGet(-batch.size());
+            for (Pending message : batch) {
+                message.result.completeExceptionally(e);
+            }
+            return;
+        }
+        pending.addAndGet(-batch.size());
+        for (Pending message : batch) {
+            message.result.complete(null);
+        }
+    }
+
+    private void fail(DeviceQueue deviceQueue, IOException error) {
+        Pending message;
+        while ((message = deviceQueue.queue.poll()) != null) {
+            pending.decrementAndGet();
+            message.result.completeExceptionally(error);
+        }
+    }
+
+    // Stops the sender threads, fails whatever is still queued and closes the pooled connections
+    @Override
+    public void close() {
+        maintenance.shutdownNow();
+        executor.shutdownNow();
+        for (DeviceQueue deviceQueue : queues.values()) {
+            fail(deviceQueue, new IOException("Sender closed"));
+        }
+        connectionPool.close();
+    }
+}
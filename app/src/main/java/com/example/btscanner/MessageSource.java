@@ -0,0 +1,26 @@
+package com.example.btscanner;
+
+// Where an inbound message came from, the id is what gets stored on disk and on the wire
+public enum MessageSource {
+    BLUETOOTH(1),
+    FIREBASE(2),
+    PUSH(3),
+    WEBSOCKET(4);
+
+    private static final MessageSource[] VALUES = values();
+
+    public final int id;
+
+    MessageSource(int id) {
+        this.id = id;
+    }
+
+    public static MessageSource fromId(int id) {
+        for (MessageSource source : VALUES) {
+            if (source.id == id) {
+                return source;
+            }
+        }
+        throw new IllegalArgumentException("Unknown message source " + id);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.btscanner;
+
+import java.util.List;
+
+/*
+    What a message notification shows for count messages of which the last lines are kept (oldest first):
+    the latest line as its text, the lines in the expanded inbox view and a "+N more" summary for the rest.
+    Built for every notification update, without Android classes so it runs in the benchmarks.
+ */
+public final class NotificationContent {
+
+    public final String text;
+    public final List<String> lines;
+    public final int number;
+    // null when every message has its line
+    public final String summary;
+
+    private NotificationContent(String text, List<String> lines, int number, String summary) {
+        this.text = text;
+        this.lines = lines;
+        this.number = number;
+        this.summary = summary;
+    }
+
+    // lines is kept as is, not copied
+    public static NotificationContent of(int count, List<String> lines) {
+        String summary = count > lines.size() ? "+" + (count - lines.size()) + " more" : null;
+        return new NotificationContent(lines.get(lines.size() - 1), lines, count, summary);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.btscanner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/*
+    Coalesces background messages into one notification update.
+    The first message of a burst opens a window of windowMillis, everything arriving inside it is
+    folded into the same update (last maxLines lines plus a total count). Updates are also spaced at
+    least minIntervalMillis apart, Android drops notify() calls above ~10/s anyway.
+    The pending update always carries the latest state, so the last message of a burst is never lost.
+ */
+public class NotificationDispatcher {
+
+    public interface Notifier {
+        // lines are oldest first, count is the number of messages since the last reset()
+        void show(int count, List<String> lines);
+    }
+
+    private final Notifier notifier;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final long windowMillis;
+    private final long minIntervalMillis;
+    private final int maxLines;
+
+    private final Deque<String> lines;
+    private int count;
+    private boolean flushScheduled;
+    private long lastShown = Long.MIN_VALUE / 2;
+    private int shownUpdates;
+    // held from the first message of a burst until its update is shown, optional
+    private WakeLockManager.Lease wakeLease;
+
+    public NotificationDispatcher(Notifier notifier, Scheduler scheduler, Clock clock,
+                                  long windowMillis, int maxPerSecond, int maxLines) {
+        this.notifier = notifier;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.windowMillis = windowMillis;
+        this.minIntervalMillis = 1000L / maxPerSecond;
+        this.maxLines = maxLines;
+        this.lines = new ArrayDeque<>(maxLines);
+    }
+
+    public synchronized void setWakeLease(WakeLockManager.Lease wakeLease) {
+        this.wakeLease = wakeLease;
+    }
+
+    // Can be called from any thread
+    public void post(String message) {
+        long delay;
+        synchronized (this) {
+            if (lines.size() == maxLines) {
+                lines.removeFirst();
+            }
+            lines.addLast(message);
+            count++;
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            if (wakeLease != null) {
+                wakeLease.acquire();
+            }
+            long now = clock.nowMillis();
+            delay = Math.max(windowMillis, lastShown + minIntervalMillis - now);
+        }
+        scheduler.schedule(this::flush, delay);
+    }
+
+    // Forget what was shown, e.g. once the user has seen the app again
+    public synchronized void reset() {
+        lines.clear();
+        count = 0;
+    }
+
+    // Number of notify() calls actually made
+    public synchronized int getShownUpdates() {
+        return shownUpdates;
+    }
+
+    private void flush() {
+        int shownCount;
+        List<String> shownLines;
+        WakeLockManager.Lease lease;
+        synchronized (this) {
+            flushScheduled = false;
+            lease = wakeLease;
+            if (count == 0) {
+                if (lease != null) {
+                    lease.release();
+                }
+                return;
+            }
+            lastShown = clock.nowMillis();
+            shownUpdates++;
+            shownCount = count;
+            shownLines = new ArrayList<>(lines);
+        }
+        try {
+            notifier.show(shownCount, shownLines);
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+    }
+}
@@ -12,15 +12,24 @@ public class NotificationServiceExtension implements INotificationServiceExtensi
 
     @Override
     public void onNotificationReceived(INotificationReceivedEvent event) {
+        long startNanos = System.nanoTime();
         Log.v("BT_SC", "IRemoteNotificationReceivedHandler fired" + " with INotificationReceivedEvent: " + event.toString());
 
         IDisplayableMutableNotification notification = event.getNotification();
 
+        // sent time is stamped by the OneSignal backend in seconds, so transit is only second-accurate
+        DeliveryMetrics metrics = DeliveryMetrics.shared();
+        long sentTime = notification.getSentTime();
+        if (sentTime > 0) {
+            metrics.record(MessageSource.PUSH, DeliveryStage.TRANSIT, (System.currentTimeMillis() - sentTime * 1000) * 1000);
+        }
+
         if (notification.getActionButtons() != null) {
             for (IActionButton button : notification.getActionButtons()) {
                 Log.v("BT_SC", "ActionButton: " + button.toString());
             }
         }
 
+        metrics.recordNanos(MessageSource.PUSH, DeliveryStage.TOTAL, startNanos, System.nanoTime());
     }
 }
\ No newline at end of file
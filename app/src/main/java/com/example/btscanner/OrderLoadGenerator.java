@@ -0,0 +1,86 @@
+package com.example.btscanner;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+    Load test mode, feeds the OrderWriter a steady stream of random orders.
+    Runs on ticks of TICK_MS and emits however many orders are due by then, so the rate holds
+    even when a tick runs late.
+ */
+public class OrderLoadGenerator {
+
+    private static final long TICK_MS = 10;
+
+    private final OrderWriter writer;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final Random random = new Random();
+
+    private volatile boolean running;
+    private int ordersPerSecond;
+    private int total;
+    private int emitted;
+    private long startedAt;
+    private Runnable onFinished;
+
+    public OrderLoadGenerator(OrderWriter writer, Scheduler scheduler, Clock clock) {
+        this.writer = writer;
+        this.scheduler = scheduler;
+        this.clock = clock;
+    }
+
+    // Emits total orders at ordersPerSecond, onFinished runs on the scheduler once the last one was submitted
+    public synchronized void start(int ordersPerSecond, int total, Runnable onFinished) {
+        if (running) {
+            return;
+        }
+        this.ordersPerSecond = ordersPerSecond;
+        this.total = total;
+        this.onFinished = onFinished;
+        emitted = 0;
+        startedAt = clock.nowMillis();
+        running = true;
+        scheduler.schedule(this::tick, 0);
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public synchronized int getEmittedCount() {
+        return emitted;
+    }
+
+    private void tick() {
+        Runnable finished = null;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            long due = Math.min(total, (clock.nowMillis() - startedAt) * ordersPerSecond / 1000 + 1);
+            while (emitted < due) {
+                Map<String, Object> order = new HashMap<>();
+                order.put("field1", String.valueOf(random.nextInt(100)));
+                order.put("load", true);
+                writer.submit(order);
+                emitted++;
+            }
+            if (emitted >= total) {
+                running = false;
+                finished = onFinished;
+            }
+        }
+        if (finished != null) {
+            writer.flush();
+            finished.run();
+        } else {
+            scheduler.schedule(this::tick, TICK_MS);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.btscanner;
+
+import java.util.Map;
+
+// A stream of orders keyed by push key, implemented on top of the Firebase 'orders' reference
+public interface OrderSource {
+
+    // a failed latest key lookup or a cancelled subscription is retried after this long, doubling up to the max
+    long RETRY_MIN_MS = 1_000;
+    long RETRY_MAX_MS = 60_000;
+
+    interface Listener {
+        // called in key order, the same order may be delivered more than once
+        void onOrder(String key, Map<String, Object> fields);
+    }
+
+    interface LatestKeyCallback {
+        // key is null when there are no orders yet
+        void onLatestKey(String key);
+    }
+
+    interface CancelledCallback {
+        // the source dropped the subscription (permissions changed, auth expired), nothing more is delivered
+        void onCancelled(String reason);
+    }
+
+    // Looks up the key of the newest existing order
+    void fetchLatestKey(LatestKeyCallback callback);
+
+    // Delivers every order with a key after afterKey (all of them if null), then keeps delivering new ones
+    // until stop() or until the source cancels the subscription
+    void start(String afterKey, Listener listener, CancelledCallback cancelled);
+
+    void stop();
+}
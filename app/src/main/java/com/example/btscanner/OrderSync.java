@@ -0,0 +1,145 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.util.Map;
+
+/*
+    Incremental sync of the 'orders' reference driven by a persisted high-water mark.
+    The cursor is the push key of the last processed order, push keys sort by creation time so
+    every order after it is new. On start the source is queried from the cursor onwards, which
+    also picks up whatever was pushed while the service was dead or the listener was detached,
+    and anything at or before the cursor (re-deliveries after a reconnect) is dropped.
+    The very first run has no cursor and starts after the newest existing order.
+    A subscription the source cancels (permissions changed, auth expired) is started again from the
+    cursor after a backoff: RETRY_MIN_MS, doubling up to RETRY_MAX_MS, back to the minimum once an
+    order comes in.
+ */
+public class OrderSync {
+
+    public interface CursorStore {
+        String load();
+
+        void save(String key);
+    }
+
+    private final OrderSource source;
+    private final CursorStore cursorStore;
+    private final OrderSource.Listener handler;
+    private final int resubscribeAfter;
+    private final Scheduler scheduler;
+
+    private String cursor;
+    // bumped by every subscribe(), a cancellation or retry of an older subscription is ignored
+    private int subscription;
+    private long retryMillis = OrderSource.RETRY_MIN_MS;
+    private int cancellations;
+    private int sinceSubscribe;
+    private boolean running;
+    private int processed;
+    private int duplicates;
+
+    // resubscribeAfter re-anchors the query on the cursor every so many orders, so the source does not keep
+    // every order since start in memory, 0 disables it. Subscribing again after a cancellation runs on scheduler
+    public OrderSync(OrderSource source, CursorStore cursorStore, OrderSource.Listener handler, int resubscribeAfter,
+                     Scheduler scheduler) {
+        this.source = source;
+        this.cursorStore = cursorStore;
+        this.handler = handler;
+        this.resubscribeAfter = resubscribeAfter;
+        this.scheduler = scheduler;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        cursor = cursorStore.load();
+        if (cursor != null) {
+            Log.i("BT_SC", "Resuming orders after " + cursor);
+            subscribe();
+            return;
+        }
+        // first run, skip existing data
+        source.fetchLatestKey(latestKey -> {
+            synchronized (OrderSync.this) {
+                if (!running) {
+                    return;
+                }
+                if (latestKey != null) {
+                    cursor = latestKey;
+                    cursorStore.save(latestKey);
+                }
+                subscribe();
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        running = false;
+        source.stop();
+    }
+
+    private void subscribe() {
+        sinceSubscribe = 0;
+        int current = ++subscription;
+        source.start(cursor, this::onOrder, reason -> onCancelled(current, reason));
+    }
+
+    private synchronized void onCancelled(int cancelled, String reason) {
+        if (!running || cancelled != subscription) {
+            return;
+        }
+        cancellations++;
+        long delay = retryMillis;
+        retryMillis = Math.min(OrderSource.RETRY_MAX_MS, retryMillis * 2);
+        Log.w("BT_SC", "Orders subscription cancelled (" + reason + "), subscribing again after " + cursor + " in " + delay + " ms");
+        scheduler.schedule(() -> {
+            synchronized (OrderSync.this) {
+                if (running && cancelled == subscription) {
+                    source.stop();
+                    subscribe();
+                }
+            }
+        }, delay);
+    }
+
+    private synchronized void onOrder(String key, Map<String, Object> fields) {
+        if (!running) {
+            return;
+        }
+        if (cursor != null && key.compareTo(cursor) <= 0) {
+            duplicates++;
+            return;
+        }
+        cursor = key;
+        processed++;
+        retryMillis = OrderSource.RETRY_MIN_MS;
+        handler.onOrder(key, fields);
+        // only once the handler has journaled it, a crash in between gets the order delivered again
+        cursorStore.save(key);
+
+        if (resubscribeAfter > 0 && ++sinceSubscribe >= resubscribeAfter) {
+            source.stop();
+            subscribe();
+        }
+    }
+
+    public synchronized String getCursor() {
+        return cursor;
+    }
+
+    public synchronized int getProcessedCount() {
+        return processed;
+    }
+
+    public synchronized int getDuplicateCount() {
+        return duplicates;
+    }
+
+    // Subscriptions the source cancelled
+    public synchronized int getCancelledCount() {
+        return cancellations;
+    }
+}
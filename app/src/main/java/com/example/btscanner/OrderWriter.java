@@ -0,0 +1,166 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Accumulates new orders and writes them to the 'orders' reference as one multi-path update
+    (updateChildren) instead of one push().setValue() round trip per order.
+    A batch goes out as soon as it holds batchSize orders, or maxLingerMillis after its first order,
+    whichever comes first. Every order is stamped with "createdAt" so the service-side listener
+    can measure end-to-end latency.
+ */
+public class OrderWriter {
+
+    public interface Sink {
+        // client-side generated push key
+        String newKey();
+
+        // keys of updates are push keys, values the order fields
+        void update(Map<String, Object> updates, CompletionListener listener);
+    }
+
+    public interface CompletionListener {
+        // error is null on success
+        void onComplete(String error);
+    }
+
+    public static final String CREATED_AT = "createdAt";
+
+    private final Sink sink;
+    private final Scheduler scheduler;
+    // CREATED_AT, wall time (Clock.WALL) as the receiving device compares it with its own
+    private final Clock clock;
+    private final int batchSize;
+    private final long maxLingerMillis;
+
+    private Map<String, Object> pending;
+    private int generation; // bumps on every flush so stale linger timers do nothing
+
+    // stats
+    private long submitted;
+    private long written;
+    private long failed;
+    private long batches;
+    private long firstSubmitAt = -1;
+    private long lastWrittenAt;
+
+    public OrderWriter(Sink sink, Scheduler scheduler, Clock clock, int batchSize, long maxLingerMillis) {
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.batchSize = batchSize;
+        this.maxLingerMillis = maxLingerMillis;
+    }
+
+    // Queues an order, returns its push key
+    public String submit(Map<String, Object> fields) {
+        Map<String, Object> batch = null;
+        String key;
+        synchronized (this) {
+            long now = clock.nowMillis();
+            key = sink.newKey();
+            Map<String, Object> order = new HashMap<>(fields);
+            order.put(CREATED_AT, now);
+
+            boolean first = pending == null;
+            if (first) {
+                pending = new LinkedHashMap<>();
+            }
+            pending.put(key, order);
+            submitted++;
+            if (firstSubmitAt < 0) {
+                firstSubmitAt = now;
+            }
+
+            if (pending.size() >= batchSize) {
+                batch = takeBatch();
+            } else if (first) {
+                int expected = generation;
+                scheduler.schedule(() -> flushIfStill(expected), maxLingerMillis);
+            }
+        }
+        if (batch != null) {
+            write(batch);
+        }
+        return key;
+    }
+
+    // Writes whatever is pending right away
+    public void flush() {
+        Map<String, Object> batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        if (batch != null) {
+            write(batch);
+        }
+    }
+
+    private void flushIfStill(int expectedGeneration) {
+        Map<String, Object> batch;
+        synchronized (this) {
+            if (generation != expectedGeneration) {
+                return;
+            }
+            batch = takeBatch();
+        }
+        if (batch != null) {
+            write(batch);
+        }
+    }
+
+    private Map<String, Object> takeBatch() {
+        Map<String, Object> batch = pending;
+        pending = null;
+        generation++;
+        if (batch != null) {
+            batches++;
+        }
+        return batch;
+    }
+
+    private void write(Map<String, Object> batch) {
+        int size = batch.size();
+        sink.update(batch, error -> {
+            synchronized (OrderWriter.this) {
+                if (error == null) {
+                    written += size;
+                    lastWrittenAt = clock.nowMillis();
+                } else {
+                    failed += size;
+                }
+            }
+            if (error != null) {
+                Log.e("BT_SC", "Error writing " + size + " orders " + error);
+            }
+        });
+    }
+
+    public synchronized long getSubmittedCount() {
+        return submitted;
+    }
+
+    public synchronized long getWrittenCount() {
+        return written;
+    }
+
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    // Orders acknowledged per second, from the first submit to the last acknowledged write
+    public synchronized double getWriteRate() {
+        if (written == 0 || lastWrittenAt <= firstSubmitAt) {
+            return 0;
+        }
+        return written * 1000.0 / (lastWrittenAt - firstSubmitAt);
+    }
+}
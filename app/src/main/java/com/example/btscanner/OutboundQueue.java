@@ -0,0 +1,370 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/*
+    Outbound messages that have to arrive: each one gets an id, is saved to the store (so it survives
+    the app being killed) and is sent until the receiver acknowledges it.
+
+    Messages travel as TYPE_RELIABLE frames with this payload:
+
+    +---------------+------------+-----------------------------------+
+    | id (long, BE) | inner type | inner payload (e.g. MessageCodec) |
+    +---------------+------------+-----------------------------------+
+        8 bytes        1 byte
+
+    The receiver answers every one of them, copies included, with a TYPE_ACK frame carrying the id
+    (see ReliableReceiver, which also drops the copies). No ACK within the backoff and the frame goes
+    out again: ackTimeoutMillis after the first send, doubling up to maxBackoffMillis, each delay
+    randomized between half and all of it. A message that is still not acknowledged maxAgeMillis after
+    it was queued is given up on (0 keeps trying forever). At most capacity messages wait, enqueue()
+    refuses more.
+
+    enqueue() only hands the message to the store executor, so it can be called on the UI thread. The
+    first send waits until the message is saved, so no ACK can beat it to the store. Sending and
+    retries run on the scheduler. An acknowledged message is deleted on the thread that got the ACK
+    (a connection's reader thread, never the UI thread), so a delete can't be dropped along with the
+    scheduler's tasks when the app goes away.
+ */
+public class OutboundQueue {
+
+    public static final int HEADER_SIZE = 9;
+
+    public interface Link {
+        // Sends an encoded frame, the future completes once it was written (or failed)
+        CompletableFuture<Void> send(String address, byte[] frame);
+    }
+
+    // Where queued messages are kept until they are acknowledged, see OutboundStore
+    public interface Store {
+        void save(Entry entry) throws IOException;
+
+        void delete(long id) throws IOException;
+
+        List<Entry> load() throws IOException;
+    }
+
+    public interface Listener {
+        void onDelivered(Entry entry, long latencyMillis);
+
+        void onExpired(Entry entry);
+    }
+
+    public static final class Entry {
+        public final long id;
+        public final String address;
+        public final int type;
+        public final byte[] payload;
+        public final long createdAt;
+        // guarded by the queue
+        int attempts;
+        byte[] frame;
+
+        public Entry(long id, String address, int type, byte[] payload, long createdAt) {
+            this.id = id;
+            this.address = address;
+            this.type = type;
+            this.payload = payload;
+            this.createdAt = createdAt;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private final Link link;
+    private final Store store;
+    // saves run here, in the order the messages were queued
+    private final Executor storeExecutor;
+    private final Scheduler scheduler;
+    // creation times, wall time (Clock.WALL) as they are saved and compared after a restart
+    private final Clock clock;
+    private final int capacity;
+    private final long ackTimeoutMillis;
+    private final long maxBackoffMillis;
+    private final long maxAgeMillis;
+    private final Random random;
+    private volatile Listener listener;
+
+    // top 32 bits are random per queue, so IDs stay unique across restarts and senders
+    private final long idPrefix;
+    private int nextId;
+
+    // guarded by this, in the order they were queued
+    private final Map<Long, Entry> pending = new LinkedHashMap<>();
+    private long queued;
+    private long sent;
+    private long retries;
+    private long acked;
+    private long lateAcks;
+    private long expired;
+    private long rejected;
+    private long sendFailures;
+    private long storeFailures;
+    // queued to acknowledged, microseconds
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    public OutboundQueue(Link link, Store store, Scheduler scheduler, Clock clock, int capacity,
+                         long ackTimeoutMillis, long maxBackoffMillis, long maxAgeMillis, Random random) {
+        this(link, store, task -> scheduler.schedule(task, 0), scheduler, clock, capacity, ackTimeoutMillis,
+                maxBackoffMillis, maxAgeMillis, random);
+    }
+
+    public OutboundQueue(Link link, Store store, Executor storeExecutor, Scheduler scheduler, Clock clock, int capacity,
+                         long ackTimeoutMillis, long maxBackoffMillis, long maxAgeMillis, Random random) {
+        this.link = link;
+        this.store = store;
+        this.storeExecutor = storeExecutor;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.capacity = capacity;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        this.random = random;
+        this.idPrefix = (long) new SecureRandom().nextInt() << 32;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Picks up what was still unacknowledged when the app went away, they keep their IDs so a
+    // receiver that got them before doesn't show them twice
+    public void start() {
+        scheduler.schedule(() -> {
+            List<Entry> saved;
+            try {
+                saved = store.load();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error loading outbound queue " + e.getMessage());
+                return;
+            }
+            List<Entry> restored = new ArrayList<>();
+            synchronized (this) {
+                for (Entry entry : saved) {
+                    if (!pending.containsKey(entry.id)) {
+                        pending.put(entry.id, entry);
+                        restored.add(entry);
+                    }
+                }
+            }
+            if (!restored.isEmpty()) {
+                Log.i("BT_SC", "Resending " + restored.size() + " unacknowledged messages");
+            }
+            for (Entry entry : restored) {
+                send(entry, 0);
+            }
+        }, 0);
+    }
+
+    // Queues a message for the device and has it saved, returns its id, or -1 if the queue is full
+    public long enqueue(String address, int type, byte[] payload) {
+        Entry entry;
+        synchronized (this) {
+            if (pending.size() >= capacity) {
+                rejected++;
+                return -1;
+            }
+            long id = idPrefix | (nextId++ & 0xFFFFFFFFL);
+            entry = new Entry(id, address, type, payload, clock.nowMillis());
+            pending.put(id, entry);
+            queued++;
+        }
+        // saved (and fsync'ed) off the caller's thread, before the first send so an ACK can't beat it to the store
+        storeExecutor.execute(() -> {
+            try {
+                store.save(entry);
+            } catch (IOException e) {
+                // still sent, it just won't survive a restart
+                Log.e("BT_SC", "Error saving outbound message " + e.getMessage());
+                synchronized (this) {
+                    storeFailures++;
+                }
+            }
+            scheduler.schedule(() -> send(entry, 0), 0);
+        });
+        return entry.id;
+    }
+
+    // Sends the entry if it's still waiting and nothing sent it since attempt, then waits for the ACK
+    private void send(Entry entry, int attempt) {
+        byte[] frame = null;
+        long delay = 0;
+        synchronized (this) {
+            if (pending.get(entry.id) != entry || entry.attempts != attempt) {
+                return;
+            }
+            if (maxAgeMillis > 0 && clock.nowMillis() - entry.createdAt >= maxAgeMillis) {
+                pending.remove(entry.id);
+                expired++;
+            } else {
+                if (entry.frame == null) {
+                    entry.frame = encode(entry);
+                }
+                if (attempt > 0) {
+                    retries++;
+                }
+                entry.attempts++;
+                sent++;
+                frame = entry.frame;
+                delay = getBackoffMillis(attempt);
+            }
+        }
+        if (frame == null) {
+            Log.w("BT_SC", "Giving up on message " + Long.toHexString(entry.id) + " to " + entry.address
+                    + " after " + attempt + " attempts");
+            deleteQuietly(entry.id);
+            Listener current = listener;
+            if (current != null) {
+                current.onExpired(entry);
+            }
+            return;
+        }
+        // a failed write waits for the same timer as a lost frame
+        link.send(entry.address, frame).whenComplete((result, error) -> {
+            if (error != null) {
+                synchronized (this) {
+                    sendFailures++;
+                }
+            }
+        });
+        scheduler.schedule(() -> send(entry, attempt + 1), delay);
+    }
+
+    // A TYPE_ACK frame came back, returns true if it acknowledged a waiting message. Deletes the
+    // saved copy before it returns, not to be called on the UI thread
+    public boolean onAck(long id) {
+        Entry entry;
+        long latencyMillis;
+        synchronized (this) {
+            entry = pending.remove(id);
+            if (entry == null) {
+                // the ACK of a copy, or of a message given up on
+                lateAcks++;
+                return false;
+            }
+            acked++;
+            latencyMillis = Math.max(0, clock.nowMillis() - entry.createdAt);
+            ackLatency.record(latencyMillis * 1000);
+        }
+        deleteQuietly(id);
+        Listener current = listener;
+        if (current != null) {
+            current.onDelivered(entry, latencyMillis);
+        }
+        return true;
+    }
+
+    private void deleteQuietly(long id) {
+        try {
+            store.delete(id);
+        } catch (IOException e) {
+            Log.e("BT_SC", "Error deleting outbound message " + e.getMessage());
+        }
+    }
+
+    // Randomized between half and all of ackTimeout * 2^attempt, capped at maxBackoff
+    long getBackoffMillis(int attempt) {
+        long base = Math.min(maxBackoffMillis, ackTimeoutMillis << Math.min(attempt, 20));
+        long half = base / 2;
+        return half + (long) (random.nextDouble() * (base - half));
+    }
+
+    public static byte[] encode(Entry entry) {
+        byte[] payload = new byte[HEADER_SIZE + entry.payload.length];
+        putLong(payload, 0, entry.id);
+        payload[8] = (byte) entry.type;
+        System.arraycopy(entry.payload, 0, payload, HEADER_SIZE, entry.payload.length);
+        return FrameCodec.encode(FrameCodec.TYPE_RELIABLE, payload, true);
+    }
+
+    public static byte[] encodeAck(long id) {
+        byte[] payload = new byte[8];
+        putLong(payload, 0, id);
+        return FrameCodec.encode(FrameCodec.TYPE_ACK, payload, false);
+    }
+
+    static void putLong(byte[] out, int pos, long value) {
+        for (int i = 7; i >= 0; i--) {
+            out[pos++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    // The id of a TYPE_RELIABLE or TYPE_ACK payload
+    public static long getId(byte[] payload, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (payload[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    // Messages waiting for their ACK
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized boolean isPending(long id) {
+        return pending.containsKey(id);
+    }
+
+    public synchronized long getQueuedCount() {
+        return queued;
+    }
+
+    // Frames sent, first attempts and retries
+    public synchronized long getSentCount() {
+        return sent;
+    }
+
+    public synchronized long getRetryCount() {
+        return retries;
+    }
+
+    public synchronized long getAckedCount() {
+        return acked;
+    }
+
+    // ACKs for messages no longer waiting, one per copy that got through as well
+    public synchronized long getLateAckCount() {
+        return lateAcks;
+    }
+
+    public synchronized long getExpiredCount() {
+        return expired;
+    }
+
+    // Messages refused because the queue was full
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    public synchronized long getSendFailureCount() {
+        return sendFailures;
+    }
+
+    // Queued to acknowledged, microseconds
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    public synchronized String report() {
+        return String.format(Locale.US, "outbox: pending=%d queued=%d sent=%d retries=%d acked=%d late_acks=%d expired=%d rejected=%d"
+                        + " send_failures=%d store_failures=%d ack p50=%.1f p99=%.1f max=%.1f ms%n",
+                pending.size(), queued, sent, retries, acked, lateAcks, expired, rejected, sendFailures, storeFailures,
+                ackLatency.getPercentile(50) / 1000.0, ackLatency.getPercentile(99) / 1000.0, ackLatency.getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    OutboundQueue store: one small file per unacknowledged message, named after its id.
+    A handful of messages wait at a time and each one is written once and deleted once, so there is
+    no log to compact. A file is written under a temporary name and renamed, a crash mid-write
+    leaves a .tmp behind that load() deletes instead of a half message.
+
+    File layout (DataOutputStream): int version | long id | long created at | UTF address | byte type | int length | payload
+ */
+public class OutboundStore implements OutboundQueue.Store {
+
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".msg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+
+    public OutboundStore(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public void save(OutboundQueue.Entry entry) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        File temp = new File(dir, name(entry.id) + TEMP_SUFFIX);
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeInt(VERSION);
+            out.writeLong(entry.id);
+            out.writeLong(entry.createdAt);
+            out.writeUTF(entry.address);
+            out.writeByte(entry.type);
+            out.writeInt(entry.payload.length);
+            out.write(entry.payload);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!temp.renameTo(file(entry.id))) {
+            throw new IOException("Can't rename " + temp);
+        }
+    }
+
+    @Override
+    public void delete(long id) throws IOException {
+        File file = file(id);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't delete " + file);
+        }
+    }
+
+    // Saved messages, oldest first; unreadable files are dropped
+    @Override
+    public List<OutboundQueue.Entry> load() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<OutboundQueue.Entry> entries = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            if (!file.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != VERSION) {
+                    throw new IOException("unknown version");
+                }
+                long id = in.readLong();
+                long createdAt = in.readLong();
+                String address = in.readUTF();
+                int type = in.readUnsignedByte();
+                int length = in.readInt();
+                if (length < 0 || length > FrameCodec.MAX_PAYLOAD) {
+                    throw new IOException("bad length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                entries.add(new OutboundQueue.Entry(id, address, type, payload, createdAt));
+            } catch (IOException e) {
+                Log.w("BT_SC", "Dropping unreadable outbound message " + file.getName() + " " + e.getMessage());
+                file.delete();
+            }
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(a.createdAt, b.createdAt));
+        return entries;
+    }
+
+    private File file(long id) {
+        return new File(dir, name(id) + SUFFIX);
+    }
+
+    private static String name(long id) {
+        return String.format(Locale.US, "%016x", id);
+    }
+}
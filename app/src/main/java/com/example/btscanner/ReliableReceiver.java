@@ -0,0 +1,149 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Receiving end of OutboundQueue: acknowledges every TYPE_RELIABLE frame and lets each id through once.
+    A copy still gets its ACK, the sender resends because the first ACK was lost on the way back.
+    An id only counts as seen once it's acknowledged, a message that could not be journaled is let
+    through again when the sender retries it. Until then accept() holds a claim on the id, so a copy
+    coming in on another connection at the same time is neither let through a second time nor
+    acknowledged before the first one was journaled.
+    The IDs of the last windowSize messages are remembered (SeenSet), a copy that arrives after that many
+    newer messages is taken for new; senders give up long before that at the rates a watch sees.
+    One receiver is shared by all connections, a retry may come in on a new connection.
+ */
+public class ReliableReceiver {
+
+    private final SeenSet seen;
+    // claimed by accept(), not acknowledged or released yet; guarded by this.
+    // At most one per connection, scanning a few longs is cheaper than boxing every id into a set
+    private long[] inFlight = new long[4];
+    private int inFlightCount;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong ackFailures = new AtomicLong();
+
+    public ReliableReceiver(int windowSize) {
+        this.seen = new SeenSet(windowSize);
+    }
+
+    // Handles a TYPE_RELIABLE payload. Returns true if the message is new, its type is at
+    // payload[offset + 8] and its payload starts OutboundQueue.HEADER_SIZE bytes in; false for a copy,
+    // one another connection is handling right now, or a malformed payload.
+    // A new message is claimed: acknowledge() it once it's been taken care of, or release() it.
+    // A turned down one goes to acknowledgeCopy() right away
+    public boolean accept(byte[] payload, int offset, int length) {
+        if (length < OutboundQueue.HEADER_SIZE) {
+            Log.w("BT_SC", "Reliable frame too short " + length);
+            return false;
+        }
+        received.incrementAndGet();
+        long id = OutboundQueue.getId(payload, offset);
+        synchronized (this) {
+            if (!seen.contains(id) && indexOfClaim(id) < 0) {
+                if (inFlightCount == inFlight.length) {
+                    inFlight = Arrays.copyOf(inFlight, inFlightCount * 2);
+                }
+                inFlight[inFlightCount++] = id;
+                return true;
+            }
+        }
+        duplicates.incrementAndGet();
+        return false;
+    }
+
+    // Marks an accepted id seen and writes the ACK back to the sender. Only call it after the message
+    // was journaled, so an ACK never stands for a message a crash could still lose
+    public void acknowledge(byte[] payload, int offset, int length, OutputStream out) {
+        if (length < OutboundQueue.HEADER_SIZE) {
+            return;
+        }
+        long id = OutboundQueue.getId(payload, offset);
+        synchronized (this) {
+            seen.add(id);
+            unclaim(id);
+        }
+        writeAck(id, out);
+    }
+
+    // An accepted message that could not be taken care of (not journaled): not acknowledged, and the
+    // sender's retry is let through again
+    public void release(byte[] payload, int offset, int length) {
+        if (length < OutboundQueue.HEADER_SIZE) {
+            return;
+        }
+        long id = OutboundQueue.getId(payload, offset);
+        synchronized (this) {
+            unclaim(id);
+        }
+    }
+
+    // A payload accept() turned down. A copy of a message already acknowledged is acknowledged again,
+    // the first ACK may have been lost. One still in flight on another connection is not, the sender
+    // resends it and gets its ACK then
+    public void acknowledgeCopy(byte[] payload, int offset, int length, OutputStream out) {
+        if (length < OutboundQueue.HEADER_SIZE) {
+            return;
+        }
+        long id = OutboundQueue.getId(payload, offset);
+        synchronized (this) {
+            if (!seen.contains(id)) {
+                return;
+            }
+        }
+        writeAck(id, out);
+    }
+
+    // guarded by this
+    private int indexOfClaim(long id) {
+        for (int i = 0; i < inFlightCount; i++) {
+            if (inFlight[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // guarded by this
+    private void unclaim(long id) {
+        int index = indexOfClaim(id);
+        if (index >= 0) {
+            inFlight[index] = inFlight[--inFlightCount];
+        }
+    }
+
+    private void writeAck(long id, OutputStream out) {
+        try {
+            out.write(OutboundQueue.encodeAck(id));
+            out.flush();
+        } catch (IOException e) {
+            // the sender will retry, the copy is acknowledged then
+            ackFailures.incrementAndGet();
+            Log.w("BT_SC", "Error acknowledging " + Long.toHexString(id) + " " + e.getMessage());
+        }
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    public long getAckFailureCount() {
+        return ackFailures.get();
+    }
+
+    public String report() {
+        return String.format(Locale.US, "reliable: received=%d duplicates=%d ack_failures=%d window=%d evicted=%d%n",
+                received.get(), duplicates.get(), ackFailures.get(), seen.size(), seen.getEvictedCount());
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.btscanner;
+
+import android.bluetooth.BluetoothServerSocket;
+
+import java.io.IOException;
+
+// ConnectionAcceptor backed by a Bluetooth RFCOMM server socket
+public class RfcommAcceptor implements ConnectionAcceptor {
+
+    private final BluetoothServerSocket serverSocket;
+
+    public RfcommAcceptor(BluetoothServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+        return new RfcommConnection(serverSocket.accept());
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
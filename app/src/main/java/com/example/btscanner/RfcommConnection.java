@@ -0,0 +1,37 @@
+package com.example.btscanner;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Connection backed by a Bluetooth RFCOMM socket
+public class RfcommConnection implements Connection {
+
+    private final BluetoothSocket socket;
+
+    public RfcommConnection(BluetoothSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getRemoteDevice().getAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
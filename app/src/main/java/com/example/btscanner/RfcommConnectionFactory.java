@@ -0,0 +1,39 @@
+package com.example.btscanner;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+// Opens outbound RFCOMM connections to the BT 'server' of another device running this app
+public class RfcommConnectionFactory implements ConnectionPool.Factory {
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final UUID uuid;
+
+    public RfcommConnectionFactory(BluetoothAdapter bluetoothAdapter, UUID uuid) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.uuid = uuid;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public Connection connect(String address) throws IOException {
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        BluetoothSocket socket = device.createRfcommSocketToServiceRecord(uuid);
+
+        // Cancel discovery because it otherwise slows down the connection.
+        bluetoothAdapter.cancelDiscovery();
+
+        try {
+            socket.connect();   // Note this is blocking, if it cant connect it will hang up a few secs before failing
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new RfcommConnection(socket);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.btscanner;
+
+/*
+    An inbound message on its way through the MessageRouter.
+    While a BULK message is queued, identical ones from the same source are folded into it:
+    getCount() goes up and getSeq() moves to the newest journal entry.
+ */
+public final class RoutedMessage {
+
+    public final MessageSource source;
+    public final MessagePriority priority;
+    public final String text;
+    // when the frame was read (or the order arrived), System.nanoTime()
+    public final long receivedNanos;
+    // when it was handed to the router, System.nanoTime()
+    public final long submittedNanos;
+
+    // guarded by the router while queued
+    private long seq;
+    private int count = 1;
+
+    RoutedMessage(MessageSource source, MessagePriority priority, long seq, String text, long receivedNanos, long submittedNanos) {
+        this.source = source;
+        this.priority = priority;
+        this.seq = seq;
+        this.text = text;
+        this.receivedNanos = receivedNanos;
+        this.submittedNanos = submittedNanos;
+    }
+
+    void coalesce(long newerSeq) {
+        count++;
+        seq = Math.max(seq, newerSeq);
+    }
+
+    // Journal sequence number of the newest message folded in, 0 if it could not be journaled
+    public long getSeq() {
+        return seq;
+    }
+
+    // Number of messages folded into this one
+    public int getCount() {
+        return count;
+    }
+
+    // The text as shown to the user, with the repeat count if it was coalesced
+    public String getDisplayText() {
+        return count == 1 ? text : text + " (x" + count + ")";
+    }
+}
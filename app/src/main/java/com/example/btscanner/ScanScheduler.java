@@ -0,0 +1,218 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+/*
+    Runs device discovery in duty cycles instead of leaving it to chance.
+    Every cycle scans for scanMillis, then the radio is left alone for an interval that starts at
+    minIntervalMillis and doubles (up to maxIntervalMillis) for every cycle that found nothing new,
+    a cycle that finds a new device drops it back to the minimum.
+
+    Discovery slows RFCOMM connects down a lot, so while any outbound connection is being set up
+    (connectionStarted/connectionFinished) the running scan is cancelled and no new one starts.
+
+    In low power mode a cycle is a filtered BLE scan instead of a classic inquiry.
+    Scan time and an estimate of the charge it cost are counted per mode. The estimate uses
+    typical radio currents and is only meant for comparing settings, not for absolute numbers.
+ */
+public class ScanScheduler {
+
+    // rough average radio current while scanning, in milliamps
+    static final double CLASSIC_SCAN_MA = 30;
+    static final double LOW_POWER_SCAN_MA = 2;
+
+    private final DiscoveryRadio radio;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final long scanMillis;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+
+    private boolean started;
+    private boolean lowPower;
+    private int connectionsInProgress;
+
+    // current scan, scanning is false between cycles
+    private boolean scanning;
+    private boolean scanningLowPower;
+    private long scanStartedAt;
+    private boolean foundNew;
+    private long interval;
+    // bumped whenever pending timers become stale, the Scheduler can't cancel
+    private long generation;
+
+    private long cycles;
+    private long classicScanMillis;
+    private long lowPowerScanMillis;
+    private long pausedCycles;
+
+    public ScanScheduler(DiscoveryRadio radio, Scheduler scheduler, Clock clock,
+                         long scanMillis, long minIntervalMillis, long maxIntervalMillis) {
+        this.radio = radio;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.scanMillis = scanMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.interval = minIntervalMillis;
+    }
+
+    // Starts the first cycle right away
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        interval = minIntervalMillis;
+        beginCycle(++generation);
+    }
+
+    public synchronized void stop() {
+        started = false;
+        generation++;
+        endScan();
+    }
+
+    // Takes effect from the next cycle
+    public synchronized void setLowPower(boolean lowPower) {
+        this.lowPower = lowPower;
+    }
+
+    public synchronized boolean isLowPower() {
+        return lowPower;
+    }
+
+    // Reported by the discovery callbacks, newDevice is true for devices that were not known yet
+    public synchronized void onDeviceFound(boolean newDevice) {
+        if (scanning && newDevice) {
+            foundNew = true;
+        }
+    }
+
+    // Classic discovery ends on its own, ACTION_DISCOVERY_FINISHED closes the cycle early
+    public synchronized void onDiscoveryFinished() {
+        if (scanning && !scanningLowPower) {
+            finishCycle();
+        }
+    }
+
+    // Can be called from any thread, e.g. the sender threads around a connect
+    public synchronized void connectionStarted() {
+        if (connectionsInProgress++ == 0 && started) {
+            generation++;
+            if (scanning) {
+                Log.i("BT_SC", "Pausing discovery for an outbound connection");
+                endScan();
+            }
+        }
+    }
+
+    public synchronized void connectionFinished() {
+        if (connectionsInProgress == 0) {
+            return;
+        }
+        if (--connectionsInProgress == 0 && started) {
+            scheduleCycle(minIntervalMillis);
+        }
+    }
+
+    private void beginCycle(long cycleGeneration) {
+        if (!started || cycleGeneration != generation) {
+            return;
+        }
+        if (connectionsInProgress > 0) {
+            // connectionFinished() schedules the next one
+            pausedCycles++;
+            return;
+        }
+        boolean ok = lowPower ? radio.startLowPowerScan() : radio.startDiscovery();
+        if (!ok) {
+            Log.w("BT_SC", "Could not start " + (lowPower ? "BLE scan" : "discovery"));
+            scheduleCycle(interval);
+            return;
+        }
+        cycles++;
+        scanning = true;
+        scanningLowPower = lowPower;
+        scanStartedAt = clock.nowMillis();
+        foundNew = false;
+        scheduler.schedule(() -> {
+            synchronized (ScanScheduler.this) {
+                if (cycleGeneration == generation && scanning) {
+                    finishCycle();
+                }
+            }
+        }, scanMillis);
+    }
+
+    private void finishCycle() {
+        boolean found = foundNew;
+        endScan();
+        interval = found ? minIntervalMillis : Math.min(interval * 2, maxIntervalMillis);
+        scheduleCycle(interval);
+    }
+
+    private void scheduleCycle(long delayMillis) {
+        long cycleGeneration = ++generation;
+        scheduler.schedule(() -> {
+            synchronized (ScanScheduler.this) {
+                beginCycle(cycleGeneration);
+            }
+        }, delayMillis);
+    }
+
+    private void endScan() {
+        if (!scanning) {
+            return;
+        }
+        scanning = false;
+        long elapsed = clock.nowMillis() - scanStartedAt;
+        if (scanningLowPower) {
+            radio.stopLowPowerScan();
+            lowPowerScanMillis += elapsed;
+        } else {
+            radio.cancelDiscovery();
+            classicScanMillis += elapsed;
+        }
+    }
+
+    public synchronized boolean isScanning() {
+        return scanning;
+    }
+
+    // Pause between the current and the next cycle
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    public synchronized long getCycles() {
+        return cycles;
+    }
+
+    // Cycles skipped because a connection was being set up
+    public synchronized long getPausedCycles() {
+        return pausedCycles;
+    }
+
+    // Radio time spent scanning, the running scan included
+    public synchronized long getScanTimeMillis() {
+        return classicScanMillis + lowPowerScanMillis + runningScanMillis();
+    }
+
+    public synchronized long getClassicScanTimeMillis() {
+        return classicScanMillis + (scanningLowPower ? 0 : runningScanMillis());
+    }
+
+    public synchronized long getLowPowerScanTimeMillis() {
+        return lowPowerScanMillis + (scanningLowPower ? runningScanMillis() : 0);
+    }
+
+    // Estimated charge spent on scanning, in milliamp hours
+    public synchronized double getEstimatedMilliampHours() {
+        return (getClassicScanTimeMillis() * CLASSIC_SCAN_MA + getLowPowerScanTimeMillis() * LOW_POWER_SCAN_MA) / 3_600_000.0;
+    }
+
+    private long runningScanMillis() {
+        return scanning ? clock.nowMillis() - scanStartedAt : 0;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.btscanner;
+
+/*
+    Immutable snapshot of one nearby device as shown in the device list.
+    The registry replaces the whole object on every change, so the list adapter can diff
+    old and new snapshots without copying them.
+ */
+public final class ScannedDevice {
+
+    // RSSI value used when discovery did not report one (e.g. paired devices that are out of range)
+    public static final int NO_RSSI = Short.MIN_VALUE;
+
+    private final String address;
+    private final String name;
+    private final int rssi;
+    private final boolean paired;
+    private final long lastSeenMillis;
+
+    public ScannedDevice(String address, String name, int rssi, boolean paired, long lastSeenMillis) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.paired = paired;
+        this.lastSeenMillis = lastSeenMillis;
+    }
+
+    // MAC address, the registry key
+    public String getAddress() {
+        return address;
+    }
+
+    // May be null, not every device advertises a name
+    public String getName() {
+        return name;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public boolean isPaired() {
+        return paired;
+    }
+
+    public long getLastSeenMillis() {
+        return lastSeenMillis;
+    }
+
+    // Name if there is one, the address otherwise
+    public String getDisplayName() {
+        return name != null && !name.isEmpty() ? name : address;
+    }
+
+    // The device list row: name, then address, signal and paired on the second line
+    public StringBuilder appendRowText(StringBuilder out) {
+        out.append(getDisplayName()).append('\n').append(address);
+        if (rssi != NO_RSSI) {
+            out.append("  ").append(rssi).append(" dBm");
+        }
+        if (paired) {
+            out.append("  paired");
+        }
+        return out;
+    }
+
+    // Same as equals() minus lastSeenMillis, which is not shown and would otherwise redraw the row on every sighting
+    public boolean sameContent(ScannedDevice other) {
+        return rssi == other.rssi && paired == other.paired && address.equals(other.address)
+                && (name == null ? other.name == null : name.equals(other.name));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ScannedDevice)) {
+            return false;
+        }
+        ScannedDevice other = (ScannedDevice) o;
+        return lastSeenMillis == other.lastSeenMillis && sameContent(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getDisplayName() + " (" + address + ")";
+    }
+}
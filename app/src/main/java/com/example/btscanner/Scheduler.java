@@ -0,0 +1,7 @@
+package com.example.btscanner;
+
+// Runs a task later, on Android this is a Handler, tests drive it with a fake clock
+public interface Scheduler {
+
+    void schedule(Runnable task, long delayMillis);
+}
@@ -0,0 +1,48 @@
+package com.example.btscanner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    The last capacity message IDs a relay has seen, least recently seen ones are forgotten first.
+    A duplicate keeps its ID fresh, so a message still bouncing around the mesh is not forgotten
+    while copies of it keep arriving.
+ */
+public class SeenSet {
+
+    private final int capacity;
+    private final LinkedHashMap<Long, Boolean> ids;
+    private long evicted;
+
+    public SeenSet(int capacity) {
+        this.capacity = capacity;
+        this.ids = new LinkedHashMap<Long, Boolean>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                if (size() > SeenSet.this.capacity) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // true the first time the ID is seen
+    public synchronized boolean add(long id) {
+        return ids.put(id, Boolean.TRUE) == null;
+    }
+
+    public synchronized boolean contains(long id) {
+        return ids.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    // IDs forgotten to stay within capacity
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+}
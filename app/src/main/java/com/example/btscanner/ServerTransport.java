@@ -0,0 +1,190 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/*
+    Transport that accepts inbound connections (RFCOMM server socket) and serves them with a ConnectionServer.
+
+    With a HealthMonitor the transport looks after itself: accepted connections are watched for
+    heartbeats, and when the listening socket fails (or can't be opened, e.g. Bluetooth is off) a
+    new one is opened after a backoff that starts at minBackoffMillis and doubles up to
+    maxBackoffMillis, each delay randomized between half and all of it so watches that lost
+    Bluetooth together don't retry in lockstep. A successful open resets the backoff.
+    Reopens are timed on the scheduler (the event loop) but the socket is opened on the opener
+    executor, opening blocks while Bluetooth comes up and would hold up everything else on the loop.
+ */
+public class ServerTransport implements Transport {
+
+    // Opens the listening socket, called on every start() and every reopen
+    public interface AcceptorFactory {
+        ConnectionAcceptor open() throws IOException;
+    }
+
+    private final String name;
+    private final AcceptorFactory acceptorFactory;
+    private final ConnectionServer.Handler handler;
+    private final int maxConnections;
+    private final HealthMonitor health;
+    private final Scheduler scheduler;
+    private final Executor opener;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random;
+    private ConnectionServer server;
+
+    // guarded by this
+    private boolean started; // between start() and stop()
+    private int generation;  // bumps on start() and stop() so a pending reopen does nothing
+    private int attempt;
+
+    public ServerTransport(String name, AcceptorFactory acceptorFactory, ConnectionServer.Handler handler, int maxConnections) {
+        this(name, acceptorFactory, handler, maxConnections, null, null, null, 0, 0, null);
+    }
+
+    public ServerTransport(String name, AcceptorFactory acceptorFactory, ConnectionServer.Handler handler, int maxConnections,
+                           HealthMonitor health, Scheduler scheduler, Executor opener, long minBackoffMillis, long maxBackoffMillis,
+                           Random random) {
+        this.name = name;
+        this.acceptorFactory = acceptorFactory;
+        this.handler = health == null ? handler : (connection, acceptedAtNanos) -> {
+            HealthMonitor.WatchedConnection watched = health.watch(connection);
+            try {
+                handler.handle(watched, acceptedAtNanos);
+            } finally {
+                watched.close();
+            }
+        };
+        this.maxConnections = maxConnections;
+        this.health = health;
+        this.scheduler = scheduler;
+        this.opener = opener;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.random = random;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    // Keeps a running server, onStartCommand runs again on every startService
+    @Override
+    public synchronized void start() throws IOException {
+        started = true;
+        if (server != null && server.isRunning()) {
+            return;
+        }
+        generation++;
+        try {
+            install(acceptorFactory.open());
+        } catch (IOException e) {
+            if (health != null) {
+                health.onListenerFailed();
+                scheduleReopen();
+            }
+            throw e;
+        }
+    }
+
+    private void install(ConnectionAcceptor acceptor) {
+        ConnectionServer next = new ConnectionServer(acceptor, handler, maxConnections);
+        if (health != null) {
+            next.setFailureListener(error -> onAcceptFailed(next));
+        }
+        server = next;
+        next.start();
+        attempt = 0;
+        if (health != null) {
+            health.onListening();
+        }
+    }
+
+    private synchronized void onAcceptFailed(ConnectionServer failed) {
+        if (!started || failed != server) {
+            return;
+        }
+        health.onListenerFailed();
+        scheduleReopen();
+    }
+
+    private void scheduleReopen() {
+        long delay = getBackoffMillis(attempt++);
+        int current = generation;
+        Log.i("BT_SC", "Reopening " + name + " in " + delay + " ms");
+        scheduler.schedule(() -> reopen(current), delay);
+    }
+
+    private boolean isReopenWanted(int reopenGeneration) {
+        return started && reopenGeneration == generation && (server == null || !server.isRunning());
+    }
+
+    // On the scheduler, hands the open to the opener and the result back to the scheduler
+    private void reopen(int reopenGeneration) {
+        synchronized (this) {
+            if (!isReopenWanted(reopenGeneration)) {
+                return;
+            }
+        }
+        opener.execute(() -> {
+            try {
+                ConnectionAcceptor acceptor = acceptorFactory.open();
+                scheduler.schedule(() -> onReopened(reopenGeneration, acceptor), 0);
+            } catch (IOException e) {
+                scheduler.schedule(() -> onReopenFailed(reopenGeneration, e), 0);
+            }
+        });
+    }
+
+    private synchronized void onReopened(int reopenGeneration, ConnectionAcceptor acceptor) {
+        if (!isReopenWanted(reopenGeneration)) {
+            // stopped meanwhile
+            try {
+                acceptor.close();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error closing " + name + " " + e.getMessage());
+            }
+            return;
+        }
+        install(acceptor);
+        Log.i("BT_SC", name + " listening again");
+    }
+
+    private synchronized void onReopenFailed(int reopenGeneration, IOException error) {
+        if (!isReopenWanted(reopenGeneration)) {
+            return;
+        }
+        Log.w("BT_SC", "Error reopening " + name + " " + error.getMessage());
+        health.onListenerFailed();
+        scheduleReopen();
+    }
+
+    // Randomized between half and all of min * 2^attempt, capped at max
+    long getBackoffMillis(int attempt) {
+        long base = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(attempt, 20));
+        long half = base / 2;
+        return half + (long) (random.nextDouble() * (base - half));
+    }
+
+    @Override
+    public synchronized void stop() {
+        started = false;
+        generation++;
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return server != null && server.isRunning();
+    }
+
+    public synchronized int getActiveConnections() {
+        return server == null ? 0 : server.getActiveConnections();
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Brings the service up in phases and records how long each one took, so cold-start regressions
+    show up in the log instead of as a missed foreground-service deadline.
+
+    Critical phases run right away on the calling thread, in the order they are run: the foreground
+    notification and everything a message needs to be received. Deferred phases (the SDKs) are
+    queued with the phases they depend on and start() runs them one after the other on the
+    background executor, in the order they were deferred. A phase that throws is logged and the
+    phases depending on it are skipped, the service carries on without them.
+
+    Times are offsets from the orchestrator's creation, in milliseconds.
+ */
+public class StartupOrchestrator {
+
+    public interface Phase {
+        void run() throws Exception;
+    }
+
+    public enum State { PENDING, RUNNING, DONE, FAILED, SKIPPED }
+
+    private static final class Step {
+        final String name;
+        final Phase phase;
+        final List<Step> dependencies;
+        final boolean deferred;
+        State state = State.PENDING;
+        long startNanos;
+        long endNanos;
+        String thread = "";
+
+        Step(String name, Phase phase, List<Step> dependencies, boolean deferred) {
+            this.name = name;
+            this.phase = phase;
+            this.dependencies = dependencies;
+            this.deferred = deferred;
+        }
+    }
+
+    private final Executor background;
+    private final long createdNanos = System.nanoTime();
+    private final CountDownLatch deferredDone = new CountDownLatch(1);
+
+    // guarded by this
+    private final List<Step> steps = new ArrayList<>();
+    private boolean started;
+    private boolean cancelled;
+
+    public StartupOrchestrator(Executor background) {
+        this.background = background;
+    }
+
+    // Runs a critical phase now, false if it failed
+    public boolean run(String name, Phase phase) {
+        Step step = new Step(name, phase, new ArrayList<>(), false);
+        synchronized (this) {
+            steps.add(step);
+        }
+        return execute(step);
+    }
+
+    // Queues a phase for start(), its dependencies have to be added (or run) before it
+    public synchronized void defer(String name, Phase phase, String... dependsOn) {
+        if (started) {
+            throw new IllegalStateException("Already started, can't defer " + name);
+        }
+        List<Step> dependencies = new ArrayList<>();
+        for (String dependency : dependsOn) {
+            Step found = find(dependency);
+            if (found == null) {
+                throw new IllegalArgumentException(name + " depends on unknown phase " + dependency);
+            }
+            dependencies.add(found);
+        }
+        steps.add(new Step(name, phase, dependencies, true));
+    }
+
+    // Runs the deferred phases on the background executor
+    public void start() {
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+        background.execute(this::runDeferred);
+    }
+
+    // Deferred phases that haven't started yet are skipped, one that is running finishes
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+
+    // Waits for the deferred phases to be done (run, failed or skipped)
+    public boolean awaitDeferred(long timeout, TimeUnit unit) throws InterruptedException {
+        return deferredDone.await(timeout, unit);
+    }
+
+    private void runDeferred() {
+        try {
+            for (Step step : deferredSteps()) {
+                boolean skip;
+                synchronized (this) {
+                    skip = cancelled;
+                    for (Step dependency : step.dependencies) {
+                        skip |= dependency.state != State.DONE;
+                    }
+                    if (skip) {
+                        step.state = State.SKIPPED;
+                    }
+                }
+                if (skip) {
+                    Log.w("BT_SC", "Startup phase " + step.name + " skipped");
+                } else {
+                    execute(step);
+                }
+            }
+            Log.i("BT_SC", report());
+        } finally {
+            deferredDone.countDown();
+        }
+    }
+
+    private synchronized List<Step> deferredSteps() {
+        List<Step> deferred = new ArrayList<>();
+        for (Step step : steps) {
+            if (step.deferred) {
+                deferred.add(step);
+            }
+        }
+        return deferred;
+    }
+
+    private boolean execute(Step step) {
+        synchronized (this) {
+            step.state = State.RUNNING;
+            step.thread = Thread.currentThread().getName();
+            step.startNanos = System.nanoTime();
+        }
+        State result = State.DONE;
+        try {
+            step.phase.run();
+        } catch (Exception e) {
+            Log.e("BT_SC", "Startup phase " + step.name + " failed " + e);
+            result = State.FAILED;
+        }
+        synchronized (this) {
+            step.endNanos = System.nanoTime();
+            step.state = result;
+        }
+        return result == State.DONE;
+    }
+
+    private Step find(String name) {
+        for (Step step : steps) {
+            if (step.name.equals(name)) {
+                return step;
+            }
+        }
+        return null;
+    }
+
+    public synchronized State getState(String name) {
+        Step step = find(name);
+        return step == null ? null : step.state;
+    }
+
+    // How long the phase ran, -1 if it hasn't finished
+    public synchronized double getDurationMillis(String name) {
+        Step step = find(name);
+        if (step == null || step.endNanos == 0) {
+            return -1;
+        }
+        return (step.endNanos - step.startNanos) / 1e6;
+    }
+
+    // Offset of the end of the phase from the orchestrator's creation, -1 if it hasn't finished
+    public synchronized double getEndMillis(String name) {
+        Step step = find(name);
+        if (step == null || step.endNanos == 0) {
+            return -1;
+        }
+        return (step.endNanos - createdNanos) / 1e6;
+    }
+
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder("phase,deferred,state,start_ms,duration_ms,thread\n");
+        for (Step step : steps) {
+            boolean ran = step.endNanos != 0;
+            report.append(String.format(Locale.US, "%s,%b,%s,%.1f,%.1f,%s%n", step.name, step.deferred, step.state,
+                    ran ? (step.startNanos - createdNanos) / 1e6 : -1.0,
+                    ran ? (step.endNanos - step.startNanos) / 1e6 : -1.0, step.thread));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.btscanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+    Observable value for in-process state between the service and the activity, in place of the
+    system-wide APP_FOREGROUND/BACKGROUND broadcasts and the LocalBroadcastManager intents.
+
+    publish() swaps the value in and calls the listeners right away on the publishing thread, nothing
+    is parceled and there is no hop through the system server. The last value is sticky: observe()
+    hands a new listener the current value straight away, so a listener attached late still sees what
+    was published while it was away. Reads and publishes never lock, the listeners are an array that
+    is copied and swapped with a CAS when one is added or removed.
+
+    A listener can be called from the publishing thread and, once, from the thread that calls observe(),
+    values that need an order should carry it (see InAppMessage.seq).
+ */
+public class StateChannel<T> {
+
+    public interface Listener<T> {
+        void onChanged(T value);
+    }
+
+    private static final Listener<?>[] NO_LISTENERS = new Listener<?>[0];
+
+    private final AtomicReference<T> value;
+    private final AtomicReference<Listener<?>[]> listeners = new AtomicReference<>(NO_LISTENERS);
+    private final AtomicLong version = new AtomicLong();
+
+    public StateChannel(T initial) {
+        value = new AtomicReference<>(initial);
+    }
+
+    public T get() {
+        return value.get();
+    }
+
+    // Bumped on every publish
+    public long getVersion() {
+        return version.get();
+    }
+
+    // Sets the value and tells every listener, returns how many were told
+    @SuppressWarnings("unchecked")
+    public int publish(T newValue) {
+        value.set(newValue);
+        version.incrementAndGet();
+        Listener<?>[] current = listeners.get();
+        for (Listener<?> listener : current) {
+            ((Listener<T>) listener).onChanged(newValue);
+        }
+        return current.length;
+    }
+
+    // Adds the listener and calls it with the current value
+    public void observe(Listener<T> listener) {
+        Listener<?>[] current;
+        Listener<?>[] updated;
+        do {
+            current = listeners.get();
+            for (Listener<?> existing : current) {
+                if (existing == listener) {
+                    return;
+                }
+            }
+            updated = new Listener<?>[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = listener;
+        } while (!listeners.compareAndSet(current, updated));
+        listener.onChanged(value.get());
+    }
+
+    public void remove(Listener<T> listener) {
+        Listener<?>[] current;
+        Listener<?>[] updated;
+        do {
+            current = listeners.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == listener) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            updated = current.length == 1 ? NO_LISTENERS : new Listener<?>[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        } while (!listeners.compareAndSet(current, updated));
+    }
+
+    public int getListenerCount() {
+        return listeners.get().length;
+    }
+}
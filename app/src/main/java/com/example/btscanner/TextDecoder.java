@@ -0,0 +1,51 @@
+package com.example.btscanner;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/*
+    Decodes UTF-8 payloads into a CharBuffer that is reused from one message to the next.
+    Only call it when a consumer actually needs the text, binary frames never have to be decoded.
+    The returned CharSequence is only valid until the next decode(), call toString() to keep it.
+    Not thread safe, use one per connection.
+ */
+public class TextDecoder {
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars;
+    private ByteBuffer wrapped;
+    private byte[] wrappedArray;
+
+    public TextDecoder() {
+        this(256);
+    }
+
+    public TextDecoder(int initialCapacity) {
+        chars = CharBuffer.allocate(initialCapacity);
+    }
+
+    public CharSequence decode(byte[] bytes, int offset, int length) {
+        if (bytes != wrappedArray) {
+            // FrameDecoder hands us the same array every time, only wrap it again after it grew
+            wrappedArray = bytes;
+            wrapped = ByteBuffer.wrap(bytes);
+        }
+        wrapped.limit(offset + length).position(offset);
+
+        // UTF-8 never produces more chars than bytes
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(wrapped, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+}
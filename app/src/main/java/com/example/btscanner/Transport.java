@@ -0,0 +1,24 @@
+package com.example.btscanner;
+
+import java.io.IOException;
+
+/*
+    One way messages reach the service: the RFCOMM server, a WebSocket client, ...
+    The service hosts any number of them, all feeding the same inbound pipeline
+    (journal, decode, dispatch). Transports run on their own threads, start() does not block.
+ */
+public interface Transport {
+
+    // Called on the transport's thread for every complete frame, payload is only valid during the call
+    interface Receiver {
+        void onFrame(MessageSource source, int type, byte[] payload, int offset, int length);
+    }
+
+    String getName();
+
+    void start() throws IOException;
+
+    void stop();
+
+    boolean isRunning();
+}
@@ -0,0 +1,140 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Records, per period (an hour on the device), how long the wake lock was held next to the
+    delivery latency of the messages received in that period.
+    With alternate set the policy flips every period between leases only (adaptive) and the lock
+    held for the whole period, so both can be compared on the same watch under the same traffic.
+    Doze postpones the period timer, rows carry their real duration.
+ */
+public class WakeLockExperiment {
+
+    public static final class Row {
+        public final long startMillis;
+        public final long durationMillis;
+        public final boolean alwaysHeld;
+        public final long heldMillis;
+        public final long messages;
+        public final long p50Micros;
+        public final long p99Micros;
+        public final long maxMicros;
+
+        Row(long startMillis, long durationMillis, boolean alwaysHeld, long heldMillis,
+            long messages, long p50Micros, long p99Micros, long maxMicros) {
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+            this.alwaysHeld = alwaysHeld;
+            this.heldMillis = heldMillis;
+            this.messages = messages;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+    }
+
+    private static final int MAX_ROWS = 72;
+
+    private final WakeLockManager wakeLocks;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final long periodMillis;
+    private final boolean alternate;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Deque<Row> rows = new ArrayDeque<>();
+    private boolean running;
+    private long generation;
+    private long periodStart;
+    private long heldAtStart;
+
+    public WakeLockExperiment(WakeLockManager wakeLocks, Scheduler scheduler, Clock clock,
+                              long periodMillis, boolean alternate) {
+        this.wakeLocks = wakeLocks;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.periodMillis = periodMillis;
+        this.alternate = alternate;
+    }
+
+    // The first period runs with leases only
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        wakeLocks.setAlwaysHeld(false);
+        beginPeriod();
+    }
+
+    // Closes the running period as a (shorter) row and goes back to leases only
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        generation++;
+        endPeriod();
+        wakeLocks.setAlwaysHeld(false);
+    }
+
+    // Any thread, end-to-end latency of one delivered message
+    public void recordDelivery(long micros) {
+        latency.record(micros);
+    }
+
+    private void beginPeriod() {
+        periodStart = clock.nowMillis();
+        heldAtStart = wakeLocks.getHeldMillis();
+        latency.reset();
+        long periodGeneration = ++generation;
+        scheduler.schedule(() -> {
+            synchronized (WakeLockExperiment.this) {
+                if (periodGeneration != generation) {
+                    return;
+                }
+                endPeriod();
+                if (alternate) {
+                    wakeLocks.setAlwaysHeld(!wakeLocks.isAlwaysHeld());
+                }
+                beginPeriod();
+            }
+        }, periodMillis);
+    }
+
+    private void endPeriod() {
+        Row row = new Row(periodStart, clock.nowMillis() - periodStart, wakeLocks.isAlwaysHeld(),
+                wakeLocks.getHeldMillis() - heldAtStart, latency.getCount(),
+                latency.getPercentile(50), latency.getPercentile(99), latency.getMax());
+        if (rows.size() == MAX_ROWS) {
+            rows.removeFirst();
+        }
+        rows.addLast(row);
+        Log.i("BT_SC", String.format(Locale.US, "Wake lock %s: held %d of %d ms, %d messages, p99 %.1f ms",
+                row.alwaysHeld ? "always" : "adaptive", row.heldMillis, row.durationMillis, row.messages,
+                row.p99Micros / 1000.0));
+    }
+
+    public synchronized List<Row> getRows() {
+        return new ArrayList<>(rows);
+    }
+
+    // CSV, one line per finished period
+    public synchronized String report() {
+        StringBuilder out = new StringBuilder("start,policy,duration_ms,held_ms,held_pct,messages,p50_ms,p99_ms,max_ms\n");
+        for (Row row : rows) {
+            out.append(String.format(Locale.US, "%tF %<tT,%s,%d,%d,%.1f,%d,%.2f,%.2f,%.2f%n",
+                    row.startMillis, row.alwaysHeld ? "always" : "adaptive", row.durationMillis, row.heldMillis,
+                    row.durationMillis == 0 ? 0 : 100.0 * row.heldMillis / row.durationMillis, row.messages,
+                    row.p50Micros / 1000.0, row.p99Micros / 1000.0, row.maxMicros / 1000.0));
+        }
+        return out.toString();
+    }
+}
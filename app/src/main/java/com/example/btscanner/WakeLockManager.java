@@ -0,0 +1,275 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+    Holds the CPU awake only while there is work in flight, instead of one wake lock held forever.
+    Work is tracked with leases: every place that must not be interrupted by the CPU going to sleep
+    (reading a frame, a journal flush, a pending notification) gets its own Lease and acquires it
+    around the work. The real wake lock is held while at least one lease is.
+
+    Every lease acquire comes with a timeout, a lease that is not released in time is dropped by a
+    sweep so a lost release() can't keep the CPU awake for good.
+    The ledger keeps per reason acquire counts, hold time and expirations.
+
+    With setAlwaysHeld(true) the lock is held permanently (the old behaviour), used by the
+    WakeLockExperiment to compare both.
+ */
+public class WakeLockManager {
+
+    // The platform wake lock, not reference counted, the manager does the counting
+    public interface Lock {
+        void acquire(long timeoutMillis);
+
+        void release();
+    }
+
+    // Reusable, a lease is acquired and released any number of times.
+    // Acquiring a lease that is already held only extends its deadline.
+    public final class Lease {
+        private final String reason;
+        private final long timeoutMillis;
+        private boolean held;
+        private long acquiredAt;
+        private long deadline;
+
+        private Lease(String reason, long timeoutMillis) {
+            this.reason = reason;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public void acquire() {
+            onAcquire(this);
+        }
+
+        public void release() {
+            onRelease(this, false);
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public boolean isHeld() {
+            synchronized (WakeLockManager.this) {
+                return held;
+            }
+        }
+    }
+
+    private static class Ledger {
+        long acquires;
+        long heldMillis;
+        long expired;
+    }
+
+    // re-armed by setAlwaysHeld, the experiment switches policy every hour
+    private static final long ALWAYS_HELD_TIMEOUT_MS = 2 * 60 * 60 * 1000L;
+
+    private final Lock lock;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final Runnable sweepTask = this::sweep;
+
+    private final List<Lease> heldLeases = new ArrayList<>();
+    private final Map<String, Ledger> ledger = new LinkedHashMap<>();
+    private boolean lockHeld;
+    private boolean alwaysHeld;
+    private long lockAcquiredAt;
+    private long lockHeldMillis;
+    private long lockAcquires;
+    // when the platform lock times out on its own, a backstop in case the process wedges
+    private long lockDeadline;
+    private long sweepAt = Long.MAX_VALUE;
+
+    public WakeLockManager(Lock lock, Scheduler scheduler, Clock clock) {
+        this.lock = lock;
+        this.scheduler = scheduler;
+        this.clock = clock;
+    }
+
+    // One lease per place that does work, e.g. per connection or per component
+    public synchronized Lease newLease(String reason, long timeoutMillis) {
+        if (!ledger.containsKey(reason)) {
+            ledger.put(reason, new Ledger());
+        }
+        return new Lease(reason, timeoutMillis);
+    }
+
+    // The sweep is scheduled outside the monitor: the scheduler may block (a full event loop queue)
+    // and the loop thread may need the monitor to get on
+    private void onAcquire(Lease lease) {
+        long sweepDelay;
+        synchronized (this) {
+            long now = clock.nowMillis();
+            lease.deadline = now + lease.timeoutMillis;
+            if (!lease.held) {
+                lease.held = true;
+                lease.acquiredAt = now;
+                heldLeases.add(lease);
+                ledger.get(lease.reason).acquires++;
+                updateLock(now);
+            }
+            if (lockHeld && !alwaysHeld && lease.deadline > lockDeadline) {
+                // twice the lease timeout, so a busy lease re-arms the platform lock at most every timeout
+                lockDeadline = now + lease.timeoutMillis * 2;
+                lock.acquire(lease.timeoutMillis * 2);
+            }
+            sweepDelay = nextSweep(now, lease.deadline);
+        }
+        if (sweepDelay >= 0) {
+            scheduler.schedule(sweepTask, sweepDelay);
+        }
+    }
+
+    private synchronized void onRelease(Lease lease, boolean expired) {
+        if (!lease.held) {
+            return;
+        }
+        long now = clock.nowMillis();
+        lease.held = false;
+        heldLeases.remove(lease);
+        Ledger entry = ledger.get(lease.reason);
+        entry.heldMillis += now - lease.acquiredAt;
+        if (expired) {
+            entry.expired++;
+            Log.w("BT_SC", "Wake lock lease '" + lease.reason + "' expired after " + (now - lease.acquiredAt) + " ms");
+        }
+        updateLock(now);
+    }
+
+    // Drops leases past their deadline and checks again at the next one
+    private void sweep() {
+        List<Lease> expired = new ArrayList<>();
+        long nextDeadline = Long.MAX_VALUE;
+        long sweepDelay = -1;
+        synchronized (this) {
+            long now = clock.nowMillis();
+            if (now < sweepAt) {
+                // an earlier sweep was scheduled in between, that one covers us
+                return;
+            }
+            sweepAt = Long.MAX_VALUE;
+            for (Lease lease : heldLeases) {
+                if (lease.deadline <= now) {
+                    expired.add(lease);
+                } else {
+                    nextDeadline = Math.min(nextDeadline, lease.deadline);
+                }
+            }
+            for (Lease lease : expired) {
+                onRelease(lease, true);
+            }
+            if (nextDeadline != Long.MAX_VALUE) {
+                sweepDelay = nextSweep(now, nextDeadline);
+            }
+        }
+        if (sweepDelay >= 0) {
+            scheduler.schedule(sweepTask, sweepDelay);
+        }
+    }
+
+    // Guarded by this. The delay to schedule a sweep for at with, -1 if one due no later is scheduled already
+    private long nextSweep(long now, long at) {
+        if (at >= sweepAt) {
+            return -1;
+        }
+        sweepAt = at;
+        return at - now;
+    }
+
+    private void updateLock(long now) {
+        boolean wanted = alwaysHeld || !heldLeases.isEmpty();
+        if (wanted == lockHeld) {
+            return;
+        }
+        lockHeld = wanted;
+        if (wanted) {
+            lockAcquires++;
+            lockAcquiredAt = now;
+            // the platform timeout is only a backstop, the sweep releases leases long before
+            long timeout = alwaysHeld ? ALWAYS_HELD_TIMEOUT_MS : maxLeaseTimeout() * 2;
+            lockDeadline = now + timeout;
+            lock.acquire(timeout);
+        } else {
+            lockHeldMillis += now - lockAcquiredAt;
+            lock.release();
+        }
+    }
+
+    private long maxLeaseTimeout() {
+        long max = 0;
+        for (Lease lease : heldLeases) {
+            max = Math.max(max, lease.timeoutMillis);
+        }
+        return max;
+    }
+
+    public synchronized void setAlwaysHeld(boolean alwaysHeld) {
+        this.alwaysHeld = alwaysHeld;
+        long now = clock.nowMillis();
+        if (alwaysHeld && lockHeld) {
+            // already held for a lease, stretch the platform timeout
+            lockDeadline = now + ALWAYS_HELD_TIMEOUT_MS;
+            lock.acquire(ALWAYS_HELD_TIMEOUT_MS);
+        }
+        updateLock(now);
+    }
+
+    public synchronized boolean isAlwaysHeld() {
+        return alwaysHeld;
+    }
+
+    public synchronized boolean isHeld() {
+        return lockHeld;
+    }
+
+    public synchronized int getHeldLeases() {
+        return heldLeases.size();
+    }
+
+    // Total time the platform lock was held, the current hold included
+    public synchronized long getHeldMillis() {
+        return lockHeldMillis + (lockHeld ? clock.nowMillis() - lockAcquiredAt : 0);
+    }
+
+    // Number of times the platform lock was acquired
+    public synchronized long getAcquireCount() {
+        return lockAcquires;
+    }
+
+    public synchronized long getExpiredCount() {
+        long expired = 0;
+        for (Ledger entry : ledger.values()) {
+            expired += entry.expired;
+        }
+        return expired;
+    }
+
+    // Releases everything, e.g. when the service goes away
+    public synchronized void releaseAll() {
+        for (Lease lease : new ArrayList<>(heldLeases)) {
+            onRelease(lease, false);
+        }
+        alwaysHeld = false;
+        updateLock(clock.nowMillis());
+    }
+
+    public synchronized String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "wake lock held %d ms over %d acquires%s%n",
+                getHeldMillis(), lockAcquires, alwaysHeld ? " (always held)" : ""));
+        for (Map.Entry<String, Ledger> entry : ledger.entrySet()) {
+            Ledger value = entry.getValue();
+            out.append(String.format(Locale.US, "  %-14s acquires=%-8d held=%-10d expired=%d%n",
+                    entry.getKey(), value.acquires, value.heldMillis, value.expired));
+        }
+        return out.toString();
+    }
+}
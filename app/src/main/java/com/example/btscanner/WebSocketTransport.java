@@ -0,0 +1,640 @@
+package com.example.btscanner;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    WebSocket (RFC 6455) client on a non-blocking SocketChannel, a single selector thread does the
+    connect, the handshake, all reads and writes and the timers.
+
+    Text messages are handed to the receiver as TYPE_TEXT frames, binary messages carry our own
+    FrameCodec frames (the same bytes a sender writes over RFCOMM) and are decoded first.
+    Fragmented messages are reassembled up to maxPayload.
+
+    Keepalive: after pingIntervalMillis without any inbound bytes a ping goes out, if nothing comes
+    back within pongTimeoutMillis the connection is considered dead. Connect plus handshake have to
+    finish within pongTimeoutMillis too. A lost connection is re-opened after a backoff that starts
+    at minBackoffMillis and doubles up to maxBackoffMillis, a successful handshake resets it.
+
+    Only plain ws:// is supported, the host name is resolved on the selector thread.
+ */
+public class WebSocketTransport implements Transport {
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    private static final int MAX_HANDSHAKE = 8 * 1024;
+    private static final int INITIAL_BUFFER = 16 * 1024;
+    // frames queued by send() while disconnected, the oldest are dropped beyond this
+    private static final int MAX_QUEUED_FRAMES = 1024;
+
+    private enum State { WAITING, CONNECTING, HANDSHAKE, OPEN }
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final String path;
+    private final Receiver receiver;
+    private final long pingIntervalMillis;
+    private final long pongTimeoutMillis;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxPayload;
+
+    private volatile boolean running;
+    private Thread thread;
+    private Selector selector;
+
+    // written by send() on any thread, drained by the selector thread
+    private final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outboundCount = new AtomicInteger();
+
+    // everything below belongs to the selector thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private State state = State.WAITING;
+    private long stateSince;
+    private long nextAttemptAt;
+    private long backoff;
+    private String expectedAccept;
+    private byte[] in = new byte[INITIAL_BUFFER];
+    private ByteBuffer inBuffer = ByteBuffer.wrap(in);
+    private int inStart;
+    private int inEnd;
+    private byte[] message = new byte[0];
+    private int messageLength;
+    private int messageOpcode = -1;
+    private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private long lastReceivedAt;
+    private long lastPingAt;
+    private final FrameDecoder binaryDecoder;
+    private final FrameDecoder.Listener binaryListener;
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile boolean connected;
+    private final AtomicInteger connects = new AtomicInteger();
+    private final AtomicInteger connectAttempts = new AtomicInteger();
+    private volatile long receivedMessages;
+
+    public WebSocketTransport(String name, URI uri, Receiver receiver, long pingIntervalMillis, long pongTimeoutMillis,
+                              long minBackoffMillis, long maxBackoffMillis) {
+        if (!"ws".equals(uri.getScheme())) {
+            throw new IllegalArgumentException("Only ws:// is supported " + uri);
+        }
+        this.name = name;
+        this.host = uri.getHost();
+        this.port = uri.getPort() == -1 ? 80 : uri.getPort();
+        String rawPath = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        this.path = uri.getRawQuery() == null ? rawPath : rawPath + "?" + uri.getRawQuery();
+        this.receiver = receiver;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.pongTimeoutMillis = pongTimeoutMillis;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxPayload = FrameCodec.MAX_PAYLOAD + FrameCodec.HEADER_SIZE + FrameCodec.CRC_SIZE;
+        this.binaryDecoder = new FrameDecoder(FrameCodec.MAX_PAYLOAD);
+        this.binaryListener = (type, payload, offset, length) ->
+                receiver.onFrame(MessageSource.WEBSOCKET, type, payload, offset, length);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        running = true;
+        backoff = minBackoffMillis;
+        thread = new Thread(this::loop, "BT_SC-ws-" + name);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread loopThread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            loopThread = thread;
+        }
+        selector.wakeup();
+        try {
+            loopThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // True between a completed handshake and the connection going away
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Successful handshakes so far, the first connect included
+    public int getConnectCount() {
+        return connects.get();
+    }
+
+    // Connects started, successful or not
+    public int getConnectAttempts() {
+        return connectAttempts.get();
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages;
+    }
+
+    // Queues a message to the server, it goes out once connected. Any thread.
+    public boolean send(byte[] payload, int offset, int length, boolean text) {
+        if (!running) {
+            return false;
+        }
+        outbound.add(encode(text ? OP_TEXT : OP_BINARY, payload, offset, length));
+        if (outboundCount.incrementAndGet() > MAX_QUEUED_FRAMES && outbound.poll() != null) {
+            outboundCount.decrementAndGet();
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    private void loop() {
+        nextAttemptAt = now();
+        try {
+            while (running) {
+                long now = now();
+                if (state == State.WAITING && now >= nextAttemptAt) {
+                    connect(now);
+                }
+                checkTimers(now());
+                if (state == State.OPEN) {
+                    drainOutbound();
+                }
+                selector.select(Math.max(1, nextTimeout(now())));
+                for (SelectionKey selected : selector.selectedKeys()) {
+                    handle(selected);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e("BT_SC", "WebSocket " + name + " selector failed " + e.getMessage());
+        } finally {
+            running = false;
+            closeChannel();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error closing selector " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SelectionKey selected) {
+        if (!selected.isValid() || selected != key) {
+            return;
+        }
+        try {
+            if (selected.isConnectable() && channel.finishConnect()) {
+                onConnected();
+            }
+            if (selected.isValid() && selected.isReadable()) {
+                read();
+            }
+            if (selected.isValid() && key != null && selected.isWritable()) {
+                flushWrites();
+            }
+        } catch (IOException | RuntimeException e) {
+            disconnect(e.getMessage());
+        }
+    }
+
+    private void connect(long now) {
+        connectAttempts.incrementAndGet();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            state = State.CONNECTING;
+            stateSince = now;
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                key = channel.register(selector, SelectionKey.OP_READ);
+                onConnected();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException | RuntimeException e) {
+            disconnect(e.getMessage());
+        }
+    }
+
+    private void onConnected() throws IOException {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String handshakeKey = Base64.getEncoder().encodeToString(nonce);
+        expectedAccept = acceptFor(handshakeKey);
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + ":" + port + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + handshakeKey + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        state = State.HANDSHAKE;
+        stateSince = now();
+        key.interestOps(SelectionKey.OP_READ);
+        queueWrite(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static String acceptFor(String handshakeKey) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((handshakeKey + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void read() throws IOException {
+        while (true) {
+            ensureRoom(1);
+            inBuffer.limit(in.length).position(inEnd);
+            int read = channel.read(inBuffer);
+            if (read < 0) {
+                throw new IOException("Closed by server");
+            }
+            if (read == 0) {
+                return;
+            }
+            inEnd += read;
+            lastReceivedAt = now();
+            if (state == State.HANDSHAKE && !parseHandshake()) {
+                continue;
+            }
+            if (state == State.OPEN) {
+                parseFrames();
+            }
+            if (key == null) {
+                // disconnected while handling a frame
+                return;
+            }
+        }
+    }
+
+    // Returns true once the handshake is complete
+    private boolean parseHandshake() throws IOException {
+        int end = -1;
+        for (int i = inStart; i + 3 < inEnd; i++) {
+            if (in[i] == '\r' && in[i + 1] == '\n' && in[i + 2] == '\r' && in[i + 3] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (inEnd - inStart > MAX_HANDSHAKE) {
+                throw new IOException("Handshake response too long");
+            }
+            return false;
+        }
+        String response = new String(in, inStart, end - inStart, StandardCharsets.ISO_8859_1);
+        inStart = end + 4;
+        String[] lines = response.split("\r\n");
+        if (!lines[0].startsWith("HTTP/1.1 101")) {
+            throw new IOException("Upgrade refused: " + lines[0]);
+        }
+        String accept = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().toLowerCase(Locale.US).equals("sec-websocket-accept")) {
+                accept = lines[i].substring(colon + 1).trim();
+            }
+        }
+        if (!expectedAccept.equals(accept)) {
+            throw new IOException("Bad Sec-WebSocket-Accept " + accept);
+        }
+
+        state = State.OPEN;
+        stateSince = now();
+        lastPingAt = stateSince;
+        backoff = minBackoffMillis;
+        binaryDecoder.reset();
+        messageOpcode = -1;
+        connected = true;
+        Log.i("BT_SC", "WebSocket " + name + " connected to " + host + ":" + port);
+        connects.incrementAndGet();
+        drainOutbound();
+        return true;
+    }
+
+    private void parseFrames() throws IOException {
+        while (key != null) {
+            int available = inEnd - inStart;
+            if (available < 2) {
+                break;
+            }
+            int b0 = in[inStart] & 0xFF;
+            int b1 = in[inStart + 1] & 0xFF;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            int header = 2;
+            if (length == 126) {
+                if (available < 4) {
+                    break;
+                }
+                length = ((in[inStart + 2] & 0xFF) << 8) | (in[inStart + 3] & 0xFF);
+                header = 4;
+            } else if (length == 127) {
+                if (available < 10) {
+                    break;
+                }
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | (in[inStart + 2 + i] & 0xFF);
+                }
+                header = 10;
+            }
+            if (masked) {
+                header += 4;
+            }
+            if (length < 0 || length > maxPayload) {
+                throw new IOException("Frame too large " + length);
+            }
+            int frameSize = header + (int) length;
+            if (available < frameSize) {
+                ensureRoom(frameSize - available);
+                break;
+            }
+            int payloadStart = inStart + header;
+            if (masked) {
+                for (int i = 0; i < length; i++) {
+                    in[payloadStart + i] ^= in[payloadStart - 4 + (i & 3)];
+                }
+            }
+            inStart += frameSize;
+            onFrame(fin, opcode, in, payloadStart, (int) length);
+        }
+        if (inStart == inEnd) {
+            inStart = 0;
+            inEnd = 0;
+        }
+    }
+
+    private void onFrame(boolean fin, int opcode, byte[] data, int offset, int length) throws IOException {
+        switch (opcode) {
+            case OP_PING:
+                queueWrite(encode(OP_PONG, data, offset, length));
+                return;
+            case OP_PONG:
+                return;
+            case OP_CLOSE:
+                queueWrite(encode(OP_CLOSE, data, offset, Math.min(length, 2)));
+                flushWrites();
+                disconnect("Closed by server");
+                return;
+            case OP_TEXT:
+            case OP_BINARY:
+                if (messageOpcode != -1) {
+                    throw new IOException("New message inside a fragmented one");
+                }
+                if (fin) {
+                    deliver(opcode, data, offset, length);
+                } else {
+                    messageOpcode = opcode;
+                    messageLength = 0;
+                    appendFragment(data, offset, length);
+                }
+                return;
+            case OP_CONTINUATION:
+                if (messageOpcode == -1) {
+                    throw new IOException("Continuation without a message");
+                }
+                appendFragment(data, offset, length);
+                if (fin) {
+                    int completeOpcode = messageOpcode;
+                    messageOpcode = -1;
+                    deliver(completeOpcode, message, 0, messageLength);
+                }
+                return;
+            default:
+                throw new IOException("Unknown opcode " + opcode);
+        }
+    }
+
+    private void appendFragment(byte[] data, int offset, int length) throws IOException {
+        if (messageLength + length > maxPayload) {
+            throw new IOException("Message too large");
+        }
+        if (message.length < messageLength + length) {
+            byte[] grown = new byte[Math.min(maxPayload, Math.max(messageLength + length, message.length * 2))];
+            System.arraycopy(message, 0, grown, 0, messageLength);
+            message = grown;
+        }
+        System.arraycopy(data, offset, message, messageLength, length);
+        messageLength += length;
+    }
+
+    private void deliver(int opcode, byte[] data, int offset, int length) throws IOException {
+        receivedMessages++;
+        if (opcode == OP_TEXT) {
+            receiver.onFrame(MessageSource.WEBSOCKET, FrameCodec.TYPE_TEXT, data, offset, length);
+        } else {
+            binaryDecoder.feed(data, offset, length, binaryListener);
+        }
+    }
+
+    // Makes room for extra more bytes after inEnd, compacting first and growing if that is not enough
+    private void ensureRoom(int extra) {
+        if (in.length - inEnd >= extra) {
+            return;
+        }
+        int buffered = inEnd - inStart;
+        if (in.length - buffered < extra) {
+            byte[] grown = new byte[Math.max(in.length * 2, buffered + extra)];
+            System.arraycopy(in, inStart, grown, 0, buffered);
+            in = grown;
+            inBuffer = ByteBuffer.wrap(in);
+        } else {
+            System.arraycopy(in, inStart, in, 0, buffered);
+        }
+        inStart = 0;
+        inEnd = buffered;
+    }
+
+    // Client frames are always masked
+    private byte[] encode(int opcode, byte[] payload, int offset, int length) {
+        int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[header + 4 + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (header == 2) {
+            frame[1] = (byte) (0x80 | length);
+        } else if (header == 4) {
+            frame[1] = (byte) (0x80 | 126);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = (byte) (0x80 | 127);
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+        int mask = random.nextInt();
+        for (int i = 0; i < 4; i++) {
+            frame[header + i] = (byte) (mask >>> (24 - 8 * i));
+        }
+        int payloadStart = header + 4;
+        for (int i = 0; i < length; i++) {
+            frame[payloadStart + i] = (byte) (payload[offset + i] ^ frame[header + (i & 3)]);
+        }
+        return frame;
+    }
+
+    private void drainOutbound() throws IOException {
+        byte[] frame;
+        boolean any = false;
+        while ((frame = outbound.poll()) != null) {
+            outboundCount.decrementAndGet();
+            writeQueue.addLast(ByteBuffer.wrap(frame));
+            any = true;
+        }
+        if (any) {
+            flushWrites();
+        }
+    }
+
+    private void queueWrite(byte[] bytes) throws IOException {
+        writeQueue.addLast(ByteBuffer.wrap(bytes));
+        flushWrites();
+    }
+
+    private void flushWrites() throws IOException {
+        if (key == null) {
+            return;
+        }
+        ByteBuffer head;
+        while ((head = writeQueue.peekFirst()) != null) {
+            channel.write(head);
+            if (head.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.pollFirst();
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void checkTimers(long now) {
+        switch (state) {
+            case CONNECTING:
+            case HANDSHAKE:
+                if (now - stateSince >= pongTimeoutMillis) {
+                    disconnect("Connect timed out");
+                }
+                break;
+            case OPEN:
+                long quiet = now - lastReceivedAt;
+                if (quiet >= pingIntervalMillis + pongTimeoutMillis) {
+                    disconnect("No pong for " + quiet + " ms");
+                } else if (quiet >= pingIntervalMillis && now - lastPingAt >= pingIntervalMillis) {
+                    lastPingAt = now;
+                    try {
+                        queueWrite(encode(OP_PING, new byte[0], 0, 0));
+                    } catch (IOException e) {
+                        disconnect(e.getMessage());
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private long nextTimeout(long now) {
+        switch (state) {
+            case WAITING:
+                return nextAttemptAt - now;
+            case CONNECTING:
+            case HANDSHAKE:
+                return stateSince + pongTimeoutMillis - now;
+            default:
+                long ping = Math.max(lastReceivedAt, lastPingAt) + pingIntervalMillis - now;
+                long dead = lastReceivedAt + pingIntervalMillis + pongTimeoutMillis - now;
+                return Math.min(ping, dead);
+        }
+    }
+
+    private void disconnect(String reason) {
+        boolean wasOpen = state == State.OPEN;
+        closeChannel();
+        state = State.WAITING;
+        connected = false;
+        // right after a working connection retry quickly, the backoff only grows on failed attempts
+        nextAttemptAt = now() + backoff;
+        if (!wasOpen) {
+            backoff = Math.min(Math.max(1, backoff * 2), maxBackoffMillis);
+        }
+        if (running) {
+            Log.i("BT_SC", "WebSocket " + name + " disconnected (" + reason + "), retry in " + (nextAttemptAt - now()) + " ms");
+        }
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e("BT_SC", "Error closing channel " + e.getMessage());
+            }
+            channel = null;
+        }
+        writeQueue.clear();
+        inStart = 0;
+        inEnd = 0;
+        connected = false;
+    }
+}
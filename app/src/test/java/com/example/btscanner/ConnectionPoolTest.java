@@ -0,0 +1,194 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    // Fake RFCOMM connector with a configurable connect() latency
+    static class FakeFactory implements ConnectionPool.Factory {
+        final long connectLatencyMillis;
+        final AtomicInteger connects = new AtomicInteger();
+        final List<LoopbackConnection> connections = new CopyOnWriteArrayList<>();
+        volatile boolean reachable = true;
+
+        FakeFactory(long connectLatencyMillis) {
+            this.connectLatencyMillis = connectLatencyMillis;
+        }
+
+        @Override
+        public Connection connect(String address) throws IOException {
+            connects.incrementAndGet();
+            if (connectLatencyMillis > 0) {
+                try {
+                    Thread.sleep(connectLatencyMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            if (!reachable) {
+                throw new IOException("read failed, socket might closed or timeout");
+            }
+            LoopbackConnection connection = new LoopbackConnection(address, new byte[0]);
+            connections.add(connection);
+            return connection;
+        }
+    }
+
+    private static final byte[] PING = FrameCodec.encode(FrameCodec.TYPE_TEXT, "Hello from bench".getBytes(StandardCharsets.UTF_8), true);
+
+    @Test
+    public void reusesTheConnectionForSubsequentSends() throws IOException {
+        FakeFactory factory = new FakeFactory(0);
+        ConnectionPool pool = new ConnectionPool(factory, 60_000, new FakeClock());
+
+        pool.send("AA:BB", PING);
+        pool.send("AA:BB", PING);
+        pool.send("CC:DD", PING);
+
+        assertEquals(2, factory.connects.get());
+        assertEquals(2, pool.openConnections());
+        assertEquals(2 * PING.length, factory.connections.get(0).written.size());
+    }
+
+    @Test
+    public void evictsConnectionsIdleLongerThanTheTimeout() throws IOException {
+        FakeClock clock = new FakeClock();
+        FakeFactory factory = new FakeFactory(0);
+        ConnectionPool pool = new ConnectionPool(factory, 1_000, clock);
+
+        pool.send("AA:BB", PING);
+        clock.advance(600);
+        pool.send("CC:DD", PING);
+        clock.advance(600);
+
+        assertEquals(1, pool.evictIdle());
+        assertTrue(factory.connections.get(0).closed);
+        assertFalse(factory.connections.get(1).closed);
+        assertEquals(1, pool.openConnections());
+
+        pool.send("AA:BB", PING);
+        assertEquals(3, factory.connects.get());
+    }
+
+    @Test
+    public void reconnectsTransparentlyWhenThePooledConnectionDied() throws IOException {
+        FakeFactory factory = new FakeFactory(0);
+        ConnectionPool pool = new ConnectionPool(factory, 60_000, new FakeClock());
+
+        pool.send("AA:BB", PING);
+        factory.connections.get(0).closed = true; // peer went away
+
+        pool.send("AA:BB", PING);
+        assertEquals(2, factory.connects.get());
+        assertEquals(PING.length, factory.connections.get(1).written.size());
+    }
+
+    @Test
+    public void reportsUnreachableDevicesAndKeepsNoConnection() {
+        FakeFactory factory = new FakeFactory(0);
+        factory.reachable = false;
+        ConnectionPool pool = new ConnectionPool(factory, 60_000, new FakeClock());
+        try {
+            pool.send("AA:BB", PING);
+            fail();
+        } catch (IOException expected) {
+            assertEquals(0, pool.openConnections());
+        }
+    }
+
+    @Test
+    public void heartbeatsGoOutOnIdleConnectionsOnly() throws IOException {
+        FakeClock clock = new FakeClock();
+        FakeFactory factory = new FakeFactory(0);
+        ConnectionPool pool = new ConnectionPool(factory, 60_000, clock);
+
+        pool.send("AA:BB", PING);
+        clock.advance(8_000);
+        pool.send("CC:DD", PING);
+        clock.advance(4_000);
+        assertEquals(0, pool.sendHeartbeats(10_000));
+        // only AA:BB was quiet for 10 s
+        int heartbeat = FrameCodec.frameSize(0, false);
+        assertEquals(PING.length + heartbeat, factory.connections.get(0).written.size());
+        assertEquals(PING.length, factory.connections.get(1).written.size());
+        assertEquals(FrameCodec.TYPE_HEARTBEAT, factory.connections.get(0).written.toByteArray()[PING.length + 1]);
+
+        // a heartbeat is not use, the connection still goes once idle
+        clock.advance(60_000);
+        assertEquals(2, pool.evictIdle());
+
+        // a peer that died while idle is found by the heartbeat
+        pool.send("AA:BB", PING);
+        factory.connections.get(2).closed = true;
+        clock.advance(10_000);
+        assertEquals(1, pool.sendHeartbeats(10_000));
+        assertEquals(0, pool.openConnections());
+    }
+
+    // The receiving service heartbeats back, a connection it went silent on is closed before a message is lost in it
+    @Test
+    public void connectionTheReceiverWentSilentOnIsClosed() throws Exception {
+        FakeClock clock = new FakeClock();
+        FakeSocket socket = new FakeSocket("AA:BB");
+        List<Integer> frames = new CopyOnWriteArrayList<>();
+        ConnectionPool pool = new ConnectionPool(address -> socket, 60_000, clock,
+                (address, type, payload, offset, length) -> frames.add(type));
+
+        pool.send("AA:BB", PING);
+        clock.advance(20_000);
+        socket.feed(FrameCodec.encode(FrameCodec.TYPE_HEARTBEAT, new byte[0], false));
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (frames.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(FrameCodec.TYPE_HEARTBEAT, (int) frames.get(0));
+
+        // 10 s after the receiver's heartbeat
+        clock.advance(10_000);
+        assertEquals(0, pool.sendHeartbeats(10_000));
+        assertEquals(1, pool.openConnections());
+        // 3 intervals without a word
+        clock.advance(20_000);
+        assertEquals(1, pool.sendHeartbeats(10_000));
+        assertEquals(0, pool.openConnections());
+        assertTrue(socket.closed);
+    }
+
+    @Test
+    public void pooledSendsBeatConnectPerMessage() throws IOException {
+        int messages = 40;
+        long connectLatency = 15; // scaled down from the 1-4s we see on real RFCOMM
+
+        FakeFactory perMessageFactory = new FakeFactory(connectLatency);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // what sendBTMessage used to do: connect, write, close
+            Connection connection = perMessageFactory.connect("AA:BB");
+            connection.getOutputStream().write(PING);
+            connection.close();
+        }
+        double perMessageRate = messages / ((System.nanoTime() - start) / 1e9);
+
+        FakeFactory pooledFactory = new FakeFactory(connectLatency);
+        ConnectionPool pool = new ConnectionPool(pooledFactory, 60_000, Clock.SYSTEM);
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            pool.send("AA:BB", PING);
+        }
+        double pooledRate = messages / ((System.nanoTime() - start) / 1e9);
+        pool.close();
+
+        System.out.printf("connect latency %d ms: per-message %.0f msg/s, pooled %.0f msg/s%n",
+                connectLatency, perMessageRate, pooledRate);
+        assertEquals(1, pooledFactory.connects.get());
+        assertTrue(pooledRate > perMessageRate * 5);
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionServerTest {
+
+    @Test
+    public void deliversEveryClientWithBoundedConcurrency() throws Exception {
+        int clients = 12;
+        int maxConnections = 4;
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        ConcurrentHashMap<String, Long> latencies = new ConcurrentHashMap<>();
+        CountDownLatch delivered = new CountDownLatch(clients);
+
+        LoopbackAcceptor acceptor = new LoopbackAcceptor();
+        ConnectionServer server = new ConnectionServer(acceptor, (connection, acceptedAtNanos) -> {
+            int now = inFlight.incrementAndGet();
+            peak.accumulateAndGet(now, Math::max);
+            try {
+                InputStream in = connection.getInputStream();
+                byte[] buffer = new byte[64];
+                int bytes = in.read(buffer);
+                assertTrue(bytes > 0);
+                Thread.sleep(30); // a slow consumer
+                LoopbackConnection loopback = (LoopbackConnection) connection;
+                latencies.put(loopback.address, System.nanoTime() - loopback.createdNanos);
+                delivered.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }, maxConnections);
+        server.start();
+
+        for (int i = 0; i < clients; i++) {
+            acceptor.connect(new LoopbackConnection("client-" + i, ("Hello from " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        server.stop();
+
+        assertEquals(clients, latencies.size());
+        assertTrue("peak " + peak.get(), peak.get() <= maxConnections);
+        assertTrue("clients were served one at a time", peak.get() > 1);
+
+        long[] sorted = new long[clients];
+        int i = 0;
+        for (long nanos : latencies.values()) {
+            sorted[i++] = nanos;
+        }
+        Arrays.sort(sorted);
+        System.out.printf("accept-to-delivery over %d clients, %d workers: p50 %.1f ms, max %.1f ms%n",
+                clients, maxConnections, sorted[clients / 2] / 1e6, sorted[clients - 1] / 1e6);
+    }
+
+    @Test
+    public void stopsAcceptingWhileAllWorkersAreBusy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(5);
+        LoopbackAcceptor acceptor = new LoopbackAcceptor();
+        ConnectionServer server = new ConnectionServer(acceptor, (connection, acceptedAtNanos) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        }, 2);
+        server.start();
+
+        for (int i = 0; i < 5; i++) {
+            acceptor.connect(new LoopbackConnection("client-" + i, new byte[0]));
+        }
+        Thread.sleep(100);
+        assertEquals(2, acceptor.accepted.get());
+        assertEquals(3, acceptor.backlog());
+        assertEquals(2, server.getActiveConnections());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(5, acceptor.accepted.get());
+        server.stop();
+    }
+
+    @Test
+    public void stopUnblocksAcceptAndClosesConnections() throws Exception {
+        LoopbackAcceptor acceptor = new LoopbackAcceptor();
+        LoopbackConnection connection = new LoopbackConnection("client", new byte[]{1});
+        CountDownLatch handled = new CountDownLatch(1);
+        ConnectionServer server = new ConnectionServer(acceptor, (c, acceptedAtNanos) -> handled.countDown(), 1);
+        server.start();
+        acceptor.connect(connection);
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        server.stop();
+        assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(server.isRunning());
+        assertTrue(connection.closed);
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.btscanner;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceRegistryTest {
+
+    private static final long FRAME_MS = 16;
+
+    private FakeClock clock;
+    private FakeScheduler scheduler;
+    private final List<List<ScannedDevice>> published = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        scheduler = new FakeScheduler(clock);
+    }
+
+    private DeviceRegistry registry(int maxDevices) {
+        return new DeviceRegistry(published::add, scheduler, clock, maxDevices, FRAME_MS);
+    }
+
+    private List<ScannedDevice> lastPublished() {
+        return published.get(published.size() - 1);
+    }
+
+    @Test
+    public void repeatedDiscoveryUpdatesInPlace() {
+        DeviceRegistry registry = registry(100);
+        registry.onDiscovered("AA:00", "scanner", -70);
+        registry.onDiscovered("BB:00", null, -80);
+        registry.onDiscovered("AA:00", "scanner", -50);
+        scheduler.advance(FRAME_MS);
+
+        assertEquals(2, registry.size());
+        List<ScannedDevice> devices = lastPublished();
+        assertEquals(2, devices.size());
+        assertEquals("AA:00", devices.get(0).getAddress());
+        assertEquals(-50, devices.get(0).getRssi());
+        assertEquals("BB:00", devices.get(1).getDisplayName());
+    }
+
+    @Test
+    public void discoveryMergesWithPairedDevice() {
+        DeviceRegistry registry = registry(100);
+        registry.addPaired("AA:00", "watch");
+        ScannedDevice device = registry.onDiscovered("AA:00", null, -60);
+
+        assertTrue(device.isPaired());
+        assertEquals("watch", device.getName());
+        assertEquals(-60, device.getRssi());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void burstIsPublishedOncePerFrame() {
+        DeviceRegistry registry = registry(500);
+        for (int i = 0; i < 300; i++) {
+            registry.onDiscovered(String.format("AA:%04d", i % 150), "d" + i, -40 - i % 30);
+        }
+        assertEquals(0, published.size());
+        scheduler.advance(FRAME_MS);
+
+        assertEquals(1, published.size());
+        assertEquals(150, lastPublished().size());
+        assertEquals(1, registry.getPublishedCount());
+
+        // nothing new on the next frame
+        scheduler.advance(FRAME_MS);
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    public void unchangedSightingDoesNotRepublish() {
+        DeviceRegistry registry = registry(100);
+        registry.onDiscovered("AA:00", "scanner", -70);
+        scheduler.advance(FRAME_MS);
+        clock.advance(1000);
+        registry.onDiscovered("AA:00", null, ScannedDevice.NO_RSSI);
+        scheduler.advance(FRAME_MS);
+
+        assertEquals(1, published.size());
+        assertEquals(clock.nowMillis() - FRAME_MS, registry.get("AA:00").getLastSeenMillis());
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenUnpairedDevice() {
+        DeviceRegistry registry = registry(3);
+        registry.addPaired("PP:00", "paired");
+        registry.onDiscovered("AA:00", "a", -50);
+        clock.advance(10);
+        registry.onDiscovered("BB:00", "b", -50);
+        clock.advance(10);
+        // AA seen again, BB is now the stalest unpaired device
+        registry.onDiscovered("AA:00", "a", -55);
+        registry.onDiscovered("CC:00", "c", -50);
+
+        assertEquals(3, registry.size());
+        assertNotNull(registry.get("PP:00"));
+        assertNotNull(registry.get("AA:00"));
+        assertNull(registry.get("BB:00"));
+        assertNotNull(registry.get("CC:00"));
+    }
+
+    @Test
+    public void rowTextShowsNameAddressSignalAndPairing() {
+        assertEquals("Watch\nAA:00  -50 dBm", new ScannedDevice("AA:00", "Watch", -50, false, 0)
+                .appendRowText(new StringBuilder()).toString());
+        assertEquals("BB:00\nBB:00  paired", new ScannedDevice("BB:00", null, ScannedDevice.NO_RSSI, true, 0)
+                .appendRowText(new StringBuilder()).toString());
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.btscanner;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoopTest {
+
+    private EventLoop loop;
+
+    @After
+    public void tearDown() throws Exception {
+        if (loop != null) {
+            loop.shutdown();
+            assertTrue(loop.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void runsTasksInPostOrderOnOneThread() throws Exception {
+        loop = new EventLoop("test-loop", 16);
+        loop.start();
+        List<Integer> order = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            int value = i;
+            loop.execute(() -> {
+                order.add(value);
+                threads.add(Thread.currentThread());
+            });
+        }
+        loop.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) order.get(i));
+            assertEquals("test-loop", threads.get(i).getName());
+        }
+    }
+
+    @Test
+    public void postFailsWhenTheQueueIsFull() throws Exception {
+        loop = new EventLoop("test-loop", 4);
+        loop.start();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        loop.execute(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(loop.post(ran::incrementAndGet));
+        }
+        assertFalse(loop.post(ran::incrementAndGet));
+        assertEquals(1, loop.getRejectedCount());
+        assertEquals(4, loop.getQueueDepth());
+
+        // execute() waits until the loop makes room
+        Thread producer = new Thread(() -> loop.execute(ran::incrementAndGet));
+        producer.start();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+        release.countDown();
+        producer.join(5_000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, loop.getWaitCount());
+
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(5, ran.get());
+    }
+
+    @Test
+    public void timersRunInDueOrderOnTheLoop() throws Exception {
+        loop = new EventLoop("test-loop", 16);
+        loop.start();
+        List<String> fired = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        loop.schedule(() -> {
+            fired.add("late");
+            done.countDown();
+        }, 60);
+        loop.schedule(() -> {
+            fired.add("early");
+            done.countDown();
+            // a timer scheduled from the loop itself
+            loop.schedule(() -> {
+                fired.add("nested");
+                done.countDown();
+            }, 0);
+        }, 20);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("early", fired.get(0));
+        assertEquals("nested", fired.get(1));
+        assertEquals("late", fired.get(2));
+    }
+
+    @Test
+    public void keepsRunningAfterATaskThrows() throws Exception {
+        loop = new EventLoop("test-loop", 16);
+        loop.start();
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            throw new IllegalStateException("boom");
+        });
+        loop.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdownRunsWhatIsQueuedThenRejects() throws Exception {
+        loop = new EventLoop("test-loop", 64);
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            loop.execute(ran::incrementAndGet);
+        }
+        loop.start();
+        loop.shutdown();
+        assertTrue(loop.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(50, ran.get());
+        assertFalse(loop.post(ran::incrementAndGet));
+        // timers are dropped on shutdown, a late one is dropped too instead of throwing at the caller
+        loop.schedule(ran::incrementAndGet, 0);
+        assertEquals(50, ran.get());
+    }
+
+    // Many producers hammering a small queue: nothing is lost, each producer's events stay in order,
+    // and the state only the loop touches needs no locking
+    @Test
+    public void stressManyProducers() throws Exception {
+        int producers = 16;
+        int perProducer = 50_000;
+        loop = new EventLoop("test-loop", 256);
+        loop.start();
+
+        int[] lastSeen = new int[producers];
+        int[] outOfOrder = new int[1];
+        long[] total = new long[1];
+        for (int p = 0; p < producers; p++) {
+            lastSeen[p] = -1;
+        }
+
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    int value = i;
+                    loop.execute(() -> {
+                        if (lastSeen[producer] != value - 1) {
+                            outOfOrder[0]++;
+                        }
+                        lastSeen[producer] = value;
+                        total[0]++;
+                    });
+                }
+            }, "producer-" + p);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join(60_000);
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(done::countDown);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long expected = (long) producers * perProducer;
+        System.out.printf("event loop: %.0f events/s from %d producers, %s", expected / seconds, producers, loop.report());
+        assertEquals(expected, total[0]);
+        assertEquals(0, outOfOrder[0]);
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer - 1, lastSeen[p]);
+        }
+        assertEquals(0, loop.getRejectedCount());
+        assertEquals(0, loop.getQueueDepth());
+        assertTrue(loop.getMaxQueueDepth() <= loop.getCapacity());
+        assertTrue(loop.getProcessedCount() >= expected);
+        assertEquals(expected + 1, loop.getLag().getCount());
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.btscanner;
+
+// Manually advanced Clock for tests
+class FakeClock implements Clock {
+
+    private volatile long now;
+
+    FakeClock() {
+        this(1_000_000L);
+    }
+
+    FakeClock(long start) {
+        now = start;
+    }
+
+    void advance(long millis) {
+        now += millis;
+    }
+
+    @Override
+    public long nowMillis() {
+        return now;
+    }
+}
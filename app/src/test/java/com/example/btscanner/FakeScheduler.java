@@ -0,0 +1,60 @@
+package com.example.btscanner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Scheduler driven by a FakeClock, tasks only run when the test advances time
+class FakeScheduler implements Scheduler {
+
+    private static class Task {
+        final long dueAt;
+        final long order;
+        final Runnable runnable;
+
+        Task(long dueAt, long order, Runnable runnable) {
+            this.dueAt = dueAt;
+            this.order = order;
+            this.runnable = runnable;
+        }
+    }
+
+    final FakeClock clock;
+    private final List<Task> tasks = new ArrayList<>();
+    private long scheduled;
+
+    FakeScheduler(FakeClock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Task(clock.nowMillis() + Math.max(0, delayMillis), scheduled++, task));
+    }
+
+    synchronized int pending() {
+        return tasks.size();
+    }
+
+    // Moves the clock forward, running every task that falls due on the way in time order
+    void advance(long millis) {
+        long target = clock.nowMillis() + millis;
+        while (true) {
+            Task next = null;
+            synchronized (this) {
+                for (Task task : tasks) {
+                    if (task.dueAt <= target && (next == null || task.dueAt < next.dueAt
+                            || (task.dueAt == next.dueAt && task.order < next.order))) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                tasks.remove(next);
+            }
+            clock.advance(next.dueAt - clock.nowMillis());
+            next.runnable.run();
+        }
+        clock.advance(target - clock.nowMillis());
+    }
+}
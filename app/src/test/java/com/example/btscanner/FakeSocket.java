@@ -0,0 +1,106 @@
+package com.example.btscanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Connection with a blocking read like a real socket, for fault injection: the test feeds bytes,
+// lets it go silent (half-open, the read just blocks) or drops the link (the read fails)
+class FakeSocket implements Connection {
+
+    private static final byte[] CLOSED = new byte[0];
+    private static final byte[] DROPPED = new byte[0];
+    private static final byte[] FINISHED = new byte[0];
+
+    final String address;
+    private final BlockingQueue<byte[]> inbound = new LinkedBlockingQueue<>();
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    volatile boolean closed;
+
+    FakeSocket(String address) {
+        this.address = address;
+    }
+
+    // The peer writes these bytes
+    void feed(byte[] bytes) {
+        inbound.add(bytes);
+    }
+
+    // The peer closes its end after the bytes fed so far, the read returns -1
+    void finish() {
+        inbound.add(FINISHED);
+    }
+
+    // The link goes down under the reader, like an RFCOMM read failing when the peer walks off
+    void dropLink() {
+        inbound.add(DROPPED);
+    }
+
+    private final InputStream in = new InputStream() {
+        private byte[] current = new byte[0];
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (position == current.length) {
+                byte[] next;
+                try {
+                    next = inbound.take();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                if (next == CLOSED) {
+                    inbound.add(CLOSED);
+                    throw new IOException("socket closed");
+                }
+                if (next == FINISHED) {
+                    inbound.add(FINISHED);
+                    return -1;
+                }
+                if (next == DROPPED) {
+                    throw new IOException("bt socket closed, read return: -1");
+                }
+                current = next;
+                position = 0;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    };
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+        return written;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return address;
+    }
+
+    // Unblocks a pending read, like BluetoothSocket.close()
+    @Override
+    public void close() {
+        closed = true;
+        inbound.add(CLOSED);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final List<String> received = new ArrayList<>();
+    private final FrameDecoder.Listener collect = (type, payload, offset, length) ->
+            received.add(type + ":" + new String(payload, offset, length, StandardCharsets.UTF_8));
+
+    private static byte[] text(String message, boolean withCrc) {
+        return FrameCodec.encode(FrameCodec.TYPE_TEXT, message.getBytes(StandardCharsets.UTF_8), withCrc);
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void decodesBackToBackFramesFromOneRead() throws IOException {
+        byte[] stream = concat(text("Hello from A", true), text("Hello from B", false), text("", true));
+        FrameDecoder decoder = new FrameDecoder();
+
+        assertEquals(3, decoder.feed(stream, 0, stream.length, collect));
+        assertEquals(Arrays.asList("1:Hello from A", "1:Hello from B", "1:"), received);
+        assertEquals(0, decoder.buffered());
+    }
+
+    @Test
+    public void reassemblesFramesSplitAtEveryByte() throws IOException {
+        byte[] stream = concat(text("first", true), text("second message", true));
+        FrameDecoder decoder = new FrameDecoder();
+
+        for (int i = 0; i < stream.length; i++) {
+            decoder.feed(stream, i, 1, collect);
+        }
+        assertEquals(Arrays.asList("1:first", "1:second message"), received);
+    }
+
+    @Test
+    public void readsMessagesLongerThanTheOldOneKilobyteBuffer() throws IOException {
+        char[] chars = new char[5000];
+        Arrays.fill(chars, 'x');
+        String big = new String(chars);
+        byte[] stream = concat(text(big, true), text("after", true));
+
+        FrameDecoder decoder = new FrameDecoder();
+        assertEquals(2, decoder.readFrom(new TrickleInputStream(stream, 333), collect));
+        assertEquals("1:" + big, received.get(0));
+        assertEquals("1:after", received.get(1));
+    }
+
+    @Test
+    public void reusesItsBufferOnceWarmedUp() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] frame = text("steady state ping", true);
+        decoder.feed(frame, 0, frame.length, collect);
+        int capacity = decoder.capacity();
+
+        for (int i = 0; i < 10_000; i++) {
+            decoder.feed(frame, 0, 5, collect);
+            decoder.feed(frame, 5, frame.length - 5, collect);
+        }
+        assertEquals(capacity, decoder.capacity());
+        assertEquals(10_001, received.size());
+    }
+
+    @Test(expected = FrameFormatException.class)
+    public void rejectsCorruptedPayload() throws IOException {
+        byte[] frame = text("Hello", true);
+        frame[FrameCodec.HEADER_SIZE] ^= 0x20;
+        new FrameDecoder().feed(frame, 0, frame.length, collect);
+    }
+
+    @Test(expected = FrameFormatException.class)
+    public void rejectsOversizedFrames() throws IOException {
+        byte[] frame = text("longer than allowed", false);
+        new FrameDecoder(4).feed(frame, 0, frame.length, collect);
+    }
+
+    @Test(expected = FrameFormatException.class)
+    public void rejectsUnframedLegacyText() throws IOException {
+        byte[] legacy = "Hello from watch\n".getBytes(StandardCharsets.UTF_8);
+        new FrameDecoder().feed(legacy, 0, legacy.length, collect);
+    }
+
+    @Test(expected = FrameFormatException.class)
+    public void rejectsStreamEndingInsideAFrame() throws IOException {
+        byte[] frame = text("Hello", true);
+        new FrameDecoder().readFrom(new ByteArrayInputStream(frame, 0, frame.length - 2), collect);
+    }
+
+    // Returns at most 'chunk' bytes per read, like RFCOMM packets do
+    static class TrickleInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int pos;
+
+        TrickleInputStream(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos == data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunk), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
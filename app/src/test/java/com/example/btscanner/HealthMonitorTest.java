@@ -0,0 +1,325 @@
+package com.example.btscanner;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HealthMonitorTest {
+
+    private static final byte[] HEARTBEAT = FrameCodec.encode(FrameCodec.TYPE_HEARTBEAT, new byte[0], false);
+
+    // Listening socket that can be broken on demand, like Bluetooth being switched off under it
+    private static class FaultyAcceptor implements ConnectionAcceptor {
+        private static final Connection CLOSED = new LoopbackConnection("closed", new byte[0]);
+        private static final Connection FAIL = new LoopbackConnection("fail", new byte[0]);
+
+        private final BlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+        volatile boolean closed;
+
+        void connect(Connection connection) {
+            pending.add(connection);
+        }
+
+        void fail() {
+            pending.add(FAIL);
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            Connection connection;
+            try {
+                connection = pending.take();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            if (connection == CLOSED) {
+                throw new IOException("acceptor closed");
+            }
+            if (connection == FAIL) {
+                throw new IOException("bt socket closed, read return: -1");
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            pending.add(CLOSED);
+        }
+    }
+
+    // Opens FaultyAcceptors, the next failNext opens throw
+    private static class FlakyFactory implements ServerTransport.AcceptorFactory {
+        final AtomicInteger opens = new AtomicInteger();
+        final AtomicInteger failNext = new AtomicInteger();
+        volatile FaultyAcceptor current;
+
+        @Override
+        public ConnectionAcceptor open() throws IOException {
+            opens.incrementAndGet();
+            if (failNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                throw new IOException("Bluetooth is off");
+            }
+            current = new FaultyAcceptor();
+            return current;
+        }
+    }
+
+    private final Map<String, Long> closedAt = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+    private EventLoop loop;
+
+    @After
+    public void tearDown() {
+        if (loop != null) {
+            loop.shutdown();
+        }
+    }
+
+    // Reads frames like the service does, heartbeats only go to the monitor
+    private ConnectionServer.Handler handler(HealthMonitor health) {
+        return (connection, acceptedAtNanos) -> {
+            try {
+                new FrameDecoder().readFrom(connection.getInputStream(), (type, payload, offset, length) -> {
+                    if (type == FrameCodec.TYPE_HEARTBEAT) {
+                        health.onHeartbeat();
+                    } else {
+                        delivered.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+                    }
+                });
+            } finally {
+                closedAt.put(connection.getRemoteAddress(), System.nanoTime());
+            }
+        };
+    }
+
+    private static byte[] text(String text) {
+        return FrameCodec.encode(FrameCodec.TYPE_TEXT, text.getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    // One watch keeps sending heartbeats, the other one goes silent without closing (out of range).
+    // The silent one has to be closed between the deadline and deadline + check interval
+    @Test
+    public void halfOpenConnectionIsClosedWithinTheDeadline() throws Exception {
+        long deadline = 30_000;
+        long checkInterval = 5_000;
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        HealthMonitor health = new HealthMonitor(scheduler, clock, deadline, checkInterval);
+        health.start();
+        FlakyFactory factory = new FlakyFactory();
+        ServerTransport transport = new ServerTransport("rfcomm", factory, handler(health), 4, health, scheduler, Runnable::run,
+                500, 30_000, new Random(1));
+        transport.start();
+
+        FakeSocket alive = new FakeSocket("alive");
+        FakeSocket silent = new FakeSocket("silent");
+        factory.current.connect(alive);
+        factory.current.connect(silent);
+        alive.feed(text("Hello from alive"));
+        silent.feed(text("Hello from silent"));
+        assertNotNull(delivered.poll(5, TimeUnit.SECONDS));
+        assertNotNull(delivered.poll(5, TimeUnit.SECONDS));
+        long lastHeard = clock.nowMillis();
+
+        // time only moves once the workers have read what was fed, so a read can't be stamped late
+        long detectedMillis = -1;
+        for (int step = 1; step <= 20; step++) {
+            scheduler.advance(checkInterval / 2);
+            if (silent.closed && detectedMillis < 0) {
+                detectedMillis = clock.nowMillis() - lastHeard;
+            }
+            if (step % 4 == 0) {
+                long beats = step / 4;
+                alive.feed(HEARTBEAT);
+                waitFor(() -> health.getHeartbeatCount() == beats);
+            }
+        }
+        waitFor(() -> closedAt.containsKey("silent"));
+        System.out.printf("half-open connection closed %d ms after the last frame (deadline %d ms, check every %d ms)%n",
+                detectedMillis, deadline, checkInterval);
+
+        assertTrue("detected after " + detectedMillis, detectedMillis >= deadline);
+        assertTrue("detected after " + detectedMillis, detectedMillis <= deadline + checkInterval);
+        assertFalse(alive.closed);
+        assertNull(closedAt.get("alive"));
+        assertEquals(1, health.getExpiredCount());
+        assertEquals(5, health.getHeartbeatCount());
+        assertEquals(1, health.getWatchedCount());
+        transport.stop();
+    }
+
+    // The receiving side writes heartbeats back on connections it has nothing to say on, so the senders
+    // can find a half-open receiver too
+    @Test
+    public void idleConnectionsGetHeartbeatsBack() throws Exception {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        HealthMonitor health = new HealthMonitor(scheduler, clock, 60_000, 5_000, 10_000);
+        health.start();
+        FakeSocket idle = new FakeSocket("idle");
+        FakeSocket busy = new FakeSocket("busy");
+        health.watch(idle);
+        HealthMonitor.WatchedConnection acknowledging = health.watch(busy);
+        byte[] ack = OutboundQueue.encodeAck(1);
+        for (int i = 0; i < 4; i++) {
+            scheduler.advance(5_000);
+            acknowledging.getOutputStream().write(ack);
+        }
+
+        // the checks at 10 and 20 s found the idle one quiet for the interval, the ACKs kept the other one busy
+        assertEquals(2 * HEARTBEAT.length, idle.written.size());
+        assertEquals(FrameCodec.TYPE_HEARTBEAT, idle.written.toByteArray()[1]);
+        assertEquals(4 * ack.length, busy.written.size());
+        assertEquals(2, health.getHeartbeatsSentCount());
+
+        // a heartbeat that can't be written closes the connection
+        FakeSocket gone = new FakeSocket("gone");
+        health.watch(gone);
+        gone.closed = true;
+        scheduler.advance(10_000);
+        assertEquals(2, health.getWatchedCount());
+        health.stop();
+    }
+
+    @Test
+    public void backoffIsJitteredAndCapped() {
+        ServerTransport transport = new ServerTransport("rfcomm", new FlakyFactory(), (connection, acceptedAtNanos) -> {
+        }, 1, new HealthMonitor(new FakeScheduler(new FakeClock()), new FakeClock(), 1000, 100),
+                new FakeScheduler(new FakeClock()), Runnable::run, 500, 30_000, new Random(21));
+        boolean jittered = false;
+        for (int attempt = 0; attempt < 30; attempt++) {
+            long base = Math.min(30_000, 500L << Math.min(attempt, 20));
+            long delay = transport.getBackoffMillis(attempt);
+            assertTrue(attempt + ": " + delay, delay >= base / 2 && delay <= base);
+            jittered |= delay != base && delay != base / 2;
+        }
+        assertTrue(jittered);
+    }
+
+    // Accept fails (Bluetooth switched off), the first two reopens fail too, the third one works
+    @Test
+    public void listenerIsReopenedWithBackoffAfterAcceptFails() throws Exception {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        HealthMonitor health = new HealthMonitor(scheduler, clock, 30_000, 5_000);
+        FlakyFactory factory = new FlakyFactory();
+        ServerTransport transport = new ServerTransport("rfcomm", factory, handler(health), 2, health, scheduler, Runnable::run,
+                500, 30_000, new Random(3));
+        transport.start();
+        assertTrue(health.isListening());
+        clock.advance(60_000);
+
+        FaultyAcceptor broken = factory.current;
+        factory.failNext.set(2);
+        broken.fail();
+        waitFor(() -> scheduler.pending() == 1);
+        assertTrue(broken.closed);
+        assertFalse(health.isListening());
+        assertFalse(transport.isRunning());
+
+        long downAt = clock.nowMillis();
+        while (!health.isListening()) {
+            scheduler.advance(100);
+        }
+        long recoveredMillis = clock.nowMillis() - downAt;
+        assertEquals(4, factory.opens.get());
+        assertTrue(transport.isRunning());
+        assertEquals(3, health.getFailureCount());
+        assertEquals(1, health.getReconnectCount());
+        // 3 backoffs of at least 250, 500 and 1000 ms, at most 500, 1000, 2000 ms (+ the 100 ms steps)
+        assertTrue("recovered after " + recoveredMillis, recoveredMillis >= 1_750 && recoveredMillis <= 3_600);
+        assertEquals(recoveredMillis * 1000, health.getRecovery().getMax(), recoveredMillis * 1000 * 0.05);
+        // up before the fault, plus what is left of the last 100 ms step
+        assertTrue(health.getUptimeMillis() >= 60_000 && health.getUptimeMillis() <= 60_100);
+
+        // the new socket serves clients
+        FakeSocket socket = new FakeSocket("after");
+        factory.current.connect(socket);
+        socket.feed(text("Hello again"));
+        assertEquals("Hello again", delivered.poll(5, TimeUnit.SECONDS));
+        transport.stop();
+    }
+
+    @Test
+    public void stopCancelsAPendingReopen() throws Exception {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        HealthMonitor health = new HealthMonitor(scheduler, clock, 30_000, 5_000);
+        FlakyFactory factory = new FlakyFactory();
+        ServerTransport transport = new ServerTransport("rfcomm", factory, handler(health), 2, health, scheduler, Runnable::run,
+                500, 30_000, new Random(3));
+        transport.start();
+        factory.current.fail();
+        waitFor(() -> scheduler.pending() == 1);
+
+        transport.stop();
+        scheduler.advance(60_000);
+        assertEquals(1, factory.opens.get());
+        assertFalse(transport.isRunning());
+    }
+
+    // The listening socket breaks 10 times, every time a sender has to get through again within the
+    // backoff bound; on the 5th fault Bluetooth stays off for 3 reopen attempts
+    @Test
+    public void recoversFromRepeatedFaultsWithinBound() throws Exception {
+        long minBackoff = 20;
+        long maxBackoff = 160;
+        loop = new EventLoop("health-test", 64);
+        loop.start();
+        HealthMonitor health = new HealthMonitor(loop, Clock.SYSTEM, 1_000, 100);
+        FlakyFactory factory = new FlakyFactory();
+        ServerTransport transport = new ServerTransport("rfcomm", factory, handler(health), 4, health, loop,
+                task -> new Thread(task, "open").start(), minBackoff, maxBackoff, new Random(7));
+        transport.start();
+
+        LatencyHistogram recovery = new LatencyHistogram();
+        for (int fault = 0; fault < 10; fault++) {
+            FaultyAcceptor broken = factory.current;
+            if (fault == 4) {
+                factory.failNext.set(3);
+            }
+            long faultNanos = System.nanoTime();
+            broken.fail();
+            waitFor(() -> factory.current != broken);
+            FakeSocket socket = new FakeSocket("sender-" + fault);
+            factory.current.connect(socket);
+            socket.feed(text("Hello " + fault));
+            assertEquals("Hello " + fault, delivered.poll(5, TimeUnit.SECONDS));
+            recovery.record((System.nanoTime() - faultNanos) / 1000);
+            socket.close();
+        }
+        System.out.printf("listener recovery over 10 faults: p50 %.1f ms, max %.1f ms; %s", recovery.getPercentile(50) / 1000.0,
+                recovery.getMax() / 1000.0, health.report());
+
+        assertEquals(10, health.getReconnectCount());
+        assertEquals(13, health.getFailureCount());
+        // a single fault is back within the first backoff, 4 backoffs in a row stay under their sum
+        assertTrue("p50 " + recovery.getPercentile(50), recovery.getPercentile(50) < (minBackoff + 100) * 1000);
+        assertTrue("max " + recovery.getMax(), recovery.getMax() < (minBackoff + 2 * minBackoff + 4 * minBackoff + 8 * minBackoff + 400) * 1000);
+        transport.stop();
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.btscanner;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// In-memory stand-in for the Firebase 'orders' reference
+class InMemoryOrderSource implements OrderSource {
+
+    final TreeMap<String, Map<String, Object>> orders = new TreeMap<>();
+    private OrderSource.Listener listener;
+    private OrderSource.CancelledCallback cancelled;
+    private String afterKey;
+    private boolean connected = true;
+    int starts;
+
+    // Like push().setValue(), only delivered while a listener is attached and online
+    void push(String key, String field1) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("field1", field1);
+        orders.put(key, fields);
+        if (listener != null && connected && (afterKey == null || key.compareTo(afterKey) > 0)) {
+            listener.onOrder(key, fields);
+        }
+    }
+
+    // Doze / network loss, pushes made meanwhile are delivered on reconnect
+    void disconnect() {
+        connected = false;
+    }
+
+    // Permission change or expired auth, the listener is dropped like Firebase does
+    void cancel(String reason) {
+        OrderSource.CancelledCallback callback = cancelled;
+        listener = null;
+        cancelled = null;
+        if (callback != null) {
+            callback.onCancelled(reason);
+        }
+    }
+
+    // Firebase re-syncs the whole query on reconnect, which may repeat children we already saw
+    void reconnect() {
+        connected = true;
+        if (listener != null) {
+            deliverFrom(afterKey);
+        }
+    }
+
+    private void deliverFrom(String key) {
+        Map<String, Map<String, Object>> children = key == null ? orders : orders.tailMap(key, false);
+        for (Map.Entry<String, Map<String, Object>> child : new TreeMap<>(children).entrySet()) {
+            listener.onOrder(child.getKey(), child.getValue());
+        }
+    }
+
+    @Override
+    public void fetchLatestKey(LatestKeyCallback callback) {
+        callback.onLatestKey(orders.isEmpty() ? null : orders.lastKey());
+    }
+
+    @Override
+    public void start(String afterKey, Listener listener, CancelledCallback cancelled) {
+        starts++;
+        this.afterKey = afterKey;
+        this.listener = listener;
+        this.cancelled = cancelled;
+        if (connected) {
+            deliverFrom(afterKey);
+        }
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+        cancelled = null;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.btscanner;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InboundPipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void everyFrameTypeIsRoutedOnceAndReliableOnesAcknowledged() throws Exception {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        MessageRouter router = new MessageRouter(InboundPipeline::classify, Runnable::run, 16, 4);
+        List<String> delivered = new ArrayList<>();
+        router.addSink(message -> delivered.add(message.priority + " " + message.getDisplayText()));
+        MessageJournal journal = new MessageJournal(folder.newFolder("journal"), 64 * 1024, 1024 * 1024, 1, 1000);
+        MessageRelay relay = new MessageRelay((address, frame) -> CompletableFuture.completedFuture(null),
+                Collections.<String>emptyList(), 16, 8, 4, clock);
+        ReliableReceiver reliable = new ReliableReceiver(16);
+        InboundPipeline pipeline = new InboundPipeline(router, new DeliveryMetrics(), journal, relay, reliable,
+                new HealthMonitor(scheduler, clock, 30_000, 5_000), new BufferPool(1024, 1),
+                new WakeLockManager(new WakeLockManager.Lock() {
+                    @Override
+                    public void acquire(long timeoutMillis) {
+                    }
+
+                    @Override
+                    public void release() {
+                    }
+                }, scheduler, clock), clock);
+
+        // a relayed frame as a peer would pass it on
+        List<byte[]> relayed = new ArrayList<>();
+        byte[] message = MessageCodec.encodeText("relayed");
+        new MessageRelay((address, frame) -> {
+            relayed.add(frame);
+            return CompletableFuture.completedFuture(null);
+        }, Collections.singletonList("peer"), 16, 8, 4, clock).originate(message, 0, message.length);
+        byte[] reliableFrame = OutboundQueue.encode(new OutboundQueue.Entry(7, "AA", FrameCodec.TYPE_MESSAGE,
+                MessageCodec.encodeText(InboundPipeline.ORDER_PREFIX + "42"), 0));
+        byte[] stream = concat(
+                FrameCodec.encode(FrameCodec.TYPE_TEXT, "status A".getBytes(StandardCharsets.UTF_8), true),
+                FrameCodec.encode(FrameCodec.TYPE_MESSAGE, MessageCodec.encodeText(InboundPipeline.HELLO_PREFIX + "B"), true),
+                relayed.get(0), relayed.get(0),
+                reliableFrame, reliableFrame,
+                FrameCodec.encode(FrameCodec.TYPE_HEARTBEAT, new byte[0], false));
+        LoopbackConnection connection = new LoopbackConnection("AA", stream);
+        pipeline.read(connection, System.nanoTime());
+
+        assertEquals(Arrays.asList("NORMAL status A", "BULK Hello from B", "NORMAL relayed", "URGENT Firebase new: 42"), delivered);
+        // the copy is acknowledged again, the sender's first ACK may have been lost
+        assertArrayEquals(concat(OutboundQueue.encodeAck(7), OutboundQueue.encodeAck(7)), connection.written.toByteArray());
+        assertEquals(1, reliable.getDuplicateCount());
+        assertEquals(1, relay.getDuplicateCount());
+        assertEquals(4, journal.getLastSeq());
+        journal.close();
+    }
+
+    private static InboundPipeline newPipeline(MessageRouter router, MessageJournal journal, ReliableReceiver reliable,
+                                               FakeClock clock) {
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        return new InboundPipeline(router, new DeliveryMetrics(), journal,
+                new MessageRelay((address, frame) -> CompletableFuture.completedFuture(null),
+                        Collections.<String>emptyList(), 16, 8, 4, clock),
+                reliable, new HealthMonitor(scheduler, clock, 30_000, 5_000), new BufferPool(1024, 1),
+                new WakeLockManager(new WakeLockManager.Lock() {
+                    @Override
+                    public void acquire(long timeoutMillis) {
+                    }
+
+                    @Override
+                    public void release() {
+                    }
+                }, scheduler, clock), clock);
+    }
+
+    // A reliable message the journal could not take is neither shown nor acknowledged, nor taken for a copy
+    // when the sender tries again
+    @Test
+    public void reliableMessageIsOnlyAcknowledgedOnceJournaled() throws Exception {
+        FakeClock clock = new FakeClock();
+        MessageRouter router = new MessageRouter(InboundPipeline::classify, Runnable::run, 16, 4);
+        List<String> delivered = new ArrayList<>();
+        router.addSink(message -> delivered.add(message.getDisplayText()));
+        ReliableReceiver reliable = new ReliableReceiver(16);
+        byte[] reliableFrame = OutboundQueue.encode(new OutboundQueue.Entry(9, "AA", FrameCodec.TYPE_MESSAGE,
+                MessageCodec.encodeText(InboundPipeline.ORDER_PREFIX + "43"), 0));
+
+        MessageJournal full = new MessageJournal(folder.newFolder("closed"), 64 * 1024, 1024 * 1024, 1, 1000);
+        full.close();
+        LoopbackConnection first = new LoopbackConnection("AA", reliableFrame);
+        newPipeline(router, full, reliable, clock).read(first, System.nanoTime());
+        assertTrue(delivered.isEmpty());
+        assertEquals(0, first.written.size());
+
+        MessageJournal journal = new MessageJournal(folder.newFolder("journal"), 64 * 1024, 1024 * 1024, 1, 1000);
+        LoopbackConnection retry = new LoopbackConnection("AA", concat(reliableFrame, reliableFrame));
+        newPipeline(router, journal, reliable, clock).read(retry, System.nanoTime());
+        assertEquals(Collections.singletonList(InboundPipeline.ORDER_PREFIX + "43"), delivered);
+        assertArrayEquals(concat(OutboundQueue.encodeAck(9), OutboundQueue.encodeAck(9)), retry.written.toByteArray());
+        assertEquals(1, reliable.getDuplicateCount());
+        assertEquals(1, journal.getLastSeq());
+        journal.close();
+    }
+
+    @Test
+    public void harnessAccountsForEveryMessageAndReplaysItsJournal() throws Exception {
+        File journalDir = folder.newFolder("bench-journal");
+        List<PipelineHarness.Event> events = PipelineHarness.bursts(5_000, 3, 100, 0, 1);
+        PipelineHarness.Result result = new PipelineHarness(MemoryProfile.LOW_RAM, journalDir, 0, false).run(events);
+        System.out.print(result.report());
+
+        assertEquals(0, result.errors.get());
+        // nothing is lost on the way, a message is either delivered or shed under load
+        assertEquals(events.size(), result.getDelivered() + result.getShed());
+        assertTrue(result.latency.getCount() > 0);
+        assertTrue(result.notifications.get() > 0);
+        assertTrue(result.getAllocatedPerMessage() > 0);
+
+        // what was journaled replays as a trace, same messages, same sources
+        List<PipelineHarness.Event> journaled = PipelineHarness.readJournal(journalDir);
+        assertEquals(events.size(), journaled.size());
+        int orders = 0;
+        for (PipelineHarness.Event event : journaled) {
+            if (event.source == MessageSource.FIREBASE) {
+                assertTrue(event.text.startsWith(InboundPipeline.ORDER_PREFIX));
+                orders++;
+            }
+        }
+        assertTrue(orders > 0);
+    }
+
+    @Test
+    public void tracesReplayInRealTime() throws Exception {
+        File trace = folder.newFile("trace.csv");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(trace), StandardCharsets.UTF_8)) {
+            out.write("# timestamp_ms,SOURCE,text\n");
+            out.write("1000,BLUETOOTH,Hello from Watch-01\n");
+            out.write("1000,WEBSOCKET,status Watch-02, caf\u00e9 open\n");
+            out.write("1100,FIREBASE,Firebase new: 42\n");
+            out.write("1150,BLUETOOTH,Hello from Watch-01\n");
+        }
+        List<PipelineHarness.Event> events = PipelineHarness.readTrace(trace);
+        assertEquals(4, events.size());
+        assertEquals("status Watch-02, caf\u00e9 open", events.get(1).text);
+
+        PipelineHarness.Result result = new PipelineHarness(MemoryProfile.STANDARD, null, 1, true).run(events);
+        assertEquals(4, result.getDelivered());
+        assertEquals(4, result.shownInApp.get());
+        assertEquals(1, result.vibrations.get());
+        // paced by the timestamps
+        assertTrue(result.elapsedNanos >= 150_000_000L);
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 10; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(10, histogram.getPercentile(99));
+        assertEquals(10, histogram.getMax());
+        assertEquals(5.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void bucketsStayWithinPrecision() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() & ((1L << 40) - 1);
+            long upper = LatencyHistogram.highestValueIn(LatencyHistogram.bucketOf(value));
+            assertTrue(value + " -> " + upper, upper >= value);
+            assertTrue(value + " -> " + upper, upper - value <= value / 16 + 1);
+        }
+        // bucket boundaries line up
+        for (int bucket = 1; bucket < 500; bucket++) {
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.highestValueIn(bucket - 1) + 1));
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        long p50 = histogram.getPercentile(50);
+        long p99 = histogram.getPercentile(99);
+        assertTrue("p50 " + p50, p50 >= 5_000 && p50 <= 5_000 * 17 / 16);
+        assertTrue("p99 " + p99, p99 >= 9_900 && p99 <= 10_000);
+        assertEquals(10_000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 4;
+        int perThread = 50_000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] recorders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            recorders[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(i % 1000 + offset);
+                }
+            });
+            recorders[t].start();
+        }
+        start.countDown();
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        assertEquals(threads * perThread, histogram.getCount());
+        assertEquals(999 + threads - 1, histogram.getMax());
+    }
+
+    @Test
+    public void metricsKeepDozeApart() {
+        DeliveryMetrics metrics = new DeliveryMetrics();
+        metrics.record(MessageSource.BLUETOOTH, DeliveryStage.TOTAL, 1_000);
+        metrics.setDozing(true);
+        metrics.record(MessageSource.BLUETOOTH, DeliveryStage.TOTAL, 900_000);
+
+        assertEquals(1, metrics.get(MessageSource.BLUETOOTH, DeliveryStage.TOTAL, false).getCount());
+        assertEquals(900_000, metrics.get(MessageSource.BLUETOOTH, DeliveryStage.TOTAL, true).getMax());
+        String report = metrics.report();
+        assertTrue(report, report.contains("awake") && report.contains("doze"));
+        assertTrue(report, !report.contains("FIREBASE"));
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.btscanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Minimal blocking WebSocket server on localhost for the transport tests, one thread per client
+class LocalWebSocketServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+    final List<String> received = new CopyOnWriteArrayList<>();
+    final AtomicInteger handshakes = new AtomicInteger();
+    final AtomicInteger pings = new AtomicInteger();
+    volatile long lastHandshakeNanos;
+    volatile boolean answerPings = true;
+    private volatile boolean closed;
+
+    LocalWebSocketServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::acceptLoop, "test-ws-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    URI uri() {
+        return URI.create("ws://127.0.0.1:" + serverSocket.getLocalPort() + "/updates");
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(() -> serve(socket), "test-ws-client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            String request = readRequest(in);
+            String handshakeKey = null;
+            for (String line : request.split("\r\n")) {
+                if (line.toLowerCase(Locale.US).startsWith("sec-websocket-key:")) {
+                    handshakeKey = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + WebSocketTransport.acceptFor(handshakeKey) + "\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            synchronized (socket) {
+                out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+            }
+            clients.add(socket);
+            lastHandshakeNanos = System.nanoTime();
+            handshakes.incrementAndGet();
+
+            DataInputStream data = new DataInputStream(in);
+            while (true) {
+                int b0 = data.readUnsignedByte();
+                int b1 = data.readUnsignedByte();
+                int opcode = b0 & 0x0F;
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = data.readUnsignedShort();
+                } else if (length == 127) {
+                    length = data.readLong();
+                }
+                byte[] mask = new byte[4];
+                if ((b1 & 0x80) != 0) {
+                    data.readFully(mask);
+                }
+                byte[] payload = new byte[(int) length];
+                data.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+                if (opcode == 0x9) {
+                    pings.incrementAndGet();
+                    if (answerPings) {
+                        send(socket, 0xA, payload, true);
+                    }
+                } else if (opcode == 0x1) {
+                    received.add(new String(payload, StandardCharsets.UTF_8));
+                } else if (opcode == 0x8) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            clients.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Closed during handshake");
+            }
+            request.write(b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : 0;
+        }
+        return new String(request.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    int connectedClients() {
+        return clients.size();
+    }
+
+    void sendText(String text) throws IOException {
+        sendToAll(0x1, text.getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    void sendBinary(byte[] data) throws IOException {
+        sendToAll(0x2, data, true);
+    }
+
+    // Sends the message split into fragments of fragmentSize bytes
+    void sendFragmented(String text, int fragmentSize) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        for (Socket socket : clients) {
+            for (int offset = 0; offset < data.length; offset += fragmentSize) {
+                int length = Math.min(fragmentSize, data.length - offset);
+                byte[] part = new byte[length];
+                System.arraycopy(data, offset, part, 0, length);
+                send(socket, offset == 0 ? 0x1 : 0x0, part, offset + length == data.length);
+            }
+        }
+    }
+
+    // Many messages in one write, the way a busy server batches them
+    void sendTextBurst(String text, int count) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream burst = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            writeFrame(burst, 0x1, data, true);
+        }
+        byte[] bytes = burst.toByteArray();
+        for (Socket socket : clients) {
+            synchronized (socket) {
+                socket.getOutputStream().write(bytes);
+                socket.getOutputStream().flush();
+            }
+        }
+    }
+
+    private void sendToAll(int opcode, byte[] data, boolean fin) throws IOException {
+        for (Socket socket : clients) {
+            send(socket, opcode, data, fin);
+        }
+    }
+
+    private static void send(Socket socket, int opcode, byte[] data, boolean fin) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(data.length + 10);
+        writeFrame(frame, opcode, data, fin);
+        synchronized (socket) {
+            socket.getOutputStream().write(frame.toByteArray());
+            socket.getOutputStream().flush();
+        }
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, int opcode, byte[] data, boolean fin) {
+        out.write((fin ? 0x80 : 0) | opcode);
+        if (data.length < 126) {
+            out.write(data.length);
+        } else if (data.length <= 0xFFFF) {
+            out.write(126);
+            out.write(data.length >>> 8);
+            out.write(data.length);
+        } else {
+            out.write(127);
+            for (int i = 7; i >= 0; i--) {
+                out.write((int) ((long) data.length >>> (8 * i)));
+            }
+        }
+        out.write(data, 0, data.length);
+    }
+
+    // Kills every connection without a close frame, like a dropped network
+    void dropAll() {
+        for (Socket socket : clients) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        dropAll();
+    }
+}
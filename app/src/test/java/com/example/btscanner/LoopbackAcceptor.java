@@ -0,0 +1,43 @@
+package com.example.btscanner;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// In-memory ConnectionAcceptor, simulated clients "connect" by queueing a connection
+class LoopbackAcceptor implements ConnectionAcceptor {
+
+    private static final Connection CLOSED = new LoopbackConnection("closed", new byte[0]);
+
+    private final BlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+    final AtomicInteger accepted = new AtomicInteger();
+
+    void connect(Connection connection) {
+        pending.add(connection);
+    }
+
+    int backlog() {
+        return pending.size();
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+        Connection connection;
+        try {
+            connection = pending.take();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+        if (connection == CLOSED) {
+            throw new IOException("acceptor closed");
+        }
+        accepted.incrementAndGet();
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        pending.add(CLOSED);
+    }
+}
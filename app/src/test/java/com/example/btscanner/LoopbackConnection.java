@@ -0,0 +1,60 @@
+package com.example.btscanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// In-memory Connection for JVM tests, reads from a fixed byte array and records everything written
+class LoopbackConnection implements Connection {
+
+    final String address;
+    final long createdNanos = System.nanoTime();
+    private final InputStream in;
+    final CountingOutputStream written = new CountingOutputStream();
+    volatile boolean closed;
+
+    LoopbackConnection(String address, byte[] inbound) {
+        this(address, new ByteArrayInputStream(inbound));
+    }
+
+    LoopbackConnection(String address, InputStream in) {
+        this.address = address;
+        this.in = in;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+        return written;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return address;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    // Keeps every byte written and how many write calls it took
+    static class CountingOutputStream extends ByteArrayOutputStream {
+        volatile int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Retained heap of the pipeline after N messages and N discovered devices, per MemoryProfile.
+// Everything that grows with traffic is built the way the service and activity build it and
+// pushed to its worst case: the router never drains, the outbox never gets an ACK. The budgets
+// are what a release may use, raise them on purpose or not at all
+public class MemoryFootprintTest {
+
+    private static final int N = 20_000;
+    private static final long LOW_RAM_BUDGET_BYTES = 384 * 1024;
+    private static final long STANDARD_BUDGET_BYTES = 1536 * 1024;
+
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private static long usedHeap() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        // take the lowest of a few full collections, a late finalizer or TLAB can add some noise
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    // Builds and fills everything the profile sizes, returns what has to stay reachable
+    private static List<Object> fill(MemoryProfile profile) {
+        List<Object> retained = new ArrayList<>();
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+
+        // activity: N sightings of different devices, the registry keeps maxDevices
+        DeviceRegistry registry = new DeviceRegistry(devices -> {
+        }, scheduler, clock, profile.maxDevices, 16);
+        for (int i = 0; i < N; i++) {
+            registry.onDiscovered(String.format(Locale.US, "AA:BB:CC:%02X:%02X:%02X", i >> 16 & 0xFF, i >> 8 & 0xFF, i & 0xFF),
+                    "Galaxy Watch " + i, -40 - i % 50);
+            clock.advance(1);
+        }
+        assertEquals(profile.maxDevices, registry.size());
+        retained.add(registry);
+
+        // activity: the outbox full of unacknowledged pings
+        OutboundQueue outbox = new OutboundQueue((address, frame) -> new CompletableFuture<>(), new OutboundQueue.Store() {
+            @Override
+            public void save(OutboundQueue.Entry entry) {
+            }
+
+            @Override
+            public void delete(long id) {
+            }
+
+            @Override
+            public List<OutboundQueue.Entry> load() {
+                return new ArrayList<>();
+            }
+        }, scheduler, clock, profile.outboxCapacity, 2_000, 60_000, 0, new Random(1));
+        for (int i = 0; i < N; i++) {
+            outbox.enqueue("AA:BB:CC:DD:EE:FF", FrameCodec.TYPE_MESSAGE, MessageCodec.encodeText("Hello from watch " + i));
+        }
+        scheduler.advance(0);
+        assertEquals(profile.outboxCapacity, outbox.getPendingCount());
+        retained.add(outbox);
+
+        // service: N distinct messages into a router that never gets to drain
+        EventLoop eventLoop = new EventLoop("footprint", profile.eventQueueCapacity);
+        MessageRouter router = new MessageRouter((source, text) -> PRIORITIES[text.length() % PRIORITIES.length],
+                task -> {
+                }, profile.routerCapacity, 32);
+        SeenSet relaySeen = new SeenSet(profile.relaySeenIds);
+        ReliableReceiver reliable = new ReliableReceiver(profile.reliableWindow);
+        byte[] reliablePayload = new byte[OutboundQueue.HEADER_SIZE];
+        OutputStream acks = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        };
+        List<NotificationDispatcher> dispatchers = new ArrayList<>();
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            dispatchers.add(new NotificationDispatcher((count, lines) -> {
+            }, scheduler, clock, 250, 4, profile.notificationLines));
+        }
+        for (int i = 0; i < N; i++) {
+            String text = "Hello from watch " + i;
+            router.submit(MessageSource.BLUETOOTH, i, text, 0);
+            relaySeen.add(i);
+            OutboundQueue.putLong(reliablePayload, 0, i);
+            reliable.accept(reliablePayload, 0, reliablePayload.length);
+            reliable.acknowledge(reliablePayload, 0, reliablePayload.length, acks);
+            dispatchers.get(i % PRIORITIES.length).post(text);
+        }
+        retained.add(eventLoop);
+        retained.add(router);
+        retained.add(relaySeen);
+        retained.add(reliable);
+        retained.add(dispatchers);
+
+        // service: every connection slot had a sender, their buffers went back to the pool
+        BufferPool buffers = new BufferPool(1024, profile.pooledReceiveBuffers);
+        List<byte[]> inUse = new ArrayList<>();
+        for (int i = 0; i < profile.maxBtConnections; i++) {
+            inUse.add(buffers.acquire());
+            retained.add(new TextDecoder());
+            retained.add(new MessageDecoder());
+        }
+        for (byte[] buffer : inUse) {
+            buffers.release(buffer);
+        }
+        retained.add(buffers);
+        return retained;
+    }
+
+    private static long measure(MemoryProfile profile) throws InterruptedException {
+        // once to load the classes and warm up, then for real
+        fill(profile);
+        long before = usedHeap();
+        List<Object> retained = fill(profile);
+        long after = usedHeap();
+        assertTrue(retained.size() > 0);
+        return after - before;
+    }
+
+    @Test
+    public void retainedHeapStaysWithinTheProfileBudget() throws Exception {
+        long standard = measure(MemoryProfile.STANDARD);
+        long lowRam = measure(MemoryProfile.LOW_RAM);
+        System.out.printf("retained heap after %d messages and %d devices: standard %.0f KB (budget %d KB),"
+                        + " low-ram %.0f KB (budget %d KB)%n", N, N, standard / 1024.0, STANDARD_BUDGET_BYTES / 1024,
+                lowRam / 1024.0, LOW_RAM_BUDGET_BYTES / 1024);
+
+        assertTrue("standard retains " + standard, standard < STANDARD_BUDGET_BYTES);
+        assertTrue("low-ram retains " + lowRam, lowRam < LOW_RAM_BUDGET_BYTES);
+        assertTrue(lowRam < standard);
+    }
+
+    @Test
+    public void trimDropsPooledBuffersAndStaleDevices() {
+        BufferPool buffers = new BufferPool(1024, 3);
+        byte[] first = buffers.acquire();
+        byte[] second = buffers.acquire();
+        buffers.release(first);
+        buffers.release(second);
+        assertEquals(2, buffers.getPooledCount());
+        assertEquals(2, buffers.trim());
+        assertEquals(0, buffers.getPooledCount());
+        // a new one is allocated after a trim
+        buffers.acquire();
+        assertEquals(3, buffers.getAllocatedCount());
+
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        List<List<ScannedDevice>> published = new ArrayList<>();
+        DeviceRegistry registry = new DeviceRegistry(published::add, scheduler, clock, 10, 16);
+        registry.addPaired("00:00:00:00:00:01", "paired");
+        for (int i = 2; i <= 6; i++) {
+            registry.onDiscovered("00:00:00:00:00:0" + i, "watch " + i, -50);
+            clock.advance(1);
+        }
+        // seen again, so it is the most recent one
+        registry.onDiscovered("00:00:00:00:00:02", null, -45);
+        scheduler.advance(16);
+
+        assertEquals(3, registry.trimTo(3));
+        assertEquals(3, registry.size());
+        assertTrue(registry.get("00:00:00:00:00:01") != null);
+        assertTrue(registry.get("00:00:00:00:00:02") != null);
+        assertTrue(registry.get("00:00:00:00:00:06") != null);
+        // paired devices stay whatever the limit
+        assertEquals(2, registry.trimTo(0));
+        assertEquals(1, registry.size());
+        scheduler.advance(16);
+        assertEquals(1, published.get(published.size() - 1).size());
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageCodecTest {
+
+    private static Map<String, Object> order(String field1, long createdAt) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("field1", field1);
+        fields.put(OrderWriter.CREATED_AT, createdAt);
+        return fields;
+    }
+
+    @Test
+    public void pingUsesTheDictionaryPrefix() throws FrameFormatException {
+        byte[] encoded = MessageCodec.encodeText("Hello from Watch-07");
+        // version, prefix key + index, text key + length + "Watch-07"
+        assertEquals(1 + 2 + 2 + 8, encoded.length);
+        assertEquals("Hello from Watch-07", MessageCodec.decodeText(encoded, 0, encoded.length));
+        assertTrue(MessageCodec.decodeFields(encoded, 0, encoded.length).isEmpty());
+    }
+
+    @Test
+    public void textRoundTrips() throws FrameFormatException {
+        String[] texts = {"", "x", "status ok", "Firebase new: ", "Firebase new: 42", "caf\u00e9 \u2603 \ud83d\ude00", "null", "Hello fro"};
+        for (String text : texts) {
+            byte[] encoded = MessageCodec.encodeText(text);
+            assertEquals(text, MessageCodec.decodeText(encoded, 0, encoded.length));
+        }
+        char[] big = new char[100_000];
+        Arrays.fill(big, 'a');
+        String text = new String(big);
+        byte[] encoded = MessageCodec.encodeText(text);
+        assertEquals(text, MessageCodec.decodeText(encoded, 0, encoded.length));
+    }
+
+    @Test
+    public void orderFieldsRoundTripAndRepeatedValuesAreReferenced() throws FrameFormatException {
+        Map<String, Object> fields = order("42", 1_760_000_000_000L);
+        fields.put("note", "42");
+        fields.put("delta", -5);
+        byte[] encoded = MessageCodec.encodeOrder("Firebase new: ", "42", fields);
+        assertEquals("Firebase new: 42", MessageCodec.decodeText(encoded, 0, encoded.length));
+
+        Map<String, Object> decoded = MessageCodec.decodeFields(encoded, 0, encoded.length);
+        assertEquals(Arrays.asList("field1", OrderWriter.CREATED_AT, "note", "delta"), Arrays.asList(decoded.keySet().toArray()));
+        assertEquals("42", decoded.get("field1"));
+        assertEquals(1_760_000_000_000L, decoded.get(OrderWriter.CREATED_AT));
+        assertEquals("42", decoded.get("note"));
+        assertEquals(-5L, decoded.get("delta"));
+
+        // "42" is written once, a copy is a two byte reference to it instead of four bytes
+        byte[] once = MessageCodec.encodeOrder("Firebase new: ", "42", order("43", 1_760_000_000_000L));
+        byte[] twice = MessageCodec.encodeOrder("Firebase new: ", "42", order("42", 1_760_000_000_000L));
+        assertEquals(once.length - 2, twice.length);
+    }
+
+    @Test
+    public void varintsAtTheirBoundaries() throws FrameFormatException {
+        long[] values = {0, 1, -1, 63, -64, 64, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("n", value);
+            byte[] encoded = MessageCodec.encodeOrder("", "", fields);
+            assertEquals(value, MessageCodec.decodeFields(encoded, 0, encoded.length).get("n"));
+        }
+        assertEquals(0, MessageCodec.zigzag(0));
+        assertEquals(1, MessageCodec.zigzag(-1));
+        assertEquals(2, MessageCodec.zigzag(1));
+        assertEquals(-1L, MessageCodec.zigzag(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws FrameFormatException {
+        byte[] known = MessageCodec.encodeText("Hello from A");
+        // field 9 as a number, field 10 as a string, added in front of the known ones
+        byte[] extra = {(byte) (9 << 3 | MessageCodec.WIRE_NUMBER), (byte) 0x96, 0x01,
+                (byte) (10 << 3 | MessageCodec.WIRE_STRING), 2, 'h', 'i'};
+        byte[] message = new byte[known.length + extra.length];
+        message[0] = known[0];
+        System.arraycopy(extra, 0, message, 1, extra.length);
+        System.arraycopy(known, 1, message, 1 + extra.length, known.length - 1);
+        assertEquals("Hello from A", MessageCodec.decodeText(message, 0, message.length));
+    }
+
+    @Test
+    public void malformedMessagesAreRejected() {
+        byte[] good = MessageCodec.encodeText("Hello from Watch-07");
+        byte[][] bad = {
+                {},
+                {2, 0x10, 0},
+                Arrays.copyOf(good, good.length - 1),
+                {1, (byte) (MessageCodec.FIELD_TEXT << 3 | MessageCodec.WIRE_DICT), 100},
+                {1, (byte) (MessageCodec.FIELD_TEXT << 3 | MessageCodec.WIRE_REPEAT), 0},
+                {1, (byte) (MessageCodec.FIELD_TEXT << 3 | 7), 0},
+                {1, 0x10, (byte) 0x80, (byte) 0x80},
+                {1, 0x10, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1},
+        };
+        for (byte[] message : bad) {
+            try {
+                MessageCodec.decodeText(message, 0, message.length);
+                fail("accepted " + Arrays.toString(message));
+            } catch (FrameFormatException expected) {
+                // dropped like a corrupt frame
+            }
+        }
+    }
+
+    @Test
+    public void decoderReusesItsBufferAndDecodesAtAnOffset() throws FrameFormatException {
+        MessageDecoder decoder = new MessageDecoder(4);
+        byte[] encoded = MessageCodec.encodeText("Firebase new: a longer order name");
+        byte[] framed = new byte[encoded.length + 10];
+        System.arraycopy(encoded, 0, framed, 5, encoded.length);
+        int length = decoder.decode(framed, 5, encoded.length);
+        assertEquals("Firebase new: a longer order name", new String(decoder.getText(), 0, length, StandardCharsets.UTF_8));
+        byte[] buffer = decoder.getText();
+
+        byte[] ping = MessageCodec.encodeText("Hello from B");
+        length = decoder.decode(ping, 0, ping.length);
+        assertTrue(buffer == decoder.getText());
+        assertArrayEquals("Hello from B".getBytes(StandardCharsets.UTF_8), Arrays.copyOf(decoder.getText(), length));
+    }
+
+    // What one benchmark iteration does, returns something so the JIT can't drop the work
+    private interface Op {
+        long run(int i) throws Exception;
+    }
+
+    private long blackhole;
+
+    // JMH style: a few warmup iterations, then the mean and spread of the measured ones, in ns/op
+    private double[] measure(Op op) throws Exception {
+        int warmups = 5;
+        int iterations = 10;
+        int opsPerIteration = 200_000;
+        double[] results = new double[iterations];
+        for (int iteration = -warmups; iteration < iterations; iteration++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < opsPerIteration; i++) {
+                blackhole += op.run(i);
+            }
+            if (iteration >= 0) {
+                results[iteration] = (double) (System.nanoTime() - start) / opsPerIteration;
+            }
+        }
+        double mean = 0;
+        for (double result : results) {
+            mean += result;
+        }
+        mean /= iterations;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        return new double[]{mean, Math.sqrt(variance / (iterations - 1))};
+    }
+
+    // Bytes on the wire and encode/decode cost, compact encoding vs the plain UTF-8 text it replaces.
+    // For orders the plain form is the text with the fields appended, which is what it takes to carry them as text
+    @Test
+    public void benchmarkAgainstPlainUtf8() throws Exception {
+        int variants = 64;
+        String[] pings = new String[variants];
+        String[] orders = new String[variants];
+        List<Map<String, Object>> orderFields = new ArrayList<>();
+        for (int i = 0; i < variants; i++) {
+            pings[i] = "Hello from Watch-" + (i % 16 < 10 ? "0" : "") + (i % 16);
+            String field1 = String.valueOf(1000 + i * 37);
+            orderFields.add(order(field1, 1_760_000_000_000L + i * 1234));
+            orders[i] = "Firebase new: " + field1 + "|field1=" + field1 + "|" + OrderWriter.CREATED_AT + "=" + orderFields.get(i).get(OrderWriter.CREATED_AT);
+        }
+
+        long pingPlain = 0;
+        long pingCompact = 0;
+        long orderPlain = 0;
+        long orderCompact = 0;
+        byte[][] pingPlainBytes = new byte[variants][];
+        byte[][] pingCompactBytes = new byte[variants][];
+        byte[][] orderPlainBytes = new byte[variants][];
+        byte[][] orderCompactBytes = new byte[variants][];
+        for (int i = 0; i < variants; i++) {
+            pingPlainBytes[i] = pings[i].getBytes(StandardCharsets.UTF_8);
+            pingCompactBytes[i] = MessageCodec.encodeText(pings[i]);
+            orderPlainBytes[i] = orders[i].getBytes(StandardCharsets.UTF_8);
+            orderCompactBytes[i] = MessageCodec.encodeOrder("Firebase new: ", (String) orderFields.get(i).get("field1"), orderFields.get(i));
+            pingPlain += pingPlainBytes[i].length;
+            pingCompact += pingCompactBytes[i].length;
+            orderPlain += orderPlainBytes[i].length;
+            orderCompact += orderCompactBytes[i].length;
+        }
+        int mask = variants - 1;
+        MessageDecoder decoder = new MessageDecoder();
+
+        double[][] results = {
+                measure(i -> pings[i & mask].getBytes(StandardCharsets.UTF_8).length),
+                measure(i -> MessageCodec.encodeText(pings[i & mask]).length),
+                measure(i -> new String(pingPlainBytes[i & mask], StandardCharsets.UTF_8).length()),
+                measure(i -> {
+                    byte[] message = pingCompactBytes[i & mask];
+                    return new String(decoder.getText(), 0, decoder.decode(message, 0, message.length), StandardCharsets.UTF_8).length();
+                }),
+                measure(i -> orders[i & mask].getBytes(StandardCharsets.UTF_8).length),
+                measure(i -> MessageCodec.encodeOrder("Firebase new: ", (String) orderFields.get(i & mask).get("field1"), orderFields.get(i & mask)).length),
+                measure(i -> new String(orderPlainBytes[i & mask], StandardCharsets.UTF_8).length()),
+                measure(i -> {
+                    byte[] message = orderCompactBytes[i & mask];
+                    return new String(decoder.getText(), 0, decoder.decode(message, 0, message.length), StandardCharsets.UTF_8).length();
+                }),
+        };
+        String[] names = {"ping encode utf8", "ping encode compact", "ping decode utf8", "ping decode compact",
+                "order encode utf8", "order encode compact", "order decode utf8", "order decode compact"};
+        System.out.printf("bytes per message: ping utf8 %.1f compact %.1f, order utf8 %.1f compact %.1f%n",
+                (double) pingPlain / variants, (double) pingCompact / variants,
+                (double) orderPlain / variants, (double) orderCompact / variants);
+        System.out.printf("%-22s %10s %8s%n", "Benchmark", "ns/op", "error");
+        for (int i = 0; i < names.length; i++) {
+            System.out.printf("%-22s %10.1f %8.1f%n", names[i], results[i][0], results[i][1]);
+        }
+
+        assertTrue(pingCompact < pingPlain);
+        assertTrue(orderCompact * 2 < orderPlain);
+        assertTrue(blackhole != 0);
+    }
+}
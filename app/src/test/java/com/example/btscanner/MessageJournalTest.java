@@ -0,0 +1,145 @@
+package com.example.btscanner;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageJournal journal;
+
+    @After
+    public void tearDown() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private MessageJournal open(int segmentBytes, long maxBytes) throws IOException {
+        return new MessageJournal(new File(folder.getRoot(), "journal"), segmentBytes, maxBytes, 32, 50);
+    }
+
+    private static long append(MessageJournal journal, MessageSource source, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return journal.append(source, 1234L, bytes, 0, bytes.length);
+    }
+
+    private static List<String> replay(MessageJournal journal, long afterSeq) {
+        List<String> records = new ArrayList<>();
+        journal.replay(afterSeq, (seq, timestamp, source, payload, offset, length) ->
+                records.add(seq + " " + source + " " + new String(payload, offset, length, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    @Test
+    public void replaysRecordsInOrderAfterTheGivenSeq() throws IOException {
+        journal = open(64 * 1024, 1024 * 1024);
+        assertEquals(1, append(journal, MessageSource.BLUETOOTH, "Hello from A"));
+        assertEquals(2, append(journal, MessageSource.FIREBASE, "Firebase new: 42"));
+        assertEquals(3, append(journal, MessageSource.BLUETOOTH, ""));
+
+        List<String> records = replay(journal, 1);
+        assertEquals(2, records.size());
+        assertEquals("2 FIREBASE Firebase new: 42", records.get(0));
+        assertEquals("3 BLUETOOTH ", records.get(1));
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        journal = open(64 * 1024, 1024 * 1024);
+        for (int i = 1; i <= 100; i++) {
+            append(journal, MessageSource.BLUETOOTH, "message " + i);
+        }
+        journal.close();
+
+        journal = open(64 * 1024, 1024 * 1024);
+        assertEquals(100, journal.getLastSeq());
+        assertEquals(101, append(journal, MessageSource.FIREBASE, "after restart"));
+        List<String> records = replay(journal, 95);
+        assertEquals("96 BLUETOOTH message 96", records.get(0));
+        assertEquals("101 FIREBASE after restart", records.get(5));
+    }
+
+    @Test
+    public void dropsATornTailOnRecovery() throws IOException {
+        journal = open(64 * 1024, 1024 * 1024);
+        append(journal, MessageSource.BLUETOOTH, "kept");
+        append(journal, MessageSource.BLUETOOTH, "torn");
+        journal.close();
+        journal = null;
+
+        // flip a payload byte of the second record, as if the write never fully made it to disk
+        File segment = new File(folder.getRoot(), "journal").listFiles()[0];
+        int secondRecord = MessageJournal.RECORD_HEADER + 4;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(secondRecord + MessageJournal.RECORD_HEADER);
+            file.write('X');
+        }
+
+        journal = open(64 * 1024, 1024 * 1024);
+        assertEquals(1, journal.getLastSeq());
+        assertEquals(2, append(journal, MessageSource.BLUETOOTH, "rewritten"));
+        List<String> records = replay(journal, 0);
+        assertEquals(2, records.size());
+        assertEquals("2 BLUETOOTH rewritten", records.get(1));
+    }
+
+    @Test
+    public void rollsSegmentsAndDropsTheOldestPastMaxBytes() throws IOException {
+        journal = open(4096, 4 * 4096);
+        for (int i = 1; i <= 1000; i++) {
+            append(journal, MessageSource.BLUETOOTH, "order payload number " + i);
+        }
+        assertEquals(4, journal.getSegmentCount());
+
+        List<String> records = replay(journal, 0);
+        assertTrue(records.size() < 1000);
+        assertEquals("1000 BLUETOOTH order payload number 1000", records.get(records.size() - 1));
+
+        // replay from the middle of a segment finds the right record
+        long oldest = Long.parseLong(records.get(0).split(" ")[0]);
+        List<String> tail = replay(journal, oldest + 100);
+        assertEquals((oldest + 101) + " BLUETOOTH order payload number " + (oldest + 101), tail.get(0));
+    }
+
+    @Test
+    public void appendsDoNotWaitForTheDiskAndGetFlushedInGroups() throws Exception {
+        journal = open(1024 * 1024, 8 * 1024 * 1024);
+        byte[] payload = "Hello from Watch-07, order #123456".getBytes(StandardCharsets.UTF_8);
+        int messages = 20_000;
+
+        long start = System.nanoTime();
+        long last = 0;
+        for (int i = 0; i < messages; i++) {
+            last = journal.append(MessageSource.BLUETOOTH, i, payload, 0, payload.length);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("journal appends: %.0f msg/s%n", messages / seconds);
+        assertTrue(messages / seconds > 20_000);
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (journal.getDurableSeq() < last && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(last, journal.getDurableSeq());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMessagesLargerThanASegment() throws IOException {
+        journal = open(4096, 4 * 4096);
+        journal.append(MessageSource.BLUETOOTH, 0, new byte[5000], 0, 5000);
+    }
+}
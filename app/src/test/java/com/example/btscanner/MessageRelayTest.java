@@ -0,0 +1,383 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRelayTest {
+
+    private static final byte[] ORDER = MessageCodec.encodeText("Firebase new: 42");
+
+    // Records what would have been written to each peer
+    private static class RecordingLink implements MessageRelay.Link {
+        final List<String> addresses = new CopyOnWriteArrayList<>();
+        final List<byte[]> frames = new CopyOnWriteArrayList<>();
+        final List<CompletableFuture<Void>> results = new CopyOnWriteArrayList<>();
+        boolean completeRightAway = true;
+
+        @Override
+        public CompletableFuture<Void> send(String address, byte[] frame) {
+            addresses.add(address);
+            frames.add(frame);
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if (completeRightAway) {
+                result.complete(null);
+            }
+            results.add(result);
+            return result;
+        }
+    }
+
+    // The TYPE_RELAY payload inside an encoded frame
+    private static byte[] payloadOf(byte[] frame) {
+        return Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.CRC_SIZE);
+    }
+
+    private static String textOf(byte[] payload) throws FrameFormatException {
+        return MessageCodec.decodeText(payload, MessageRelay.HEADER_SIZE, payload.length - MessageRelay.HEADER_SIZE);
+    }
+
+    @Test
+    public void originatedMessageGoesToEveryPeer() throws FrameFormatException {
+        RecordingLink link = new RecordingLink();
+        MessageRelay relay = new MessageRelay(link, Arrays.asList("A", "B", "C"), 100, 4, 10, new FakeClock());
+        relay.originate(ORDER, 0, ORDER.length);
+
+        assertEquals(Arrays.asList("A", "B", "C"), link.addresses);
+        // one frame shared by all peers
+        assertTrue(link.frames.get(0) == link.frames.get(2));
+        assertEquals(FrameCodec.TYPE_RELAY, link.frames.get(0)[1]);
+        assertEquals("Firebase new: 42", textOf(payloadOf(link.frames.get(0))));
+        assertEquals(4, payloadOf(link.frames.get(0))[16]);
+    }
+
+    @Test
+    public void copiesAreDroppedAndNotSentBack() {
+        RecordingLink origin = new RecordingLink();
+        MessageRelay first = new MessageRelay(origin, Collections.singletonList("B"), 100, 4, 10, new FakeClock());
+        first.originate(ORDER, 0, ORDER.length);
+        byte[] payload = payloadOf(origin.frames.get(0));
+
+        RecordingLink link = new RecordingLink();
+        MessageRelay relay = new MessageRelay(link, Arrays.asList("A", "C", "D"), 100, 4, 10, new FakeClock());
+        assertTrue(relay.accept(payload, 0, payload.length, "A"));
+        assertEquals(Arrays.asList("C", "D"), link.addresses);
+        assertEquals(3, payloadOf(link.frames.get(0))[16]);
+
+        // the same message again, over another peer
+        assertFalse(relay.accept(payload, 0, payload.length, "C"));
+        assertEquals(2, link.addresses.size());
+        assertEquals(1, relay.getDuplicateCount());
+
+        // and our own message coming back to us
+        assertFalse(first.accept(payload, 0, payload.length, "B"));
+    }
+
+    @Test
+    public void sameOrderFromTwoWatchesIsPassedOnOnce() {
+        long id = MessageRelay.orderId("-NqOrder42");
+        assertEquals(id, MessageRelay.orderId("-NqOrder42"));
+        assertTrue(id != MessageRelay.orderId("-NqOrder43"));
+
+        RecordingLink a = new RecordingLink();
+        assertTrue(new MessageRelay(a, Collections.singletonList("C"), 100, 4, 10, new FakeClock()).originate(id, ORDER, 0, ORDER.length));
+        RecordingLink b = new RecordingLink();
+        MessageRelay second = new MessageRelay(b, Collections.singletonList("C"), 100, 4, 10, new FakeClock());
+        assertTrue(second.originate(id, ORDER, 0, ORDER.length));
+
+        RecordingLink link = new RecordingLink();
+        MessageRelay relay = new MessageRelay(link, Arrays.asList("A", "B", "D"), 100, 4, 10, new FakeClock());
+        byte[] fromA = payloadOf(a.frames.get(0));
+        byte[] fromB = payloadOf(b.frames.get(0));
+        assertTrue(relay.accept(fromA, 0, fromA.length, "A"));
+        assertFalse(relay.accept(fromB, 0, fromB.length, "B"));
+        assertEquals(1, relay.getDuplicateCount());
+
+        // a watch that got it over the relay before Firebase told it doesn't send it out again
+        assertFalse(relay.originate(id, ORDER, 0, ORDER.length));
+        assertEquals(Arrays.asList("B", "D"), link.addresses);
+    }
+
+    @Test
+    public void hopCountRunsOut() {
+        RecordingLink link = new RecordingLink();
+        MessageRelay origin = new MessageRelay(link, Collections.singletonList("B"), 100, 1, 10, new FakeClock());
+        origin.originate(ORDER, 0, ORDER.length);
+        byte[] payload = payloadOf(link.frames.get(0));
+
+        RecordingLink next = new RecordingLink();
+        MessageRelay relay = new MessageRelay(next, Arrays.asList("A", "C"), 100, 1, 10, new FakeClock());
+        // shown, but not passed on
+        assertTrue(relay.accept(payload, 0, payload.length, "A"));
+        assertTrue(next.addresses.isEmpty());
+    }
+
+    @Test
+    public void slowPeerOnlyLosesItsOwnCopies() {
+        RecordingLink link = new RecordingLink();
+        link.completeRightAway = false;
+        MessageRelay relay = new MessageRelay(link, Arrays.asList("fast", "slow"), 100, 4, 2, new FakeClock());
+        for (int i = 0; i < 5; i++) {
+            relay.originate(ORDER, 0, ORDER.length);
+            // the fast peer keeps up
+            for (int j = 0; j < link.results.size(); j++) {
+                if ("fast".equals(link.addresses.get(j))) {
+                    link.results.get(j).complete(null);
+                }
+            }
+        }
+        assertEquals(0, relay.getPending("fast"));
+        assertEquals(2, relay.getPending("slow"));
+        assertEquals(3, relay.getDroppedCount());
+        assertEquals(5, Collections.frequency(link.addresses, "fast"));
+    }
+
+    @Test
+    public void unreachablePeerGetsItsFramesOnceItIsBack() throws FrameFormatException {
+        RecordingLink link = new RecordingLink();
+        link.completeRightAway = false;
+        MessageRelay relay = new MessageRelay(link, Collections.singletonList("B"), 100, 4, 3, new FakeClock());
+        for (int i = 0; i < 4; i++) {
+            relay.originate(ORDER, 0, ORDER.length);
+        }
+        // the peer is out of range, both writes fail
+        link.results.get(0).completeExceptionally(new IOException("unreachable"));
+        link.results.get(1).completeExceptionally(new IOException("unreachable"));
+        assertEquals(2, relay.getBacklog("B"));
+        assertEquals(3, relay.getPending("B"));
+        assertEquals(1, relay.getDroppedCount());
+
+        // the third one gets through, the backlog follows it
+        link.completeRightAway = true;
+        link.results.get(2).complete(null);
+        assertEquals(0, relay.getBacklog("B"));
+        assertEquals(0, relay.getPending("B"));
+        assertEquals(2, relay.getRetriedCount());
+        assertEquals(5, link.addresses.size());
+        assertTrue(link.frames.get(3) == link.frames.get(0));
+        assertTrue(link.frames.get(4) == link.frames.get(1));
+    }
+
+    @Test
+    public void backlogIsSentWhenThePeerReachesUs() {
+        RecordingLink link = new RecordingLink();
+        link.completeRightAway = false;
+        MessageRelay relay = new MessageRelay(link, Arrays.asList("B", "C"), 100, 4, 10, new FakeClock());
+        relay.originate(ORDER, 0, ORDER.length);
+        link.results.get(0).completeExceptionally(new IOException("unreachable"));
+        link.results.get(1).complete(null);
+        assertEquals(1, relay.getBacklog("B"));
+
+        RecordingLink other = new RecordingLink();
+        new MessageRelay(other, Collections.singletonList("A"), 100, 4, 10, new FakeClock()).originate(ORDER, 0, ORDER.length);
+        byte[] payload = payloadOf(other.frames.get(0));
+        link.completeRightAway = true;
+        assertTrue(relay.accept(payload, 0, payload.length, "B"));
+        assertEquals(0, relay.getBacklog("B"));
+        // the retried frame, then the new message to C only
+        assertEquals(Arrays.asList("B", "C", "B", "C"), link.addresses);
+    }
+
+    @Test
+    public void seenSetForgetsTheLeastRecentlySeen() {
+        SeenSet seen = new SeenSet(3);
+        assertTrue(seen.add(1));
+        assertTrue(seen.add(2));
+        assertTrue(seen.add(3));
+        // 1 came in again, so 2 is now the oldest
+        assertFalse(seen.add(1));
+        assertTrue(seen.add(4));
+        assertTrue(seen.contains(1));
+        assertFalse(seen.contains(2));
+        assertEquals(3, seen.size());
+        assertEquals(1, seen.getEvictedCount());
+    }
+
+    // A node of the simulated mesh: a relay with a MessageSender over in-memory links
+    private static class Node {
+        final String address;
+        MessageRelay relay;
+        MessageSender sender;
+        final Map<Long, Long> arrivals = new ConcurrentHashMap<>();
+        final AtomicInteger shown = new AtomicInteger();
+
+        Node(String address) {
+            this.address = address;
+        }
+
+        void receive(byte[] payload, String from) {
+            if (relay.accept(payload, 0, payload.length, from)) {
+                arrivals.put(MessageRelay.getId(payload, 0), System.nanoTime());
+                shown.incrementAndGet();
+            }
+        }
+    }
+
+    // Writes go to the target node after the link's latency, on the writing sender thread
+    private static class MeshLink implements Connection {
+        final Node from;
+        final Node to;
+        final long latencyMillis;
+
+        MeshLink(Node from, Node to, long latencyMillis) {
+            this.from = from;
+            this.to = to;
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    try {
+                        Thread.sleep(latencyMillis);
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                    // whole frames only, possibly several back to back
+                    int pos = off;
+                    while (pos < off + len) {
+                        int length = ((b[pos + 3] & 0xFF) << 24) | ((b[pos + 4] & 0xFF) << 16) | ((b[pos + 5] & 0xFF) << 8) | (b[pos + 6] & 0xFF);
+                        boolean crc = (b[pos + 2] & FrameCodec.FLAG_CRC) != 0;
+                        to.receive(Arrays.copyOfRange(b, pos + FrameCodec.HEADER_SIZE, pos + FrameCodec.HEADER_SIZE + length), from.address);
+                        pos += FrameCodec.frameSize(length, crc);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return to.address;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // 20 watches in a ring with a random chord from each, ~4 links per watch, 3 ms per link and one
+    // watch that takes 150 ms per write. 20 orders enter the mesh at random watches, every watch
+    // has to show each of them exactly once
+    @Test
+    public void twentyNodeMeshPropagation() throws Exception {
+        int size = 20;
+        int messages = 20;
+        long linkMillis = 3;
+        long slowMillis = 150;
+        int slowNode = 7;
+        Random random = new Random(18);
+
+        List<Node> nodes = new ArrayList<>();
+        List<Set<Integer>> neighbours = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            nodes.add(new Node("node-" + i));
+            neighbours.add(new TreeSet<>());
+        }
+        for (int i = 0; i < size; i++) {
+            int next = (i + 1) % size;
+            int chord = (i + 2 + random.nextInt(size - 3)) % size;
+            neighbours.get(i).add(next);
+            neighbours.get(next).add(i);
+            neighbours.get(i).add(chord);
+            neighbours.get(chord).add(i);
+        }
+        Map<String, Node> byAddress = new ConcurrentHashMap<>();
+        for (Node node : nodes) {
+            byAddress.put(node.address, node);
+        }
+        for (int i = 0; i < size; i++) {
+            Node node = nodes.get(i);
+            List<String> peers = new ArrayList<>();
+            for (int neighbour : neighbours.get(i)) {
+                peers.add(nodes.get(neighbour).address);
+            }
+            ConnectionPool pool = new ConnectionPool(address -> {
+                Node to = byAddress.get(address);
+                return new MeshLink(node, to, node == nodes.get(slowNode) ? slowMillis : linkMillis);
+            }, 60_000, Clock.SYSTEM);
+            node.sender = new MessageSender(pool, peers.size());
+            node.relay = new MessageRelay(node.sender::send, peers, 1024, 8, 64, Clock.SYSTEM);
+        }
+
+        Map<Long, Long> originated = new ConcurrentHashMap<>();
+        for (int m = 0; m < messages; m++) {
+            Node origin = nodes.get(random.nextInt(size));
+            byte[] text = MessageCodec.encodeText("Firebase new: " + m);
+            long start = System.nanoTime();
+            long id = origin.relay.originate(text, 0, text.length);
+            originated.put(id, start);
+            origin.arrivals.put(id, start);
+            origin.shown.incrementAndGet();
+            Thread.sleep(10);
+        }
+
+        long deadline = System.currentTimeMillis() + 20_000;
+        for (Node node : nodes) {
+            while (node.arrivals.size() < messages && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+
+        LatencyHistogram propagation = new LatencyHistogram();
+        LatencyHistogram lastNode = new LatencyHistogram();
+        long duplicates = 0;
+        long forwarded = 0;
+        for (Node node : nodes) {
+            assertEquals(node.address, messages, node.arrivals.size());
+            assertEquals(node.address, messages, node.shown.get());
+            duplicates += node.relay.getDuplicateCount();
+            forwarded += node.relay.getForwardedCount();
+            assertEquals(0, node.relay.getDroppedCount());
+        }
+        for (Map.Entry<Long, Long> message : originated.entrySet()) {
+            long slowest = 0;
+            for (Node node : nodes) {
+                long micros = (node.arrivals.get(message.getKey()) - message.getValue()) / 1000;
+                propagation.record(micros);
+                slowest = Math.max(slowest, micros);
+            }
+            lastNode.record(slowest);
+        }
+        System.out.printf("20-node mesh: propagation p50 %.1f ms p99 %.1f ms, all nodes reached p50 %.1f ms max %.1f ms,"
+                        + " %d frames sent, %d copies dropped%n",
+                propagation.getPercentile(50) / 1000.0, propagation.getPercentile(99) / 1000.0,
+                lastNode.getPercentile(50) / 1000.0, lastNode.getMax() / 1000.0, forwarded, duplicates);
+
+        // the slow watch doesn't hold the rest of the mesh up, the messages go round it
+        assertTrue("p50 " + propagation.getPercentile(50), propagation.getPercentile(50) < slowMillis * 1000);
+
+        for (Node node : nodes) {
+            node.sender.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRouterTest {
+
+    // Runs the drain only when the test says so
+    private static class ManualExecutor implements java.util.concurrent.Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static MessagePriority classify(MessageSource source, String text) {
+        if (source == MessageSource.FIREBASE) {
+            return MessagePriority.URGENT;
+        }
+        return text.startsWith("Hello from ") ? MessagePriority.BULK : MessagePriority.NORMAL;
+    }
+
+    private final List<RoutedMessage> delivered = new ArrayList<>();
+
+    @Test
+    public void urgentMessagesGoFirst() {
+        ManualExecutor executor = new ManualExecutor();
+        MessageRouter router = new MessageRouter(MessageRouterTest::classify, executor, 100, 10);
+        router.addSink(delivered::add);
+
+        router.submit(MessageSource.BLUETOOTH, 1, "Hello from A", 0);
+        router.submit(MessageSource.BLUETOOTH, 2, "status ok", 0);
+        router.submit(MessageSource.FIREBASE, 3, "Firebase new: 7", 0);
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+
+        assertEquals(3, delivered.size());
+        assertEquals(MessagePriority.URGENT, delivered.get(0).priority);
+        assertEquals(MessagePriority.NORMAL, delivered.get(1).priority);
+        assertEquals(MessagePriority.BULK, delivered.get(2).priority);
+    }
+
+    @Test
+    public void identicalBulkMessagesAreCoalescedWhileQueued() {
+        ManualExecutor executor = new ManualExecutor();
+        MessageRouter router = new MessageRouter(MessageRouterTest::classify, executor, 100, 10);
+        router.addSink(delivered::add);
+
+        for (int i = 1; i <= 5; i++) {
+            router.submit(MessageSource.BLUETOOTH, i, "Hello from A", 0);
+        }
+        router.submit(MessageSource.BLUETOOTH, 6, "Hello from B", 0);
+        // same text over another transport is kept apart
+        router.submit(MessageSource.WEBSOCKET, 7, "Hello from A", 0);
+        executor.runAll();
+
+        assertEquals(3, delivered.size());
+        assertEquals(5, delivered.get(0).getCount());
+        assertEquals(5, delivered.get(0).getSeq());
+        assertEquals("Hello from A (x5)", delivered.get(0).getDisplayText());
+        assertEquals(4, router.getCoalesced(MessagePriority.BULK));
+        assertEquals(7, router.getDelivered(MessagePriority.BULK));
+
+        // once delivered a new one starts a new entry
+        router.submit(MessageSource.BLUETOOTH, 8, "Hello from A", 0);
+        executor.runAll();
+        assertEquals(1, delivered.get(3).getCount());
+    }
+
+    @Test
+    public void lowestPriorityIsShedWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        MessageRouter router = new MessageRouter(MessageRouterTest::classify, executor, 3, 10);
+        router.addSink(delivered::add);
+
+        router.submit(MessageSource.BLUETOOTH, 1, "Hello from A", 0);
+        router.submit(MessageSource.BLUETOOTH, 2, "status 1", 0);
+        router.submit(MessageSource.BLUETOOTH, 3, "status 2", 0);
+        // full: the bulk one goes, then the oldest normal one
+        router.submit(MessageSource.FIREBASE, 4, "order 1", 0);
+        router.submit(MessageSource.FIREBASE, 5, "order 2", 0);
+        // full of higher priority messages, the new bulk one is dropped
+        router.submit(MessageSource.BLUETOOTH, 6, "Hello from B", 0);
+        executor.runAll();
+
+        assertEquals(3, delivered.size());
+        assertEquals("order 1", delivered.get(0).text);
+        assertEquals("order 2", delivered.get(1).text);
+        assertEquals("status 2", delivered.get(2).text);
+        assertEquals(2, router.getShed(MessagePriority.BULK));
+        assertEquals(1, router.getShed(MessagePriority.NORMAL));
+        assertEquals(0, router.getShed(MessagePriority.URGENT));
+    }
+
+    @Test
+    public void sinksAreTriedInOrderUntilOneDelivers() {
+        ManualExecutor executor = new ManualExecutor();
+        MessageRouter router = new MessageRouter(MessageRouterTest::classify, executor, 100, 10);
+        List<String> calls = new ArrayList<>();
+        router.addSink(MessagePriority.URGENT, message -> {
+            calls.add("vibrate");
+            return false;
+        });
+        router.addSink(message -> {
+            throw new IllegalStateException("broken sink");
+        });
+        router.addSink(message -> {
+            calls.add("notify " + message.text);
+            return true;
+        });
+        router.addSink(message -> {
+            calls.add("never");
+            return true;
+        });
+        boolean[] seen = new boolean[1];
+        router.setDeliveryListener((message, done, doneNanos) -> seen[0] = done);
+
+        router.submit(MessageSource.FIREBASE, 1, "order", 0);
+        router.submit(MessageSource.BLUETOOTH, 2, "status", 0);
+        executor.runAll();
+
+        assertEquals(3, calls.size());
+        assertEquals("vibrate", calls.get(0));
+        assertEquals("notify order", calls.get(1));
+        assertEquals("notify status", calls.get(2));
+        assertTrue(seen[0]);
+        assertEquals(1, router.getDelivered(MessagePriority.URGENT));
+    }
+
+    @Test
+    public void drainsInBatches() {
+        ManualExecutor executor = new ManualExecutor();
+        MessageRouter router = new MessageRouter(MessageRouterTest::classify, executor, 100, 4);
+        router.addSink(delivered::add);
+        for (int i = 0; i < 10; i++) {
+            router.submit(MessageSource.BLUETOOTH, i, "status " + i, 0);
+        }
+        executor.tasks.remove(0).run();
+        assertEquals(4, delivered.size());
+        // the rest is left for the next turn
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(10, delivered.size());
+        assertEquals(0, router.getQueued());
+    }
+
+    // A burst of pings and status messages from several senders, with an order every 20 ms in
+    // between, and sinks that take 150 us per message (about what a notify() costs).
+    // In arrival order the orders wait behind the whole burst, routed they go straight through
+    @Test
+    public void loadTestUrgentOrdersStayFastUnderABurst() throws Exception {
+        LatencyHistogram fifo = runLoad(false);
+        LatencyHistogram routed = runLoad(true);
+        System.out.printf("urgent order latency under burst: in arrival order p50 %.1f ms p99 %.1f ms max %.1f ms,"
+                        + " routed p50 %.2f ms p99 %.2f ms max %.2f ms%n",
+                fifo.getPercentile(50) / 1000.0, fifo.getPercentile(99) / 1000.0, fifo.getMax() / 1000.0,
+                routed.getPercentile(50) / 1000.0, routed.getPercentile(99) / 1000.0, routed.getMax() / 1000.0);
+
+        assertTrue("routed max " + routed.getMax() + " us", routed.getMax() < 1_000_000);
+        assertTrue(routed.getPercentile(99) < fifo.getPercentile(99));
+    }
+
+    private LatencyHistogram runLoad(boolean prioritized) throws Exception {
+        int senders = 4;
+        int perSender = 3_000;
+        int orders = 50;
+        EventLoop loop = new EventLoop("test-loop", 1024);
+        loop.start();
+        // without priorities and shedding every message is handled in arrival order, like before
+        MessageRouter router = prioritized
+                ? new MessageRouter(MessageRouterTest::classify, loop, 256, 32)
+                : new MessageRouter((source, text) -> MessagePriority.NORMAL, loop, Integer.MAX_VALUE, 32);
+        LatencyHistogram urgentLatency = new LatencyHistogram();
+        CountDownLatch ordersDone = new CountDownLatch(orders);
+        router.addSink(message -> {
+            long end = System.nanoTime() + 150_000;
+            while (System.nanoTime() < end) {
+                // busy, like a notify() call
+            }
+            return true;
+        });
+        router.setDeliveryListener((message, done, doneNanos) -> {
+            if (message.source == MessageSource.FIREBASE) {
+                urgentLatency.record((doneNanos - message.receivedNanos) / 1000);
+                ordersDone.countDown();
+            }
+        });
+
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            int sender = s;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perSender; i++) {
+                    // half pings (a few distinct ones), half status messages
+                    String text = (i & 1) == 0 ? "Hello from Watch-0" + (i % 8) : "status " + sender + "/" + i;
+                    router.submit(MessageSource.BLUETOOTH, i, text, System.nanoTime());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (int i = 0; i < orders; i++) {
+            router.submit(MessageSource.FIREBASE, i, "Firebase new: " + i, System.nanoTime());
+            Thread.sleep(20);
+        }
+        for (Thread thread : threads) {
+            thread.join(30_000);
+        }
+        assertTrue(ordersDone.await(30, TimeUnit.SECONDS));
+        loop.shutdown();
+        assertTrue(loop.awaitTermination(30, TimeUnit.SECONDS));
+
+        if (prioritized) {
+            System.out.print(router.report());
+            assertEquals(orders, router.getDelivered(MessagePriority.URGENT));
+            assertEquals(0, router.getShed(MessagePriority.URGENT));
+            assertTrue(router.getShed(MessagePriority.BULK) + router.getCoalesced(MessagePriority.BULK) > 0);
+            // everything is accounted for
+            for (MessagePriority priority : MessagePriority.values()) {
+                assertEquals(router.getSubmitted(priority), router.getDelivered(priority) + router.getShed(priority));
+            }
+        }
+        return urgentLatency;
+    }
+}
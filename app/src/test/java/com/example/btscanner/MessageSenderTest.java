@@ -0,0 +1,137 @@
+package com.example.btscanner;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MessageSenderTest {
+
+    private MessageSender sender;
+
+    @After
+    public void tearDown() {
+        if (sender != null) {
+            sender.close();
+        }
+    }
+
+    private static byte[] frame(String text) {
+        return FrameCodec.encode(FrameCodec.TYPE_TEXT, text.getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    @Test
+    public void sendReturnsImmediatelyAndCompletesOnceWritten() throws Exception {
+        ConnectionPoolTest.FakeFactory factory = new ConnectionPoolTest.FakeFactory(200);
+        sender = new MessageSender(new ConnectionPool(factory, 60_000, Clock.SYSTEM), 2);
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> result = sender.send("AA:BB", frame("Hello"));
+        assertTrue("send blocked the caller", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse(result.isDone());
+
+        result.get(5, TimeUnit.SECONDS);
+        assertEquals(0, sender.getPendingCount());
+    }
+
+    @Test
+    public void batchesMessagesQueuedWhileConnecting() throws Exception {
+        ConnectionPoolTest.FakeFactory factory = new ConnectionPoolTest.FakeFactory(100);
+        sender = new MessageSender(new ConnectionPool(factory, 60_000, Clock.SYSTEM), 1);
+
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        int expectedBytes = 0;
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = frame("order " + i);
+            expectedBytes += frame.length;
+            results.add(sender.send("AA:BB", frame));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+        LoopbackConnection connection = factory.connections.get(0);
+        assertEquals(1, factory.connects.get());
+        assertEquals(expectedBytes, connection.written.size());
+        // the first frame opens the connection, everything queued meanwhile follows in one write
+        assertTrue("writes " + connection.written.writes, connection.written.writes <= 2);
+
+        // and the frames arrive in the order they were sent
+        List<String> decoded = new ArrayList<>();
+        byte[] bytes = connection.written.toByteArray();
+        new FrameDecoder().feed(bytes, 0, bytes.length,
+                (type, payload, offset, length) -> decoded.add(new String(payload, offset, length, StandardCharsets.UTF_8)));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("order " + i, decoded.get(i));
+        }
+    }
+
+    @Test
+    public void slowDeviceDoesNotHoldUpOthers() throws Exception {
+        ConnectionPoolTest.FakeFactory factory = new ConnectionPoolTest.FakeFactory(0) {
+            @Override
+            public Connection connect(String address) throws java.io.IOException {
+                if (address.equals("SLOW")) {
+                    try {
+                        Thread.sleep(1_000);
+                    } catch (InterruptedException e) {
+                        throw new java.io.IOException("interrupted");
+                    }
+                }
+                return super.connect(address);
+            }
+        };
+        sender = new MessageSender(new ConnectionPool(factory, 60_000, Clock.SYSTEM), 2);
+
+        CompletableFuture<Void> slow = sender.send("SLOW", frame("a"));
+        Thread.sleep(20);
+        sender.send("FAST", frame("b")).get(500, TimeUnit.MILLISECONDS);
+        assertFalse(slow.isDone());
+    }
+
+    // Heartbeats lock every pooled connection in turn, one still connecting must not cost another
+    // device its sender thread
+    @Test
+    public void heartbeatsWaitingForASlowConnectDoNotHoldUpOthers() throws Exception {
+        ConnectionPoolTest.FakeFactory factory = new ConnectionPoolTest.FakeFactory(0) {
+            @Override
+            public Connection connect(String address) throws java.io.IOException {
+                if (address.equals("SLOW")) {
+                    try {
+                        Thread.sleep(2_000);
+                    } catch (InterruptedException e) {
+                        throw new java.io.IOException("interrupted");
+                    }
+                }
+                return super.connect(address);
+            }
+        };
+        sender = new MessageSender(new ConnectionPool(factory, 60_000, Clock.SYSTEM), 2, 20);
+
+        CompletableFuture<Void> slow = sender.send("SLOW", frame("a"));
+        // a few heartbeat rounds, each one stuck on the connection being set up
+        Thread.sleep(100);
+        sender.send("FAST", frame("b")).get(500, TimeUnit.MILLISECONDS);
+        assertFalse(slow.isDone());
+    }
+
+    @Test
+    public void failuresAreReportedThroughTheFuture() throws Exception {
+        ConnectionPoolTest.FakeFactory factory = new ConnectionPoolTest.FakeFactory(0);
+        factory.reachable = false;
+        sender = new MessageSender(new ConnectionPool(factory, 60_000, Clock.SYSTEM), 1);
+
+        try {
+            sender.send("AA:BB", frame("Hello")).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof java.io.IOException);
+        }
+        assertEquals(0, sender.getPendingCount());
+    }
+}
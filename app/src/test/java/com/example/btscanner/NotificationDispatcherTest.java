@@ -0,0 +1,130 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationDispatcherTest {
+
+    private static class Shown {
+        final long at;
+        final int count;
+        final List<String> lines;
+
+        Shown(long at, int count, List<String> lines) {
+            this.at = at;
+            this.count = count;
+            this.lines = lines;
+        }
+    }
+
+    private final FakeClock clock = new FakeClock();
+    private final FakeScheduler scheduler = new FakeScheduler(clock);
+    private final List<Shown> shown = new ArrayList<>();
+    private final NotificationDispatcher dispatcher = new NotificationDispatcher(
+            (count, lines) -> shown.add(new Shown(clock.nowMillis(), count, lines)),
+            scheduler, clock, 250, 4, 3);
+
+    @Test
+    public void burstInsideTheWindowBecomesOneUpdate() {
+        for (int i = 1; i <= 50; i++) {
+            dispatcher.post("order " + i);
+            scheduler.advance(2);
+        }
+        scheduler.advance(1_000);
+
+        assertEquals(1, shown.size());
+        assertEquals(50, shown.get(0).count);
+        assertEquals(Arrays.asList("order 48", "order 49", "order 50"), shown.get(0).lines);
+    }
+
+    @Test
+    public void updatesNeverExceedTheMaxRate() {
+        // 20 messages a second for 10 seconds
+        for (int i = 0; i < 200; i++) {
+            dispatcher.post("ping " + i);
+            scheduler.advance(50);
+        }
+        scheduler.advance(1_000);
+
+        for (int i = 1; i < shown.size(); i++) {
+            assertTrue(shown.get(i).at - shown.get(i - 1).at >= 250);
+        }
+        assertTrue("updates " + shown.size(), shown.size() <= 41);
+        assertEquals(shown.size(), dispatcher.getShownUpdates());
+    }
+
+    @Test
+    public void latestStateIsAlwaysFlushed() {
+        dispatcher.post("first");
+        scheduler.advance(300);
+        dispatcher.post("second");
+        dispatcher.post("last");
+        scheduler.advance(1_000);
+
+        Shown last = shown.get(shown.size() - 1);
+        assertEquals(3, last.count);
+        assertEquals("last", last.lines.get(last.lines.size() - 1));
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void isolatedMessageIsShownAfterOneWindow() {
+        dispatcher.post("only");
+        scheduler.advance(249);
+        assertTrue(shown.isEmpty());
+        scheduler.advance(1);
+        assertEquals(1, shown.size());
+    }
+
+    @Test
+    public void resetStartsCountingAgain() {
+        dispatcher.post("a");
+        dispatcher.post("b");
+        scheduler.advance(500);
+        dispatcher.reset();
+        dispatcher.post("c");
+        scheduler.advance(500);
+
+        assertEquals(2, shown.size());
+        assertEquals(1, shown.get(1).count);
+        assertEquals(Arrays.asList("c"), shown.get(1).lines);
+    }
+
+    @Test
+    public void resetBeforeTheFlushShowsNothing() {
+        dispatcher.post("a");
+        dispatcher.reset();
+        scheduler.advance(500);
+        assertTrue(shown.isEmpty());
+    }
+
+    @Test
+    public void wakeLeaseIsHeldUntilTheUpdateIsShown() {
+        WakeLockManagerTest.FakeLock lock = new WakeLockManagerTest.FakeLock();
+        WakeLockManager wakeLocks = new WakeLockManager(lock, scheduler, clock);
+        dispatcher.setWakeLease(wakeLocks.newLease("notification", 2_000));
+
+        dispatcher.post("hello");
+        dispatcher.post("again");
+        assertTrue(lock.held);
+        scheduler.advance(250);
+
+        assertEquals(1, shown.size());
+        assertFalse(lock.held);
+        assertEquals(0, wakeLocks.getExpiredCount());
+    }
+
+    @Test
+    public void contentShowsTheLatestLineAndCountsTheRest() {
+        NotificationContent content = NotificationContent.of(7, Arrays.asList("c", "d", "e"));
+        assertEquals("e", content.text);
+        assertEquals(7, content.number);
+        assertEquals("+4 more", content.summary);
+        assertNull(NotificationContent.of(3, Arrays.asList("c", "d", "e")).summary);
+    }
+}
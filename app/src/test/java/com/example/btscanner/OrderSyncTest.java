@@ -0,0 +1,144 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OrderSyncTest {
+
+    private final InMemoryOrderSource database = new InMemoryOrderSource();
+    private final FakeScheduler scheduler = new FakeScheduler(new FakeClock());
+    private final List<String> processed = new ArrayList<>();
+    private String storedCursor;
+
+    private final OrderSync.CursorStore store = new OrderSync.CursorStore() {
+        @Override
+        public String load() {
+            return storedCursor;
+        }
+
+        @Override
+        public void save(String key) {
+            storedCursor = key;
+        }
+    };
+
+    private OrderSync newSync(int resubscribeAfter) {
+        return new OrderSync(database, store, (key, fields) -> processed.add(key + "=" + fields.get("field1")), resubscribeAfter, scheduler);
+    }
+
+    @Test
+    public void firstRunSkipsExistingOrders() {
+        database.push("-Na01", "old1");
+        database.push("-Na02", "old2");
+
+        OrderSync sync = newSync(0);
+        sync.start();
+        database.push("-Na03", "new");
+
+        assertEquals(Arrays.asList("-Na03=new"), processed);
+        assertEquals("-Na03", storedCursor);
+    }
+
+    @Test
+    public void ordersPushedWhileTheServiceWasDeadAreProcessedInOrder() {
+        OrderSync sync = newSync(0);
+        sync.start();
+        database.push("-Na01", "1");
+        sync.stop(); // service killed
+
+        database.push("-Na02", "2");
+        database.push("-Na03", "3");
+        database.push("-Na04", "4");
+
+        newSync(0).start(); // restarted, cursor comes from the store
+        assertEquals(Arrays.asList("-Na01=1", "-Na02=2", "-Na03=3", "-Na04=4"), processed);
+    }
+
+    @Test
+    public void ordersPushedDuringDozeAreNotDroppedOrDuplicated() {
+        OrderSync sync = newSync(0);
+        sync.start();
+        database.push("-Na01", "1");
+
+        database.disconnect();
+        database.push("-Na02", "2");
+        database.push("-Na03", "3");
+        database.reconnect(); // re-delivers -Na01 as well
+
+        database.push("-Na04", "4");
+        assertEquals(Arrays.asList("-Na01=1", "-Na02=2", "-Na03=3", "-Na04=4"), processed);
+        assertEquals(1, sync.getDuplicateCount());
+        assertEquals(4, sync.getProcessedCount());
+    }
+
+    // a cancelled subscription comes back from the cursor, with a backoff that doubles until an order gets through
+    @Test
+    public void cancelledSubscriptionIsStartedAgainFromTheCursor() {
+        OrderSync sync = newSync(0);
+        sync.start();
+        database.push("-Na01", "1");
+
+        database.cancel("Permission denied");
+        scheduler.advance(1_000);
+        assertEquals(2, database.starts);
+
+        // cancelled again before anything came in: twice the wait, and what was pushed meanwhile is picked up
+        database.cancel("Permission denied");
+        database.push("-Na02", "2");
+        scheduler.advance(1_999);
+        assertEquals(Arrays.asList("-Na01=1"), processed);
+        scheduler.advance(1);
+        assertEquals(Arrays.asList("-Na01=1", "-Na02=2"), processed);
+
+        // an order got through, back to the shortest wait
+        database.cancel("Permission denied");
+        database.push("-Na03", "3");
+        scheduler.advance(1_000);
+        assertEquals("-Na03", storedCursor);
+        assertEquals(3, sync.getCancelledCount());
+
+        // nothing comes back after stop()
+        database.cancel("Permission denied");
+        sync.stop();
+        scheduler.advance(60_000);
+        assertEquals(3, processed.size());
+        assertEquals(4, database.starts);
+    }
+
+    // the cursor moves past an order once the handler has taken care of it, not before
+    @Test
+    public void cursorIsSavedAfterTheOrderWasHandled() {
+        List<String> cursorWhileHandling = new ArrayList<>();
+        new OrderSync(database, store, (key, fields) -> cursorWhileHandling.add(storedCursor), 0, scheduler).start();
+        database.push("-Na01", "1");
+        database.push("-Na02", "2");
+
+        assertEquals(Arrays.asList(null, "-Na01"), cursorWhileHandling);
+        assertEquals("-Na02", storedCursor);
+    }
+
+    @Test
+    public void emptyDatabaseOnFirstRunProcessesEverythingAfterwards() {
+        newSync(0).start();
+        database.push("-Na01", "1");
+        database.push("-Na02", "2");
+        assertEquals(2, processed.size());
+    }
+
+    @Test
+    public void resubscribesFromTheCursorPeriodically() {
+        OrderSync sync = newSync(2);
+        sync.start();
+        for (int i = 1; i <= 5; i++) {
+            database.push("-Na0" + i, String.valueOf(i));
+        }
+        assertEquals(5, processed.size());
+        assertEquals(0, sync.getDuplicateCount());
+        assertEquals(3, database.starts);
+    }
+}
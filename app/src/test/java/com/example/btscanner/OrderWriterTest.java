@@ -0,0 +1,123 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OrderWriterTest {
+
+    // Records every multi-path update, acknowledges after ackDelay on the fake clock
+    private static class FakeSink implements OrderWriter.Sink {
+        final List<Map<String, Object>> updates = new ArrayList<>();
+        final FakeScheduler scheduler;
+        final long ackDelay;
+        String error;
+        int keys;
+
+        FakeSink(FakeScheduler scheduler, long ackDelay) {
+            this.scheduler = scheduler;
+            this.ackDelay = ackDelay;
+        }
+
+        @Override
+        public String newKey() {
+            return String.format("-N%06d", keys++);
+        }
+
+        @Override
+        public void update(Map<String, Object> updates, OrderWriter.CompletionListener listener) {
+            this.updates.add(updates);
+            scheduler.schedule(() -> listener.onComplete(error), ackDelay);
+        }
+    }
+
+    private final FakeClock clock = new FakeClock();
+    private final FakeScheduler scheduler = new FakeScheduler(clock);
+    private final FakeSink sink = new FakeSink(scheduler, 40);
+
+    private static Map<String, Object> order(int i) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("field1", String.valueOf(i));
+        return fields;
+    }
+
+    @Test
+    public void fullBatchIsWrittenAsOneMultiPathUpdate() {
+        OrderWriter writer = new OrderWriter(sink, scheduler, clock, 10, 100);
+        for (int i = 0; i < 25; i++) {
+            writer.submit(order(i));
+        }
+        assertEquals(2, sink.updates.size());
+        assertEquals(10, sink.updates.get(0).size());
+
+        scheduler.advance(100); // the linger timer flushes the rest
+        assertEquals(3, sink.updates.size());
+        assertEquals(5, sink.updates.get(2).size());
+        scheduler.advance(40);
+        assertEquals(25, writer.getWrittenCount());
+        assertEquals(3, writer.getBatchCount());
+    }
+
+    @Test
+    public void singleOrderGoesOutAfterTheLingerTime() {
+        OrderWriter writer = new OrderWriter(sink, scheduler, clock, 10, 100);
+        String key = writer.submit(order(1));
+        scheduler.advance(99);
+        assertTrue(sink.updates.isEmpty());
+        scheduler.advance(1);
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> written = (Map<String, Object>) sink.updates.get(0).get(key);
+        assertEquals("1", written.get("field1"));
+        assertEquals(clock.nowMillis() - 100, written.get(OrderWriter.CREATED_AT));
+    }
+
+    @Test
+    public void staleLingerTimerDoesNotFlushTheNextBatchEarly() {
+        OrderWriter writer = new OrderWriter(sink, scheduler, clock, 2, 100);
+        writer.submit(order(1));
+        writer.submit(order(2)); // fills the batch, the first timer is now stale
+        scheduler.advance(50);
+        writer.submit(order(3));
+        scheduler.advance(50); // stale timer fires here
+        assertEquals(1, sink.updates.size());
+        scheduler.advance(50);
+        assertEquals(2, sink.updates.size());
+    }
+
+    @Test
+    public void failedWritesAreCounted() {
+        sink.error = "Permission denied";
+        OrderWriter writer = new OrderWriter(sink, scheduler, clock, 5, 100);
+        for (int i = 0; i < 5; i++) {
+            writer.submit(order(i));
+        }
+        scheduler.advance(100);
+        assertEquals(5, writer.getFailedCount());
+        assertEquals(0, writer.getWrittenCount());
+    }
+
+    @Test
+    public void loadGeneratorHoldsTheRequestedRate() {
+        OrderWriter writer = new OrderWriter(sink, scheduler, clock, 20, 100);
+        OrderLoadGenerator generator = new OrderLoadGenerator(writer, scheduler, clock);
+        boolean[] finished = new boolean[1];
+
+        generator.start(200, 1000, () -> finished[0] = true);
+        scheduler.advance(10_000);
+
+        assertTrue(finished[0]);
+        assertFalse(generator.isRunning());
+        assertEquals(1000, writer.getWrittenCount());
+        // mostly full batches, the linger timer may cut one or two short
+        assertTrue(writer.getBatchCount() <= 55);
+        // 1000 orders at 200/s take ~5 s, the rate counts until the last acknowledgement
+        System.out.printf("load generator: %.1f orders/s in %d batches%n", writer.getWriteRate(), writer.getBatchCount());
+        assertEquals(200, writer.getWriteRate(), 5);
+    }
+}
@@ -0,0 +1,462 @@
+package com.example.btscanner;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ScheduledExecutorService> executors = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ScheduledExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private ScheduledExecutorService newExecutor() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executors.add(executor);
+        return executor;
+    }
+
+    // Keeps what the queue saved
+    private static class MemoryStore implements OutboundQueue.Store {
+        final Map<Long, OutboundQueue.Entry> saved = new ConcurrentHashMap<>();
+
+        @Override
+        public void save(OutboundQueue.Entry entry) {
+            saved.put(entry.id, entry);
+        }
+
+        @Override
+        public void delete(long id) {
+            saved.remove(id);
+        }
+
+        @Override
+        public List<OutboundQueue.Entry> load() {
+            return new ArrayList<>(saved.values());
+        }
+    }
+
+    // Link that writes every frame down, nothing comes back unless the test acks
+    private static class RecordingLink implements OutboundQueue.Link {
+        final List<byte[]> frames = new CopyOnWriteArrayList<>();
+        final List<Long> sentAt = new CopyOnWriteArrayList<>();
+        final Clock clock;
+
+        RecordingLink(Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public CompletableFuture<Void> send(String address, byte[] frame) {
+            frames.add(frame);
+            sentAt.add(clock.nowMillis());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // Radio link to a ReliableReceiver: every frame, both ways, is dropped with dropFraction and held
+    // back an extra delayMillis with delayFraction, everything else arrives after a millisecond
+    private class LossyLink implements OutboundQueue.Link {
+        final ReliableReceiver receiver = new ReliableReceiver(4096);
+        final Map<Long, AtomicInteger> delivered = new ConcurrentHashMap<>();
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong delayed = new AtomicLong();
+        final double dropFraction;
+        final double delayFraction;
+        final long delayMillis;
+        final Random random = new Random(22);
+        final ScheduledExecutorService air = newExecutor();
+        volatile OutboundQueue sender;
+
+        LossyLink(double dropFraction, double delayFraction, long delayMillis) {
+            this.dropFraction = dropFraction;
+            this.delayFraction = delayFraction;
+            this.delayMillis = delayMillis;
+        }
+
+        // false if the frame is lost, otherwise runs it on the other side once it got there
+        private synchronized boolean transmit(Runnable arrival) {
+            frames.incrementAndGet();
+            if (random.nextDouble() < dropFraction) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            long latency = 1;
+            if (random.nextDouble() < delayFraction) {
+                delayed.incrementAndGet();
+                latency += delayMillis;
+            }
+            air.schedule(arrival, latency, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<Void> send(String address, byte[] frame) {
+            // a lost frame was still written as far as the sender can tell
+            transmit(() -> receive(frame));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        private void receive(byte[] frame) {
+            ByteArrayOutputStream acks = new ByteArrayOutputStream();
+            try {
+                new FrameDecoder().readFrom(new ByteArrayInputStream(frame), (type, payload, offset, length) -> {
+                    assertEquals(FrameCodec.TYPE_RELIABLE, type);
+                    if (receiver.accept(payload, offset, length)) {
+                        delivered.computeIfAbsent(OutboundQueue.getId(payload, offset), id -> new AtomicInteger()).incrementAndGet();
+                        receiver.acknowledge(payload, offset, length, acks);
+                    } else {
+                        receiver.acknowledgeCopy(payload, offset, length, acks);
+                    }
+                });
+                byte[] ack = acks.toByteArray();
+                transmit(() -> readAck(ack));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void readAck(byte[] ack) {
+            try {
+                new FrameDecoder().readFrom(new ByteArrayInputStream(ack), (type, payload, offset, length) -> {
+                    assertEquals(FrameCodec.TYPE_ACK, type);
+                    sender.onAck(OutboundQueue.getId(payload, offset));
+                });
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static byte[] message(int i) {
+        return MessageCodec.encodeText("Hello from watch " + i);
+    }
+
+    private static long idOf(byte[] frame) {
+        assertEquals(FrameCodec.TYPE_RELIABLE, frame[1]);
+        return OutboundQueue.getId(frame, FrameCodec.HEADER_SIZE);
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void resendsWithBackoffUntilAcknowledged() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        RecordingLink link = new RecordingLink(clock);
+        MemoryStore store = new MemoryStore();
+        OutboundQueue queue = new OutboundQueue(link, store, scheduler, clock, 16, 1_000, 8_000, 0, new Random(5));
+
+        long id = queue.enqueue("watch", FrameCodec.TYPE_MESSAGE, message(1));
+        // saved and then sent on the scheduler, not on the caller's thread
+        assertFalse(store.saved.containsKey(id));
+        assertTrue(link.frames.isEmpty());
+        scheduler.advance(0);
+        assertTrue(store.saved.containsKey(id));
+        assertEquals(1, link.frames.size());
+        assertEquals(id, idOf(link.frames.get(0)));
+
+        scheduler.advance(60_000);
+        // 1, 2, 4, 8, 8, 8... seconds apart, each between half and all of it
+        for (int i = 1; i < link.sentAt.size(); i++) {
+            long gap = link.sentAt.get(i) - link.sentAt.get(i - 1);
+            long base = Math.min(8_000, 1_000L << (i - 1));
+            assertTrue(i + ": " + gap, gap >= base / 2 && gap <= base);
+            assertArrayEquals(link.frames.get(0), link.frames.get(i));
+        }
+        int sent = link.frames.size();
+        assertTrue(sent >= 8);
+        assertEquals(sent - 1, queue.getRetryCount());
+
+        assertTrue(queue.onAck(id));
+        scheduler.advance(60_000);
+        assertEquals(sent, link.frames.size());
+        assertEquals(0, queue.getPendingCount());
+        assertTrue(store.saved.isEmpty());
+        assertEquals(60_000 * 1000.0, queue.getAckLatency().getMax(), 60_000 * 1000 * 0.05);
+        // the ACK of a copy that was still on its way
+        assertFalse(queue.onAck(id));
+        assertEquals(1, queue.getLateAckCount());
+    }
+
+    @Test
+    public void firstSendWaitsForTheSave() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        RecordingLink link = new RecordingLink(clock);
+        MemoryStore store = new MemoryStore();
+        List<Runnable> saves = new ArrayList<>();
+        OutboundQueue queue = new OutboundQueue(link, store, saves::add, scheduler, clock, 16, 1_000, 8_000, 0, new Random(5));
+
+        long id = queue.enqueue("watch", FrameCodec.TYPE_MESSAGE, message(1));
+        scheduler.advance(5_000);
+        assertTrue(store.saved.isEmpty());
+        assertTrue(link.frames.isEmpty());
+
+        saves.get(0).run();
+        assertTrue(store.saved.containsKey(id));
+        scheduler.advance(0);
+        assertEquals(1, link.frames.size());
+        assertEquals(id, idOf(link.frames.get(0)));
+    }
+
+    @Test
+    public void givesUpAfterMaxAgeAndRefusesWhenFull() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        RecordingLink link = new RecordingLink(clock);
+        MemoryStore store = new MemoryStore();
+        OutboundQueue queue = new OutboundQueue(link, store, scheduler, clock, 2, 1_000, 4_000, 30_000, new Random(5));
+        List<Long> expired = new ArrayList<>();
+        queue.setListener(new OutboundQueue.Listener() {
+            @Override
+            public void onDelivered(OutboundQueue.Entry entry, long latencyMillis) {
+            }
+
+            @Override
+            public void onExpired(OutboundQueue.Entry entry) {
+                expired.add(entry.id);
+            }
+        });
+
+        long first = queue.enqueue("watch", FrameCodec.TYPE_MESSAGE, message(1));
+        long second = queue.enqueue("watch", FrameCodec.TYPE_MESSAGE, message(2));
+        assertNotEquals(first, second);
+        assertEquals(-1, queue.enqueue("watch", FrameCodec.TYPE_MESSAGE, message(3)));
+        assertEquals(1, queue.getRejectedCount());
+
+        scheduler.advance(40_000);
+        assertEquals(2, queue.getExpiredCount());
+        assertEquals(2, expired.size());
+        assertTrue(store.saved.isEmpty());
+        assertEquals(0, scheduler.pending());
+        // room again
+        assertNotEquals(-1, queue.enqueue("watch", FrameCodec.TYPE_MESSAGE, message(3)));
+    }
+
+    @Test
+    public void receiverAcknowledgesCopiesButLetsThemThroughOnce() throws Exception {
+        ReliableReceiver receiver = new ReliableReceiver(2);
+        OutboundQueue.Entry entry = new OutboundQueue.Entry(42, "watch", FrameCodec.TYPE_MESSAGE, message(1), 0);
+        byte[] frame = OutboundQueue.encode(entry);
+        ByteArrayOutputStream acks = new ByteArrayOutputStream();
+        List<Long> acked = new ArrayList<>();
+        List<Boolean> fresh = new ArrayList<>();
+        FrameDecoder.Listener onFrame = (type, payload, offset, length) -> {
+            boolean accepted = receiver.accept(payload, offset, length);
+            fresh.add(accepted);
+            assertEquals(FrameCodec.TYPE_MESSAGE, payload[offset + 8]);
+            assertEquals("Hello from watch 1", MessageCodec.decodeText(payload, offset + OutboundQueue.HEADER_SIZE,
+                    length - OutboundQueue.HEADER_SIZE));
+            if (accepted) {
+                receiver.acknowledge(payload, offset, length, acks);
+            } else {
+                receiver.acknowledgeCopy(payload, offset, length, acks);
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            new FrameDecoder().readFrom(new ByteArrayInputStream(frame), onFrame);
+        }
+        new FrameDecoder().readFrom(new ByteArrayInputStream(acks.toByteArray()), (type, payload, offset, length) -> {
+            assertEquals(FrameCodec.TYPE_ACK, type);
+            acked.add(OutboundQueue.getId(payload, offset));
+        });
+
+        assertEquals(3, acked.size());
+        assertEquals(42L, (long) acked.get(2));
+        assertEquals(true, fresh.get(0));
+        assertEquals(false, fresh.get(1));
+        assertEquals(false, fresh.get(2));
+        assertEquals(2, receiver.getDuplicateCount());
+    }
+
+    // Two copies on two connections at once: only the first is let through, the second gets no ACK
+    // until the first was journaled, and a released claim lets the retry through
+    @Test
+    public void copyInFlightOnAnotherConnectionIsNotLetThroughOrAcknowledged() {
+        ReliableReceiver receiver = new ReliableReceiver(16);
+        byte[] frame = OutboundQueue.encode(new OutboundQueue.Entry(7, "watch", FrameCodec.TYPE_MESSAGE, message(1), 0));
+        byte[] payload = Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.CRC_SIZE);
+        ByteArrayOutputStream acks = new ByteArrayOutputStream();
+
+        assertTrue(receiver.accept(payload, 0, payload.length));
+        assertFalse(receiver.accept(payload, 0, payload.length));
+        receiver.acknowledgeCopy(payload, 0, payload.length, acks);
+        assertEquals(0, acks.size());
+
+        // journaling failed, the sender's retry is new again
+        receiver.release(payload, 0, payload.length);
+        assertTrue(receiver.accept(payload, 0, payload.length));
+        receiver.acknowledge(payload, 0, payload.length, acks);
+        assertArrayEquals(OutboundQueue.encodeAck(7), acks.toByteArray());
+
+        // from here on copies are acknowledged again
+        assertFalse(receiver.accept(payload, 0, payload.length));
+        receiver.acknowledgeCopy(payload, 0, payload.length, acks);
+        assertEquals(2 * OutboundQueue.encodeAck(7).length, acks.size());
+    }
+
+    // Killed before the ACKs came in: the next queue on the same directory sends the rest again
+    // under the same IDs, so the receiver can still tell them apart from new messages
+    @Test
+    public void unacknowledgedMessagesSurviveARestart() throws Exception {
+        OutboundStore store = new OutboundStore(folder.newFolder("outbox"));
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        RecordingLink link = new RecordingLink(clock);
+        OutboundQueue queue = new OutboundQueue(link, store, scheduler, clock, 16, 1_000, 8_000, 0, new Random(5));
+        long[] ids = new long[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = queue.enqueue("AA:BB:CC:DD:EE:0" + i, FrameCodec.TYPE_MESSAGE, message(i));
+            clock.advance(1);
+        }
+        scheduler.advance(0);
+        queue.onAck(ids[1]);
+        // deleted right away, not left to a scheduler that may be shut down before it gets to it
+        assertEquals(2, store.load().size());
+
+        FakeScheduler restarted = new FakeScheduler(clock);
+        RecordingLink relink = new RecordingLink(clock);
+        OutboundQueue next = new OutboundQueue(relink, store, restarted, clock, 16, 1_000, 8_000, 0, new Random(6));
+        next.start();
+        restarted.advance(0);
+        assertEquals(2, next.getPendingCount());
+        assertEquals(2, relink.frames.size());
+        // oldest first, byte for byte what the first queue sent
+        Map<Long, byte[]> before = new HashMap<>();
+        for (byte[] frame : link.frames) {
+            before.put(idOf(frame), frame);
+        }
+        assertEquals(ids[0], idOf(relink.frames.get(0)));
+        assertEquals(ids[2], idOf(relink.frames.get(1)));
+        assertArrayEquals(before.get(ids[2]), relink.frames.get(1));
+
+        next.onAck(ids[0]);
+        next.onAck(ids[2]);
+        assertTrue(store.load().isEmpty());
+    }
+
+    @Test
+    public void tornFilesAreDroppedOnLoad() throws Exception {
+        java.io.File dir = folder.newFolder("outbox");
+        OutboundStore store = new OutboundStore(dir);
+        store.save(new OutboundQueue.Entry(1, "watch", FrameCodec.TYPE_MESSAGE, message(1), 10));
+        java.nio.file.Files.write(new java.io.File(dir, "0000000000000002.msg").toPath(), new byte[]{0, 0, 0, 1, 0, 0});
+        java.nio.file.Files.write(new java.io.File(dir, "0000000000000003.tmp").toPath(), new byte[]{0, 0, 0, 1});
+
+        List<OutboundQueue.Entry> loaded = store.load();
+        assertEquals(1, loaded.size());
+        assertEquals(1, loaded.get(0).id);
+        assertArrayEquals(message(1), loaded.get(0).payload);
+        assertEquals(1, dir.list().length);
+    }
+
+    // The service writes the ACK back on the connection the message came in on, the pool's reader
+    // thread hands it to the queue
+    @Test
+    public void acksComeBackOverThePooledConnection() throws Exception {
+        FakeSocket socket = new FakeSocket("watch");
+        ScheduledExecutorService executor = newExecutor();
+        OutboundQueue[] queue = new OutboundQueue[1];
+        ConnectionPool pool = new ConnectionPool(address -> socket, 60_000, Clock.SYSTEM, (address, type, payload, offset, length) -> {
+            if (type == FrameCodec.TYPE_ACK) {
+                queue[0].onAck(OutboundQueue.getId(payload, offset));
+            }
+        });
+        MessageSender sender = new MessageSender(pool, 1);
+        queue[0] = new OutboundQueue(sender::send, new MemoryStore(), (task, delayMillis) -> executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS),
+                Clock.SYSTEM, 16, 200, 1_000, 0, new Random(5));
+        long id = queue[0].enqueue("watch", FrameCodec.TYPE_MESSAGE, message(1));
+        waitFor(() -> socket.written.size() > 0, 5_000);
+
+        socket.feed(OutboundQueue.encodeAck(id));
+        waitFor(() -> queue[0].getAckedCount() == 1, 5_000);
+        assertEquals(0, queue[0].getPendingCount());
+
+        // the watch hangs up, the pool drops the connection
+        socket.dropLink();
+        waitFor(() -> pool.openConnections() == 0, 5_000);
+        assertTrue(socket.closed);
+        sender.close();
+    }
+
+    // Every message arrives exactly once however many frames and ACKs the link loses.
+    // Prints throughput and retries per message for a clean, a lossy and a bad link
+    @Test
+    public void exactlyOnceOverALossyLink() throws Exception {
+        int messages = 500;
+        double[][] links = {{0, 0}, {0.1, 0.1}, {0.3, 0.2}};
+        for (double[] conditions : links) {
+            LossyLink link = new LossyLink(conditions[0], conditions[1], 50);
+            ScheduledExecutorService executor = newExecutor();
+            OutboundQueue queue = new OutboundQueue(link, new MemoryStore(), (task, delayMillis) -> executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS),
+                    Clock.SYSTEM, messages, 100, 800, 0, new Random(7));
+            link.sender = queue;
+
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                assertNotEquals(-1, queue.enqueue("watch", FrameCodec.TYPE_MESSAGE, message(i)));
+            }
+            waitFor(() -> queue.getAckedCount() == messages, 30_000);
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.printf("loss %.0f%% delayed %.0f%%: %d messages in %.0f ms, %.0f msg/s, %.2f sends/msg, %d copies dropped by the receiver,"
+                            + " ack p50=%.1f p99=%.1f ms%n", conditions[0] * 100, conditions[1] * 100, messages, seconds * 1000,
+                    messages / seconds, (double) queue.getSentCount() / messages, link.receiver.getDuplicateCount(),
+                    queue.getAckLatency().getPercentile(50) / 1000.0, queue.getAckLatency().getPercentile(99) / 1000.0);
+
+            assertEquals(messages, link.delivered.size());
+            for (AtomicInteger count : link.delivered.values()) {
+                assertEquals(1, count.get());
+            }
+            assertEquals(0, queue.getPendingCount());
+            if (conditions[0] == 0) {
+                // nothing lost or late, nothing resent
+                assertEquals(0, queue.getRetryCount());
+            } else {
+                assertTrue(queue.getRetryCount() > 0);
+                // lost and late ACKs made the queue resend messages that had already arrived
+                assertTrue(link.receiver.getDuplicateCount() > 0);
+            }
+        }
+    }
+}
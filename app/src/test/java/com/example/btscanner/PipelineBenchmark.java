@@ -0,0 +1,63 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+// Load test of the inbound pipeline (PipelineHarness), skipped by the normal test run:
+//   ./gradlew :app:pipelineBenchmark                          synthesized bursts, flat out and in real time
+//   ./gradlew :app:pipelineBenchmark -Ptrace=trace.csv        a recorded trace (timestamp_ms,SOURCE,text)
+//   ./gradlew :app:pipelineBenchmark -Ptrace=journal/         a copy of a device's message journal
+// -Pspeed=0 feeds a trace as fast as it's taken (default 1, real time), -Pmessages=N sizes the synthesized
+// runs, -Pprofile=low-ram uses the Android Go sizes, -Pforeground=true has the activity take the messages
+public class PipelineBenchmark {
+
+    private static final String PROPERTY = "pipelineBenchmark";
+
+    private static String option(String name, String fallback) {
+        return System.getProperty(PROPERTY + "." + name, fallback);
+    }
+
+    private static PipelineHarness.Result run(String name, List<PipelineHarness.Event> events, double speed) throws Exception {
+        File journalDir = Files.createTempDirectory("bench-journal").toFile();
+        try {
+            MemoryProfile profile = "low-ram".equals(option("profile", "standard")) ? MemoryProfile.LOW_RAM : MemoryProfile.STANDARD;
+            PipelineHarness harness = new PipelineHarness(profile, journalDir, speed, Boolean.parseBoolean(option("foreground", "false")));
+            // once so the JIT has compiled the pipeline, on a copy of the first events
+            harness.run(events.subList(0, Math.min(events.size(), 20_000)));
+            PipelineHarness.Result result = harness.run(events);
+            System.out.printf("== %s, %s, %d messages, speed %s%n%s%n", name, profile.name, events.size(),
+                    speed == 0 ? "flat out" : speed + "x", result.report());
+            return result;
+        } finally {
+            File[] files = journalDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            journalDir.delete();
+        }
+    }
+
+    @Test
+    public void replay() throws Exception {
+        assumeTrue("run with ./gradlew :app:pipelineBenchmark", Boolean.getBoolean(PROPERTY));
+        String trace = option("trace", "");
+        if (!trace.isEmpty()) {
+            File file = new File(trace);
+            List<PipelineHarness.Event> events = file.isDirectory() ? PipelineHarness.readJournal(file) : PipelineHarness.readTrace(file);
+            run(file.getName(), events, Double.parseDouble(option("speed", "1")));
+            return;
+        }
+        int messages = Integer.parseInt(option("messages", "200000"));
+        // throughput: 7 senders (a full piconet) plus the WebSocket and Firebase, as fast as it's taken
+        run("bursts", PipelineHarness.bursts(messages, 7, 500, 100, 42), 0);
+        // latency: bursts of 500 every 100 ms (5000 msg/s offered) in real time, a quarter of the messages
+        run("paced bursts", PipelineHarness.bursts(messages / 4, 7, 500, 100, 43), 1);
+    }
+}
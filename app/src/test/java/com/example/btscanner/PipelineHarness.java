@@ -0,0 +1,390 @@
+package com.example.btscanner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Drives the service's InboundPipeline on the JVM: a recorded trace or synthesized bursts go in
+    through the same transports' entry points, framing and decode, dedup, journal, the router and the
+    notification dispatchers on an EventLoop, with fake Android sinks at the end (no vibrator, no
+    NotificationManager, the activity in the background unless told otherwise).
+
+    Every Bluetooth sender is a FakeSocket read by its own worker thread with InboundPipeline.read(),
+    WebSocket messages go to newReceiver() on a transport thread, Firebase and push messages are journaled
+    and submitted on a callback thread the way onOrder() does. Frames are encoded before the clock starts,
+    encoding is the sender's cost.
+
+    Measured: throughput from the first message fed to the last one delivered, receive to dispatched
+    latency (DeliveryStage.TOTAL, per source in the DeliveryMetrics report), and the bytes allocated per
+    message by the pipeline's threads (transport threads and the event loop, not the feeder).
+ */
+class PipelineHarness {
+
+    // One inbound message; sender picks the Bluetooth connection it comes in on
+    static final class Event {
+        final long atMillis;
+        final MessageSource source;
+        final int sender;
+        final String text;
+
+        Event(long atMillis, MessageSource source, int sender, String text) {
+            this.atMillis = atMillis;
+            this.source = source;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    // as BluetoothService.setUpRoutes(): window, max updates per second, for URGENT, NORMAL, BULK
+    private static final long[] NOTIFICATION_WINDOW_MS = {0, 250, 2_000};
+    private static final int[] MAX_NOTIFICATIONS_PER_SECOND = {10, 4, 1};
+    private static final int ROUTER_BATCH = 32;
+    private static final int JOURNAL_SEGMENT_BYTES = 256 * 1024;
+    private static final long JOURNAL_MAX_BYTES = 2 * 1024 * 1024;
+    private static final int JOURNAL_FLUSH_BATCH = 32;
+    private static final long JOURNAL_FLUSH_INTERVAL_MS = 1000;
+
+    private static final String[] WATCHES = new String[16];
+
+    static {
+        for (int i = 0; i < WATCHES.length; i++) {
+            WATCHES[i] = String.format(Locale.US, "Watch-%02d", i);
+        }
+    }
+
+    private final MemoryProfile profile;
+    // null: no journal
+    private final File journalDir;
+    // 0 feeds as fast as the pipeline takes it, 1 replays in real time, 2 twice as fast...
+    private final double speed;
+    // the activity is showing, messages go to it instead of notifications
+    private final boolean foreground;
+
+    PipelineHarness(MemoryProfile profile, File journalDir, double speed, boolean foreground) {
+        this.profile = profile;
+        this.journalDir = journalDir;
+        this.speed = speed;
+        this.foreground = foreground;
+    }
+
+    // timestamp_ms,SOURCE,text per line (the text may contain commas), # starts a comment
+    static List<Event> readTrace(File file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", 3);
+                if (fields.length < 3) {
+                    throw new IOException(file + ":" + lineNumber + " expected timestamp_ms,SOURCE,text");
+                }
+                try {
+                    events.add(new Event(Long.parseLong(fields[0].trim()), MessageSource.valueOf(fields[1].trim()), 0, fields[2]));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNumber + " " + e.getMessage());
+                }
+            }
+        }
+        return events;
+    }
+
+    // The messages a device journaled (adb pull of files/journal), in their original order and spacing.
+    // Open a copy, the journal recovers (truncates) a torn tail when it is opened
+    static List<Event> readJournal(File dir) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (MessageJournal journal = new MessageJournal(dir, JOURNAL_SEGMENT_BYTES, Long.MAX_VALUE, JOURNAL_FLUSH_BATCH,
+                JOURNAL_FLUSH_INTERVAL_MS)) {
+            journal.replay(0, (seq, timestamp, source, payload, offset, length) -> events.add(
+                    new Event(timestamp, source, 0, new String(payload, offset, length, StandardCharsets.UTF_8))));
+        }
+        Collections.sort(events, (a, b) -> Long.compare(a.atMillis, b.atMillis));
+        return events;
+    }
+
+    // count messages from senders watches in bursts of burstSize back to back, gapMillis apart.
+    // A busy floor: 60% hello pings (bulk, 16 distinct texts so queued ones fold), 30% status lines
+    // (normal, one in three over the WebSocket), 10% orders (urgent, over Firebase)
+    static List<Event> bursts(int count, int senders, int burstSize, long gapMillis, long seed) {
+        Random random = new Random(seed);
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long at = i / burstSize * gapMillis;
+            int sender = random.nextInt(senders);
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                events.add(new Event(at, MessageSource.BLUETOOTH, sender,
+                        InboundPipeline.HELLO_PREFIX + WATCHES[random.nextInt(WATCHES.length)]));
+            } else if (kind < 9) {
+                MessageSource source = kind == 8 ? MessageSource.WEBSOCKET : MessageSource.BLUETOOTH;
+                events.add(new Event(at, source, sender, "status " + WATCHES[sender % WATCHES.length] + " battery "
+                        + random.nextInt(100) + "% seq " + i));
+            } else {
+                events.add(new Event(at, MessageSource.FIREBASE, 0, InboundPipeline.ORDER_PREFIX + (100_000 + i)));
+            }
+        }
+        return events;
+    }
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    Result run(List<Event> events) throws Exception {
+        EventLoop eventLoop = new EventLoop("bench-loop", profile.eventQueueCapacity);
+        DeliveryMetrics metrics = new DeliveryMetrics();
+        MessageRouter router = new MessageRouter(InboundPipeline::classify, eventLoop, profile.routerCapacity, ROUTER_BATCH);
+        Result result = new Result(events.size(), router, metrics);
+        WakeLockManager wakeLocks = new WakeLockManager(new WakeLockManager.Lock() {
+            @Override
+            public void acquire(long timeoutMillis) {
+            }
+
+            @Override
+            public void release() {
+            }
+        }, eventLoop, Clock.SYSTEM);
+
+        // the sinks of setUpRoutes(): the vibrator never takes a message, then the activity, then the notification
+        router.addSink(MessagePriority.URGENT, message -> {
+            result.vibrations.incrementAndGet();
+            return false;
+        });
+        router.addSink(message -> {
+            if (!foreground) {
+                return false;
+            }
+            result.shownInApp.incrementAndGet();
+            return true;
+        });
+        for (MessagePriority priority : MessagePriority.values()) {
+            NotificationDispatcher dispatcher = new NotificationDispatcher((count, lines) -> result.notifications.incrementAndGet(),
+                    eventLoop, Clock.SYSTEM, NOTIFICATION_WINDOW_MS[priority.ordinal()],
+                    MAX_NOTIFICATIONS_PER_SECOND[priority.ordinal()], profile.notificationLines);
+            dispatcher.setWakeLease(wakeLocks.newLease("notification-" + priority, 2_000));
+            router.addSink(priority, message -> {
+                dispatcher.post(message.getDisplayText());
+                return true;
+            });
+        }
+        router.setDeliveryListener((message, delivered, doneNanos) -> {
+            metrics.recordNanos(message.source, DeliveryStage.DISPATCH, message.submittedNanos, doneNanos);
+            metrics.recordNanos(message.source, DeliveryStage.TOTAL, message.receivedNanos, doneNanos);
+            result.latency.record((doneNanos - message.receivedNanos) / 1000);
+            result.lastDeliveredNanos = doneNanos;
+        });
+
+        MessageJournal journal = journalDir == null ? null : new MessageJournal(journalDir, JOURNAL_SEGMENT_BYTES,
+                JOURNAL_MAX_BYTES, JOURNAL_FLUSH_BATCH, JOURNAL_FLUSH_INTERVAL_MS);
+        MessageRelay relay = new MessageRelay((address, frame) -> {
+            throw new AssertionError("no relay peers");
+        }, Collections.<String>emptyList(), profile.relaySeenIds, 8, 64, Clock.WALL);
+        HealthMonitor health = new HealthMonitor(eventLoop, Clock.SYSTEM, 3 * FrameCodec.HEARTBEAT_INTERVAL_MS, 5_000);
+        InboundPipeline pipeline = new InboundPipeline(router, metrics, journal, relay,
+                new ReliableReceiver(profile.reliableWindow), health, new BufferPool(1024, profile.pooledReceiveBuffers),
+                wakeLocks, Clock.WALL);
+
+        // encoded up front, what each transport thread gets
+        int senders = 1;
+        for (Event event : events) {
+            senders = Math.max(senders, event.sender + 1);
+        }
+        byte[][] encoded = new byte[events.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            Event event = events.get(i);
+            if (event.source == MessageSource.BLUETOOTH) {
+                encoded[i] = FrameCodec.encode(FrameCodec.TYPE_MESSAGE, MessageCodec.encodeText(event.text), true);
+            } else if (event.source == MessageSource.WEBSOCKET) {
+                encoded[i] = MessageCodec.encodeText(event.text);
+            } else {
+                encoded[i] = event.text.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        eventLoop.start();
+        long[] loopAllocated = new long[1];
+        runOnLoop(eventLoop, () -> loopAllocated[0] = -allocatedBytes());
+
+        List<Thread> threads = new ArrayList<>();
+        AtomicLong threadAllocated = new AtomicLong();
+        FakeSocket[] sockets = new FakeSocket[senders];
+        for (int i = 0; i < senders; i++) {
+            FakeSocket socket = new FakeSocket(String.format(Locale.US, "AA:BB:CC:DD:EE:%02X", i));
+            sockets[i] = socket;
+            threads.add(new Thread(() -> {
+                long start = allocatedBytes();
+                try {
+                    pipeline.read(socket, System.nanoTime());
+                } catch (IOException e) {
+                    result.errors.incrementAndGet();
+                }
+                threadAllocated.addAndGet(allocatedBytes() - start);
+            }, "bench-rfcomm-" + i));
+        }
+        // the WebSocket transport's selector thread, and the Firebase callback thread
+        byte[] end = new byte[0];
+        BlockingQueue<byte[]> webSocket = new LinkedBlockingQueue<>();
+        Transport.Receiver receiver = pipeline.newReceiver("websocket");
+        threads.add(new Thread(() -> {
+            long start = allocatedBytes();
+            try {
+                for (byte[] payload = webSocket.take(); payload != end; payload = webSocket.take()) {
+                    receiver.onFrame(MessageSource.WEBSOCKET, FrameCodec.TYPE_MESSAGE, payload, 0, payload.length);
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                result.errors.incrementAndGet();
+            }
+            threadAllocated.addAndGet(allocatedBytes() - start);
+        }, "bench-websocket"));
+        BlockingQueue<Integer> callbacks = new LinkedBlockingQueue<>();
+        threads.add(new Thread(() -> {
+            long start = allocatedBytes();
+            try {
+                for (int i = callbacks.take(); i >= 0; i = callbacks.take()) {
+                    // onOrder(): journal first, then the router
+                    Event event = events.get(i);
+                    long receivedNanos = System.nanoTime();
+                    long seq = pipeline.journal(event.source, encoded[i], 0, encoded[i].length);
+                    metrics.recordNanos(event.source, DeliveryStage.JOURNAL, receivedNanos, System.nanoTime());
+                    router.submit(event.source, seq, event.text, receivedNanos);
+                }
+            } catch (InterruptedException e) {
+                result.errors.incrementAndGet();
+            }
+            threadAllocated.addAndGet(allocatedBytes() - start);
+        }, "bench-callbacks"));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // feed, paced by the timestamps unless speed is 0
+        long firstAt = events.isEmpty() ? 0 : events.get(0).atMillis;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < encoded.length; i++) {
+            Event event = events.get(i);
+            if (speed > 0) {
+                long dueNanos = startNanos + (long) ((event.atMillis - firstAt) * 1_000_000 / speed);
+                for (long wait = dueNanos - System.nanoTime(); wait > 0; wait = dueNanos - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            if (event.source == MessageSource.BLUETOOTH) {
+                sockets[event.sender].feed(encoded[i]);
+            } else if (event.source == MessageSource.WEBSOCKET) {
+                webSocket.add(encoded[i]);
+            } else {
+                callbacks.add(i);
+            }
+        }
+        for (FakeSocket socket : sockets) {
+            socket.finish();
+        }
+        webSocket.add(end);
+        callbacks.add(-1);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long transportsDoneNanos = System.nanoTime();
+        while (router.getQueued() > 0) {
+            Thread.sleep(1);
+        }
+        // queued behind the last drain
+        runOnLoop(eventLoop, () -> loopAllocated[0] += allocatedBytes());
+        result.elapsedNanos = Math.max(result.lastDeliveredNanos, transportsDoneNanos) - startNanos;
+        result.allocatedBytes = threadAllocated.get() + loopAllocated[0];
+
+        eventLoop.shutdown();
+        eventLoop.awaitTermination(5, TimeUnit.SECONDS);
+        if (journal != null) {
+            journal.close();
+        }
+        return result;
+    }
+
+    private static void runOnLoop(EventLoop eventLoop, Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        eventLoop.execute(() -> {
+            task.run();
+            done.countDown();
+        });
+        done.await();
+    }
+
+    static final class Result {
+        final int messages;
+        final MessageRouter router;
+        final DeliveryMetrics metrics;
+        // receive to dispatched, all sources, microseconds
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicInteger vibrations = new AtomicInteger();
+        final AtomicInteger shownInApp = new AtomicInteger();
+        final AtomicInteger notifications = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        volatile long lastDeliveredNanos;
+        long elapsedNanos;
+        long allocatedBytes;
+
+        Result(int messages, MessageRouter router, DeliveryMetrics metrics) {
+            this.messages = messages;
+            this.router = router;
+            this.metrics = metrics;
+        }
+
+        // Messages a sink took, coalesced ones included
+        long getDelivered() {
+            long delivered = 0;
+            for (MessagePriority priority : MessagePriority.values()) {
+                delivered += router.getDelivered(priority);
+            }
+            return delivered;
+        }
+
+        long getShed() {
+            long shed = 0;
+            for (MessagePriority priority : MessagePriority.values()) {
+                shed += router.getShed(priority);
+            }
+            return shed;
+        }
+
+        double getThroughput() {
+            return messages * 1e9 / elapsedNanos;
+        }
+
+        double getAllocatedPerMessage() {
+            return (double) allocatedBytes / messages;
+        }
+
+        String report() {
+            return String.format(Locale.US, "pipeline: messages=%d elapsed=%.1f ms throughput=%.0f msg/s delivered=%d shed=%d"
+                            + " errors=%d notifications=%d in_app=%d alloc=%.0f B/msg%n"
+                            + "receive to dispatched (ms): p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f%n",
+                    messages, elapsedNanos / 1e6, getThroughput(), getDelivered(), getShed(), errors.get(),
+                    notifications.get(), shownInApp.get(), getAllocatedPerMessage(),
+                    latency.getPercentile(50) / 1000.0, latency.getPercentile(90) / 1000.0,
+                    latency.getPercentile(99) / 1000.0, latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0)
+                    + metrics.report() + router.report();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+// Bytes allocated per received message, old receive loop vs the pooled framing path
+public class ReceivePathAllocationTest {
+
+    private static final int MESSAGES = 50_000;
+    private static final String MESSAGE = "Hello from Watch-07 \u00e9";
+
+    private long checksum; // keeps the JIT from dropping the decoded text
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // What listenForBluetoothMessages used to do for every message
+    private long oldPath(byte[] raw) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(raw);
+        long start = allocatedBytes();
+        for (int i = 0; i < MESSAGES; i++) {
+            in.reset();
+            byte[] buffer = new byte[1024];
+            int bytes = in.read(buffer);
+            String message = new String(buffer, 0, bytes);
+            String log = "Msg : " + message;
+            checksum += log.length();
+        }
+        return allocatedBytes() - start;
+    }
+
+    private long newPath(byte[] stream, BufferPool pool) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(stream);
+        long start = allocatedBytes();
+        FrameDecoder decoder = new FrameDecoder(pool, FrameCodec.MAX_PAYLOAD);
+        TextDecoder textDecoder = new TextDecoder();
+        try {
+            decoder.readFrom(in, (type, payload, offset, length) -> {
+                CharSequence text = textDecoder.decode(payload, offset, length);
+                checksum += text.length() + text.charAt(0);
+            });
+        } finally {
+            decoder.release();
+        }
+        return allocatedBytes() - start;
+    }
+
+    @Test
+    public void pooledFramingPathAllocatesAlmostNothingPerMessage() throws IOException {
+        byte[] raw = (MESSAGE + "\n").getBytes();
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, MESSAGE.getBytes(StandardCharsets.UTF_8), true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length * MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            out.write(frame);
+        }
+        byte[] stream = out.toByteArray();
+        BufferPool pool = new BufferPool(1024, 2);
+
+        // warm up so the JIT has compiled both loops before we measure
+        for (int i = 0; i < 3; i++) {
+            oldPath(raw);
+            newPath(stream, pool);
+        }
+
+        double before = (double) oldPath(raw) / MESSAGES;
+        double after = (double) newPath(stream, pool) / MESSAGES;
+        System.out.printf("allocated per received message: before %.1f bytes, after %.2f bytes%n", before, after);
+
+        assertTrue("before " + before, before > 1024);
+        assertTrue("after " + after, after < 8);
+        assertTrue(checksum > 0);
+    }
+
+    @Test
+    public void reconnectingSendersReuseTheSameBuffer() throws IOException {
+        BufferPool pool = new BufferPool(1024, 2);
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, MESSAGE.getBytes(StandardCharsets.UTF_8), false);
+        for (int connection = 0; connection < 20; connection++) {
+            FrameDecoder decoder = new FrameDecoder(pool, FrameCodec.MAX_PAYLOAD);
+            decoder.readFrom(new ByteArrayInputStream(frame), (type, payload, offset, length) -> checksum++);
+            decoder.release();
+        }
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void textDecoderHandlesMultiByteCharactersAndGrows() {
+        TextDecoder decoder = new TextDecoder(4);
+        byte[] bytes = ("xx" + MESSAGE + "yy").getBytes(StandardCharsets.UTF_8);
+        assertEquals(MESSAGE, decoder.decode(bytes, 2, bytes.length - 4).toString());
+        assertEquals("xx", decoder.decode(bytes, 0, 2).toString());
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.btscanner;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+
+    private static final long SCAN_MS = 12_000;
+    private static final long MIN_INTERVAL_MS = 20_000;
+    private static final long MAX_INTERVAL_MS = 160_000;
+
+    static class FakeRadio implements DiscoveryRadio {
+        boolean discovering;
+        boolean lowPowerScanning;
+        boolean available = true;
+        int discoveries;
+        int lowPowerScans;
+
+        @Override
+        public boolean startDiscovery() {
+            if (!available) {
+                return false;
+            }
+            discovering = true;
+            discoveries++;
+            return true;
+        }
+
+        @Override
+        public void cancelDiscovery() {
+            discovering = false;
+        }
+
+        @Override
+        public boolean startLowPowerScan() {
+            if (!available) {
+                return false;
+            }
+            lowPowerScanning = true;
+            lowPowerScans++;
+            return true;
+        }
+
+        @Override
+        public void stopLowPowerScan() {
+            lowPowerScanning = false;
+        }
+    }
+
+    private FakeClock clock;
+    private FakeScheduler scheduler;
+    private FakeRadio radio;
+    private ScanScheduler scanScheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        scheduler = new FakeScheduler(clock);
+        radio = new FakeRadio();
+        scanScheduler = new ScanScheduler(radio, scheduler, clock, SCAN_MS, MIN_INTERVAL_MS, MAX_INTERVAL_MS);
+    }
+
+    @Test
+    public void backsOffWhileNothingNewIsFound() {
+        scanScheduler.start();
+        assertTrue(radio.discovering);
+
+        scheduler.advance(SCAN_MS);
+        assertFalse(radio.discovering);
+        assertEquals(40_000, scanScheduler.getInterval());
+
+        // 40 s, 80 s, 160 s, then capped
+        scheduler.advance(40_000 + SCAN_MS);
+        assertEquals(80_000, scanScheduler.getInterval());
+        scheduler.advance(80_000 + SCAN_MS);
+        assertEquals(160_000, scanScheduler.getInterval());
+        scheduler.advance(160_000 + SCAN_MS);
+        assertEquals(160_000, scanScheduler.getInterval());
+
+        assertEquals(4, radio.discoveries);
+        assertEquals(4 * SCAN_MS, scanScheduler.getScanTimeMillis());
+    }
+
+    @Test
+    public void newDeviceResetsTheInterval() {
+        scanScheduler.start();
+        scheduler.advance(SCAN_MS);
+        scheduler.advance(40_000 + SCAN_MS);
+        assertEquals(80_000, scanScheduler.getInterval());
+
+        scheduler.advance(80_000);
+        assertTrue(radio.discovering);
+        scanScheduler.onDeviceFound(false);
+        scanScheduler.onDeviceFound(true);
+        scheduler.advance(SCAN_MS);
+        assertEquals(MIN_INTERVAL_MS, scanScheduler.getInterval());
+    }
+
+    @Test
+    public void discoveryFinishedEndsTheCycleEarly() {
+        scanScheduler.start();
+        scheduler.advance(5_000);
+        scanScheduler.onDiscoveryFinished();
+
+        assertFalse(scanScheduler.isScanning());
+        assertEquals(5_000, scanScheduler.getClassicScanTimeMillis());
+        // the original scan timer must not end the next cycle early
+        scheduler.advance(40_000);
+        assertTrue(scanScheduler.isScanning());
+        scheduler.advance(SCAN_MS - 1);
+        assertTrue(scanScheduler.isScanning());
+    }
+
+    @Test
+    public void pausesWhileConnecting() {
+        scanScheduler.start();
+        scheduler.advance(3_000);
+        scanScheduler.connectionStarted();
+        assertFalse(radio.discovering);
+        assertEquals(3_000, scanScheduler.getScanTimeMillis());
+
+        // no scan starts while the connect is in progress
+        scheduler.advance(10 * MAX_INTERVAL_MS);
+        assertFalse(radio.discovering);
+        assertEquals(1, radio.discoveries);
+
+        scanScheduler.connectionFinished();
+        scheduler.advance(MIN_INTERVAL_MS);
+        assertTrue(radio.discovering);
+        assertEquals(2, radio.discoveries);
+    }
+
+    @Test
+    public void overlappingConnectionsKeepItPaused() {
+        scanScheduler.start();
+        scanScheduler.connectionStarted();
+        scanScheduler.connectionStarted();
+        scanScheduler.connectionFinished();
+        scheduler.advance(MAX_INTERVAL_MS);
+        assertFalse(radio.discovering);
+
+        scanScheduler.connectionFinished();
+        scheduler.advance(MIN_INTERVAL_MS);
+        assertTrue(radio.discovering);
+    }
+
+    @Test
+    public void lowPowerModeUsesBleAndCostsLess() {
+        scanScheduler.start();
+        scheduler.advance(SCAN_MS);
+        double classicCost = scanScheduler.getEstimatedMilliampHours();
+
+        scanScheduler.setLowPower(true);
+        scheduler.advance(40_000);
+        assertTrue(radio.lowPowerScanning);
+        assertFalse(radio.discovering);
+        scheduler.advance(SCAN_MS);
+        assertFalse(radio.lowPowerScanning);
+
+        assertEquals(SCAN_MS, scanScheduler.getLowPowerScanTimeMillis());
+        double lowPowerCost = scanScheduler.getEstimatedMilliampHours() - classicCost;
+        assertTrue(lowPowerCost > 0 && lowPowerCost < classicCost);
+    }
+
+    @Test
+    public void retriesWhenTheRadioIsUnavailable() {
+        radio.available = false;
+        scanScheduler.start();
+        assertFalse(scanScheduler.isScanning());
+
+        radio.available = true;
+        scheduler.advance(MIN_INTERVAL_MS);
+        assertTrue(scanScheduler.isScanning());
+    }
+
+    @Test
+    public void stopCancelsTheRunningScan() {
+        scanScheduler.start();
+        scanScheduler.stop();
+        assertFalse(radio.discovering);
+        scheduler.advance(10 * MAX_INTERVAL_MS);
+        assertEquals(1, radio.discoveries);
+    }
+}
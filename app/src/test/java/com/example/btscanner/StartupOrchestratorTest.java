@@ -0,0 +1,125 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupOrchestratorTest {
+
+    private final List<String> ran = new CopyOnWriteArrayList<>();
+
+    private StartupOrchestrator.Phase record(String name) {
+        return () -> ran.add(name + "@" + Thread.currentThread().getName());
+    }
+
+    private static StartupOrchestrator onThread() {
+        return new StartupOrchestrator(task -> new Thread(task, "startup").start());
+    }
+
+    @Test
+    public void criticalPhasesRunRightAwayAndDeferredOnesInTheBackground() throws Exception {
+        StartupOrchestrator startup = onThread();
+        String caller = Thread.currentThread().getName();
+        assertTrue(startup.run("foreground", record("foreground")));
+        startup.defer("firebase", record("firebase"));
+        startup.defer("order-sync", record("order-sync"), "firebase");
+        startup.defer("onesignal", record("onesignal"));
+        assertTrue(startup.run("bluetooth-listener", record("bluetooth-listener")));
+
+        // nothing deferred has run before start()
+        assertEquals(2, ran.size());
+        assertEquals(StartupOrchestrator.State.PENDING, startup.getState("firebase"));
+
+        startup.start();
+        assertTrue(startup.awaitDeferred(5, TimeUnit.SECONDS));
+        List<String> expected = new ArrayList<>();
+        expected.add("foreground@" + caller);
+        expected.add("bluetooth-listener@" + caller);
+        expected.add("firebase@startup");
+        expected.add("order-sync@startup");
+        expected.add("onesignal@startup");
+        assertEquals(expected, ran);
+        assertEquals(StartupOrchestrator.State.DONE, startup.getState("onesignal"));
+        assertTrue(startup.getDurationMillis("firebase") >= 0);
+        assertTrue(startup.getEndMillis("onesignal") >= startup.getEndMillis("bluetooth-listener"));
+        assertTrue(startup.report().contains("order-sync,true,DONE,"));
+    }
+
+    @Test
+    public void failedPhaseSkipsWhatDependsOnIt() throws Exception {
+        StartupOrchestrator startup = onThread();
+        assertFalse(startup.run("journal", () -> {
+            throw new java.io.IOException("disk full");
+        }));
+        startup.defer("firebase", () -> {
+            throw new IllegalStateException("no google-services.json");
+        });
+        startup.defer("order-sync", record("order-sync"), "firebase");
+        startup.defer("replay", record("replay"), "journal");
+        startup.defer("onesignal", record("onesignal"));
+        startup.start();
+        assertTrue(startup.awaitDeferred(5, TimeUnit.SECONDS));
+
+        assertEquals(StartupOrchestrator.State.FAILED, startup.getState("journal"));
+        assertEquals(StartupOrchestrator.State.FAILED, startup.getState("firebase"));
+        assertEquals(StartupOrchestrator.State.SKIPPED, startup.getState("order-sync"));
+        assertEquals(StartupOrchestrator.State.SKIPPED, startup.getState("replay"));
+        // unrelated phases still come up
+        assertEquals(1, ran.size());
+        assertTrue(ran.get(0).startsWith("onesignal@"));
+        assertEquals(-1, startup.getDurationMillis("order-sync"), 0);
+    }
+
+    @Test
+    public void cancelSkipsWhatHasNotStartedYet() throws Exception {
+        StartupOrchestrator startup = onThread();
+        CountDownLatch firebaseRunning = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        startup.defer("firebase", () -> {
+            firebaseRunning.countDown();
+            cancelled.await();
+            ran.add("firebase");
+        });
+        startup.defer("order-sync", record("order-sync"), "firebase");
+        startup.start();
+
+        assertTrue(firebaseRunning.await(5, TimeUnit.SECONDS));
+        startup.cancel();
+        cancelled.countDown();
+        assertTrue(startup.awaitDeferred(5, TimeUnit.SECONDS));
+
+        // the running phase finishes, the next one never starts
+        assertEquals(StartupOrchestrator.State.DONE, startup.getState("firebase"));
+        assertEquals(StartupOrchestrator.State.SKIPPED, startup.getState("order-sync"));
+        assertEquals(1, ran.size());
+    }
+
+    @Test
+    public void dependenciesHaveToBeKnownAndNothingIsDeferredAfterStart() {
+        StartupOrchestrator startup = new StartupOrchestrator(Runnable::run);
+        try {
+            startup.defer("order-sync", record("order-sync"), "firebase");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // firebase has to be added first, which also rules out cycles
+        }
+        startup.start();
+        try {
+            startup.defer("late", record("late"));
+            fail();
+        } catch (IllegalStateException expected) {
+            // too late
+        }
+        assertNotEquals(-1, startup.report().indexOf("phase,deferred,state"));
+    }
+}
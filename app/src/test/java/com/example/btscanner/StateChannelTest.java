@@ -0,0 +1,187 @@
+package com.example.btscanner;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StateChannelTest {
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void newListenerGetsTheLastValue() {
+        StateChannel<String> channel = new StateChannel<>(null);
+        assertEquals(0, channel.publish("first"));
+        assertEquals(0, channel.publish("second"));
+
+        List<String> seen = new ArrayList<>();
+        channel.observe(seen::add);
+        assertEquals(1, seen.size());
+        assertEquals("second", seen.get(0));
+
+        assertEquals(1, channel.publish("third"));
+        assertEquals("third", seen.get(1));
+        assertEquals(3, channel.getVersion());
+    }
+
+    @Test
+    public void removedListenerIsNotCalled() {
+        StateChannel<Boolean> channel = new StateChannel<>(false);
+        List<Boolean> first = new ArrayList<>();
+        List<Boolean> second = new ArrayList<>();
+        StateChannel.Listener<Boolean> firstListener = first::add;
+        channel.observe(firstListener);
+        channel.observe(second::add);
+        // observing twice does not register twice
+        channel.observe(firstListener);
+        assertEquals(2, channel.getListenerCount());
+
+        channel.remove(firstListener);
+        channel.publish(true);
+        assertEquals(1, first.size());
+        assertFalse(first.get(first.size() - 1));
+        assertTrue(second.get(second.size() - 1));
+        assertEquals(1, channel.getListenerCount());
+    }
+
+    @Test
+    public void messagePublishedAfterPauseIsHandedOverOnResume() {
+        AppChannels channels = new AppChannels();
+        List<InAppMessage> shown = new ArrayList<>();
+        StateChannel.Listener<InAppMessage> activity = message -> {
+            if (message != null) {
+                shown.add(message);
+            }
+        };
+
+        // resumed
+        channels.messages.observe(activity);
+        channels.foreground.publish(true);
+        assertEquals(1, channels.messages.publish(new InAppMessage(1, "one", 0)));
+
+        // the service checked the flag just before the activity paused
+        boolean foreground = channels.isForeground();
+        channels.foreground.publish(false);
+        channels.messages.remove(activity);
+        assertTrue(foreground);
+        assertEquals(0, channels.messages.publish(new InAppMessage(2, "two", 0)));
+
+        // resumed again: the message is not lost
+        channels.messages.observe(activity);
+        assertEquals(2, shown.size());
+        assertEquals("two", shown.get(1).text);
+        assertNull(new AppChannels().messages.get());
+    }
+
+    // The sticky message comes again on every resume and to every new activity (rotation), it's only shown once.
+    // Unjournaled messages (seq 0) are told apart by identity
+    @Test
+    public void stickyMessageIsShownOnceAcrossActivities() {
+        AppChannels channels = new AppChannels();
+        List<String> shown = new ArrayList<>();
+        StateChannel.Listener<InAppMessage> activity = message -> {
+            if (message != null && channels.markShown(message)) {
+                shown.add(message.text);
+            }
+        };
+        StateChannel.Listener<InAppMessage> recreated = message -> activity.onChanged(message);
+
+        channels.messages.observe(activity);
+        channels.messages.publish(new InAppMessage(0, "unjournaled", 0));
+        channels.messages.remove(activity);
+        channels.messages.observe(recreated);
+        channels.messages.publish(new InAppMessage(0, "unjournaled", 0));
+        channels.messages.publish(new InAppMessage(3, "three", 0));
+        channels.messages.remove(recreated);
+        channels.messages.observe(activity);
+        // an older message published late (another thread) is not shown either
+        channels.messages.publish(new InAppMessage(2, "two", 0));
+
+        assertEquals(Arrays.asList("unjournaled", "unjournaled", "three"), shown);
+    }
+
+    @Test
+    public void concurrentObserversAndPublishers() throws Exception {
+        StateChannel<Integer> channel = new StateChannel<>(0);
+        int threads = 8;
+        int rounds = 2_000;
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                StateChannel.Listener<Integer> listener = value -> calls.incrementAndGet();
+                for (int i = 0; i < rounds; i++) {
+                    channel.observe(listener);
+                    channel.publish(id * rounds + i);
+                    channel.remove(listener);
+                }
+            });
+            thread.start();
+            workers.add(thread);
+        }
+        go.countDown();
+        for (Thread thread : workers) {
+            thread.join(30_000);
+        }
+        assertEquals(0, channel.getListenerCount());
+        assertEquals((long) threads * rounds, channel.getVersion());
+        // every observe called its listener at least once
+        assertTrue(calls.get() >= threads * rounds);
+    }
+
+    // The in-process path: latency and garbage per message handed to one listener.
+    // The broadcast path needs a device, see StateChannelBenchmark in androidTest
+    @Test
+    public void dispatchCostPerMessage() {
+        StateChannel<InAppMessage> channel = new StateChannel<>(null);
+        long[] checksum = new long[1];
+        channel.observe(message -> {
+            if (message != null) {
+                checksum[0] += message.seq;
+            }
+        });
+        int messages = 200_000;
+        InAppMessage[] prepared = new InAppMessage[64];
+        for (int i = 0; i < prepared.length; i++) {
+            prepared[i] = new InAppMessage(i + 1, "Hello from Watch-07", 0);
+        }
+        for (int warmup = 0; warmup < 3; warmup++) {
+            for (int i = 0; i < messages; i++) {
+                channel.publish(prepared[i & 63]);
+            }
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            channel.publish(prepared[i & 63]);
+        }
+        double nanos = (double) (System.nanoTime() - start) / messages;
+        double bytes = (double) (allocatedBytes() - allocatedBefore) / messages;
+        System.out.printf("state channel dispatch: %.1f ns, %.2f bytes per message%n", nanos, bytes);
+
+        assertTrue(checksum[0] > 0);
+        // the value itself is the only allocation, and that is the caller's
+        assertTrue("bytes " + bytes, bytes < 1);
+    }
+}
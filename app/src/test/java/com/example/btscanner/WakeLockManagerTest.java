@@ -0,0 +1,192 @@
+package com.example.btscanner;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WakeLockManagerTest {
+
+    static class FakeLock implements WakeLockManager.Lock {
+        boolean held;
+        int acquires;
+        int releases;
+        long lastTimeout;
+
+        @Override
+        public void acquire(long timeoutMillis) {
+            held = true;
+            acquires++;
+            lastTimeout = timeoutMillis;
+        }
+
+        @Override
+        public void release() {
+            held = false;
+            releases++;
+        }
+    }
+
+    private FakeClock clock;
+    private FakeScheduler scheduler;
+    private FakeLock lock;
+    private WakeLockManager wakeLocks;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        scheduler = new FakeScheduler(clock);
+        lock = new FakeLock();
+        wakeLocks = new WakeLockManager(lock, scheduler, clock);
+    }
+
+    // The event loop may need the manager to make room in its queue, the sweep is scheduled without holding it
+    @Test
+    public void sweepIsScheduledOutsideTheMonitor() {
+        List<Boolean> heldWhileScheduling = new ArrayList<>();
+        WakeLockManager[] manager = new WakeLockManager[1];
+        manager[0] = new WakeLockManager(lock, (task, delayMillis) -> {
+            heldWhileScheduling.add(Thread.holdsLock(manager[0]));
+            scheduler.schedule(task, delayMillis);
+        }, clock);
+        manager[0].newLease("frame", 5_000).acquire();
+        manager[0].newLease("journal", 2_000).acquire();
+        // the journal lease expires first, the sweep then schedules itself for the frame lease
+        scheduler.advance(2_000);
+
+        assertEquals(3, heldWhileScheduling.size());
+        assertFalse(heldWhileScheduling.contains(true));
+        assertEquals(1, manager[0].getHeldLeases());
+    }
+
+    @Test
+    public void heldOnlyWhileALeaseIs() {
+        WakeLockManager.Lease frame = wakeLocks.newLease("frame", 5_000);
+        WakeLockManager.Lease journal = wakeLocks.newLease("journal", 5_000);
+
+        frame.acquire();
+        assertTrue(lock.held);
+        clock.advance(10);
+        journal.acquire();
+        clock.advance(10);
+        frame.release();
+        assertTrue(lock.held);
+        clock.advance(10);
+        journal.release();
+
+        assertFalse(lock.held);
+        assertEquals(1, lock.releases);
+        assertEquals(30, wakeLocks.getHeldMillis());
+        assertEquals(1, wakeLocks.getAcquireCount());
+
+        // idle time is not counted
+        clock.advance(60_000);
+        assertEquals(30, wakeLocks.getHeldMillis());
+    }
+
+    @Test
+    public void reacquiringALeaseIsIdempotent() {
+        WakeLockManager.Lease lease = wakeLocks.newLease("notification", 2_000);
+        lease.acquire();
+        lease.acquire();
+        assertEquals(1, wakeLocks.getHeldLeases());
+        lease.release();
+        lease.release();
+        assertFalse(lock.held);
+        assertEquals(0, wakeLocks.getHeldLeases());
+    }
+
+    @Test
+    public void forgottenLeaseExpires() {
+        WakeLockManager.Lease lease = wakeLocks.newLease("frame", 5_000);
+        lease.acquire();
+        scheduler.advance(4_999);
+        assertTrue(lock.held);
+        scheduler.advance(1);
+
+        assertFalse(lock.held);
+        assertFalse(lease.isHeld());
+        assertEquals(1, wakeLocks.getExpiredCount());
+        assertTrue(wakeLocks.report().contains("expired=1"));
+    }
+
+    @Test
+    public void shortLeaseExpiresBeforeALongOne() {
+        WakeLockManager.Lease longLease = wakeLocks.newLease("journal", 60_000);
+        WakeLockManager.Lease shortLease = wakeLocks.newLease("frame", 1_000);
+        longLease.acquire();
+        shortLease.acquire();
+
+        scheduler.advance(1_000);
+        assertFalse(shortLease.isHeld());
+        assertTrue(longLease.isHeld());
+        scheduler.advance(59_000);
+        assertFalse(lock.held);
+    }
+
+    @Test
+    public void busyLeaseKeepsExtendingItsDeadline() {
+        WakeLockManager.Lease lease = wakeLocks.newLease("frame", 1_000);
+        for (int i = 0; i < 100; i++) {
+            lease.acquire();
+            scheduler.advance(500);
+        }
+        assertTrue(lease.isHeld());
+        assertEquals(0, wakeLocks.getExpiredCount());
+        // the platform lock is re-armed now and then, not on every acquire
+        assertTrue("acquires " + lock.acquires, lock.acquires <= 60);
+        assertTrue(lock.lastTimeout >= 1_000);
+    }
+
+    @Test
+    public void alwaysHeldKeepsTheLockWithoutLeases() {
+        wakeLocks.setAlwaysHeld(true);
+        assertTrue(lock.held);
+        WakeLockManager.Lease lease = wakeLocks.newLease("frame", 1_000);
+        lease.acquire();
+        lease.release();
+        assertTrue(lock.held);
+
+        wakeLocks.setAlwaysHeld(false);
+        assertFalse(lock.held);
+    }
+
+    @Test
+    public void experimentAlternatesPoliciesPerPeriod() {
+        long hour = 60 * 60 * 1000L;
+        WakeLockExperiment experiment = new WakeLockExperiment(wakeLocks, scheduler, clock, hour, true);
+        WakeLockManager.Lease lease = wakeLocks.newLease("frame", 5_000);
+        experiment.start();
+
+        // adaptive hour: 10 messages, 100 ms each
+        for (int i = 0; i < 10; i++) {
+            lease.acquire();
+            scheduler.advance(100);
+            lease.release();
+            experiment.recordDelivery(100_000);
+            scheduler.advance(1_000);
+        }
+        scheduler.advance(hour - 11_000);
+        assertTrue(wakeLocks.isAlwaysHeld());
+
+        experiment.recordDelivery(20_000);
+        scheduler.advance(hour);
+        experiment.stop();
+
+        List<WakeLockExperiment.Row> rows = experiment.getRows();
+        assertEquals(3, rows.size());
+        assertFalse(rows.get(0).alwaysHeld);
+        assertEquals(1_000, rows.get(0).heldMillis);
+        assertEquals(10, rows.get(0).messages);
+        assertTrue(rows.get(1).alwaysHeld);
+        assertEquals(hour, rows.get(1).heldMillis);
+        assertEquals(1, rows.get(1).messages);
+        assertFalse(wakeLocks.isHeld());
+        assertTrue(experiment.report().startsWith("start,policy"));
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.btscanner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketTransportTest {
+
+    private LocalWebSocketServer server;
+    private WebSocketTransport transport;
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private final AtomicInteger frames = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalWebSocketServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (transport != null) {
+            transport.stop();
+        }
+        server.close();
+    }
+
+    private void start(long pingIntervalMillis, long pongTimeoutMillis, boolean keepMessages) throws Exception {
+        transport = new WebSocketTransport("test", server.uri(), (source, type, payload, offset, length) -> {
+            assertEquals(MessageSource.WEBSOCKET, source);
+            frames.incrementAndGet();
+            if (keepMessages) {
+                messages.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+            }
+        }, pingIntervalMillis, pongTimeoutMillis, 20, 1_000);
+        transport.start();
+        await(() -> transport.isConnected() && server.connectedClients() == 1, 5_000);
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void receivesTextFramedAndFragmentedMessages() throws Exception {
+        start(10_000, 5_000, true);
+
+        server.sendText("hello");
+        server.sendBinary(FrameCodec.encode(FrameCodec.TYPE_TEXT, "framed".getBytes(StandardCharsets.UTF_8), true));
+        server.sendFragmented("a fragmented message", 4);
+        char[] large = new char[65_000];
+        Arrays.fill(large, 'x');
+        server.sendText(new String(large));
+
+        await(() -> messages.size() == 4, 5_000);
+        assertEquals("hello", messages.get(0));
+        assertEquals("framed", messages.get(1));
+        assertEquals("a fragmented message", messages.get(2));
+        assertEquals(65_000, messages.get(3).length());
+    }
+
+    @Test
+    public void sendsToTheServer() throws Exception {
+        start(10_000, 5_000, true);
+        byte[] hello = "status ok".getBytes(StandardCharsets.UTF_8);
+        transport.send(hello, 0, hello.length, true);
+        byte[] large = new byte[1_000];
+        Arrays.fill(large, (byte) 'y');
+        transport.send(large, 0, large.length, true);
+
+        await(() -> server.received.size() == 2, 5_000);
+        assertEquals("status ok", server.received.get(0));
+        assertEquals(1_000, server.received.get(1).length());
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        start(10_000, 5_000, false);
+        char[] body = new char[100];
+        Arrays.fill(body, 'm');
+        String message = new String(body);
+        int total = 100_000;
+
+        long start = System.nanoTime();
+        for (int sent = 0; sent < total; sent += 1_000) {
+            server.sendTextBurst(message, 1_000);
+        }
+        await(() -> frames.get() == total, 20_000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("websocket throughput: %.0f msg/s (%d x 100 bytes)%n", total / seconds, total);
+        assertEquals(total, transport.getReceivedMessages());
+    }
+
+    @Test
+    public void reconnectsAfterTheConnectionDrops() throws Exception {
+        start(10_000, 5_000, true);
+        long[] latencies = new long[5];
+        for (int i = 0; i < latencies.length; i++) {
+            int handshakes = server.handshakes.get();
+            long dropped = System.nanoTime();
+            server.dropAll();
+            await(() -> server.handshakes.get() == handshakes + 1, 5_000);
+            latencies[i] = (server.lastHandshakeNanos - dropped) / 1_000_000;
+            await(() -> transport.isConnected(), 5_000);
+        }
+        Arrays.sort(latencies);
+        System.out.printf("websocket reconnect: p50 %d ms, max %d ms%n", latencies[2], latencies[4]);
+        assertEquals(6, transport.getConnectCount());
+        assertTrue("reconnect took " + latencies[4] + " ms", latencies[4] < 1_000);
+
+        server.sendText("after reconnect");
+        await(() -> messages.contains("after reconnect"), 5_000);
+    }
+
+    @Test
+    public void keepaliveDetectsASilentServer() throws Exception {
+        start(50, 100, true);
+        // pings are answered, the connection stays up
+        Thread.sleep(300);
+        assertTrue(server.pings.get() >= 2);
+        assertEquals(1, transport.getConnectCount());
+
+        // half-open: the server is still there but never answers
+        server.answerPings = false;
+        await(() -> transport.getConnectCount() >= 2, 5_000);
+    }
+
+    @Test
+    public void backsOffWhileTheServerIsDown() throws Exception {
+        start(10_000, 5_000, true);
+        int attempts = transport.getConnectAttempts();
+        server.close();
+        Thread.sleep(500);
+        // retries after 20, 40, 80, 160 ms: a handful of attempts, not hundreds
+        int retries = transport.getConnectAttempts() - attempts;
+        assertTrue("retries " + retries, retries >= 3 && retries <= 6);
+        assertEquals(1, transport.getConnectCount());
+        assertTrue(transport.isRunning());
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.btscanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Encoding a message the way MainActivity.sendBTMessage and the order relay do, and decoding it the way
+// InboundPipeline does (MessageDecoder, then TextDecoder and the String the router gets).
+// utf8 is the plain String.getBytes / new String the old receive loop used, for comparison
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private static final String DEVICE_NAME = "Galaxy Watch4 (R8X2)";
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    private final Map<String, Object> orderFields = new HashMap<>();
+    private final MessageDecoder messageDecoder = new MessageDecoder();
+    private final TextDecoder textDecoder = new TextDecoder();
+    private long nextId;
+    private byte[] ping;
+    private byte[] order;
+    private byte[] pingUtf8;
+
+    @Setup
+    public void setUp() {
+        orderFields.put("field1", "4711");
+        orderFields.put(OrderWriter.CREATED_AT, 1_760_000_000_000L);
+        ping = MessageCodec.encodeText(InboundPipeline.HELLO_PREFIX + DEVICE_NAME);
+        order = MessageCodec.encodeOrder(InboundPipeline.ORDER_PREFIX, "4711", orderFields);
+        pingUtf8 = (InboundPipeline.HELLO_PREFIX + DEVICE_NAME).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // sendBTMessage: the text, its compact encoding and the reliable frame the outbox sends
+    @Benchmark
+    public byte[] encodePingFrame() {
+        byte[] payload = MessageCodec.encodeText(InboundPipeline.HELLO_PREFIX + DEVICE_NAME);
+        return OutboundQueue.encode(new OutboundQueue.Entry(nextId++, ADDRESS, FrameCodec.TYPE_MESSAGE, payload, 0));
+    }
+
+    @Benchmark
+    public byte[] encodePingUtf8() {
+        return (InboundPipeline.HELLO_PREFIX + DEVICE_NAME).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeOrder() {
+        return MessageCodec.encodeOrder(InboundPipeline.ORDER_PREFIX, "4711", orderFields);
+    }
+
+    @Benchmark
+    public String decodePing() throws IOException {
+        int length = messageDecoder.decode(ping, 0, ping.length);
+        return textDecoder.decode(messageDecoder.getText(), 0, length).toString();
+    }
+
+    @Benchmark
+    public String decodePingUtf8() {
+        return new String(pingUtf8, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String decodeOrder() throws IOException {
+        int length = messageDecoder.decode(order, 0, order.length);
+        return textDecoder.decode(messageDecoder.getText(), 0, length).toString();
+    }
+}
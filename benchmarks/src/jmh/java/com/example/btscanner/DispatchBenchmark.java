@@ -0,0 +1,71 @@
+package com.example.btscanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// From the router to what the user sees: routing a message through the service's sinks into its
+// priority's NotificationDispatcher and the notification text (NotificationContent), and the device
+// list row MainActivity's adapter builds for every bind
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    private static final int TEXTS = 64;
+
+    private final String[] texts = new String[TEXTS];
+    private final List<String> lines = Arrays.asList("status Watch-03 battery 80%", "Hello from Watch-07",
+            "Firebase new: 4711", "status Watch-03 battery 79%", "Hello from Watch-11");
+    private final ScannedDevice device = new ScannedDevice("AA:BB:CC:DD:EE:FF", "Galaxy Watch4 (R8X2)", -67, true, 0);
+    private MessageRouter router;
+    private int next;
+    private int shown;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < TEXTS; i++) {
+            texts[i] = i % 8 == 0 ? InboundPipeline.ORDER_PREFIX + (4700 + i)
+                    : i % 2 == 0 ? InboundPipeline.HELLO_PREFIX + "Watch-" + i % 16
+                    : "status Watch-" + i % 16 + " battery " + (100 - i) + "%";
+        }
+        // the sinks of BluetoothService.setUpRoutes() with the activity in the background; the flush runs
+        // straight away, so every message is a notification update (the worst case, the window folds them)
+        router = new MessageRouter(InboundPipeline::classify, Runnable::run, 512, 32);
+        router.addSink(MessagePriority.URGENT, message -> false);
+        router.addSink(message -> false);
+        for (MessagePriority priority : MessagePriority.values()) {
+            NotificationDispatcher dispatcher = new NotificationDispatcher(
+                    (count, shownLines) -> shown += NotificationContent.of(count, shownLines).text.length(),
+                    (task, delayMillis) -> task.run(), Clock.SYSTEM, 250, 4, 5);
+            router.addSink(priority, message -> {
+                dispatcher.post(message.getDisplayText());
+                return true;
+            });
+        }
+    }
+
+    @Benchmark
+    public MessagePriority routeToNotification() {
+        String text = texts[next++ & (TEXTS - 1)];
+        return router.submit(MessageSource.BLUETOOTH, next, text, System.nanoTime());
+    }
+
+    @Benchmark
+    public NotificationContent notificationContent() {
+        return NotificationContent.of(37, lines);
+    }
+
+    @Benchmark
+    public StringBuilder deviceRowText() {
+        return device.appendRowText(new StringBuilder());
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.btscanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// A sender's connection with FRAMES messages on it, per message: the bare FrameDecoder, and everything
+// InboundPipeline.read() does up to the router's sinks (decode, relay and reliable bookkeeping, routing).
+// No journal, its fsync'ing thread is measured by MessageJournalTest
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FramingBenchmark {
+
+    private static final int FRAMES = 1000;
+
+    // TYPE_MESSAGE frames as sendBTMessage used to send them, or wrapped by the outbox (TYPE_RELIABLE, ACKed)
+    @Param({"message", "reliable"})
+    public String kind;
+
+    private byte[] stream;
+    private final BufferPool buffers = new BufferPool(1024, 1);
+    private InboundPipeline pipeline;
+    private long delivered;
+
+    @Setup
+    public void setUp() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] payload = MessageCodec.encodeText(i % 4 == 0 ? InboundPipeline.ORDER_PREFIX + i : "status Watch-07 battery 81% seq " + i);
+            byte[] frame = "reliable".equals(kind)
+                    ? OutboundQueue.encode(new OutboundQueue.Entry(i, "AA:BB:CC:DD:EE:FF", FrameCodec.TYPE_MESSAGE, payload, 0))
+                    : FrameCodec.encode(FrameCodec.TYPE_MESSAGE, payload, true);
+            out.write(frame, 0, frame.length);
+        }
+        stream = out.toByteArray();
+
+        // as the service wires it, timers that never fire and a sink that takes everything
+        Scheduler scheduler = (task, delayMillis) -> {
+        };
+        MessageRouter router = new MessageRouter(InboundPipeline::classify, Runnable::run, 512, 32);
+        router.addSink(message -> {
+            delivered++;
+            return true;
+        });
+        MessageRelay relay = new MessageRelay((address, frame) -> CompletableFuture.completedFuture(null),
+                Collections.<String>emptyList(), 4096, 8, 64, Clock.WALL);
+        WakeLockManager wakeLocks = new WakeLockManager(new WakeLockManager.Lock() {
+            @Override
+            public void acquire(long timeoutMillis) {
+            }
+
+            @Override
+            public void release() {
+            }
+        }, scheduler, Clock.SYSTEM);
+        pipeline = new InboundPipeline(router, new DeliveryMetrics(), null, relay,
+                // a window of FRAMES IDs would see every later invocation's messages as copies
+                new ReliableReceiver(1), new HealthMonitor(scheduler, Clock.SYSTEM, 30_000, 5_000), buffers, wakeLocks,
+                Clock.WALL);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int readFrames(Blackhole blackhole) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(buffers, FrameCodec.MAX_PAYLOAD);
+        try {
+            return decoder.readFrom(new ByteArrayInputStream(stream), (type, payload, offset, length) -> blackhole.consume(payload[offset]));
+        } finally {
+            decoder.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long receivePath() throws IOException {
+        pipeline.read(new StreamConnection(new ByteArrayInputStream(stream)), System.nanoTime());
+        return delivered;
+    }
+
+    // One sender's connection, ACKs go nowhere
+    private static final class StreamConnection implements Connection {
+        private final InputStream in;
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        StreamConnection(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "AA:BB:CC:DD:EE:FF";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}